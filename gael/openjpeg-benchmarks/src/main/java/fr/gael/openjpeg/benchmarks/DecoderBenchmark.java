@@ -0,0 +1,116 @@
+package fr.gael.openjpeg.benchmarks;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.gael.openjpeg.OpenJpegDecoder;
+
+/**
+ * Decodings of {@link OpenJpegDecoder} over a file mapped in memory once, so
+ * that only the JNI glue and the codec are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecoderBenchmark
+{
+   private static final int REDUCE_FACTOR = 2;
+
+   @Param({Fixtures.TEST_FIXTURE,
+         "untiled-8bit-lossless", "untiled-8bit-lossy",
+         "untiled-16bit-lossless", "untiled-16bit-lossy",
+         "tiled-8bit-lossless", "tiled-8bit-lossy",
+         "tiled-16bit-lossless", "tiled-16bit-lossy"})
+   public String fixture;
+
+   private OpenJpegDecoder decoder;
+   private ByteBuffer input;
+   private int regionX;
+   private int regionY;
+   private int regionWidth;
+   private int regionHeight;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException
+   {
+      RandomAccessFile file = new RandomAccessFile(Fixtures.get(fixture), "r");
+      try
+      {
+         input = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+               file.length());
+      }
+      finally
+      {
+         file.close();
+      }
+
+      decoder = new OpenJpegDecoder();
+      if (!decoder.decodeHeader(input))
+      {
+         throw new IllegalStateException("Cannot decode fixture: " + fixture);
+      }
+      // centred quarter of the image, relative to its origin
+      regionWidth = decoder.getWidth() / 2;
+      regionHeight = decoder.getHeight() / 2;
+      regionX = regionWidth / 2;
+      regionY = regionHeight / 2;
+   }
+
+   @Benchmark
+   public boolean header()
+   {
+      return decoder.decodeHeader(input);
+   }
+
+   @Benchmark
+   public Object full()
+   {
+      decoder.decode(input);
+      return output();
+   }
+
+   @Benchmark
+   public Object region()
+   {
+      decoder.setByteBufferInputStream(input);
+      decoder.decodeRegion(regionX, regionY, regionWidth, regionHeight);
+      return output();
+   }
+
+   @Benchmark
+   public Object reduced()
+   {
+      decoder.setByteBufferInputStream(input);
+      decoder.decode(REDUCE_FACTOR);
+      return output();
+   }
+
+   private Object output()
+   {
+      if (decoder.getImage8() != null)
+      {
+         return decoder.getImage8();
+      }
+      return decoder.getImage16() != null ?
+            decoder.getImage16() : decoder.getImage24();
+   }
+}
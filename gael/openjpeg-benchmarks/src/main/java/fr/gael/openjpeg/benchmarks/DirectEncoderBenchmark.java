@@ -0,0 +1,97 @@
+package fr.gael.openjpeg.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.gael.openjpeg.OpenJpegEncoder;
+
+/**
+ * {@link OpenJpegEncoder#encode(ByteBuffer, WritableByteChannel)} of the
+ * image of {@link EncoderBenchmark}, from a direct buffer to a channel
+ * counting the codestream bytes: nothing is allocated for the codestream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectEncoderBenchmark
+{
+   @Param({"8", "16"})
+   public int bits;
+
+   @Param({"false", "true"})
+   public boolean tiled;
+
+   @Param({"false", "true"})
+   public boolean lossy;
+
+   private OpenJpegEncoder encoder;
+   private ByteBuffer samples;
+   private CountingChannel output;
+
+   @Setup(Level.Trial)
+   public void setUp()
+   {
+      encoder = Fixtures.createEncoder(bits, tiled, lossy);
+      // a raw codestream, as the legacy encoder
+      encoder.setCodecFormat(OpenJpegEncoder.FORMAT_J2K);
+      samples = Fixtures.createSamples(Fixtures.SIZE, Fixtures.SIZE, bits);
+      output = new CountingChannel();
+   }
+
+   @Benchmark
+   public long encode() throws IOException
+   {
+      output.count = 0;
+      if (!encoder.encode(samples, output))
+      {
+         throw new IllegalStateException("Cannot encode the image.");
+      }
+      return output.count;
+   }
+
+   /**
+    * Channel discarding the bytes written.
+    */
+   private static class CountingChannel implements WritableByteChannel
+   {
+      private long count;
+
+      @Override
+      public int write(ByteBuffer source)
+      {
+         int length = source.remaining();
+         source.position(source.limit());
+         count += length;
+         return length;
+      }
+
+      @Override
+      public boolean isOpen()
+      {
+         return true;
+      }
+
+      @Override
+      public void close()
+      {
+      }
+   }
+}
@@ -0,0 +1,85 @@
+package fr.gael.openjpeg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openJpeg.OpenJPEGJavaEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link OpenJPEGJavaEncoder#encodeImageToJ2K()} of a generated grey image,
+ * the baseline of {@link DirectEncoderBenchmark}. Needs the legacy encoder
+ * library, see {@link Fixtures#ENCODER_LIBRARY_PROPERTY}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncoderBenchmark
+{
+   @Param({"8", "16"})
+   public int bits;
+
+   @Param({"false", "true"})
+   public boolean tiled;
+
+   @Param({"false", "true"})
+   public boolean lossy;
+
+   private OpenJPEGJavaEncoder encoder;
+   private byte[] image8;
+   private short[] image16;
+
+   @Setup(Level.Trial)
+   public void setUp()
+   {
+      encoder = Fixtures.createLegacyEncoder();
+      short[] pixels = Fixtures.createPixels(Fixtures.SIZE, Fixtures.SIZE, bits);
+      if (bits == 8)
+      {
+         image8 = new byte[pixels.length];
+         for (int i = 0; i < pixels.length; i++)
+         {
+            image8[i] = (byte) pixels[i];
+         }
+      }
+      else
+      {
+         image16 = pixels;
+      }
+   }
+
+   @Benchmark
+   public long encode()
+   {
+      // the encoder keeps its compressed stream buffer between images
+      encoder.setWidth(Fixtures.SIZE);
+      encoder.setHeight(Fixtures.SIZE);
+      encoder.setDepth(bits);
+      encoder.setNbResolutions(6);
+      encoder.setTileSize(tiled ? Fixtures.TILE_SIZE : -1);
+      encoder.setRatioLayers(lossy ? new float[] {20f} : null);
+      if (image8 != null)
+      {
+         encoder.setImage8(image8);
+      }
+      else
+      {
+         encoder.setImage16(image16);
+      }
+      encoder.encodeImageToJ2K();
+      return encoder.getCompressedStreamLength();
+   }
+}
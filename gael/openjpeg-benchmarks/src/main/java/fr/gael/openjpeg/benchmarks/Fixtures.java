@@ -0,0 +1,232 @@
+package fr.gael.openjpeg.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.openJpeg.OpenJPEGJavaEncoder;
+
+import fr.gael.openjpeg.OpenJpegEncoder;
+
+/**
+ * Images decoded by the benchmarks, written once per JVM in a temporary
+ * directory:
+ * <ul>
+ * <li>{@value #TEST_FIXTURE}, the reference image of the JNI tests;</li>
+ * <li>generated images named [tiled|untiled]-[8|16]bit-[lossless|lossy],
+ *    {@value #SIZE} pixels wide, in tiles of {@value #TILE_SIZE} pixels
+ *    when tiled. They are encoded by the {@link OpenJpegEncoder}.</li>
+ * </ul>
+ * The legacy {@link OpenJPEGJavaEncoder} benchmarked against it loads the
+ * library given by the {@value #ENCODER_LIBRARY_PROPERTY} system property.
+ */
+final class Fixtures
+{
+   static final String ENCODER_LIBRARY_PROPERTY = "openjpeg.encoder.library";
+   static final String TEST_FIXTURE = "test.jp2";
+
+   static final int SIZE = 2048;
+   static final int TILE_SIZE = 512;
+   private static final int RESOLUTIONS = 6;
+   private static final float LOSSY_RATIO = 20f;
+
+   private static final Map<String, File> FILES = new HashMap<String, File>();
+   private static File directory;
+
+   private Fixtures()
+   {
+   }
+
+   /**
+    * @return the file of the given fixture.
+    * @throws IOException if the fixture cannot be written.
+    * @throws IllegalArgumentException if the fixture name is unknown.
+    */
+   static synchronized File get(String name) throws IOException
+   {
+      File file = FILES.get(name);
+      if (file == null)
+      {
+         if (directory == null)
+         {
+            directory = createTempDirectory();
+         }
+         file = new File(directory, name.endsWith(".jp2") ? name : name + ".jp2");
+         if (TEST_FIXTURE.equals(name))
+         {
+            OutputStream output = new FileOutputStream(file);
+            try
+            {
+               output.write(readResource(TEST_FIXTURE));
+            }
+            finally
+            {
+               output.close();
+            }
+         }
+         else
+         {
+            generate(name, file);
+         }
+         file.deleteOnExit();
+         FILES.put(name, file);
+      }
+      return file;
+   }
+
+   /**
+    * @return a new legacy encoder loading the library given by the
+    *    {@value #ENCODER_LIBRARY_PROPERTY} system property.
+    * @throws IllegalStateException if the property is not set.
+    */
+   static OpenJPEGJavaEncoder createLegacyEncoder()
+   {
+      String library = System.getProperty(ENCODER_LIBRARY_PROPERTY);
+      if (library == null)
+      {
+         throw new IllegalStateException("Set -D" + ENCODER_LIBRARY_PROPERTY +
+               " to the openjpegjni library to encode images.");
+      }
+      return new OpenJPEGJavaEncoder(library);
+   }
+
+   /**
+    * @return an encoder of a grey image of {@value #SIZE} pixels, in tiles
+    *    of {@value #TILE_SIZE} pixels if tiled, reversible, lossless or at
+    *    a compression ratio of {@value #LOSSY_RATIO}.
+    */
+   static OpenJpegEncoder createEncoder(int bits, boolean tiled, boolean lossy)
+   {
+      OpenJpegEncoder encoder = new OpenJpegEncoder();
+      encoder.setImage(SIZE, SIZE, 1, bits, false);
+      encoder.setResolutionsNumber(RESOLUTIONS);
+      if (tiled)
+      {
+         encoder.setTileSize(TILE_SIZE, TILE_SIZE);
+      }
+      if (lossy)
+      {
+         encoder.setCompressionRatios(LOSSY_RATIO);
+      }
+      return encoder;
+   }
+
+   /**
+    * @return the pixels of {@link #createPixels(int, int, int)} in a direct
+    *    buffer, as read by {@link OpenJpegEncoder#encode(ByteBuffer,
+    *    java.nio.channels.WritableByteChannel)}.
+    */
+   static ByteBuffer createSamples(int width, int height, int bits)
+   {
+      short[] pixels = createPixels(width, height, bits);
+      ByteBuffer samples = ByteBuffer.allocateDirect(pixels.length * (bits <= 8 ? 1 : 2))
+            .order(ByteOrder.nativeOrder());
+      if (bits <= 8)
+      {
+         for (short pixel : pixels)
+         {
+            samples.put((byte) pixel);
+         }
+         samples.rewind();
+      }
+      else
+      {
+         samples.asShortBuffer().put(pixels);
+      }
+      return samples;
+   }
+
+   /**
+    * @return a gradient with some noise, so that the encoded size depends on
+    *    the quality.
+    */
+   static short[] createPixels(int width, int height, int bits)
+   {
+      Random random = new Random(42);
+      int max = (1 << bits) - 1;
+      short[] pixels = new short[width * height];
+      for (int j = 0; j < height; j++)
+      {
+         for (int i = 0; i < width; i++)
+         {
+            int value = (int) ((long) max * (i + j) / (width + height)) +
+                  random.nextInt(max / 16 + 1);
+            pixels[j * width + i] = (short) Math.min(value, max);
+         }
+      }
+      return pixels;
+   }
+
+   private static void generate(String name, File file) throws IOException
+   {
+      String[] parts = name.split("-");
+      if (parts.length != 3 || !Arrays.asList("tiled", "untiled").contains(parts[0]) ||
+            !Arrays.asList("8bit", "16bit").contains(parts[1]) ||
+            !Arrays.asList("lossless", "lossy").contains(parts[2]))
+      {
+         throw new IllegalArgumentException("Unknown fixture: " + name);
+      }
+      int bits = "8bit".equals(parts[1]) ? 8 : 16;
+
+      OpenJpegEncoder encoder = createEncoder(bits, "tiled".equals(parts[0]),
+            "lossy".equals(parts[2]));
+      FileChannel output = new RandomAccessFile(file, "rw").getChannel();
+      try
+      {
+         if (!encoder.encode(createSamples(SIZE, SIZE, bits), output))
+         {
+            throw new IllegalStateException("Cannot encode fixture: " + name);
+         }
+      }
+      finally
+      {
+         output.close();
+      }
+   }
+
+   private static byte[] readResource(String name) throws IOException
+   {
+      InputStream input = Fixtures.class.getClassLoader().getResourceAsStream(name);
+      if (input == null)
+      {
+         throw new IOException("Missing resource: " + name);
+      }
+      try
+      {
+         ByteArrayOutputStream output = new ByteArrayOutputStream();
+         byte[] buffer = new byte[64 * 1024];
+         int read;
+         while ((read = input.read(buffer)) != -1)
+         {
+            output.write(buffer, 0, read);
+         }
+         return output.toByteArray();
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+
+   private static File createTempDirectory() throws IOException
+   {
+      File dir = File.createTempFile("openjpeg-benchmarks", "");
+      if (!dir.delete() || !dir.mkdir())
+      {
+         throw new IOException("Cannot create directory: " + dir);
+      }
+      dir.deleteOnExit();
+      return dir;
+   }
+}
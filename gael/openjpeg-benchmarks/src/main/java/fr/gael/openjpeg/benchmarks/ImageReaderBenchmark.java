@@ -0,0 +1,66 @@
+package fr.gael.openjpeg.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.gael.openjpeg.imageio.OpenJpegImageReader;
+import fr.gael.openjpeg.imageio.OpenJpegImageReaderSpi;
+
+/**
+ * {@link fr.gael.openjpeg.imageio.OpenJpegImageReader#read(int,
+ * javax.imageio.ImageReadParam)} of a file, header probing and BufferedImage
+ * creation included, and of a 256 pixels thumbnail.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageReaderBenchmark
+{
+   @Param({Fixtures.TEST_FIXTURE, "untiled-8bit-lossless",
+         "untiled-16bit-lossless", "tiled-16bit-lossy"})
+   public String fixture;
+
+   private File file;
+   private ImageReader reader;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException
+   {
+      file = Fixtures.get(fixture);
+      reader = new OpenJpegImageReaderSpi().createReaderInstance(null);
+   }
+
+   @Benchmark
+   public BufferedImage read() throws IOException
+   {
+      reader.setInput(file);
+      return reader.read(0, null);
+   }
+
+   @Benchmark
+   public BufferedImage thumbnail() throws IOException
+   {
+      reader.setInput(file);
+      return ((OpenJpegImageReader) reader).readThumbnail(0, 256, 256);
+   }
+}
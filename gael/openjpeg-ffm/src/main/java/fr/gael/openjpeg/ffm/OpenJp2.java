@@ -0,0 +1,624 @@
+package fr.gael.openjpeg.ffm;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Foreign Function and Memory binding of openjpeg.h. The functions keep the
+ * names and the arguments of the C API; pointers are MemorySegments, and
+ * OPJ_BOOL values are ints (0 is false).
+ * <p>
+ * The openjp2 library is loaded with System.loadLibrary("openjp2"), from
+ * the java.library.path, as the JNI binding does.
+ */
+public final class OpenJp2
+{
+   /** OPJ_CODEC_FORMAT: JPEG-2000 codestream. */
+   public static final int OPJ_CODEC_J2K = 0;
+   /** OPJ_CODEC_FORMAT: JP2 file format. */
+   public static final int OPJ_CODEC_JP2 = 2;
+
+   /** OPJ_COLOR_SPACE values. */
+   public static final int OPJ_CLRSPC_UNSPECIFIED = 0;
+   public static final int OPJ_CLRSPC_SRGB = 1;
+   public static final int OPJ_CLRSPC_GRAY = 2;
+   public static final int OPJ_CLRSPC_SYCC = 3;
+
+   /** Size of the buffer of the streams, OPJ_J2K_STREAM_CHUNK_SIZE. */
+   public static final long OPJ_J2K_STREAM_CHUNK_SIZE = 0x100000;
+
+   /** Value returned by a read or write stream function at end of stream. */
+   public static final long OPJ_STREAM_END = -1L;
+
+   /** opj_image_comp_t */
+   public static final StructLayout IMAGE_COMP = MemoryLayout.structLayout(
+         JAVA_INT.withName("dx"),
+         JAVA_INT.withName("dy"),
+         JAVA_INT.withName("w"),
+         JAVA_INT.withName("h"),
+         JAVA_INT.withName("x0"),
+         JAVA_INT.withName("y0"),
+         JAVA_INT.withName("prec"),
+         JAVA_INT.withName("bpp"),
+         JAVA_INT.withName("sgnd"),
+         JAVA_INT.withName("resno_decoded"),
+         JAVA_INT.withName("factor"),
+         MemoryLayout.paddingLayout(4),
+         ADDRESS.withName("data"),
+         JAVA_SHORT.withName("alpha"),
+         MemoryLayout.paddingLayout(6));
+
+   /** opj_image_t */
+   public static final StructLayout IMAGE = MemoryLayout.structLayout(
+         JAVA_INT.withName("x0"),
+         JAVA_INT.withName("y0"),
+         JAVA_INT.withName("x1"),
+         JAVA_INT.withName("y1"),
+         JAVA_INT.withName("numcomps"),
+         JAVA_INT.withName("color_space"),
+         ADDRESS.withName("comps"),
+         ADDRESS.withName("icc_profile_buf"),
+         JAVA_INT.withName("icc_profile_len"),
+         MemoryLayout.paddingLayout(4));
+
+   /** opj_image_cmptparm_t */
+   public static final StructLayout IMAGE_CMPTPARM = MemoryLayout.structLayout(
+         JAVA_INT.withName("dx"),
+         JAVA_INT.withName("dy"),
+         JAVA_INT.withName("w"),
+         JAVA_INT.withName("h"),
+         JAVA_INT.withName("x0"),
+         JAVA_INT.withName("y0"),
+         JAVA_INT.withName("prec"),
+         JAVA_INT.withName("bpp"),
+         JAVA_INT.withName("sgnd"));
+
+   /**
+    * opj_dparameters_t and opj_cparameters_t hold large fixed size arrays
+    * (file names, POC tables...) which are never accessed from Java: only
+    * their sizes and the offsets of the fields set by the bindings are given,
+    * for the 64 bits ABI of openjp2 2.1.
+    */
+   public static final long DPARAMETERS_SIZE = 8252;
+   public static final long DPARAMETERS_CP_REDUCE = 0;
+   public static final long DPARAMETERS_CP_LAYER = 4;
+
+   public static final long CPARAMETERS_SIZE = 18720;
+   public static final long CPARAMETERS_TILE_SIZE_ON = 0;
+   public static final long CPARAMETERS_CP_TDX = 12;
+   public static final long CPARAMETERS_CP_TDY = 16;
+   public static final long CPARAMETERS_CP_DISTO_ALLOC = 20;
+   public static final long CPARAMETERS_PROG_ORDER = 52;
+   public static final long CPARAMETERS_TCP_NUMLAYERS = 4796;
+   public static final long CPARAMETERS_TCP_RATES = 4800;
+   public static final long CPARAMETERS_NUMRESOLUTION = 5600;
+   public static final long CPARAMETERS_CBLOCKW_INIT = 5604;
+   public static final long CPARAMETERS_CBLOCKH_INIT = 5608;
+   public static final long CPARAMETERS_IRREVERSIBLE = 5616;
+   public static final long CPARAMETERS_TCP_MCT = 18698;
+   /** Maximum number of quality layers, size of tcp_rates. */
+   public static final int CPARAMETERS_MAX_LAYERS = 100;
+
+   /** opj_stream_read_fn and opj_stream_write_fn */
+   public static final FunctionDescriptor STREAM_READ_WRITE_FN =
+         FunctionDescriptor.of(JAVA_LONG, ADDRESS, JAVA_LONG, ADDRESS);
+   /** opj_stream_skip_fn */
+   public static final FunctionDescriptor STREAM_SKIP_FN =
+         FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, ADDRESS);
+   /** opj_stream_seek_fn */
+   public static final FunctionDescriptor STREAM_SEEK_FN =
+         FunctionDescriptor.of(JAVA_INT, JAVA_LONG, ADDRESS);
+   /** opj_msg_callback */
+   public static final FunctionDescriptor MSG_CALLBACK =
+         FunctionDescriptor.ofVoid(ADDRESS, ADDRESS);
+
+   private static final Linker LINKER = Linker.nativeLinker();
+   private static final SymbolLookup LOOKUP;
+
+   static
+   {
+      try
+      {
+         System.loadLibrary("openjp2");
+      }
+      catch (UnsatisfiedLinkError e)
+      {
+         throw new IllegalStateException("Cannot load OpenJpeg libraries", e);
+      }
+      LOOKUP = SymbolLookup.loaderLookup();
+   }
+
+   private static final MethodHandle OPJ_VERSION =
+         downcall("opj_version", FunctionDescriptor.of(ADDRESS));
+   private static final MethodHandle OPJ_IMAGE_CREATE = downcall("opj_image_create",
+         FunctionDescriptor.of(ADDRESS, JAVA_INT, ADDRESS, JAVA_INT));
+   private static final MethodHandle OPJ_IMAGE_DESTROY = downcall("opj_image_destroy",
+         FunctionDescriptor.ofVoid(ADDRESS));
+   private static final MethodHandle OPJ_STREAM_CREATE = downcall("opj_stream_create",
+         FunctionDescriptor.of(ADDRESS, JAVA_LONG, JAVA_INT));
+   private static final MethodHandle OPJ_STREAM_DESTROY = downcall("opj_stream_destroy",
+         FunctionDescriptor.ofVoid(ADDRESS));
+   private static final MethodHandle OPJ_STREAM_SET_READ_FUNCTION =
+         downcall("opj_stream_set_read_function", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_STREAM_SET_WRITE_FUNCTION =
+         downcall("opj_stream_set_write_function", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_STREAM_SET_SKIP_FUNCTION =
+         downcall("opj_stream_set_skip_function", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_STREAM_SET_SEEK_FUNCTION =
+         downcall("opj_stream_set_seek_function", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_STREAM_SET_USER_DATA = downcall(
+         "opj_stream_set_user_data", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_STREAM_SET_USER_DATA_LENGTH = downcall(
+         "opj_stream_set_user_data_length", FunctionDescriptor.ofVoid(ADDRESS, JAVA_LONG));
+   private static final MethodHandle OPJ_SET_INFO_HANDLER = downcall("opj_set_info_handler",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_SET_WARNING_HANDLER = downcall("opj_set_warning_handler",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_SET_ERROR_HANDLER = downcall("opj_set_error_handler",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_CREATE_DECOMPRESS = downcall("opj_create_decompress",
+         FunctionDescriptor.of(ADDRESS, JAVA_INT));
+   private static final MethodHandle OPJ_DESTROY_CODEC = downcall("opj_destroy_codec",
+         FunctionDescriptor.ofVoid(ADDRESS));
+   private static final MethodHandle OPJ_END_DECOMPRESS = downcall("opj_end_decompress",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_SET_DEFAULT_DECODER_PARAMETERS = downcall(
+         "opj_set_default_decoder_parameters", FunctionDescriptor.ofVoid(ADDRESS));
+   private static final MethodHandle OPJ_SETUP_DECODER = downcall("opj_setup_decoder",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_READ_HEADER = downcall("opj_read_header",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_SET_DECODE_AREA = downcall("opj_set_decode_area",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT));
+   private static final MethodHandle OPJ_DECODE = downcall("opj_decode",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_GET_DECODED_TILE = downcall("opj_get_decoded_tile",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS, JAVA_INT));
+   private static final MethodHandle OPJ_CREATE_COMPRESS = downcall("opj_create_compress",
+         FunctionDescriptor.of(ADDRESS, JAVA_INT));
+   private static final MethodHandle OPJ_SET_DEFAULT_ENCODER_PARAMETERS = downcall(
+         "opj_set_default_encoder_parameters", FunctionDescriptor.ofVoid(ADDRESS));
+   private static final MethodHandle OPJ_SETUP_ENCODER = downcall("opj_setup_encoder",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_START_COMPRESS = downcall("opj_start_compress",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_ENCODE = downcall("opj_encode",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_END_COMPRESS = downcall("opj_end_compress",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+   private static final MethodHandle OPJ_WRITE_TILE = downcall("opj_write_tile",
+         FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS));
+
+   private OpenJp2()
+   {
+   }
+
+   private static MethodHandle downcall(String name, FunctionDescriptor descriptor)
+   {
+      MemorySegment symbol = LOOKUP.find(name).orElseThrow(
+            () -> new IllegalStateException("Missing OpenJpeg symbol: " + name));
+      return LINKER.downcallHandle(symbol, descriptor);
+   }
+
+   private static IllegalStateException failure(String name, Throwable cause)
+   {
+      return new IllegalStateException("Call to " + name + " failed", cause);
+   }
+
+   /**
+    * Returns the byte offset of a field in one of the struct layouts.
+    */
+   static long offset(StructLayout layout, String field)
+   {
+      return layout.byteOffset(PathElement.groupElement(field));
+   }
+
+   /**
+    * Reads a NUL terminated C string.
+    */
+   static String toJavaString(MemorySegment string)
+   {
+      if (string.address() == 0)
+      {
+         return null;
+      }
+      MemorySegment bytes = string.reinterpret(Integer.MAX_VALUE);
+      StringBuilder builder = new StringBuilder();
+      for (long i = 0; ; i++)
+      {
+         byte b = bytes.get(JAVA_BYTE, i);
+         if (b == 0)
+         {
+            return builder.toString();
+         }
+         builder.append((char) (b & 0xFF));
+      }
+   }
+
+   public static String opj_version()
+   {
+      try
+      {
+         return toJavaString((MemorySegment) OPJ_VERSION.invokeExact());
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_version", e);
+      }
+   }
+
+   public static MemorySegment opj_image_create(int numcmpts, MemorySegment cmptparms,
+         int clrspc)
+   {
+      try
+      {
+         return (MemorySegment) OPJ_IMAGE_CREATE.invokeExact(numcmpts, cmptparms, clrspc);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_image_create", e);
+      }
+   }
+
+   public static void opj_image_destroy(MemorySegment image)
+   {
+      try
+      {
+         OPJ_IMAGE_DESTROY.invokeExact(image);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_image_destroy", e);
+      }
+   }
+
+   public static MemorySegment opj_stream_create(long bufferSize, int isInput)
+   {
+      try
+      {
+         return (MemorySegment) OPJ_STREAM_CREATE.invokeExact(bufferSize, isInput);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_stream_create", e);
+      }
+   }
+
+   public static void opj_stream_destroy(MemorySegment stream)
+   {
+      try
+      {
+         OPJ_STREAM_DESTROY.invokeExact(stream);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_stream_destroy", e);
+      }
+   }
+
+   public static void opj_stream_set_read_function(MemorySegment stream, MemorySegment function)
+   {
+      try
+      {
+         OPJ_STREAM_SET_READ_FUNCTION.invokeExact(stream, function);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_stream_set_read_function", e);
+      }
+   }
+
+   public static void opj_stream_set_write_function(MemorySegment stream, MemorySegment function)
+   {
+      try
+      {
+         OPJ_STREAM_SET_WRITE_FUNCTION.invokeExact(stream, function);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_stream_set_write_function", e);
+      }
+   }
+
+   public static void opj_stream_set_skip_function(MemorySegment stream, MemorySegment function)
+   {
+      try
+      {
+         OPJ_STREAM_SET_SKIP_FUNCTION.invokeExact(stream, function);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_stream_set_skip_function", e);
+      }
+   }
+
+   public static void opj_stream_set_seek_function(MemorySegment stream, MemorySegment function)
+   {
+      try
+      {
+         OPJ_STREAM_SET_SEEK_FUNCTION.invokeExact(stream, function);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_stream_set_seek_function", e);
+      }
+   }
+
+   public static void opj_stream_set_user_data(MemorySegment stream, MemorySegment data,
+         MemorySegment freeFunction)
+   {
+      try
+      {
+         OPJ_STREAM_SET_USER_DATA.invokeExact(stream, data, freeFunction);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_stream_set_user_data", e);
+      }
+   }
+
+   public static void opj_stream_set_user_data_length(MemorySegment stream, long length)
+   {
+      try
+      {
+         OPJ_STREAM_SET_USER_DATA_LENGTH.invokeExact(stream, length);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_stream_set_user_data_length", e);
+      }
+   }
+
+   public static int opj_set_info_handler(MemorySegment codec, MemorySegment callback,
+         MemorySegment userData)
+   {
+      try
+      {
+         return (int) OPJ_SET_INFO_HANDLER.invokeExact(codec, callback, userData);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_set_info_handler", e);
+      }
+   }
+
+   public static int opj_set_warning_handler(MemorySegment codec, MemorySegment callback,
+         MemorySegment userData)
+   {
+      try
+      {
+         return (int) OPJ_SET_WARNING_HANDLER.invokeExact(codec, callback, userData);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_set_warning_handler", e);
+      }
+   }
+
+   public static int opj_set_error_handler(MemorySegment codec, MemorySegment callback,
+         MemorySegment userData)
+   {
+      try
+      {
+         return (int) OPJ_SET_ERROR_HANDLER.invokeExact(codec, callback, userData);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_set_error_handler", e);
+      }
+   }
+
+   public static MemorySegment opj_create_decompress(int format)
+   {
+      try
+      {
+         return (MemorySegment) OPJ_CREATE_DECOMPRESS.invokeExact(format);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_create_decompress", e);
+      }
+   }
+
+   public static void opj_destroy_codec(MemorySegment codec)
+   {
+      try
+      {
+         OPJ_DESTROY_CODEC.invokeExact(codec);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_destroy_codec", e);
+      }
+   }
+
+   public static int opj_end_decompress(MemorySegment codec, MemorySegment stream)
+   {
+      try
+      {
+         return (int) OPJ_END_DECOMPRESS.invokeExact(codec, stream);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_end_decompress", e);
+      }
+   }
+
+   public static void opj_set_default_decoder_parameters(MemorySegment parameters)
+   {
+      try
+      {
+         OPJ_SET_DEFAULT_DECODER_PARAMETERS.invokeExact(parameters);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_set_default_decoder_parameters", e);
+      }
+   }
+
+   public static int opj_setup_decoder(MemorySegment codec, MemorySegment parameters)
+   {
+      try
+      {
+         return (int) OPJ_SETUP_DECODER.invokeExact(codec, parameters);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_setup_decoder", e);
+      }
+   }
+
+   /**
+    * @param image pointer receiving the address of the allocated
+    *    opj_image_t.
+    */
+   public static int opj_read_header(MemorySegment stream, MemorySegment codec,
+         MemorySegment image)
+   {
+      try
+      {
+         return (int) OPJ_READ_HEADER.invokeExact(stream, codec, image);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_read_header", e);
+      }
+   }
+
+   public static int opj_set_decode_area(MemorySegment codec, MemorySegment image,
+         int startX, int startY, int endX, int endY)
+   {
+      try
+      {
+         return (int) OPJ_SET_DECODE_AREA.invokeExact(codec, image, startX, startY, endX, endY);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_set_decode_area", e);
+      }
+   }
+
+   public static int opj_decode(MemorySegment codec, MemorySegment stream, MemorySegment image)
+   {
+      try
+      {
+         return (int) OPJ_DECODE.invokeExact(codec, stream, image);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_decode", e);
+      }
+   }
+
+   public static int opj_get_decoded_tile(MemorySegment codec, MemorySegment stream,
+         MemorySegment image, int tileIndex)
+   {
+      try
+      {
+         return (int) OPJ_GET_DECODED_TILE.invokeExact(codec, stream, image, tileIndex);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_get_decoded_tile", e);
+      }
+   }
+
+   public static MemorySegment opj_create_compress(int format)
+   {
+      try
+      {
+         return (MemorySegment) OPJ_CREATE_COMPRESS.invokeExact(format);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_create_compress", e);
+      }
+   }
+
+   public static void opj_set_default_encoder_parameters(MemorySegment parameters)
+   {
+      try
+      {
+         OPJ_SET_DEFAULT_ENCODER_PARAMETERS.invokeExact(parameters);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_set_default_encoder_parameters", e);
+      }
+   }
+
+   public static int opj_setup_encoder(MemorySegment codec, MemorySegment parameters,
+         MemorySegment image)
+   {
+      try
+      {
+         return (int) OPJ_SETUP_ENCODER.invokeExact(codec, parameters, image);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_setup_encoder", e);
+      }
+   }
+
+   public static int opj_start_compress(MemorySegment codec, MemorySegment image,
+         MemorySegment stream)
+   {
+      try
+      {
+         return (int) OPJ_START_COMPRESS.invokeExact(codec, image, stream);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_start_compress", e);
+      }
+   }
+
+   public static int opj_encode(MemorySegment codec, MemorySegment stream)
+   {
+      try
+      {
+         return (int) OPJ_ENCODE.invokeExact(codec, stream);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_encode", e);
+      }
+   }
+
+   public static int opj_end_compress(MemorySegment codec, MemorySegment stream)
+   {
+      try
+      {
+         return (int) OPJ_END_COMPRESS.invokeExact(codec, stream);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_end_compress", e);
+      }
+   }
+
+   public static int opj_write_tile(MemorySegment codec, int tileIndex, MemorySegment data,
+         int dataSize, MemorySegment stream)
+   {
+      try
+      {
+         return (int) OPJ_WRITE_TILE.invokeExact(codec, tileIndex, data, dataSize, stream);
+      }
+      catch (Throwable e)
+      {
+         throw failure("opj_write_tile", e);
+      }
+   }
+}
@@ -0,0 +1,20 @@
+package fr.gael.openjpeg.ffm;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Component of an {@link OpenJpegFfmImage}: its samples are 32 bits ints in
+ * native order, row by row, width * height of them.
+ *
+ * @param dx horizontal subsampling on the reference grid.
+ * @param dy vertical subsampling on the reference grid.
+ * @param width number of samples in a row.
+ * @param height number of rows.
+ * @param precision number of significant bits of the samples.
+ * @param signed true if the samples are signed.
+ * @param data samples, MemorySegment.NULL for a header only image.
+ */
+public record OpenJpegFfmComponent(int dx, int dy, int width, int height,
+      int precision, boolean signed, MemorySegment data)
+{
+}
@@ -0,0 +1,278 @@
+package fr.gael.openjpeg.ffm;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Jpeg2000 decoder over the Foreign Function and Memory binding of openjp2.
+ * The encoded image is read in place from a memory segment, and the decoded
+ * components are copied into segments of an arena owned by the caller, who
+ * releases them deterministically by closing the arena. The native memory of
+ * the codec is released at the end of each decoding.
+ * <p>
+ * A decoder holds only its options: it may be used by several threads as
+ * long as the options are not changed concurrently.
+ */
+public class OpenJpegFfmDecoder
+{
+   private static final Logger LOGGER = Logger.getLogger(OpenJpegFfmDecoder.class);
+
+   // JP2 signature box, and SOC marker of a raw codestream
+   private static final byte[] JP2_SIGNATURE =
+         {0x00, 0x00, 0x00, 0x0C, 0x6A, 0x50, 0x20, 0x20, 0x0D, 0x0A, (byte) 0x87, 0x0A};
+   private static final byte[] J2K_SIGNATURE = {(byte) 0xFF, 0x4F, (byte) 0xFF, 0x51};
+
+   private int reduceFactor = 0;
+   private int maxQualityLayers = 0;
+
+   // Decoding area, the whole image when width or height is not positive
+   private int decodeAreaX = 0;
+   private int decodeAreaY = 0;
+   private int decodeAreaWidth = -1;
+   private int decodeAreaHeight = -1;
+
+   public int getReduceFactor()
+   {
+      return reduceFactor;
+   }
+
+   /**
+    * Sets the number of highest resolution levels skipped by the decodings.
+    */
+   public void setReduceFactor(int reduceFactor)
+   {
+      if (reduceFactor < 0)
+      {
+         throw new IllegalArgumentException("Invalid reduce factor.");
+      }
+      this.reduceFactor = reduceFactor;
+   }
+
+   public int getMaxQualityLayers()
+   {
+      return maxQualityLayers;
+   }
+
+   /**
+    * Caps the number of quality layers decoded, 0 to decode all of them.
+    */
+   public void setMaxQualityLayers(int maxQualityLayers)
+   {
+      if (maxQualityLayers < 0)
+      {
+         throw new IllegalArgumentException("Invalid number of quality layers.");
+      }
+      this.maxQualityLayers = maxQualityLayers;
+   }
+
+   /**
+    * Restricts the decodings to a window of the image, in pixels at full
+    * resolution relative to the image origin.
+    */
+   public void setDecodeArea(int x, int y, int width, int height)
+   {
+      if (x < 0 || y < 0 || width <= 0 || height <= 0)
+      {
+         throw new IllegalArgumentException("Invalid decode area.");
+      }
+      decodeAreaX = x;
+      decodeAreaY = y;
+      decodeAreaWidth = width;
+      decodeAreaHeight = height;
+   }
+
+   public void clearDecodeArea()
+   {
+      decodeAreaX = 0;
+      decodeAreaY = 0;
+      decodeAreaWidth = -1;
+      decodeAreaHeight = -1;
+   }
+
+   /**
+    * Returns the codec format of an encoded image from its first bytes.
+    *
+    * @return OpenJp2.OPJ_CODEC_JP2 or OpenJp2.OPJ_CODEC_J2K.
+    * @throws IllegalArgumentException if the data is not a Jpeg2000 image.
+    */
+   public static int getCodecFormat(MemorySegment input)
+   {
+      if (startsWith(input, JP2_SIGNATURE))
+      {
+         return OpenJp2.OPJ_CODEC_JP2;
+      }
+      if (startsWith(input, J2K_SIGNATURE))
+      {
+         return OpenJp2.OPJ_CODEC_J2K;
+      }
+      throw new IllegalArgumentException("Not a Jpeg2000 image.");
+   }
+
+   private static boolean startsWith(MemorySegment input, byte[] signature)
+   {
+      if (input.byteSize() < signature.length)
+      {
+         return false;
+      }
+      for (int i = 0; i < signature.length; i++)
+      {
+         if (input.get(JAVA_BYTE, i) != signature[i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Decodes only the header of the given encoded image: the components
+    * of the returned image have no data.
+    *
+    * @return the image header, or null if it cannot be decoded.
+    */
+   public OpenJpegFfmImage readHeader(MemorySegment input)
+   {
+      return decode(input, null);
+   }
+
+   /**
+    * Decodes the given encoded image with the current options.
+    *
+    * @param input encoded image, read in place.
+    * @param arena arena allocating the decoded components.
+    * @return the decoded image, or null if it cannot be decoded.
+    */
+   public OpenJpegFfmImage decode(MemorySegment input, Arena arena)
+   {
+      int format = getCodecFormat(input);
+
+      try (Arena local = Arena.ofConfined())
+      {
+         MemorySegment parameters = local.allocate(OpenJp2.DPARAMETERS_SIZE, 8);
+         OpenJp2.opj_set_default_decoder_parameters(parameters);
+         if (arena != null)
+         {
+            parameters.set(JAVA_INT, OpenJp2.DPARAMETERS_CP_REDUCE, reduceFactor);
+            parameters.set(JAVA_INT, OpenJp2.DPARAMETERS_CP_LAYER, maxQualityLayers);
+         }
+
+         MemorySegment codec = OpenJp2.opj_create_decompress(format);
+         if (codec.address() == 0)
+         {
+            LOGGER.error("Cannot create the decoder.");
+            return null;
+         }
+         MemorySegment image = MemorySegment.NULL;
+         try (OpenJpegFfmStream stream = OpenJpegFfmStream.input(local, input))
+         {
+            OpenJpegFfmLog.setHandlers(codec, local);
+            if (OpenJp2.opj_setup_decoder(codec, parameters) == 0)
+            {
+               LOGGER.error("Decoder setup failed.");
+               return null;
+            }
+
+            MemorySegment imagePointer = local.allocate(ADDRESS);
+            int headerRead = OpenJp2.opj_read_header(stream.segment(), codec, imagePointer);
+            image = imagePointer.get(ADDRESS, 0).reinterpret(OpenJp2.IMAGE.byteSize());
+            if (headerRead == 0)
+            {
+               LOGGER.error("Cannot read the header.");
+               return null;
+            }
+            if (arena == null)
+            {
+               return toImage(image, null);
+            }
+
+            if (decodeAreaWidth > 0 && decodeAreaHeight > 0 && !setDecodeArea(codec, image))
+            {
+               LOGGER.error("Cannot set the decode area.");
+               return null;
+            }
+            if (OpenJp2.opj_decode(codec, stream.segment(), image) == 0 ||
+                  OpenJp2.opj_end_decompress(codec, stream.segment()) == 0)
+            {
+               LOGGER.error("Cannot decode the image.");
+               return null;
+            }
+            return toImage(image, arena);
+         }
+         finally
+         {
+            if (image.address() != 0)
+            {
+               OpenJp2.opj_image_destroy(image);
+            }
+            OpenJp2.opj_destroy_codec(codec);
+         }
+      }
+   }
+
+   private boolean setDecodeArea(MemorySegment codec, MemorySegment image)
+   {
+      int x0 = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "x0"));
+      int y0 = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "y0"));
+      int x1 = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "x1"));
+      int y1 = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "y1"));
+      long startX = (long) x0 + decodeAreaX;
+      long startY = (long) y0 + decodeAreaY;
+      if (startX >= x1 || startY >= y1)
+      {
+         return false;
+      }
+      int endX = (int) Math.min(startX + decodeAreaWidth, x1);
+      int endY = (int) Math.min(startY + decodeAreaHeight, y1);
+      return OpenJp2.opj_set_decode_area(codec, image, (int) startX, (int) startY,
+            endX, endY) != 0;
+   }
+
+   /**
+    * Copies an opj_image_t, and the samples of its components into the
+    * arena if not null.
+    */
+   private static OpenJpegFfmImage toImage(MemorySegment image, Arena arena)
+   {
+      int x0 = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "x0"));
+      int y0 = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "y0"));
+      int x1 = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "x1"));
+      int y1 = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "y1"));
+      int count = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "numcomps"));
+      int colorSpace = image.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE, "color_space"));
+      MemorySegment comps = image.get(ADDRESS, OpenJp2.offset(OpenJp2.IMAGE, "comps"))
+            .reinterpret(OpenJp2.IMAGE_COMP.byteSize() * count);
+
+      List<OpenJpegFfmComponent> components = new ArrayList<>(count);
+      for (int i = 0; i < count; i++)
+      {
+         MemorySegment comp = comps.asSlice(OpenJp2.IMAGE_COMP.byteSize() * i,
+               OpenJp2.IMAGE_COMP);
+         int width = comp.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE_COMP, "w"));
+         int height = comp.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE_COMP, "h"));
+         MemorySegment data = MemorySegment.NULL;
+         MemorySegment samples = comp.get(ADDRESS, OpenJp2.offset(OpenJp2.IMAGE_COMP, "data"));
+         if (arena != null && samples.address() != 0)
+         {
+            long size = JAVA_INT.byteSize() * width * height;
+            data = arena.allocate(size, JAVA_INT.byteAlignment());
+            MemorySegment.copy(samples.reinterpret(size), 0, data, 0, size);
+         }
+         components.add(new OpenJpegFfmComponent(
+               comp.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE_COMP, "dx")),
+               comp.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE_COMP, "dy")),
+               width, height,
+               comp.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE_COMP, "prec")),
+               comp.get(JAVA_INT, OpenJp2.offset(OpenJp2.IMAGE_COMP, "sgnd")) != 0,
+               data));
+      }
+      return new OpenJpegFfmImage(x0, y0, x1 - x0, y1 - y0, colorSpace, components);
+   }
+}
@@ -0,0 +1,250 @@
+package fr.gael.openjpeg.ffm;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Jpeg2000 encoder over the Foreign Function and Memory binding of openjp2.
+ * The planar components of an {@link OpenJpegFfmImage} are copied into a
+ * native opj_image_t, and the encoded bytes are collected by an upcall
+ * stream. All the native memory is released at the end of each encoding.
+ */
+public class OpenJpegFfmEncoder
+{
+   private static final Logger LOGGER = Logger.getLogger(OpenJpegFfmEncoder.class);
+
+   private int codecFormat = OpenJp2.OPJ_CODEC_JP2;
+   private int resolutionsNumber = 6;
+   private float[] compressionRatios = new float[0];
+   private boolean irreversible = false;
+   private int tileWidth = 0;
+   private int tileHeight = 0;
+
+   public int getCodecFormat()
+   {
+      return codecFormat;
+   }
+
+   /**
+    * @param codecFormat OpenJp2.OPJ_CODEC_JP2 (default) or
+    *    OpenJp2.OPJ_CODEC_J2K.
+    */
+   public void setCodecFormat(int codecFormat)
+   {
+      if (codecFormat != OpenJp2.OPJ_CODEC_JP2 && codecFormat != OpenJp2.OPJ_CODEC_J2K)
+      {
+         throw new IllegalArgumentException("Invalid codec format.");
+      }
+      this.codecFormat = codecFormat;
+   }
+
+   public int getResolutionsNumber()
+   {
+      return resolutionsNumber;
+   }
+
+   public void setResolutionsNumber(int resolutionsNumber)
+   {
+      if (resolutionsNumber <= 0)
+      {
+         throw new IllegalArgumentException("Invalid number of resolutions.");
+      }
+      this.resolutionsNumber = resolutionsNumber;
+   }
+
+   public float[] getCompressionRatios()
+   {
+      return compressionRatios.clone();
+   }
+
+   /**
+    * Sets the compression ratio of each quality layer, decreasing. No ratio
+    * gives a single lossless layer, when the transform is reversible.
+    */
+   public void setCompressionRatios(float... compressionRatios)
+   {
+      if (compressionRatios.length > OpenJp2.CPARAMETERS_MAX_LAYERS)
+      {
+         throw new IllegalArgumentException("Too many quality layers.");
+      }
+      this.compressionRatios = compressionRatios.clone();
+   }
+
+   public boolean isIrreversible()
+   {
+      return irreversible;
+   }
+
+   /**
+    * Selects the irreversible 9-7 wavelet instead of the reversible 5-3.
+    */
+   public void setIrreversible(boolean irreversible)
+   {
+      this.irreversible = irreversible;
+   }
+
+   /**
+    * Splits the image in tiles of the given size, or in a single tile if
+    * width or height is not positive.
+    */
+   public void setTileSize(int tileWidth, int tileHeight)
+   {
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+   }
+
+   /**
+    * Encodes the given image. The samples of each component must hold
+    * width * height ints.
+    *
+    * @return the encoded image, or null if it cannot be encoded.
+    */
+   public byte[] encode(OpenJpegFfmImage image)
+   {
+      List<OpenJpegFfmComponent> components = image.components();
+      int count = components.size();
+      if (count == 0)
+      {
+         throw new IllegalArgumentException("The image has no component.");
+      }
+
+      try (Arena local = Arena.ofConfined())
+      {
+         MemorySegment parameters = local.allocate(OpenJp2.CPARAMETERS_SIZE, 8);
+         OpenJp2.opj_set_default_encoder_parameters(parameters);
+         setParameters(parameters, count);
+
+         MemorySegment cmptparms = local.allocate(
+               OpenJp2.IMAGE_CMPTPARM.byteSize() * count,
+               OpenJp2.IMAGE_CMPTPARM.byteAlignment());
+         for (int i = 0; i < count; i++)
+         {
+            OpenJpegFfmComponent component = components.get(i);
+            MemorySegment parm = cmptparms.asSlice(OpenJp2.IMAGE_CMPTPARM.byteSize() * i,
+                  OpenJp2.IMAGE_CMPTPARM);
+            set(parm, "dx", component.dx());
+            set(parm, "dy", component.dy());
+            set(parm, "w", component.width());
+            set(parm, "h", component.height());
+            set(parm, "x0", image.x0());
+            set(parm, "y0", image.y0());
+            set(parm, "prec", component.precision());
+            set(parm, "bpp", component.precision());
+            set(parm, "sgnd", component.signed() ? 1 : 0);
+         }
+
+         MemorySegment nativeImage = OpenJp2.opj_image_create(count, cmptparms,
+               image.colorSpace());
+         if (nativeImage.address() == 0)
+         {
+            LOGGER.error("Cannot create the image.");
+            return null;
+         }
+         nativeImage = nativeImage.reinterpret(OpenJp2.IMAGE.byteSize());
+
+         MemorySegment codec = MemorySegment.NULL;
+         try
+         {
+            copyComponents(image, nativeImage);
+            codec = OpenJp2.opj_create_compress(codecFormat);
+            if (codec.address() == 0)
+            {
+               LOGGER.error("Cannot create the encoder.");
+               return null;
+            }
+            OpenJpegFfmLog.setHandlers(codec, local);
+            if (OpenJp2.opj_setup_encoder(codec, parameters, nativeImage) == 0)
+            {
+               LOGGER.error("Encoder setup failed.");
+               return null;
+            }
+
+            try (OpenJpegFfmStream stream = OpenJpegFfmStream.output(local))
+            {
+               if (OpenJp2.opj_start_compress(codec, nativeImage, stream.segment()) == 0 ||
+                     OpenJp2.opj_encode(codec, stream.segment()) == 0 ||
+                     OpenJp2.opj_end_compress(codec, stream.segment()) == 0)
+               {
+                  LOGGER.error("Cannot encode the image.");
+                  return null;
+               }
+               return stream.toByteArray();
+            }
+         }
+         finally
+         {
+            if (codec.address() != 0)
+            {
+               OpenJp2.opj_destroy_codec(codec);
+            }
+            OpenJp2.opj_image_destroy(nativeImage);
+         }
+      }
+   }
+
+   private void setParameters(MemorySegment parameters, int componentsCount)
+   {
+      int layers = Math.max(compressionRatios.length, 1);
+      parameters.set(JAVA_INT, OpenJp2.CPARAMETERS_TCP_NUMLAYERS, layers);
+      for (int i = 0; i < layers; i++)
+      {
+         float ratio = compressionRatios.length == 0 ? 0 : compressionRatios[i];
+         parameters.set(JAVA_FLOAT, OpenJp2.CPARAMETERS_TCP_RATES + 4L * i, ratio);
+      }
+      parameters.set(JAVA_INT, OpenJp2.CPARAMETERS_CP_DISTO_ALLOC, 1);
+      parameters.set(JAVA_INT, OpenJp2.CPARAMETERS_NUMRESOLUTION, resolutionsNumber);
+      parameters.set(JAVA_INT, OpenJp2.CPARAMETERS_IRREVERSIBLE, irreversible ? 1 : 0);
+      parameters.set(JAVA_BYTE, OpenJp2.CPARAMETERS_TCP_MCT,
+            (byte) (componentsCount >= 3 ? 1 : 0));
+      if (tileWidth > 0 && tileHeight > 0)
+      {
+         parameters.set(JAVA_INT, OpenJp2.CPARAMETERS_TILE_SIZE_ON, 1);
+         parameters.set(JAVA_INT, OpenJp2.CPARAMETERS_CP_TDX, tileWidth);
+         parameters.set(JAVA_INT, OpenJp2.CPARAMETERS_CP_TDY, tileHeight);
+      }
+   }
+
+   private static void copyComponents(OpenJpegFfmImage image, MemorySegment nativeImage)
+   {
+      set(nativeImage, OpenJp2.IMAGE, "x0", image.x0());
+      set(nativeImage, OpenJp2.IMAGE, "y0", image.y0());
+      set(nativeImage, OpenJp2.IMAGE, "x1", image.x0() + image.width());
+      set(nativeImage, OpenJp2.IMAGE, "y1", image.y0() + image.height());
+
+      List<OpenJpegFfmComponent> components = image.components();
+      MemorySegment comps = nativeImage.get(ADDRESS, OpenJp2.offset(OpenJp2.IMAGE, "comps"))
+            .reinterpret(OpenJp2.IMAGE_COMP.byteSize() * components.size());
+      for (int i = 0; i < components.size(); i++)
+      {
+         OpenJpegFfmComponent component = components.get(i);
+         long size = JAVA_INT.byteSize() * component.width() * component.height();
+         if (component.data().byteSize() < size)
+         {
+            throw new IllegalArgumentException("Missing samples in component " + i);
+         }
+         MemorySegment data = comps.get(ADDRESS, OpenJp2.IMAGE_COMP.byteSize() * i +
+               OpenJp2.offset(OpenJp2.IMAGE_COMP, "data")).reinterpret(size);
+         MemorySegment.copy(component.data(), 0, data, 0, size);
+      }
+   }
+
+   private static void set(MemorySegment parm, String field, int value)
+   {
+      set(parm, OpenJp2.IMAGE_CMPTPARM, field, value);
+   }
+
+   private static void set(MemorySegment segment, StructLayout layout,
+         String field, int value)
+   {
+      segment.set(JAVA_INT, OpenJp2.offset(layout, field), value);
+   }
+}
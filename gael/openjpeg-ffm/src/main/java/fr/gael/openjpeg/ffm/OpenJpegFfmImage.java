@@ -0,0 +1,23 @@
+package fr.gael.openjpeg.ffm;
+
+import java.util.List;
+
+/**
+ * Jpeg2000 image decoded by {@link OpenJpegFfmDecoder}, or to encode with
+ * {@link OpenJpegFfmEncoder}. Its components are planar.
+ *
+ * @param x0 horizontal offset of the image on the reference grid.
+ * @param y0 vertical offset of the image on the reference grid.
+ * @param width width of the image on the reference grid.
+ * @param height height of the image on the reference grid.
+ * @param colorSpace one of the OpenJp2.OPJ_CLRSPC_* values.
+ * @param components components of the image.
+ */
+public record OpenJpegFfmImage(int x0, int y0, int width, int height,
+      int colorSpace, List<OpenJpegFfmComponent> components)
+{
+   public OpenJpegFfmImage
+   {
+      components = List.copyOf(components);
+   }
+}
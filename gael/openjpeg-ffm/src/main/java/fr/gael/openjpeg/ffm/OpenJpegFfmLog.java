@@ -0,0 +1,82 @@
+package fr.gael.openjpeg.ffm;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Forwards the info, warning and error messages of a codec to log4j.
+ */
+final class OpenJpegFfmLog
+{
+   private static final Logger LOGGER = Logger.getLogger(OpenJp2.class);
+
+   private static final MethodHandle INFO;
+   private static final MethodHandle WARNING;
+   private static final MethodHandle ERROR;
+
+   static
+   {
+      try
+      {
+         MethodHandles.Lookup lookup = MethodHandles.lookup();
+         MethodType type = MethodType.methodType(void.class, MemorySegment.class,
+               MemorySegment.class);
+         INFO = lookup.findStatic(OpenJpegFfmLog.class, "info", type);
+         WARNING = lookup.findStatic(OpenJpegFfmLog.class, "warning", type);
+         ERROR = lookup.findStatic(OpenJpegFfmLog.class, "error", type);
+      }
+      catch (ReflectiveOperationException e)
+      {
+         throw new ExceptionInInitializerError(e);
+      }
+   }
+
+   private OpenJpegFfmLog()
+   {
+   }
+
+   /**
+    * Sets the message handlers of the codec. The upcall stubs live in the
+    * given arena, which must outlive the codec.
+    */
+   static void setHandlers(MemorySegment codec, Arena arena)
+   {
+      Linker linker = Linker.nativeLinker();
+      OpenJp2.opj_set_info_handler(codec,
+            linker.upcallStub(INFO, OpenJp2.MSG_CALLBACK, arena), MemorySegment.NULL);
+      OpenJp2.opj_set_warning_handler(codec,
+            linker.upcallStub(WARNING, OpenJp2.MSG_CALLBACK, arena), MemorySegment.NULL);
+      OpenJp2.opj_set_error_handler(codec,
+            linker.upcallStub(ERROR, OpenJp2.MSG_CALLBACK, arena), MemorySegment.NULL);
+   }
+
+   private static void info(MemorySegment message, MemorySegment userData)
+   {
+      if (LOGGER.isDebugEnabled())
+      {
+         LOGGER.debug(format(message));
+      }
+   }
+
+   private static void warning(MemorySegment message, MemorySegment userData)
+   {
+      LOGGER.warn(format(message));
+   }
+
+   private static void error(MemorySegment message, MemorySegment userData)
+   {
+      LOGGER.error(format(message));
+   }
+
+   private static String format(MemorySegment message)
+   {
+      String text = OpenJp2.toJavaString(message);
+      return text == null ? "" : text.trim();
+   }
+}
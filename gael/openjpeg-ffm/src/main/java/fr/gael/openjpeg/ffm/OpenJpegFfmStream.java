@@ -0,0 +1,219 @@
+package fr.gael.openjpeg.ffm;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * opj_stream_t whose read, write, skip and seek functions are Java upcalls
+ * over a memory segment. An input stream reads a segment in place (a mapped
+ * file, a direct buffer...); an output stream appends the encoded bytes to a
+ * growing array.
+ * <p>
+ * The upcall stubs are allocated in the arena given at creation: the stream
+ * must be closed, and no longer used by the codec, before the arena is.
+ * Upcalls must not throw, so failures are reported to the codec as end of
+ * stream and logged.
+ */
+public final class OpenJpegFfmStream implements AutoCloseable
+{
+   private static final Logger LOGGER = Logger.getLogger(OpenJpegFfmStream.class);
+
+   private static final MethodHandle READ;
+   private static final MethodHandle WRITE;
+   private static final MethodHandle SKIP;
+   private static final MethodHandle SEEK;
+
+   static
+   {
+      try
+      {
+         MethodHandles.Lookup lookup = MethodHandles.lookup();
+         READ = lookup.findVirtual(OpenJpegFfmStream.class, "read",
+               MethodType.methodType(long.class, MemorySegment.class, long.class,
+                     MemorySegment.class));
+         WRITE = lookup.findVirtual(OpenJpegFfmStream.class, "write",
+               MethodType.methodType(long.class, MemorySegment.class, long.class,
+                     MemorySegment.class));
+         SKIP = lookup.findVirtual(OpenJpegFfmStream.class, "skip",
+               MethodType.methodType(long.class, long.class, MemorySegment.class));
+         SEEK = lookup.findVirtual(OpenJpegFfmStream.class, "seek",
+               MethodType.methodType(int.class, long.class, MemorySegment.class));
+      }
+      catch (ReflectiveOperationException e)
+      {
+         throw new ExceptionInInitializerError(e);
+      }
+   }
+
+   private final MemorySegment stream;
+   private final boolean input;
+
+   // Input
+   private final MemorySegment source;
+
+   // Output
+   private byte[] output;
+   private long outputLength;
+
+   private long position;
+
+   private OpenJpegFfmStream(Arena arena, MemorySegment source, boolean input)
+   {
+      this.input = input;
+      this.source = source;
+      this.output = input ? null : new byte[64 * 1024];
+
+      MemorySegment created = OpenJp2.opj_stream_create(
+            OpenJp2.OPJ_J2K_STREAM_CHUNK_SIZE, input ? 1 : 0);
+      if (created.address() == 0)
+      {
+         throw new IllegalStateException("Cannot create OpenJpeg stream.");
+      }
+      this.stream = created;
+
+      Linker linker = Linker.nativeLinker();
+      if (input)
+      {
+         OpenJp2.opj_stream_set_user_data_length(stream, source.byteSize());
+         OpenJp2.opj_stream_set_read_function(stream, linker.upcallStub(
+               READ.bindTo(this), OpenJp2.STREAM_READ_WRITE_FN, arena));
+      }
+      else
+      {
+         OpenJp2.opj_stream_set_write_function(stream, linker.upcallStub(
+               WRITE.bindTo(this), OpenJp2.STREAM_READ_WRITE_FN, arena));
+      }
+      OpenJp2.opj_stream_set_skip_function(stream, linker.upcallStub(
+            SKIP.bindTo(this), OpenJp2.STREAM_SKIP_FN, arena));
+      OpenJp2.opj_stream_set_seek_function(stream, linker.upcallStub(
+            SEEK.bindTo(this), OpenJp2.STREAM_SEEK_FN, arena));
+   }
+
+   /**
+    * Creates a stream reading the given segment in place.
+    */
+   public static OpenJpegFfmStream input(Arena arena, MemorySegment source)
+   {
+      return new OpenJpegFfmStream(arena, source, true);
+   }
+
+   /**
+    * Creates a stream collecting the encoded bytes, see {@link #toByteArray()}.
+    */
+   public static OpenJpegFfmStream output(Arena arena)
+   {
+      return new OpenJpegFfmStream(arena, null, false);
+   }
+
+   /**
+    * @return the opj_stream_t to give to the codec.
+    */
+   public MemorySegment segment()
+   {
+      return stream;
+   }
+
+   /**
+    * @return a copy of the bytes written to an output stream.
+    */
+   public byte[] toByteArray()
+   {
+      if (input)
+      {
+         throw new IllegalStateException("Not an output stream.");
+      }
+      return Arrays.copyOf(output, (int) outputLength);
+   }
+
+   @Override
+   public void close()
+   {
+      OpenJp2.opj_stream_destroy(stream);
+   }
+
+   // opj_stream_read_fn
+   private long read(MemorySegment buffer, long count, MemorySegment userData)
+   {
+      try
+      {
+         long length = source.byteSize();
+         if (position >= length)
+         {
+            return OpenJp2.OPJ_STREAM_END;
+         }
+         long read = Math.min(count, length - position);
+         MemorySegment.copy(source, position, buffer.reinterpret(count), 0, read);
+         position += read;
+         return read;
+      }
+      catch (Throwable e)
+      {
+         LOGGER.error("Cannot read the OpenJpeg stream.", e);
+         return OpenJp2.OPJ_STREAM_END;
+      }
+   }
+
+   // opj_stream_write_fn
+   private long write(MemorySegment buffer, long count, MemorySegment userData)
+   {
+      try
+      {
+         long end = position + count;
+         if (end > Integer.MAX_VALUE - 8)
+         {
+            return OpenJp2.OPJ_STREAM_END;
+         }
+         if (end > output.length)
+         {
+            output = Arrays.copyOf(output, (int) Math.max(end, Math.min(
+                  (long) output.length * 2, Integer.MAX_VALUE - 8)));
+         }
+         MemorySegment.copy(buffer.reinterpret(count), JAVA_BYTE, 0, output,
+               (int) position, (int) count);
+         position = end;
+         outputLength = Math.max(outputLength, position);
+         return count;
+      }
+      catch (Throwable e)
+      {
+         LOGGER.error("Cannot write the OpenJpeg stream.", e);
+         return OpenJp2.OPJ_STREAM_END;
+      }
+   }
+
+   // opj_stream_skip_fn
+   private long skip(long count, MemorySegment userData)
+   {
+      if (input && position + count > source.byteSize())
+      {
+         position = source.byteSize();
+         return -1;
+      }
+      if (position + count < 0)
+      {
+         return -1;
+      }
+      position += count;
+      return count;
+   }
+
+   // opj_stream_seek_fn
+   private int seek(long offset, MemorySegment userData)
+   {
+      if (offset < 0 || (input && offset > source.byteSize()))
+      {
+         return 0;
+      }
+      position = offset;
+      return 1;
+   }
+}
@@ -0,0 +1,107 @@
+package fr.gael.openjpeg.ffm;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestOpenJpegFfm
+{
+   private static final int WIDTH = 256;
+   private static final int HEIGHT = 192;
+
+   private OpenJpegFfmImage createImage (Arena arena)
+   {
+      MemorySegment data = arena.allocate (4L * WIDTH * HEIGHT, 4);
+      for (int j = 0; j < HEIGHT; j++)
+      {
+         for (int i = 0; i < WIDTH; i++)
+         {
+            data.setAtIndex (JAVA_INT, (long) j * WIDTH + i, (i * 13 + j * 7) & 0xFFF);
+         }
+      }
+      OpenJpegFfmComponent component =
+            new OpenJpegFfmComponent (1, 1, WIDTH, HEIGHT, 12, false, data);
+      return new OpenJpegFfmImage (0, 0, WIDTH, HEIGHT, OpenJp2.OPJ_CLRSPC_GRAY,
+            List.of (component));
+   }
+
+   @Test
+   public void testVersion ()
+   {
+      Assert.assertTrue (OpenJp2.opj_version ().startsWith ("2."));
+   }
+
+   @Test
+   public void testEncodeDecode ()
+   {
+      for (int format : new int[] {OpenJp2.OPJ_CODEC_JP2, OpenJp2.OPJ_CODEC_J2K})
+      {
+         try (Arena arena = Arena.ofConfined ())
+         {
+            OpenJpegFfmImage source = createImage (arena);
+            OpenJpegFfmEncoder encoder = new OpenJpegFfmEncoder ();
+            encoder.setCodecFormat (format);
+            encoder.setTileSize (128, 128);
+            byte[] encoded = encoder.encode (source);
+            Assert.assertNotNull (encoded);
+
+            MemorySegment input = MemorySegment.ofArray (encoded);
+            Assert.assertEquals (OpenJpegFfmDecoder.getCodecFormat (input), format);
+
+            OpenJpegFfmDecoder decoder = new OpenJpegFfmDecoder ();
+            OpenJpegFfmImage header = decoder.readHeader (input);
+            Assert.assertNotNull (header);
+            Assert.assertEquals (header.width (), WIDTH);
+            Assert.assertEquals (header.components ().get (0).precision (), 12);
+            Assert.assertEquals (header.components ().get (0).data ().address (), 0L);
+
+            // lossless round trip
+            OpenJpegFfmImage decoded = decoder.decode (input, arena);
+            Assert.assertNotNull (decoded);
+            OpenJpegFfmComponent component = decoded.components ().get (0);
+            Assert.assertEquals (component.width (), WIDTH);
+            Assert.assertEquals (component.height (), HEIGHT);
+            Assert.assertEquals (component.data ().mismatch (
+                  source.components ().get (0).data ()), -1L);
+         }
+      }
+   }
+
+   @Test
+   public void testDecodeOptions ()
+   {
+      try (Arena arena = Arena.ofConfined ())
+      {
+         byte[] encoded = new OpenJpegFfmEncoder ().encode (createImage (arena));
+         MemorySegment input = MemorySegment.ofArray (encoded);
+         OpenJpegFfmDecoder decoder = new OpenJpegFfmDecoder ();
+
+         decoder.setReduceFactor (1);
+         OpenJpegFfmComponent reduced =
+               decoder.decode (input, arena).components ().get (0);
+         Assert.assertEquals (reduced.width (), WIDTH / 2);
+         Assert.assertEquals (reduced.height (), HEIGHT / 2);
+
+         decoder.setReduceFactor (0);
+         decoder.setDecodeArea (16, 32, 64, 48);
+         OpenJpegFfmComponent area =
+               decoder.decode (input, arena).components ().get (0);
+         Assert.assertEquals (area.width (), 64);
+         Assert.assertEquals (area.height (), 48);
+         Assert.assertEquals (area.data ().getAtIndex (JAVA_INT, 0),
+               (16 * 13 + 32 * 7) & 0xFFF);
+      }
+   }
+
+   @Test (expectedExceptions = IllegalArgumentException.class)
+   public void testNotJpeg2000 ()
+   {
+      new OpenJpegFfmDecoder ().readHeader (
+            MemorySegment.ofArray (new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}));
+   }
+}
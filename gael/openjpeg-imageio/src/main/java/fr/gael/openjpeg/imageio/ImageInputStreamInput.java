@@ -0,0 +1,66 @@
+package fr.gael.openjpeg.imageio;
+
+import java.io.IOException;
+
+import javax.imageio.stream.ImageInputStream;
+
+import fr.gael.openjpeg.OpenJpegSeekableInput;
+
+/**
+ * Seekable input of the decoder over an ImageInputStream, from the stream
+ * position at creation. The stream caches what it reads as needed, so the
+ * decoder may read the header and the image in turn.
+ */
+class ImageInputStreamInput implements OpenJpegSeekableInput
+{
+   private final ImageInputStream stream;
+   private final long origin;
+
+   ImageInputStreamInput (ImageInputStream stream) throws IOException
+   {
+      this.stream = stream;
+      this.origin = stream.getStreamPosition ();
+   }
+
+   @Override
+   public int read (byte[] buffer, int offset, int length) throws IOException
+   {
+      return stream.read (buffer, offset, length);
+   }
+
+   @Override
+   public long skip (long count) throws IOException
+   {
+      long position = stream.getStreamPosition ();
+      long target = position + count;
+      long length = stream.length ();
+      if (length >= 0 && target > length)
+      {
+         target = length;
+      }
+      stream.seek (target);
+      return target - position;
+   }
+
+   @Override
+   public boolean seek (long position) throws IOException
+   {
+      try
+      {
+         stream.seek (origin + position);
+         return true;
+      }
+      catch (IndexOutOfBoundsException e)
+      {
+         // position flushed from the stream cache
+         return false;
+      }
+   }
+
+   @Override
+   public long length () throws IOException
+   {
+      long length = stream.length ();
+      return length < 0 ? -1 : length - origin;
+   }
+}
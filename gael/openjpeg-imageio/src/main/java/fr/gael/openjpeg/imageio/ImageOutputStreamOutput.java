@@ -0,0 +1,45 @@
+package fr.gael.openjpeg.imageio;
+
+import java.io.IOException;
+
+import javax.imageio.stream.ImageOutputStream;
+
+import fr.gael.openjpeg.OpenJpegSeekableOutput;
+
+/**
+ * Seekable output of the encoder over an ImageOutputStream, from the stream
+ * position at creation. The encoder seeks back to complete its headers, so
+ * the stream must not be flushed while the image is written.
+ */
+class ImageOutputStreamOutput implements OpenJpegSeekableOutput
+{
+   private final ImageOutputStream stream;
+   private final long origin;
+
+   ImageOutputStreamOutput (ImageOutputStream stream) throws IOException
+   {
+      this.stream = stream;
+      this.origin = stream.getStreamPosition ();
+   }
+
+   @Override
+   public void write (byte[] buffer, int offset, int length) throws IOException
+   {
+      stream.write (buffer, offset, length);
+   }
+
+   @Override
+   public boolean seek (long position) throws IOException
+   {
+      try
+      {
+         stream.seek (origin + position);
+         return true;
+      }
+      catch (IndexOutOfBoundsException e)
+      {
+         // position flushed from the stream cache
+         return false;
+      }
+   }
+}
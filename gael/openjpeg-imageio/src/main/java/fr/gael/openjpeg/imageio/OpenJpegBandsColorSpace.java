@@ -0,0 +1,59 @@
+package fr.gael.openjpeg.imageio;
+
+import java.awt.color.ColorSpace;
+
+/**
+ * Generic color space of the multi-band images which have no standard color
+ * space, such as multispectral products. The first band is shown as grey.
+ */
+class OpenJpegBandsColorSpace extends ColorSpace
+{
+   private static final long serialVersionUID = 1L;
+
+   private static final ColorSpace SRGB =
+         ColorSpace.getInstance (ColorSpace.CS_sRGB);
+
+   OpenJpegBandsColorSpace (int numComponents)
+   {
+      super (getType (numComponents), numComponents);
+   }
+
+   private static int getType (int numComponents)
+   {
+      if (numComponents >= 2 && numComponents <= 15)
+      {
+         return ColorSpace.TYPE_2CLR + numComponents - 2;
+      }
+      return ColorSpace.TYPE_FCLR;
+   }
+
+   @Override
+   public float[] toRGB (float[] colorvalue)
+   {
+      return new float[]{colorvalue[0], colorvalue[0], colorvalue[0]};
+   }
+
+   @Override
+   public float[] fromRGB (float[] rgbvalue)
+   {
+      float grey = (rgbvalue[0] + rgbvalue[1] + rgbvalue[2]) / 3f;
+      float[] value = new float[getNumComponents ()];
+      for (int i = 0; i < value.length; i++)
+      {
+         value[i] = grey;
+      }
+      return value;
+   }
+
+   @Override
+   public float[] toCIEXYZ (float[] colorvalue)
+   {
+      return SRGB.toCIEXYZ (toRGB (colorvalue));
+   }
+
+   @Override
+   public float[] fromCIEXYZ (float[] colorvalue)
+   {
+      return fromRGB (SRGB.fromCIEXYZ (colorvalue));
+   }
+}
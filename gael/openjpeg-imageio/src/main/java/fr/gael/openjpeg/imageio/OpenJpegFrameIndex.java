@@ -0,0 +1,536 @@
+package fr.gael.openjpeg.imageio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageInputStream;
+
+import fr.gael.openjpeg.OpenJpegDecoder;
+
+/**
+ * Index of the codestreams of a Motion JPEG 2000 file, the samples of its
+ * first video track, or of a JP2 file holding several codestream boxes.
+ * The index is built from the box headers and the sample tables, without
+ * reading any codestream; each codestream is then read on its own, as a raw
+ * codestream: the JP2 header boxes do not apply to it.
+ * <p>
+ * The codestreams may be read by several threads at once: those of a file
+ * are mapped in memory, those of a stream are copied under the lock of the
+ * stream. A JP2 file read from a stream of unknown length is not scanned
+ * past its first codestream, which would buffer the whole stream.
+ */
+final class OpenJpegFrameIndex implements Closeable
+{
+   // box types
+   private static final int SIGNATURE = 0x6A502020;        // "jP  "
+   private static final int FILE_TYPE = 0x66747970;        // "ftyp"
+   private static final int CODESTREAM = 0x6A703263;       // "jp2c"
+   private static final int MOVIE = 0x6D6F6F76;            // "moov"
+   private static final int TRACK = 0x7472616B;            // "trak"
+   private static final int MEDIA = 0x6D646961;            // "mdia"
+   private static final int HANDLER = 0x68646C72;          // "hdlr"
+   private static final int MEDIA_INFORMATION = 0x6D696E66; // "minf"
+   private static final int SAMPLE_TABLE = 0x7374626C;     // "stbl"
+   private static final int SAMPLE_SIZES = 0x7374737A;     // "stsz"
+   private static final int SAMPLES_TO_CHUNKS = 0x73747363; // "stsc"
+   private static final int CHUNK_OFFSETS = 0x7374636F;    // "stco"
+   private static final int CHUNK_OFFSETS_64 = 0x636F3634; // "co64"
+   // brand of the Motion JPEG 2000 files, handler of their video tracks
+   private static final int MOTION_BRAND = 0x6D6A7032;     // "mjp2"
+   private static final int VIDEO_HANDLER = 0x76696465;    // "vide"
+
+   // source of the codestreams, only one of them is set
+   private final RandomAccessFile file;
+   private final byte[] bytes;
+   private final ImageInputStream stream;
+   private final long origin;
+
+   // position and length of each codestream, or of its codestream box
+   private long[] offsets;
+   private int[] lengths;
+
+   private OpenJpegFrameIndex (RandomAccessFile file, byte[] bytes,
+         ImageInputStream stream) throws IOException
+   {
+      this.file = file;
+      this.bytes = bytes;
+      this.stream = stream;
+      this.origin = stream == null ? 0 : stream.getStreamPosition ();
+   }
+
+   /**
+    * Indexes the codestreams of an input of the reader: a File, a byte
+    * array or an ImageInputStream, from its current position.
+    *
+    * @return the index, or null if the input holds at most one codestream.
+    * @throws IOException if the boxes cannot be read.
+    */
+   static OpenJpegFrameIndex create (Object input) throws IOException
+   {
+      OpenJpegFrameIndex index;
+      if (input instanceof File)
+      {
+         index = new OpenJpegFrameIndex (
+               new RandomAccessFile ((File) input, "r"), null, null);
+      }
+      else if (input instanceof byte[])
+      {
+         index = new OpenJpegFrameIndex (null, (byte[]) input, null);
+      }
+      else if (input instanceof ImageInputStream)
+      {
+         index = new OpenJpegFrameIndex (null, null, (ImageInputStream) input);
+      }
+      else
+      {
+         return null;
+      }
+
+      boolean indexed = false;
+      try
+      {
+         indexed = index.readBoxes ();
+      }
+      finally
+      {
+         if (!indexed)
+         {
+            index.close ();
+         }
+      }
+      return indexed ? index : null;
+   }
+
+   /**
+    * @return the number of codestreams.
+    */
+   int size ()
+   {
+      return offsets.length;
+   }
+
+   /**
+    * Sets the codestream of a frame as the input of a decoder: a mapped
+    * buffer for a file, a copy otherwise.
+    *
+    * @throws IOException if the codestream cannot be read.
+    */
+   void setInput (OpenJpegDecoder decoder, int frame) throws IOException
+   {
+      long offset = offsets[frame];
+      int length = lengths[frame];
+
+      // the samples of the tracks are codestream boxes
+      byte[] header = new byte[8];
+      if (length >= header.length)
+      {
+         read (offset, header, header.length);
+         ByteBuffer box = ByteBuffer.wrap (header);
+         if (box.getInt (4) == CODESTREAM)
+         {
+            int headerLength = box.getInt (0) == 1 ? 16 : 8;
+            offset += headerLength;
+            length -= headerLength;
+         }
+      }
+      if (length <= 0)
+      {
+         throw new IIOException ("Empty codestream in frame " + frame + ".");
+      }
+
+      if (file != null)
+      {
+         decoder.setByteBufferInputStream (file.getChannel ().map (
+               FileChannel.MapMode.READ_ONLY, offset, length));
+      }
+      else
+      {
+         byte[] codestream = new byte[length];
+         read (offset, codestream, length);
+         decoder.setByteInputStream (codestream);
+      }
+   }
+
+   @Override
+   public void close () throws IOException
+   {
+      if (file != null)
+      {
+         file.close ();
+      }
+   }
+
+   /**
+    * Reads the top level boxes, and the sample tables of a motion file.
+    *
+    * @return true if the input holds several codestreams.
+    */
+   private boolean readBoxes () throws IOException
+   {
+      long length = length ();
+      long end = length < 0 ? Long.MAX_VALUE : length;
+      Box box = readBox (0, end);
+      if (box == null || box.type != SIGNATURE)
+      {
+         // a raw codestream
+         return false;
+      }
+
+      boolean motion = false;
+      CodestreamList codestreams = new CodestreamList ();
+      try
+      {
+         for (long position = box.end; position < end; position = box.end)
+         {
+            box = readBox (position, end);
+            if (box == null)
+            {
+               break;
+            }
+            if (box.type == FILE_TYPE)
+            {
+               motion = readInt (box.content) == MOTION_BRAND;
+            }
+            else if (box.type == MOVIE && readTrackSamples (box))
+            {
+               return true;
+            }
+            else if (box.type == CODESTREAM)
+            {
+               codestreams.add (box.content, box.end - box.content);
+               if (!motion && length < 0)
+               {
+                  break;
+               }
+            }
+         }
+      }
+      catch (EOFException e)
+      {
+         // truncated input, index the complete boxes
+      }
+
+      if (codestreams.size () < 2)
+      {
+         return false;
+      }
+      offsets = codestreams.getOffsets ();
+      lengths = codestreams.getLengths ();
+      return true;
+   }
+
+   /**
+    * Indexes the samples of the first video track of a movie box.
+    *
+    * @return true if a video track is found.
+    */
+   private boolean readTrackSamples (Box movie) throws IOException
+   {
+      for (Box track : movie.getChildren (TRACK))
+      {
+         Box media = track.getChild (MEDIA);
+         Box handler = media == null ? null : media.getChild (HANDLER);
+         // version and flags, predefined, then handler type
+         if (handler == null || readInt (handler.content + 8) != VIDEO_HANDLER)
+         {
+            continue;
+         }
+         Box information = media.getChild (MEDIA_INFORMATION);
+         Box table = information == null ? null :
+               information.getChild (SAMPLE_TABLE);
+         if (table == null)
+         {
+            continue;
+         }
+         Box sizes = table.getChild (SAMPLE_SIZES);
+         Box chunks = table.getChild (SAMPLES_TO_CHUNKS);
+         Box chunkOffsets = table.getChild (CHUNK_OFFSETS);
+         if (chunkOffsets == null)
+         {
+            chunkOffsets = table.getChild (CHUNK_OFFSETS_64);
+         }
+         if (sizes == null || chunks == null || chunkOffsets == null)
+         {
+            throw new IIOException ("Incomplete sample table.");
+         }
+         indexSamples (readContent (sizes), readContent (chunks),
+               readContent (chunkOffsets), chunkOffsets.type == CHUNK_OFFSETS_64);
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Locates the samples from the sample table: the samples are stored in
+    * chunks, one after the other.
+    */
+   private void indexSamples (ByteBuffer sizes, ByteBuffer chunks,
+         ByteBuffer chunkOffsets, boolean longOffsets) throws IOException
+   {
+      // full box headers: version and flags
+      sizes.getInt ();
+      chunks.getInt ();
+      chunkOffsets.getInt ();
+
+      int sampleSize = sizes.getInt ();
+      int samplesNumber = sizes.getInt ();
+      long[] chunkPositions = new long[chunkOffsets.getInt ()];
+      for (int i = 0; i < chunkPositions.length; i++)
+      {
+         chunkPositions[i] = longOffsets ? chunkOffsets.getLong () :
+               chunkOffsets.getInt () & 0xFFFFFFFFL;
+      }
+      int entries = chunks.getInt ();
+      int[] firstChunks = new int[entries];
+      int[] samplesPerChunk = new int[entries];
+      for (int i = 0; i < entries; i++)
+      {
+         firstChunks[i] = chunks.getInt () - 1;
+         samplesPerChunk[i] = chunks.getInt ();
+         chunks.getInt ();
+      }
+
+      offsets = new long[samplesNumber];
+      lengths = new int[samplesNumber];
+      int sample = 0;
+      for (int i = 0; i < entries && sample < samplesNumber; i++)
+      {
+         int lastChunk = i + 1 < entries ? firstChunks[i + 1] :
+               chunkPositions.length;
+         for (int chunk = firstChunks[i];
+               chunk < lastChunk && sample < samplesNumber; chunk++)
+         {
+            if (chunk < 0 || chunk >= chunkPositions.length)
+            {
+               throw new IIOException ("Invalid chunk in sample table.");
+            }
+            long offset = chunkPositions[chunk];
+            for (int j = 0; j < samplesPerChunk[i] && sample < samplesNumber;
+                  j++, sample++)
+            {
+               offsets[sample] = offset;
+               lengths[sample] = sampleSize != 0 ? sampleSize : sizes.getInt ();
+               offset += lengths[sample];
+            }
+         }
+      }
+      if (sample < samplesNumber)
+      {
+         throw new IIOException ("Incomplete sample table.");
+      }
+   }
+
+   /**
+    * Reads the header of the box starting at a position.
+    *
+    * @param end end of the enclosing box.
+    * @return the box, or null if no box fits before the end.
+    */
+   private Box readBox (long position, long end) throws IOException
+   {
+      if (end - position < 8)
+      {
+         return null;
+      }
+      byte[] header = new byte[8];
+      read (position, header, header.length);
+      ByteBuffer buffer = ByteBuffer.wrap (header);
+      long length = buffer.getInt (0) & 0xFFFFFFFFL;
+      int type = buffer.getInt (4);
+      int headerLength = 8;
+      if (length == 1 && end - position >= 16)
+      {
+         // extended length
+         read (position + 8, header, header.length);
+         length = buffer.getLong (0);
+         headerLength = 16;
+      }
+      else if (length == 0)
+      {
+         // up to the end of the enclosing box
+         length = end - position;
+      }
+      if (length < headerLength || length > end - position)
+      {
+         return null;
+      }
+      return new Box (type, position + headerLength, position + length);
+   }
+
+   private int readInt (long position) throws IOException
+   {
+      byte[] value = new byte[4];
+      read (position, value, 4);
+      return ByteBuffer.wrap (value).getInt ();
+   }
+
+   private ByteBuffer readContent (Box box) throws IOException
+   {
+      long length = box.end - box.content;
+      if (length > Integer.MAX_VALUE)
+      {
+         throw new IIOException ("Box too large.");
+      }
+      byte[] content = new byte[(int) length];
+      read (box.content, content, content.length);
+      return ByteBuffer.wrap (content);
+   }
+
+   /**
+    * @return the length of the input, or -1 if unknown.
+    */
+   private long length () throws IOException
+   {
+      if (file != null)
+      {
+         return file.length ();
+      }
+      if (bytes != null)
+      {
+         return bytes.length;
+      }
+      long length = stream.length ();
+      return length < 0 ? -1 : length - origin;
+   }
+
+   /**
+    * Reads bytes of the input at a position, from any thread.
+    *
+    * @throws EOFException if the input ends before.
+    */
+   private void read (long position, byte[] buffer, int length)
+         throws IOException
+   {
+      if (file != null)
+      {
+         FileChannel channel = file.getChannel ();
+         ByteBuffer target = ByteBuffer.wrap (buffer, 0, length);
+         while (target.hasRemaining ())
+         {
+            if (channel.read (target, position + target.position ()) < 0)
+            {
+               throw new EOFException ();
+            }
+         }
+      }
+      else if (bytes != null)
+      {
+         if (position < 0 || position + length > bytes.length)
+         {
+            throw new EOFException ();
+         }
+         System.arraycopy (bytes, (int) position, buffer, 0, length);
+      }
+      else
+      {
+         synchronized (stream)
+         {
+            try
+            {
+               stream.seek (origin + position);
+            }
+            catch (IndexOutOfBoundsException e)
+            {
+               throw new IIOException ("Position flushed from the stream.", e);
+            }
+            stream.readFully (buffer, 0, length);
+         }
+      }
+   }
+
+   /**
+    * Header of a box: its type, and the positions of its content and of its
+    * end in the input.
+    */
+   private final class Box
+   {
+      private final int type;
+      private final long content;
+      private final long end;
+
+      private Box (int type, long content, long end)
+      {
+         this.type = type;
+         this.content = content;
+         this.end = end;
+      }
+
+      /**
+       * @return the first child box of the given type, or null.
+       */
+      private Box getChild (int childType) throws IOException
+      {
+         List<Box> children = getChildren (childType);
+         return children.isEmpty () ? null : children.get (0);
+      }
+
+      /**
+       * @return the child boxes of the given type.
+       */
+      private List<Box> getChildren (int childType)
+            throws IOException
+      {
+         List<Box> children = new ArrayList<> ();
+         Box child;
+         for (long position = content;
+               (child = readBox (position, end)) != null; position = child.end)
+         {
+            if (child.type == childType)
+            {
+               children.add (child);
+            }
+         }
+         return children;
+      }
+   }
+
+   /**
+    * Growing list of the positions and lengths of codestreams.
+    */
+   private static final class CodestreamList
+   {
+      private long[] offsets = new long[16];
+      private int[] lengths = new int[16];
+      private int size = 0;
+
+      private void add (long offset, long length) throws IIOException
+      {
+         if (length > Integer.MAX_VALUE)
+         {
+            throw new IIOException ("Codestream too large.");
+         }
+         if (size == offsets.length)
+         {
+            offsets = Arrays.copyOf (offsets, size * 2);
+            lengths = Arrays.copyOf (lengths, size * 2);
+         }
+         offsets[size] = offset;
+         lengths[size] = (int) length;
+         size++;
+      }
+
+      private int size ()
+      {
+         return size;
+      }
+
+      private long[] getOffsets ()
+      {
+         return Arrays.copyOf (offsets, size);
+      }
+
+      private int[] getLengths ()
+      {
+         return Arrays.copyOf (lengths, size);
+      }
+   }
+}
@@ -0,0 +1,244 @@
+package fr.gael.openjpeg.imageio;
+
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+
+import org.w3c.dom.Node;
+
+import fr.gael.openjpeg.OpenJpegHeader;
+import fr.gael.openjpeg.OpenJpegJp2Boxes;
+
+/**
+ * Read only metadata of an image, built from its main header and JP2 boxes,
+ * see {@link OpenJpegImageMetadataFormat}.
+ */
+public class OpenJpegImageMetadata extends IIOMetadata
+{
+   static final String ROOT = "OpenJpegImageMetadata";
+
+   private final OpenJpegHeader header;
+
+   OpenJpegImageMetadata (OpenJpegHeader header)
+   {
+      super (true, OpenJpegImageMetadataFormat.NAME,
+            OpenJpegImageMetadataFormat.class.getName (), null, null);
+      this.header = header;
+   }
+
+   /**
+    * @return the header the metadata is built from.
+    */
+   public OpenJpegHeader getHeader ()
+   {
+      return header;
+   }
+
+   @Override
+   public boolean isReadOnly ()
+   {
+      return true;
+   }
+
+   @Override
+   public Node getAsTree (String formatName)
+   {
+      if (OpenJpegImageMetadataFormat.NAME.equals (formatName))
+      {
+         return getNativeTree ();
+      }
+      if (IIOMetadataFormatImpl.standardMetadataFormatName.equals (formatName))
+      {
+         return getStandardTree ();
+      }
+      throw new IllegalArgumentException ("Unsupported metadata format: " +
+            formatName);
+   }
+
+   private Node getNativeTree ()
+   {
+      IIOMetadataNode root = new IIOMetadataNode (ROOT);
+
+      IIOMetadataNode image = new IIOMetadataNode ("Image");
+      image.setAttribute ("width", Integer.toString (header.getWidth ()));
+      image.setAttribute ("height", Integer.toString (header.getHeight ()));
+      image.setAttribute ("x0", Integer.toString (header.getImageX0 ()));
+      image.setAttribute ("y0", Integer.toString (header.getImageY0 ()));
+      image.setAttribute ("numComponents",
+            Integer.toString (header.getComponentsNumber ()));
+      root.appendChild (image);
+
+      IIOMetadataNode tiling = new IIOMetadataNode ("Tiling");
+      tiling.setAttribute ("tileWidth",
+            Integer.toString (header.getTileWidth ()));
+      tiling.setAttribute ("tileHeight",
+            Integer.toString (header.getTileHeight ()));
+      tiling.setAttribute ("tileOffsetX",
+            Integer.toString (header.getTileOffsetX ()));
+      tiling.setAttribute ("tileOffsetY",
+            Integer.toString (header.getTileOffsetY ()));
+      tiling.setAttribute ("tileColumns",
+            Integer.toString (header.getTileColumns ()));
+      tiling.setAttribute ("tileRows", Integer.toString (header.getTileRows ()));
+      root.appendChild (tiling);
+
+      IIOMetadataNode coding = new IIOMetadataNode ("Coding");
+      coding.setAttribute ("progressionOrder",
+            header.getProgressionOrderName ());
+      coding.setAttribute ("qualityLayers",
+            Integer.toString (header.getQualityLayersNumber ()));
+      coding.setAttribute ("resolutionLevels",
+            Integer.toString (header.getResolutionsNumber ()));
+      coding.setAttribute ("codeBlockWidth",
+            Integer.toString (header.getCodeBlockWidth ()));
+      coding.setAttribute ("codeBlockHeight",
+            Integer.toString (header.getCodeBlockHeight ()));
+      coding.setAttribute ("reversible",
+            Boolean.toString (header.isReversible ()));
+      coding.setAttribute ("multipleComponentTransform",
+            Boolean.toString (header.isMultipleComponentTransform ()));
+      root.appendChild (coding);
+
+      IIOMetadataNode components = new IIOMetadataNode ("Components");
+      int[] precisions = header.getComponentPrecisions ();
+      boolean[] signed = header.getComponentSigned ();
+      int[] dx = header.getComponentDx ();
+      int[] dy = header.getComponentDy ();
+      for (int i = 0; precisions != null && i < precisions.length; i++)
+      {
+         IIOMetadataNode component = new IIOMetadataNode ("Component");
+         component.setAttribute ("index", Integer.toString (i));
+         component.setAttribute ("precision", Integer.toString (precisions[i]));
+         component.setAttribute ("signed", Boolean.toString (signed[i]));
+         component.setAttribute ("dx", Integer.toString (dx[i]));
+         component.setAttribute ("dy", Integer.toString (dy[i]));
+         components.appendChild (component);
+      }
+      root.appendChild (components);
+
+      OpenJpegJp2Boxes boxes = header.getJp2Boxes ();
+      if (boxes != null)
+      {
+         IIOMetadataNode jp2 = new IIOMetadataNode ("JP2");
+         jp2.setAttribute ("brand", OpenJpegJp2Boxes.toFourCC (boxes.getBrand ()));
+         jp2.setAttribute ("minorVersion",
+               Integer.toString (boxes.getMinorVersion ()));
+         StringBuilder compatibility = new StringBuilder ();
+         for (int brand : boxes.getCompatibility ())
+         {
+            if (compatibility.length () > 0)
+            {
+               compatibility.append (' ');
+            }
+            compatibility.append (OpenJpegJp2Boxes.toFourCC (brand).trim ());
+         }
+         jp2.setAttribute ("compatibility", compatibility.toString ());
+         jp2.setAttribute ("colourMethod",
+               Integer.toString (boxes.getColourMethod ()));
+         jp2.setAttribute ("enumeratedColourSpace",
+               Integer.toString (boxes.getEnumeratedColourSpace ()));
+         jp2.setAttribute ("iccProfileLength",
+               Integer.toString (boxes.getIccProfileLength ()));
+         jp2.setAttribute ("palette", Boolean.toString (boxes.hasPalette ()));
+         jp2.setAttribute ("channelDefinition",
+               Boolean.toString (boxes.hasChannelDefinition ()));
+         root.appendChild (jp2);
+      }
+      return root;
+   }
+
+   @Override
+   protected IIOMetadataNode getStandardChromaNode ()
+   {
+      int components = header.getComponentsNumber ();
+      String colorSpace;
+      OpenJpegJp2Boxes boxes = header.getJp2Boxes ();
+      if (boxes != null && boxes.getEnumeratedColourSpace () == 18)
+      {
+         colorSpace = "YCbCr";
+      }
+      else if (components <= 2)
+      {
+         colorSpace = "GRAY";
+      }
+      else if (components <= 4)
+      {
+         colorSpace = "RGB";
+      }
+      else
+      {
+         colorSpace = Integer.toHexString (Math.min (components, 15))
+               .toUpperCase () + "CLR";
+      }
+
+      IIOMetadataNode chroma = new IIOMetadataNode ("Chroma");
+      IIOMetadataNode type = new IIOMetadataNode ("ColorSpaceType");
+      type.setAttribute ("name", colorSpace);
+      chroma.appendChild (type);
+      IIOMetadataNode channels = new IIOMetadataNode ("NumChannels");
+      channels.setAttribute ("value", Integer.toString (components));
+      chroma.appendChild (channels);
+      return chroma;
+   }
+
+   @Override
+   protected IIOMetadataNode getStandardCompressionNode ()
+   {
+      IIOMetadataNode compression = new IIOMetadataNode ("Compression");
+      IIOMetadataNode name = new IIOMetadataNode ("CompressionTypeName");
+      name.setAttribute ("value", "JPEG2000");
+      compression.appendChild (name);
+      IIOMetadataNode lossless = new IIOMetadataNode ("Lossless");
+      lossless.setAttribute ("value", header.isReversible () ? "TRUE" : "FALSE");
+      compression.appendChild (lossless);
+      IIOMetadataNode scans = new IIOMetadataNode ("NumProgressiveScans");
+      scans.setAttribute ("value",
+            Integer.toString (header.getQualityLayersNumber ()));
+      compression.appendChild (scans);
+      return compression;
+   }
+
+   @Override
+   protected IIOMetadataNode getStandardDataNode ()
+   {
+      int[] precisions = header.getComponentPrecisions ();
+      boolean[] signed = header.getComponentSigned ();
+      if (precisions == null)
+      {
+         return null;
+      }
+      IIOMetadataNode data = new IIOMetadataNode ("Data");
+      IIOMetadataNode planar = new IIOMetadataNode ("PlanarConfiguration");
+      planar.setAttribute ("value", "PlaneInterleaved");
+      data.appendChild (planar);
+      IIOMetadataNode format = new IIOMetadataNode ("SampleFormat");
+      format.setAttribute ("value",
+            signed[0] ? "SignedIntegral" : "UnsignedIntegral");
+      data.appendChild (format);
+      StringBuilder bits = new StringBuilder ();
+      for (int precision : precisions)
+      {
+         if (bits.length () > 0)
+         {
+            bits.append (' ');
+         }
+         bits.append (precision);
+      }
+      IIOMetadataNode bitsPerSample = new IIOMetadataNode ("BitsPerSample");
+      bitsPerSample.setAttribute ("value", bits.toString ());
+      data.appendChild (bitsPerSample);
+      return data;
+   }
+
+   @Override
+   public void mergeTree (String formatName, Node root)
+   {
+      throw new IllegalStateException ("The metadata is read only.");
+   }
+
+   @Override
+   public void reset ()
+   {
+      throw new IllegalStateException ("The metadata is read only.");
+   }
+}
@@ -0,0 +1,86 @@
+package fr.gael.openjpeg.imageio;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadataFormat;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+
+/**
+ * Native format of the {@link OpenJpegImageMetadata}: the properties of the
+ * main header of the codestream and of the JP2 boxes, read without decoding
+ * the pixels.
+ */
+public class OpenJpegImageMetadataFormat extends IIOMetadataFormatImpl
+{
+   public static final String NAME = "fr_gael_openjpeg_imageio_image_1.0";
+
+   private static final OpenJpegImageMetadataFormat INSTANCE =
+         new OpenJpegImageMetadataFormat ();
+
+   private OpenJpegImageMetadataFormat ()
+   {
+      super (OpenJpegImageMetadata.ROOT, CHILD_POLICY_SOME);
+
+      addElement ("Image", OpenJpegImageMetadata.ROOT, CHILD_POLICY_EMPTY);
+      addIntAttribute ("Image", "width");
+      addIntAttribute ("Image", "height");
+      addIntAttribute ("Image", "x0");
+      addIntAttribute ("Image", "y0");
+      addIntAttribute ("Image", "numComponents");
+
+      addElement ("Tiling", OpenJpegImageMetadata.ROOT, CHILD_POLICY_EMPTY);
+      addIntAttribute ("Tiling", "tileWidth");
+      addIntAttribute ("Tiling", "tileHeight");
+      addIntAttribute ("Tiling", "tileOffsetX");
+      addIntAttribute ("Tiling", "tileOffsetY");
+      addIntAttribute ("Tiling", "tileColumns");
+      addIntAttribute ("Tiling", "tileRows");
+
+      addElement ("Coding", OpenJpegImageMetadata.ROOT, CHILD_POLICY_EMPTY);
+      addAttribute ("Coding", "progressionOrder", DATATYPE_STRING, true,
+            null);
+      addIntAttribute ("Coding", "qualityLayers");
+      addIntAttribute ("Coding", "resolutionLevels");
+      addIntAttribute ("Coding", "codeBlockWidth");
+      addIntAttribute ("Coding", "codeBlockHeight");
+      addBooleanAttribute ("Coding", "reversible", false, false);
+      addBooleanAttribute ("Coding", "multipleComponentTransform", false,
+            false);
+
+      addElement ("Components", OpenJpegImageMetadata.ROOT, 1,
+            Integer.MAX_VALUE);
+      addElement ("Component", "Components", CHILD_POLICY_EMPTY);
+      addIntAttribute ("Component", "index");
+      addIntAttribute ("Component", "precision");
+      addBooleanAttribute ("Component", "signed", false, false);
+      addIntAttribute ("Component", "dx");
+      addIntAttribute ("Component", "dy");
+
+      addElement ("JP2", OpenJpegImageMetadata.ROOT, CHILD_POLICY_EMPTY);
+      addAttribute ("JP2", "brand", DATATYPE_STRING, true, null);
+      addIntAttribute ("JP2", "minorVersion");
+      addAttribute ("JP2", "compatibility", DATATYPE_STRING, true, 0,
+            Integer.MAX_VALUE);
+      addIntAttribute ("JP2", "colourMethod");
+      addIntAttribute ("JP2", "enumeratedColourSpace");
+      addIntAttribute ("JP2", "iccProfileLength");
+      addBooleanAttribute ("JP2", "palette", false, false);
+      addBooleanAttribute ("JP2", "channelDefinition", false, false);
+   }
+
+   private void addIntAttribute (String element, String name)
+   {
+      addAttribute (element, name, DATATYPE_INTEGER, true, null);
+   }
+
+   public static IIOMetadataFormat getInstance ()
+   {
+      return INSTANCE;
+   }
+
+   @Override
+   public boolean canNodeAppear (String elementName,
+         ImageTypeSpecifier imageType)
+   {
+      return true;
+   }
+}
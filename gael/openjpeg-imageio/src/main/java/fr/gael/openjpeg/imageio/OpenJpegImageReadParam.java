@@ -0,0 +1,48 @@
+package fr.gael.openjpeg.imageio;
+
+import javax.imageio.ImageReadParam;
+
+/**
+ * Read parameters of the {@link OpenJpegImageReader}. The source region is
+ * decoded as a native decode area, so only the tiles and code-blocks it
+ * intersects are decoded. The subsampling selects the lowest resolution
+ * level not coarser than the requested periods; the remaining subsampling,
+ * if any, is applied to the decoded pixels. The source bands select the
+ * components of the image. The number of decoded quality layers can be
+ * capped as well.
+ * <p>
+ * When a destination image, a destination type, a destination offset or
+ * destination bands are set, the decoded pixels are copied into the
+ * destination, created by the reader if needed, and the destination is
+ * returned.
+ */
+public class OpenJpegImageReadParam extends ImageReadParam
+{
+   /**
+    * Maximum number of quality layers to decode, 0 for all.
+    */
+   private int qualityLayers = 0;
+
+   public int getQualityLayers ()
+   {
+      return qualityLayers;
+   }
+
+   /**
+    * Caps the number of quality layers decoded: the packets of the other
+    * layers are skipped, which gives a coarser image much faster.
+    *
+    * @param qualityLayers maximum number of layers to decode, 0 to decode
+    *    all the layers of the image.
+    * @throws IllegalArgumentException if the number is negative.
+    */
+   public void setQualityLayers (int qualityLayers)
+   {
+      if (qualityLayers < 0)
+      {
+         throw new IllegalArgumentException (
+               "Invalid number of quality layers.");
+      }
+      this.qualityLayers = qualityLayers;
+   }
+}
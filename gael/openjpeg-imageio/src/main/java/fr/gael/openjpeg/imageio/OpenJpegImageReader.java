@@ -1,27 +1,44 @@
 package fr.gael.openjpeg.imageio;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Transparency;
 import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.DirectColorModel;
 import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
-import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import fr.gael.openjpeg.OpenJpegBand;
 import fr.gael.openjpeg.OpenJpegDecoder;
+import fr.gael.openjpeg.OpenJpegHeader;
+import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
@@ -29,22 +46,67 @@ import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.stream.ImageInputStream;
 import org.apache.log4j.Logger;
 
+/**
+ * Reads JP2 files and raw codestreams. The codestreams of a Motion JPEG
+ * 2000 file, or of a JP2 file holding several codestream boxes, are the
+ * images of the reader: each image is read straight from its position in
+ * the input, found in the sample table of the file. While the frames are
+ * read in turn, the following ones may be decoded in the background, see
+ * {@link #setPrefetchedFrames(int)}.
+ */
 public class OpenJpegImageReader extends ImageReader
 {
    private static final Logger LOGGER =
          Logger.getLogger (OpenJpegImageReader.class);
 
+   // decoded pixels held by the prefetched frames of a reader, at most
+   private static final long PREFETCH_MEMORY = 256L * 1024 * 1024;
+   // decodes the prefetched frames of all the readers
+   private static final ExecutorService PREFETCH_EXECUTOR =
+         Executors.newFixedThreadPool (
+               Runtime.getRuntime ().availableProcessors (), new ThreadFactory ()
+               {
+                  @Override
+                  public Thread newThread (Runnable runnable)
+                  {
+                     Thread thread = new Thread (runnable,
+                           "openjpeg-frame-prefetch");
+                     thread.setDaemon (true);
+                     return thread;
+                  }
+               });
+
    private File inputFile = null;
    private String filePath = null;
    private int numImages = 1;
    private OpenJpegDecoder decoder;
-   private List<OpenJpegCodeStreamProperty> codeStreams;
+   // properties of the current image, by image index
+   private Map<Integer, OpenJpegCodeStreamProperty> codeStreams;
+   // main header of the current image, probed once for all its reads
+   private OpenJpegHeader header = null;
+   // quality layers decoded for the thumbnails, 0 for all
+   private int thumbnailQualityLayers = 1;
+
+   // codestreams of a multiple frames input, null for a single codestream
+   private OpenJpegFrameIndex frames = null;
+   // frame whose codestream is the input of the decoder
+   private int currentFrame = -1;
+   private int prefetchedFrames = 0;
+   // frame returned by the last read, to detect sequential reads
+   private int lastReadFrame = -1;
+   // estimated size in bytes of a decoded frame, -1 until needed
+   private long frameSize = -1;
+   private final Map<Integer, Future<BufferedImage>> prefetched =
+         new HashMap<> ();
+   // readers of the frames decoded in the background, idle ones
+   private Queue<OpenJpegImageReader> prefetchReaders =
+         new ConcurrentLinkedQueue<> ();
 
    public OpenJpegImageReader (OpenJpegImageReaderSpi readerSpi)
    {
       super (readerSpi);
       this.decoder = new OpenJpegDecoder ();
-      this.codeStreams = new ArrayList<> ();
+      this.codeStreams = new HashMap<> ();
    }
 
    @Override
@@ -56,25 +118,21 @@ public class OpenJpegImageReader extends ImageReader
    @Override
    public int getWidth (int imageIndex) throws IOException
    {
-      checkImageIndex (imageIndex);
-      return codeStreams.get (imageIndex).getWidth ();
+      return getCodeStream (imageIndex).getWidth ();
    }
 
    @Override
    public int getHeight (int imageIndex) throws IOException
    {
-      checkImageIndex (imageIndex);
-      return codeStreams.get (imageIndex).getHeight ();
+      return getCodeStream (imageIndex).getHeight ();
    }
 
    @Override
    public Iterator<ImageTypeSpecifier> getImageTypes (int imageIndex)
          throws IOException
    {
-      checkImageIndex (imageIndex);
-
       List<ImageTypeSpecifier> result = new ArrayList<> ();
-      OpenJpegCodeStreamProperty codeStream = codeStreams.get (imageIndex);
+      OpenJpegCodeStreamProperty codeStream = getCodeStream (imageIndex);
       ImageTypeSpecifier typeSpecifier = new ImageTypeSpecifier (
             codeStream.getColorModel (), codeStream.getSampleModel ());
 
@@ -82,52 +140,698 @@ public class OpenJpegImageReader extends ImageReader
       return result.iterator ();
    }
 
+   /**
+    * @return null: the JP2 boxes are part of the image metadata.
+    */
    @Override
    public IIOMetadata getStreamMetadata () throws IOException
    {
-      throw new UnsupportedOperationException ("Not yet implemented");
+      return null;
    }
 
+   /**
+    * Returns the properties of the main header and of the JP2 boxes, read
+    * without decoding any pixel.
+    */
    @Override
    public IIOMetadata getImageMetadata (int imageIndex) throws IOException
    {
-      throw new UnsupportedOperationException ("Not yet implemented");
+      selectImage (imageIndex);
+      return new OpenJpegImageMetadata (readHeader ());
    }
 
+   /**
+    * Returns the properties of a code stream, probed from the header of the
+    * input if not done yet.
+    */
+   private OpenJpegCodeStreamProperty getCodeStream (int imageIndex)
+         throws IOException
+   {
+      selectImage (imageIndex);
+      OpenJpegCodeStreamProperty codeStream = codeStreams.get (imageIndex);
+      if (codeStream == null)
+      {
+         codeStream = createCodeStream (readHeader ());
+         codeStreams.put (imageIndex, codeStream);
+      }
+      return codeStream;
+   }
+
+   /**
+    * Describes a code stream from its main header, with the models of the
+    * images returned by {@link #read(int, ImageReadParam)}.
+    */
+   private static OpenJpegCodeStreamProperty createCodeStream (
+         OpenJpegHeader header)
+   {
+      int components = header.getComponentsNumber ();
+      int[] precisions = header.getComponentPrecisions ();
+      boolean[] signs = header.getComponentSigned ();
+      int maxPrecision = 0;
+      boolean signed = false;
+      int[] indexes = new int[components];
+      for (int i = 0; i < components; i++)
+      {
+         maxPrecision = Math.max (maxPrecision, precisions[i]);
+         signed |= signs[i];
+         indexes[i] = i;
+      }
+
+      ColorModel colorModel;
+      SampleModel sampleModel;
+      int width = header.getWidth ();
+      int height = header.getHeight ();
+      if (hasPackedOutput (components, header.getPrecision ()))
+      {
+         colorModel = createPackedColorModel (components,
+               header.getPrecision ());
+         sampleModel = colorModel.createCompatibleSampleModel (width, height);
+      }
+      else
+      {
+         colorModel = createBandedColorModel (precisions, signed);
+         sampleModel = new BandedSampleModel (colorModel.getTransferType (),
+               width, height, components);
+      }
+
+      OpenJpegCodeStreamProperty codeStream = new OpenJpegCodeStreamProperty ();
+      codeStream.setNumComponents (components);
+      codeStream.setDataBufferType (sampleModel.getDataType ());
+      codeStream.setMaxBitDepth (maxPrecision);
+      codeStream.setWidth (width);
+      codeStream.setHeight (height);
+      codeStream.setTileWidth (header.getTileWidth ());
+      codeStream.setTileHeight (header.getTileHeight ());
+      codeStream.setColorModel (colorModel);
+      codeStream.setSampleModel (sampleModel);
+      codeStream.setMaxAvailableQualityLayers (header.getQualityLayersNumber ());
+      codeStream.setSourceDWTLevels (header.getResolutionsNumber () - 1);
+      codeStream.setMaxSupportedSubSamplingFactor (
+            1 << Math.max (header.getResolutionsNumber () - 1, 0));
+      codeStream.setSigned (signed);
+      codeStream.setBitsPerComponent (precisions);
+      codeStream.setComponentIndexes (indexes);
+      return codeStream;
+   }
+
+   /**
+    * Decodes an image. The whole frames of a multiple frames input may have
+    * been decoded in the background, and the next frames are then decoded
+    * in the background.
+    */
    @Override
    public BufferedImage read (int imageIndex, ImageReadParam param)
          throws IOException
    {
+      if (frames == null || !isDefaultParam (param))
+      {
+         selectImage (imageIndex);
+         return read (imageIndex, param, 0);
+      }
+
       checkImageIndex (imageIndex);
+      Future<BufferedImage> frame = prefetched.remove (imageIndex);
+      // only the frames read in sequence are prefetched
+      boolean sequential = imageIndex == lastReadFrame + 1;
+      lastReadFrame = imageIndex;
+      prefetch (imageIndex, sequential && prefetchedFrames > 0 ?
+            (int) Math.min (prefetchedFrames,
+                  PREFETCH_MEMORY / getFrameSize (imageIndex)) : 0);
+      if (frame != null)
+      {
+         try
+         {
+            return frame.get ();
+         }
+         catch (ExecutionException e)
+         {
+            LOGGER.warn ("Cannot prefetch frame " + imageIndex + ".",
+                  e.getCause ());
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread ().interrupt ();
+            throw new IIOException ("Interrupted while reading frame " +
+                  imageIndex + ".", e);
+         }
+      }
+      selectImage (imageIndex);
+      return read (imageIndex, param, 0);
+   }
+
+   public int getPrefetchedFrames ()
+   {
+      return prefetchedFrames;
+   }
+
+   /**
+    * Sets the number of frames decoded in the background after a frame of
+    * a multiple frames input is read, 0 by default. The frames are only
+    * prefetched while they are read in sequence, frame i right after frame
+    * i - 1, whole and without parameters; the decoded frames held are
+    * bounded to 256 MB. The prefetched frames which do not follow the last
+    * read frame are dropped.
+    *
+    * @param prefetchedFrames number of frames, 0 to disable the prefetch.
+    * @throws IllegalArgumentException if the number is negative.
+    */
+   public void setPrefetchedFrames (int prefetchedFrames)
+   {
+      if (prefetchedFrames < 0)
+      {
+         throw new IllegalArgumentException ("Invalid number of frames.");
+      }
+      this.prefetchedFrames = prefetchedFrames;
+   }
+
+   /**
+    * Starts decoding in the background the frames following a frame, and
+    * cancels the decoding of the frames that do not follow it anymore.
+    *
+    * @param count number of following frames to decode, 0 for none.
+    */
+   private void prefetch (int imageIndex, int count)
+   {
+      int last = (int) Math.min ((long) imageIndex + count, numImages - 1);
+      Iterator<Map.Entry<Integer, Future<BufferedImage>>> entries =
+            prefetched.entrySet ().iterator ();
+      while (entries.hasNext ())
+      {
+         Map.Entry<Integer, Future<BufferedImage>> entry = entries.next ();
+         if (entry.getKey () <= imageIndex || entry.getKey () > last)
+         {
+            entry.getValue ().cancel (false);
+            entries.remove ();
+         }
+      }
+      for (int i = imageIndex + 1; i <= last; i++)
+      {
+         if (!prefetched.containsKey (i))
+         {
+            prefetched.put (i, PREFETCH_EXECUTOR.submit (new FrameDecoding (
+                  (OpenJpegImageReaderSpi) originatingProvider, frames,
+                  numImages, prefetchReaders, i)));
+         }
+      }
+   }
+
+   /**
+    * Estimates the size of a decoded frame from the header of a frame, the
+    * frames of a movie having the same size.
+    */
+   private long getFrameSize (int imageIndex) throws IOException
+   {
+      if (frameSize < 0)
+      {
+         selectImage (imageIndex);
+         OpenJpegHeader header = readHeader ();
+         int sampleSize = header.getPrecision () <= 8 ? 1 :
+               header.getPrecision () <= 16 ? 2 : 4;
+         frameSize = Math.max (1L, (long) header.getWidth () *
+               header.getHeight () * header.getComponentsNumber () *
+               sampleSize);
+      }
+      return frameSize;
+   }
+
+   private void cancelPrefetch ()
+   {
+      for (Future<BufferedImage> frame : prefetched.values ())
+      {
+         frame.cancel (false);
+      }
+      prefetched.clear ();
+      prefetchReaders = new ConcurrentLinkedQueue<> ();
+   }
+
+   /**
+    * Tells whether the parameters read the whole image, as prefetched.
+    */
+   private static boolean isDefaultParam (ImageReadParam param)
+   {
+      return param == null || (param.getSourceRegion () == null &&
+            param.getSourceXSubsampling () == 1 &&
+            param.getSourceYSubsampling () == 1 &&
+            param.getSubsamplingXOffset () == 0 &&
+            param.getSubsamplingYOffset () == 0 &&
+            param.getSourceBands () == null && !hasDestination (param) &&
+            !(param instanceof OpenJpegImageReadParam &&
+                  ((OpenJpegImageReadParam) param).getQualityLayers () != 0));
+   }
+
+   /**
+    * Decodes a whole frame in the background, with an idle reader of the
+    * frames or a new one.
+    */
+   private static final class FrameDecoding implements Callable<BufferedImage>
+   {
+      private final OpenJpegImageReaderSpi readerSpi;
+      private final OpenJpegFrameIndex frames;
+      private final int numImages;
+      private final Queue<OpenJpegImageReader> readers;
+      private final int imageIndex;
+
+      private FrameDecoding (OpenJpegImageReaderSpi readerSpi,
+            OpenJpegFrameIndex frames, int numImages,
+            Queue<OpenJpegImageReader> readers, int imageIndex)
+      {
+         this.readerSpi = readerSpi;
+         this.frames = frames;
+         this.numImages = numImages;
+         this.readers = readers;
+         this.imageIndex = imageIndex;
+      }
+
+      @Override
+      public BufferedImage call () throws IOException
+      {
+         OpenJpegImageReader reader = readers.poll ();
+         if (reader == null)
+         {
+            reader = new OpenJpegImageReader (readerSpi);
+            reader.frames = frames;
+            reader.numImages = numImages;
+         }
+         try
+         {
+            return reader.read (imageIndex, null);
+         }
+         finally
+         {
+            readers.offer (reader);
+         }
+      }
+   }
+
+   /**
+    * Returns the number of overviews of an image: the resolution levels of
+    * its wavelet decomposition below the full resolution. Overview i is
+    * 2^(i + 1) times smaller than the image in each dimension.
+    */
+   public int getNumOverviews (int imageIndex) throws IOException
+   {
+      selectImage (imageIndex);
+      return Math.max (readHeader ().getResolutionsNumber () - 1, 0);
+   }
+
+   /**
+    * @return the exact width of an overview, as decoded by
+    *    {@link #readOverview(int, int, ImageReadParam)}.
+    */
+   public int getOverviewWidth (int imageIndex, int overview)
+         throws IOException
+   {
+      checkOverviewIndex (imageIndex, overview);
+      return getLevelSize (readHeader ().getImageX0 (),
+            readHeader ().getWidth (), overview + 1);
+   }
+
+   /**
+    * @return the exact height of an overview, as decoded by
+    *    {@link #readOverview(int, int, ImageReadParam)}.
+    */
+   public int getOverviewHeight (int imageIndex, int overview)
+         throws IOException
+   {
+      checkOverviewIndex (imageIndex, overview);
+      return getLevelSize (readHeader ().getImageY0 (),
+            readHeader ().getHeight (), overview + 1);
+   }
+
+   /**
+    * Decodes an overview natively at its own resolution level: the higher
+    * resolution levels are not decoded at all. The parameters apply as in
+    * {@link #read(int, ImageReadParam)}, in the overview coordinates.
+    *
+    * @param overview index of the overview, see {@link #getNumOverviews(int)}.
+    */
+   public BufferedImage readOverview (int imageIndex, int overview,
+         ImageReadParam param) throws IOException
+   {
+      checkOverviewIndex (imageIndex, overview);
+      return read (imageIndex, param, overview + 1);
+   }
+
+   public int getThumbnailQualityLayers ()
+   {
+      return thumbnailQualityLayers;
+   }
+
+   /**
+    * Sets the number of quality layers decoded for the thumbnails. Only the
+    * first layer is decoded by default, which is enough at the resolution
+    * of a thumbnail and skips the packets of the other layers.
+    *
+    * @param thumbnailQualityLayers maximum number of layers to decode, 0 to
+    *    decode all the layers.
+    * @throws IllegalArgumentException if the number is negative.
+    */
+   public void setThumbnailQualityLayers (int thumbnailQualityLayers)
+   {
+      if (thumbnailQualityLayers < 0)
+      {
+         throw new IllegalArgumentException (
+               "Invalid number of quality layers.");
+      }
+      this.thumbnailQualityLayers = thumbnailQualityLayers;
+   }
+
+   @Override
+   public boolean readerSupportsThumbnails ()
+   {
+      return true;
+   }
+
+   /**
+    * Returns the number of thumbnails: the overviews, smallest first.
+    */
+   @Override
+   public int getNumThumbnails (int imageIndex) throws IOException
+   {
+      return getNumOverviews (imageIndex);
+   }
+
+   @Override
+   public int getThumbnailWidth (int imageIndex, int thumbnailIndex)
+         throws IOException
+   {
+      return getOverviewWidth (imageIndex,
+            toOverviewIndex (imageIndex, thumbnailIndex));
+   }
+
+   @Override
+   public int getThumbnailHeight (int imageIndex, int thumbnailIndex)
+         throws IOException
+   {
+      return getOverviewHeight (imageIndex,
+            toOverviewIndex (imageIndex, thumbnailIndex));
+   }
+
+   /**
+    * Decodes the resolution level of a thumbnail with the thumbnail quality
+    * layers only, see {@link #setThumbnailQualityLayers(int)}.
+    */
+   @Override
+   public BufferedImage readThumbnail (int imageIndex, int thumbnailIndex)
+         throws IOException
+   {
+      return readOverview (imageIndex,
+            toOverviewIndex (imageIndex, thumbnailIndex),
+            createThumbnailParam ());
+   }
+
+   /**
+    * Decodes the smallest resolution level of the image at least as large
+    * as the given size, with the thumbnail quality layers only. The
+    * returned image is smaller than twice the size in some dimension,
+    * unless the image itself is smaller.
+    *
+    * @param width minimum width of the thumbnail.
+    * @param height minimum height of the thumbnail.
+    */
+   public BufferedImage readThumbnail (int imageIndex, int width, int height)
+         throws IOException
+   {
+      if (width <= 0 || height <= 0)
+      {
+         throw new IllegalArgumentException ("Invalid thumbnail size.");
+      }
+      int overview = getNumOverviews (imageIndex) - 1;
+      while (overview >= 0 && (getOverviewWidth (imageIndex, overview) < width ||
+            getOverviewHeight (imageIndex, overview) < height))
+      {
+         overview--;
+      }
+      if (overview < 0)
+      {
+         return read (imageIndex, createThumbnailParam (), 0);
+      }
+      return readOverview (imageIndex, overview, createThumbnailParam ());
+   }
+
+   private int toOverviewIndex (int imageIndex, int thumbnailIndex)
+         throws IOException
+   {
+      int count = getNumThumbnails (imageIndex);
+      if (thumbnailIndex < 0 || thumbnailIndex >= count)
+      {
+         throw new IndexOutOfBoundsException ("Invalid thumbnail index " +
+               thumbnailIndex);
+      }
+      return count - 1 - thumbnailIndex;
+   }
+
+   private OpenJpegImageReadParam createThumbnailParam ()
+   {
+      OpenJpegImageReadParam param = new OpenJpegImageReadParam ();
+      param.setQualityLayers (thumbnailQualityLayers);
+      return param;
+   }
+
+   private void checkOverviewIndex (int imageIndex, int overview)
+         throws IOException
+   {
+      if (overview < 0 || overview >= getNumOverviews (imageIndex))
+      {
+         throw new IndexOutOfBoundsException ("Invalid overview index " +
+               overview);
+      }
+   }
+
+   /**
+    * Returns the size of the image at a resolution level, as computed by
+    * the codec from the image bounds on the reference grid.
+    */
+   private static int getLevelSize (int origin, int size, int level)
+   {
+      long scale = 1L << level;
+      long end = ((long) origin + size + scale - 1) >> level;
+      return (int) (end - (((long) origin + scale - 1) >> level));
+   }
+
+   /**
+    * Decodes the image at a resolution level, 0 for the full resolution.
+    * The regions of the parameters are in the coordinates of that level.
+    * With destination settings, the decoded pixels are copied into the
+    * destination at its offset, in its destination bands.
+    */
+   private BufferedImage read (int imageIndex, ImageReadParam param,
+         int level) throws IOException
+   {
+      if (param == null)
+      {
+         param = getDefaultReadParam ();
+      }
+
+      OpenJpegHeader header = readHeader ();
+      int width = getLevelSize (header.getImageX0 (), header.getWidth (),
+            level);
+      int height = getLevelSize (header.getImageY0 (), header.getHeight (),
+            level);
+
+      // components without packed output, or a selection of them, are
+      // decoded in bands
+      int[] sourceBands = param.getSourceBands ();
+      checkSourceBands (sourceBands, header.getComponentsNumber ());
+      decoder.setPlanarOutput (sourceBands != null || !hasPackedOutput (
+            header.getComponentsNumber (), header.getPrecision ()));
+
+      BufferedImage destination = null;
+      if (hasDestination (param))
+      {
+         destination = getDestination (param, getImageTypes (imageIndex),
+               width, height);
+         checkReadParamBandSettings (param, header.getComponentsNumber (),
+               destination.getSampleModel ().getNumBands ());
+      }
+
+      Rectangle sourceRegion = new Rectangle ();
+      Rectangle destRegion = new Rectangle ();
+      computeRegions (param, width, height, destination, sourceRegion,
+            destRegion);
+      int periodX = param.getSourceXSubsampling ();
+      int periodY = param.getSourceYSubsampling ();
+      int reduceFactor = Math.min (level +
+            31 - Integer.numberOfLeadingZeros (Math.min (periodX, periodY)),
+            Math.max (header.getResolutionsNumber () - 1, 0));
+
+      try
+      {
+         if (sourceRegion.width != width || sourceRegion.height != height)
+         {
+            // the decode area is given at full resolution
+            decoder.setDecodeArea (sourceRegion.x << level,
+                  sourceRegion.y << level, sourceRegion.width << level,
+                  sourceRegion.height << level);
+         }
+         decoder.setReduceFactor (reduceFactor);
+         if (param instanceof OpenJpegImageReadParam)
+         {
+            decoder.setMaxQualityLayers (
+                  ((OpenJpegImageReadParam) param).getQualityLayers ());
+         }
+         if (!decoder.decode (filePath))
+         {
+            throw new IIOException ("Cannot decode the JPEG 2000 image.");
+         }
+      }
+      finally
+      {
+         decoder.clearDecodeArea ();
+         decoder.setReduceFactor (0);
+         decoder.setMaxQualityLayers (0);
+      }
 
-      decoder.decode (filePath);
+      BufferedImage image = sourceBands == null ? createImage () :
+            createBandedImage (selectBands (decoder.getBands (), sourceBands),
+                  decoder.getWidth (), decoder.getHeight ());
+      int shift = reduceFactor - level;
+      if (image != null && (image.getWidth () != destRegion.width ||
+            image.getHeight () != destRegion.height ||
+            periodX != 1 << shift || periodY != 1 << shift))
+      {
+         image = subsample (image, sourceRegion, shift, periodX, periodY,
+               destRegion.width, destRegion.height);
+      }
+      if (destination == null || image == null)
+      {
+         return image;
+      }
+
+      WritableRaster target = destination.getRaster ();
+      if (param.getDestinationBands () != null)
+      {
+         target = target.createWritableChild (0, 0, target.getWidth (),
+               target.getHeight (), 0, 0, param.getDestinationBands ());
+      }
+      target.setRect (destRegion.x, destRegion.y, image.getRaster ());
+      return destination;
+   }
+
+   /**
+    * Tells whether the parameters give a destination image, type, offset
+    * or bands.
+    */
+   private static boolean hasDestination (ImageReadParam param)
+   {
+      return param != null && (param.getDestination () != null ||
+            param.getDestinationType () != null ||
+            param.getDestinationBands () != null ||
+            param.getDestinationOffset ().x != 0 ||
+            param.getDestinationOffset ().y != 0);
+   }
+
+   /**
+    * Returns the main header of the input, decoded on the first call.
+    */
+   private OpenJpegHeader readHeader () throws IOException
+   {
+      if (header == null)
+      {
+         if (!decoder.decodeHeader (filePath))
+         {
+            throw new IIOException ("Cannot read the JPEG 2000 header.");
+         }
+         header = decoder.getHeader ();
+      }
+      return header;
+   }
+
+   private void clearDecoderInput ()
+   {
       decoder.setByteInputStream (null);
+      decoder.setByteBufferInputStream ((ByteBuffer[]) null);
+      decoder.setSeekableInput (null);
+   }
 
+   private static void checkSourceBands (int[] sourceBands, int components)
+   {
+      if (sourceBands == null)
+      {
+         return;
+      }
+      for (int band : sourceBands)
+      {
+         if (band >= components)
+         {
+            throw new IllegalArgumentException ("Invalid source band " +
+                  band + ", the image has " + components + " components.");
+         }
+      }
+   }
+
+   private static OpenJpegBand[] selectBands (OpenJpegBand[] bands,
+         int[] sourceBands)
+   {
+      OpenJpegBand[] selected = new OpenJpegBand[sourceBands.length];
+      for (int i = 0; i < sourceBands.length; i++)
+      {
+         selected[i] = bands[sourceBands[i]];
+      }
+      return selected;
+   }
+
+   /**
+    * Picks the pixels of the subsampled source region from an image decoded
+    * at a reduced resolution, for the subsampling periods which are not the
+    * reduction factor itself.
+    *
+    * @param image the decoded region, 2^reduceFactor times smaller.
+    * @param sourceRegion the region in the coordinates of the resolution
+    *    level it is read at.
+    */
+   private static BufferedImage subsample (BufferedImage image,
+         Rectangle sourceRegion, int reduceFactor, int periodX, int periodY,
+         int width, int height)
+   {
+      WritableRaster source = image.getRaster ();
+      WritableRaster raster =
+            source.createCompatibleWritableRaster (width, height);
+      int originX = -(-sourceRegion.x >> reduceFactor);
+      int originY = -(-sourceRegion.y >> reduceFactor);
+      Object pixel = null;
+      for (int j = 0; j < height; j++)
+      {
+         int y = ((sourceRegion.y + j * periodY) >> reduceFactor) - originY;
+         y = Math.max (0, Math.min (y, source.getHeight () - 1));
+         for (int i = 0; i < width; i++)
+         {
+            int x = ((sourceRegion.x + i * periodX) >> reduceFactor) - originX;
+            x = Math.max (0, Math.min (x, source.getWidth () - 1));
+            pixel = source.getDataElements (x, y, pixel);
+            raster.setDataElements (i, j, pixel);
+         }
+      }
+      return new BufferedImage (image.getColorModel (), raster,
+            image.isAlphaPremultiplied (), null);
+   }
+
+   /**
+    * Wraps the output of the last decoding in an image.
+    */
+   private BufferedImage createImage ()
+   {
       int width = decoder.getWidth ();
       int height = decoder.getHeight ();
       BufferedImage bufferedImage = null;
 
-      if (decoder.getImage24 () != null)
+      if (decoder.getBands () != null)
+      {
+         bufferedImage = createBandedImage (decoder.getBands (), width, height);
+      }
+      else if (decoder.getImage24 () != null)
       {
          int[] buffer = decoder.getImage24 ();
-         int[] bitMasks = new int[]{0xFF0000, 0xFF00, 0xFF};
-
-         SinglePixelPackedSampleModel sm = new SinglePixelPackedSampleModel (
-               DataBuffer.TYPE_INT, width, height, bitMasks);
+         ColorModel colorModel = createPackedColorModel (3, 8);
+         SampleModel sm = colorModel.createCompatibleSampleModel (width, height);
          DataBufferInt db = new DataBufferInt (buffer, buffer.length);
          WritableRaster wr = Raster.createWritableRaster (sm, db, new Point ());
-         ColorModel colorModel = new DirectColorModel (
-               24, 0xFF0000, 0xFF00, 0xFF);
          bufferedImage = new BufferedImage (colorModel, wr, false, null);
       }
       else if (decoder.getImage16 () != null)
       {
          short[] buffer = decoder.getImage16 ();
-         int[] bits = {16};
-
-         ColorModel colorModel = new ComponentColorModel (
-               ColorSpace.getInstance (ColorSpace.CS_GRAY), bits, false,
-               false, Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+         ColorModel colorModel = createPackedColorModel (1, 16);
          SampleModel sm = colorModel.createCompatibleSampleModel (width, height);
          DataBufferUShort db = new DataBufferUShort (buffer, width * height * 2);
          WritableRaster wr = Raster.createWritableRaster (sm, db, null);
@@ -136,11 +840,7 @@ public class OpenJpegImageReader extends ImageReader
       else if (decoder.getImage8 () != null)
       {
          byte[] buffer = decoder.getImage8 ();
-         int[] bits = {8};
-
-         ColorModel colorModel = new ComponentColorModel (
-               ColorSpace.getInstance (ColorSpace.CS_GRAY), bits, false,
-               false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+         ColorModel colorModel = createPackedColorModel (1, 8);
          SampleModel sm = colorModel.createCompatibleSampleModel (width, height);
          DataBufferByte db = new DataBufferByte (buffer, width * height);
          WritableRaster wr = Raster.createWritableRaster (sm, db, null);
@@ -150,12 +850,386 @@ public class OpenJpegImageReader extends ImageReader
       return bufferedImage;
    }
 
+   /**
+    * Tells whether the decoder packs the pixels of such an image in its
+    * image buffers: 8 or 16 bits grey, or 8 bits RGB.
+    */
+   private static boolean hasPackedOutput (int components, int precision)
+   {
+      return (components == 1 && precision <= 16) ||
+            (components == 3 && precision <= 8);
+   }
+
+   /**
+    * Creates the color model of the packed output of the decoder, see
+    * {@link #hasPackedOutput(int, int)}.
+    */
+   private static ColorModel createPackedColorModel (int components,
+         int precision)
+   {
+      if (components == 3)
+      {
+         return new DirectColorModel (24, 0xFF0000, 0xFF00, 0xFF);
+      }
+      return new ComponentColorModel (
+            ColorSpace.getInstance (ColorSpace.CS_GRAY),
+            new int[] {precision <= 8 ? 8 : 16}, false, false,
+            Transparency.OPAQUE,
+            precision <= 8 ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT);
+   }
+
+   /**
+    * Creates the color model of an image with one bank per component, of
+    * the smallest data type holding all the components.
+    */
+   private static ColorModel createBandedColorModel (int[] precisions,
+         boolean signed)
+   {
+      int numBands = precisions.length;
+      int maxPrecision = 0;
+      for (int precision : precisions)
+      {
+         maxPrecision = Math.max (maxPrecision, precision);
+      }
+
+      int dataType;
+      if (maxPrecision <= 8)
+      {
+         dataType = DataBuffer.TYPE_BYTE;
+      }
+      else if (maxPrecision <= 16)
+      {
+         dataType = signed ? DataBuffer.TYPE_SHORT : DataBuffer.TYPE_USHORT;
+      }
+      else
+      {
+         dataType = DataBuffer.TYPE_INT;
+      }
+      int[] bits = new int[numBands];
+      for (int i = 0; i < numBands; i++)
+      {
+         bits[i] = Math.min (precisions[i], DataBuffer.getDataTypeSize (dataType));
+      }
+
+      ColorSpace colorSpace;
+      boolean hasAlpha = numBands == 2 || numBands == 4;
+      if (numBands <= 2)
+      {
+         colorSpace = ColorSpace.getInstance (ColorSpace.CS_GRAY);
+      }
+      else if (numBands <= 4)
+      {
+         colorSpace = ColorSpace.getInstance (ColorSpace.CS_sRGB);
+      }
+      else
+      {
+         colorSpace = new OpenJpegBandsColorSpace (numBands);
+      }
+
+      return new ComponentColorModel (colorSpace, bits, hasAlpha, false,
+            hasAlpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+            dataType);
+   }
+
+   /**
+    * Creates an image with a BandedSampleModel from the planar output of
+    * the decoder, one bank per component. Banks are shared with the decoder
+    * when the band fits the data type of the image, otherwise converted, and
+    * subsampled bands are upsampled to the image size.
+    */
+   private static BufferedImage createBandedImage (OpenJpegBand[] bands,
+         int width, int height)
+   {
+      int numBands = bands.length;
+      int[] precisions = new int[numBands];
+      boolean signed = false;
+      for (int i = 0; i < numBands; i++)
+      {
+         precisions[i] = bands[i].getPrecision ();
+         signed |= bands[i].isSigned ();
+      }
+      ColorModel colorModel = createBandedColorModel (precisions, signed);
+      int dataType = colorModel.getTransferType ();
+
+      DataBuffer db;
+      switch (dataType)
+      {
+         case DataBuffer.TYPE_BYTE:
+         {
+            byte[][] banks = new byte[numBands][];
+            for (int i = 0; i < numBands; i++)
+            {
+               banks[i] = bands[i].getData8 () != null &&
+                     isFullSize (bands[i], width, height) ?
+                     bands[i].getData8 () : (byte[]) toBank (bands[i],
+                     new byte[width * height], width, height);
+            }
+            db = new DataBufferByte (banks, width * height);
+            break;
+         }
+         case DataBuffer.TYPE_USHORT:
+         case DataBuffer.TYPE_SHORT:
+         {
+            short[][] banks = new short[numBands][];
+            for (int i = 0; i < numBands; i++)
+            {
+               banks[i] = bands[i].getData16 () != null &&
+                     isFullSize (bands[i], width, height) ?
+                     bands[i].getData16 () : (short[]) toBank (bands[i],
+                     new short[width * height], width, height);
+            }
+            db = dataType == DataBuffer.TYPE_SHORT ?
+                  new DataBufferShort (banks, width * height) :
+                  new DataBufferUShort (banks, width * height);
+            break;
+         }
+         default:
+         {
+            int[][] banks = new int[numBands][];
+            for (int i = 0; i < numBands; i++)
+            {
+               banks[i] = bands[i].getData32 () != null &&
+                     isFullSize (bands[i], width, height) ?
+                     bands[i].getData32 () : (int[]) toBank (bands[i],
+                     new int[width * height], width, height);
+            }
+            db = new DataBufferInt (banks, width * height);
+            break;
+         }
+      }
+
+      SampleModel sm = new BandedSampleModel (dataType, width, height,
+            numBands);
+      WritableRaster wr = Raster.createWritableRaster (sm, db, null);
+      return new BufferedImage (colorModel, wr, false, null);
+   }
+
+   private static boolean isFullSize (OpenJpegBand band, int width, int height)
+   {
+      return band.getWidth () == width && band.getHeight () == height;
+   }
+
+   /**
+    * Copies the samples of a band into a bank of the image size, converting
+    * them to the bank type and replicating subsampled samples.
+    */
+   private static Object toBank (OpenJpegBand band, Object bank, int width,
+         int height)
+   {
+      int bandWidth = band.getWidth ();
+      int bandHeight = band.getHeight ();
+      for (int j = 0; j < height; j++)
+      {
+         int row = Math.min (j * bandHeight / height, bandHeight - 1) * bandWidth;
+         for (int i = 0; i < width; i++)
+         {
+            int index = row + Math.min (i * bandWidth / width, bandWidth - 1);
+            int sample;
+            if (band.getData8 () != null)
+            {
+               sample = band.isSigned () ? band.getData8 ()[index] :
+                     band.getData8 ()[index] & 0xFF;
+            }
+            else if (band.getData16 () != null)
+            {
+               sample = band.isSigned () ? band.getData16 ()[index] :
+                     band.getData16 ()[index] & 0xFFFF;
+            }
+            else
+            {
+               sample = band.getData32 ()[index];
+            }
+            if (bank instanceof byte[])
+            {
+               ((byte[]) bank)[j * width + i] = (byte) sample;
+            }
+            else if (bank instanceof short[])
+            {
+               ((short[]) bank)[j * width + i] = (short) sample;
+            }
+            else
+            {
+               ((int[]) bank)[j * width + i] = sample;
+            }
+         }
+      }
+      return bank;
+   }
+
+   /**
+    * Returns an image whose tiles are decoded on first access and cached in
+    * the {@link OpenJpegTileCache#getDefault() default tile cache}, see
+    * {@link #readTile(int, int, int)}. The image decodes the tiles from the
+    * current input, even if another input is set to this reader afterwards;
+    * an ImageInputStream input must not be read by both at the same time.
+    * With a source region, subsampling, source bands or a quality layers
+    * cap, the image is decoded at once as by {@link #read(int,
+    * ImageReadParam)}.
+    */
+   @Override
+   public RenderedImage readAsRenderedImage (int imageIndex,
+         ImageReadParam param) throws IOException
+   {
+      selectImage (imageIndex);
+      if (param != null && (param.getSourceRegion () != null ||
+            param.getSourceXSubsampling () != 1 ||
+            param.getSourceYSubsampling () != 1 ||
+            param.getSourceBands () != null || hasDestination (param) ||
+            (param instanceof OpenJpegImageReadParam &&
+                  ((OpenJpegImageReadParam) param).getQualityLayers () != 0)))
+      {
+         return read (imageIndex, param);
+      }
+      return new OpenJpegRenderedImage (duplicate (), imageIndex,
+            readHeader (), OpenJpegTileCache.getDefault ());
+   }
+
+   /**
+    * Creates a reader of the same input, decoding independently of this
+    * reader.
+    */
+   private OpenJpegImageReader duplicate () throws IOException
+   {
+      OpenJpegImageReader reader = new OpenJpegImageReader (
+            (OpenJpegImageReaderSpi) originatingProvider);
+      reader.input = input;
+      reader.inputFile = inputFile;
+      reader.filePath = filePath;
+      reader.numImages = numImages;
+      reader.header = readHeader ();
+      // the codestream of the current frame stays readable once the frames
+      // are closed: mapped or copied
+      if (decoder.getByteInputStream () != null)
+      {
+         reader.decoder.setByteInputStream (decoder.getByteInputStream ());
+      }
+      else if (decoder.getByteBufferInputStream () != null)
+      {
+         reader.decoder.setByteBufferInputStream (
+               decoder.getByteBufferInputStream ());
+      }
+      else if (decoder.getSeekableInput () != null)
+      {
+         reader.decoder.setSeekableInput (decoder.getSeekableInput ());
+      }
+      return reader;
+   }
+
+   @Override
+   public boolean canReadRaster ()
+   {
+      return true;
+   }
+
+   @Override
+   public Raster readRaster (int imageIndex, ImageReadParam param)
+         throws IOException
+   {
+      BufferedImage image = read (imageIndex, param);
+      return image == null ? null : image.getRaster ();
+   }
+
+   @Override
+   public boolean isImageTiled (int imageIndex) throws IOException
+   {
+      selectImage (imageIndex);
+      return readHeader ().getTilesNumber () > 1;
+   }
+
+   @Override
+   public int getTileGridXOffset (int imageIndex) throws IOException
+   {
+      selectImage (imageIndex);
+      return readHeader ().getTileOffsetX () - readHeader ().getImageX0 ();
+   }
+
+   @Override
+   public int getTileGridYOffset (int imageIndex) throws IOException
+   {
+      selectImage (imageIndex);
+      return readHeader ().getTileOffsetY () - readHeader ().getImageY0 ();
+   }
+
+   /**
+    * Decodes one tile of the codestream: the tile is the decode area, so
+    * the other tiles are not decoded. The tiles of the image edges are
+    * clipped to the image bounds.
+    */
+   @Override
+   public BufferedImage readTile (int imageIndex, int tileX, int tileY)
+         throws IOException
+   {
+      selectImage (imageIndex);
+      ImageReadParam param = getDefaultReadParam ();
+      param.setSourceRegion (getTileBounds (tileX, tileY));
+      return read (imageIndex, param);
+   }
+
+   /**
+    * Decodes one tile of the codestream, see {@link #readTile(int, int, int)}.
+    * The raster is located at the position of the tile in the image.
+    */
+   @Override
+   public Raster readTileRaster (int imageIndex, int tileX, int tileY)
+         throws IOException
+   {
+      selectImage (imageIndex);
+      Rectangle bounds = getTileBounds (tileX, tileY);
+      ImageReadParam param = getDefaultReadParam ();
+      param.setSourceRegion (bounds);
+      return readRaster (imageIndex, param).createTranslatedChild (
+            bounds.x, bounds.y);
+   }
+
+   /**
+    * Returns the bounds of a tile in the image, clipped to the image.
+    */
+   private Rectangle getTileBounds (int tileX, int tileY) throws IOException
+   {
+      OpenJpegHeader header = readHeader ();
+      if (tileX < 0 || tileX >= header.getTileColumns () || tileY < 0 ||
+            tileY >= header.getTileRows ())
+      {
+         throw new IllegalArgumentException ("Invalid tile (" + tileX + ", " +
+               tileY + ").");
+      }
+      Rectangle tile = new Rectangle (
+            header.getTileOffsetX () - header.getImageX0 () +
+                  tileX * header.getTileWidth (),
+            header.getTileOffsetY () - header.getImageY0 () +
+                  tileY * header.getTileHeight (),
+            header.getTileWidth (), header.getTileHeight ());
+      return tile.intersection (
+            new Rectangle (header.getWidth (), header.getHeight ()));
+   }
+
    @Override
    public void dispose ()
    {
       super.dispose ();
       numImages = 1;
+      // never decode the previous file over a new input
+      inputFile = null;
+      filePath = null;
       codeStreams.clear ();
+      header = null;
+      clearDecoderInput ();
+      cancelPrefetch ();
+      if (frames != null)
+      {
+         try
+         {
+            frames.close ();
+         }
+         catch (IOException e)
+         {
+            LOGGER.warn ("Cannot close the input.", e);
+         }
+         frames = null;
+      }
+      currentFrame = -1;
+      lastReadFrame = -1;
+      frameSize = -1;
    }
 
    @Override
@@ -169,8 +1243,7 @@ public class OpenJpegImageReader extends ImageReader
    @Override
    public int getTileWidth (int imageIndex) throws IOException
    {
-      checkImageIndex (imageIndex);
-      int tileWidth = codeStreams.get (imageIndex).getTileWidth ();
+      int tileWidth = getCodeStream (imageIndex).getTileWidth ();
       LOGGER.info ("tile width: " + tileWidth);
       return tileWidth;
    }
@@ -178,8 +1251,7 @@ public class OpenJpegImageReader extends ImageReader
    @Override
    public int getTileHeight (int imageIndex) throws IOException
    {
-      checkImageIndex (imageIndex);
-      int tileHeight = codeStreams.get (imageIndex).getTileHeight ();
+      int tileHeight = getCodeStream (imageIndex).getTileHeight ();
       LOGGER.info ("tile height: " + tileHeight);
       return tileHeight;
    }
@@ -207,9 +1279,9 @@ public class OpenJpegImageReader extends ImageReader
       {
          try
          {
-            ImageInputStream iis = (ImageInputStream) input;
-            decoder.setByteInputStream (
-                  Utils.imageInputStreamToByteArray (iis));
+            // pulled by the decoder on demand, never buffered entirely
+            decoder.setSeekableInput (
+                  new ImageInputStreamInput ((ImageInputStream) input));
          }
          catch (IOException e)
          {
@@ -223,19 +1295,70 @@ public class OpenJpegImageReader extends ImageReader
 
       numImages = 1;
       super.setInput (input, seekForwardOnly, ignoreMetadata);
+
+      // index the frames from the box headers, without reading them
+      try
+      {
+         frames = OpenJpegFrameIndex.create (input);
+      }
+      catch (IOException e)
+      {
+         LOGGER.warn ("Cannot index the JPEG 2000 frames.", e);
+      }
+      if (frames != null)
+      {
+         numImages = frames.size ();
+         // the decoder reads the codestream of the current frame
+         filePath = null;
+      }
+
+      // describe the code stream from its header, without decoding pixels
+      try
+      {
+         getCodeStream (0);
+      }
+      catch (IOException e)
+      {
+         LOGGER.warn ("Cannot read the JPEG 2000 header.", e);
+      }
    }
 
    @Override
    public ImageReadParam getDefaultReadParam ()
    {
-      // TODO OpenJpegDefaultImageReadParam class
-      throw new UnsupportedOperationException ("Not yet implemented");
+      return new OpenJpegImageReadParam ();
    }
 
    public int getSourceDWTLevels (int imageIndex)
+   {
+      try
+      {
+         return getCodeStream (imageIndex).getSourceDWTLevels ();
+      }
+      catch (IOException e)
+      {
+         LOGGER.error ("Cannot read the JPEG 2000 header.", e);
+         throw new IllegalStateException ("Invalid image");
+      }
+   }
+
+   /**
+    * Checks an image index and, for a multiple frames input, sets the
+    * codestream of the frame as the input of the decoder.
+    *
+    * @throws IOException if the codestream cannot be read.
+    */
+   private void selectImage (int imageIndex) throws IOException
    {
       checkImageIndex (imageIndex);
-      return codeStreams.get (imageIndex).getSourceDWTLevels ();
+      if (frames != null && imageIndex != currentFrame)
+      {
+         currentFrame = -1;
+         header = null;
+         codeStreams.clear ();
+         frames.setInput (decoder, imageIndex);
+         currentFrame = imageIndex;
+      }
    }
 
    /**
@@ -252,7 +1375,7 @@ public class OpenJpegImageReader extends ImageReader
             throw new IllegalStateException ("Invalid image");
          }
 
-         if (imageIndex < 0 || imageIndex > getNumImages (true))
+         if (imageIndex < 0 || imageIndex >= getNumImages (true))
          {
             StringBuilder sb = new StringBuilder ("Invalid image index ");
             sb.append (imageIndex)
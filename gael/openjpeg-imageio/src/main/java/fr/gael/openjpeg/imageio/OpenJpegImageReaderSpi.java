@@ -33,15 +33,18 @@ public class OpenJpegImageReaderSpi extends ImageReaderSpi
          {"image/jp2", "image/jp2k", "image/j2k", "image/j2c"};
    private static final Class[] INPUT_TYPES =
          {File.class, byte[].class, ImageInputStream.class};
-   private static final String[] WRITER_SPI_NAMES = null;
+   private static final String[] WRITER_SPI_NAMES =
+         {OpenJpegImageWriterSpi.class.getName ()};
    private static final boolean SUPPORTS_STREAM_METADATA = false;
    private static final String NAT_STREAM_METADATA_NAME = null;
    private static final String NAT_STREAM_METADATA_CLASS_NAME = null;
    private static final String[] EXT_STREAM_METADATA_FORMAT_NAMES = null;
    private static final String[] EXT_STREAM_METADATA_FORMAT_CLASS_NAMES = null;
-   private static final boolean SUPPORTS_IMAGE_METADATA = false;
-   private static final String NAT_IMAGE_METADATA_NAME = null;
-   private static final String NAT_IMAGE_METADATA_CLASS_NAME = null;
+   private static final boolean SUPPORTS_IMAGE_METADATA = true;
+   private static final String NAT_IMAGE_METADATA_NAME =
+         OpenJpegImageMetadataFormat.NAME;
+   private static final String NAT_IMAGE_METADATA_CLASS_NAME =
+         OpenJpegImageMetadataFormat.class.getName ();
    private static final String[] EXT_IMAGE_METADATA_NAMES = null;
    private static final String[] EXT_IMAGE_METADATA_CLASS_NAMES = null;
 
@@ -137,7 +140,7 @@ public class OpenJpegImageReaderSpi extends ImageReaderSpi
       while (it.hasNext ())
       {
          ImageReaderSpi provider = it.next ();
-         if (provider instanceof OpenJpegImageReaderSpi)
+         if (provider instanceof OpenJpegImageReaderSpi && provider != this)
          {
             registry.deregisterServiceProvider (provider);
          }
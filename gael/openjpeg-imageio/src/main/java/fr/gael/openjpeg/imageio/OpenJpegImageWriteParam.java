@@ -0,0 +1,107 @@
+package fr.gael.openjpeg.imageio;
+
+import java.util.Locale;
+
+import javax.imageio.ImageWriteParam;
+
+import fr.gael.openjpeg.OpenJpegEncoder;
+
+/**
+ * Write parameters of the {@link OpenJpegImageWriter}. The tiles of the
+ * written codestream are those of the tiling mode: explicit, disabled (a
+ * single tile), or by default the tiles of the source image when it is
+ * tiled, {@value #DEFAULT_TILE_SIZE} pixels squares otherwise.
+ * <p>
+ * The "Lossless" compression (default) uses the reversible 5-3 wavelet and
+ * keeps all the coded data. The "Lossy" compression uses the irreversible
+ * 9-7 wavelet, and a compression ratio of 1 / quality, unless quality
+ * layers are given by {@link #setCompressionRatios(float...)}.
+ */
+public class OpenJpegImageWriteParam extends ImageWriteParam
+{
+   public static final String LOSSLESS = "Lossless";
+   public static final String LOSSY = "Lossy";
+   public static final int DEFAULT_TILE_SIZE = 1024;
+
+   private int codecFormat = OpenJpegEncoder.FORMAT_JP2;
+   private int resolutionsNumber = 6;
+   private float[] compressionRatios = new float[0];
+
+   public OpenJpegImageWriteParam (Locale locale)
+   {
+      super (locale);
+      this.canWriteTiles = true;
+      this.canWriteCompressed = true;
+      this.compressionTypes = new String[] {LOSSLESS, LOSSY};
+      this.compressionType = LOSSLESS;
+      this.compressionQuality = 1.0f;
+   }
+
+   @Override
+   public boolean isCompressionLossless ()
+   {
+      // checks the compression mode and type
+      super.isCompressionLossless ();
+      return LOSSLESS.equals (getCompressionType ());
+   }
+
+   public int getCodecFormat ()
+   {
+      return codecFormat;
+   }
+
+   /**
+    * @param codecFormat OpenJpegEncoder.FORMAT_JP2 (default) for a JP2 file,
+    *    or OpenJpegEncoder.FORMAT_J2K for a raw codestream.
+    */
+   public void setCodecFormat (int codecFormat)
+   {
+      if (codecFormat != OpenJpegEncoder.FORMAT_JP2 &&
+            codecFormat != OpenJpegEncoder.FORMAT_J2K)
+      {
+         throw new IllegalArgumentException ("Invalid codec format.");
+      }
+      this.codecFormat = codecFormat;
+   }
+
+   public int getResolutionsNumber ()
+   {
+      return resolutionsNumber;
+   }
+
+   /**
+    * Sets the number of resolution levels, 6 by default. Every tile, the
+    * edge ones included, must be at least 2^(resolutionsNumber - 1) pixels
+    * wide and high: unless the tiling is explicit, the writer shrinks the
+    * tiles to split the image evenly, or writes a single tile, rather than
+    * leaving thinner edge tiles. When the tiles are still too small, the
+    * number of resolutions is lowered and a warning is logged.
+    */
+   public void setResolutionsNumber (int resolutionsNumber)
+   {
+      if (resolutionsNumber <= 0 || resolutionsNumber > 32)
+      {
+         throw new IllegalArgumentException ("Invalid number of resolutions.");
+      }
+      this.resolutionsNumber = resolutionsNumber;
+   }
+
+   public float[] getCompressionRatios ()
+   {
+      return compressionRatios.clone ();
+   }
+
+   /**
+    * Sets the compression ratio of each quality layer of a lossy
+    * compression, decreasing. No ratio gives a single layer, at the ratio
+    * of the compression quality.
+    */
+   public void setCompressionRatios (float... compressionRatios)
+   {
+      if (compressionRatios.length > 100)
+      {
+         throw new IllegalArgumentException ("Too many quality layers.");
+      }
+      this.compressionRatios = compressionRatios.clone ();
+   }
+}
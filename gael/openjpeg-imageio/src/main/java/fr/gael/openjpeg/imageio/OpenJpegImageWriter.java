@@ -0,0 +1,405 @@
+package fr.gael.openjpeg.imageio;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
+
+import fr.gael.openjpeg.OpenJpegEncoder;
+import fr.gael.openjpeg.TileSource;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a RenderedImage as a tiled Jpeg2000 image, one codestream tile at
+ * a time: the source pixels of each tile are requested from the image when
+ * the encoder needs them, and the tile is encoded to the output stream
+ * before the next one is requested. Writing a large mosaic needs memory for
+ * a tile, not for the mosaic, as long as the source computes its pixels on
+ * demand.
+ * <p>
+ * The images are written as grey, RGB or RGBA depending on their number of
+ * bands, with the precision of their widest band. Floating point and palette
+ * images are not supported.
+ */
+public class OpenJpegImageWriter extends ImageWriter
+{
+   private static final Logger LOGGER =
+         Logger.getLogger (OpenJpegImageWriter.class);
+
+   private final OpenJpegEncoder encoder;
+
+   public OpenJpegImageWriter (OpenJpegImageWriterSpi writerSpi)
+   {
+      super (writerSpi);
+      this.encoder = new OpenJpegEncoder ();
+   }
+
+   @Override
+   public ImageWriteParam getDefaultWriteParam ()
+   {
+      return new OpenJpegImageWriteParam (getLocale ());
+   }
+
+   @Override
+   public IIOMetadata getDefaultStreamMetadata (ImageWriteParam param)
+   {
+      return null;
+   }
+
+   @Override
+   public IIOMetadata getDefaultImageMetadata (ImageTypeSpecifier imageType,
+         ImageWriteParam param)
+   {
+      return null;
+   }
+
+   @Override
+   public IIOMetadata convertStreamMetadata (IIOMetadata inData,
+         ImageWriteParam param)
+   {
+      return null;
+   }
+
+   @Override
+   public IIOMetadata convertImageMetadata (IIOMetadata inData,
+         ImageTypeSpecifier imageType, ImageWriteParam param)
+   {
+      return null;
+   }
+
+   /**
+    * Writes the image, the metadata are ignored. The source region, the
+    * source subsampling and the source bands of the parameters apply.
+    */
+   @Override
+   public void write (IIOMetadata streamMetadata, IIOImage image,
+         ImageWriteParam param) throws IOException
+   {
+      if (output == null)
+      {
+         throw new IllegalStateException ("No output set.");
+      }
+      if (image == null)
+      {
+         throw new IllegalArgumentException ("The image is null.");
+      }
+      if (image.hasRaster ())
+      {
+         throw new UnsupportedOperationException (
+               "Cannot write rasters.");
+      }
+      if (param == null)
+      {
+         param = getDefaultWriteParam ();
+      }
+
+      final RenderedImage source = image.getRenderedImage ();
+      final SampleModel sampleModel = source.getSampleModel ();
+      final int[] bands = getSourceBands (param, sampleModel.getNumBands ());
+      int precision = getPrecision (source, bands);
+
+      // destination pixel (x, y) is source pixel (originX + x * periodX, ...)
+      Rectangle region = new Rectangle (source.getMinX (), source.getMinY (),
+            source.getWidth (), source.getHeight ());
+      if (param.getSourceRegion () != null)
+      {
+         region = region.intersection (param.getSourceRegion ());
+      }
+      final int periodX = param.getSourceXSubsampling ();
+      final int periodY = param.getSourceYSubsampling ();
+      final int originX = region.x + param.getSubsamplingXOffset ();
+      final int originY = region.y + param.getSubsamplingYOffset ();
+      int width = (region.x + region.width - originX + periodX - 1) / periodX;
+      int height = (region.y + region.height - originY + periodY - 1) / periodY;
+      if (width <= 0 || height <= 0)
+      {
+         throw new IllegalArgumentException ("Empty source region.");
+      }
+
+      ColorModel colorModel = source.getColorModel ();
+      encoder.setImage (width, height, bands.length, precision,
+            isSigned (sampleModel));
+      encoder.setAlpha (param.getSourceBands () == null &&
+            colorModel != null && colorModel.hasAlpha () &&
+            (bands.length == 2 || bands.length == 4));
+      setCodingParameters (param, source, width, height);
+
+      ImageOutputStream stream = (ImageOutputStream) output;
+      final int tilesNumber = ((width + encoder.getTileWidth () - 1) /
+            encoder.getTileWidth ()) * ((height + encoder.getTileHeight () - 1) /
+            encoder.getTileHeight ());
+      final boolean[] aborted = {false};
+
+      clearAbortRequest ();
+      processImageStarted (0);
+      boolean success;
+      try
+      {
+         success = encoder.encodeTiles (new TileSource ()
+         {
+            @Override
+            public void fillTile (int index, int x, int y, int width,
+                  int height, Object samples) throws IOException
+            {
+               if (abortRequested ())
+               {
+                  aborted[0] = true;
+                  throw new IIOException ("Writing aborted.");
+               }
+               Rectangle area = new Rectangle (originX + x * periodX,
+                     originY + y * periodY, (width - 1) * periodX + 1,
+                     (height - 1) * periodY + 1);
+               copySamples (source.getData (area), area, bands, periodX,
+                     periodY, width, height, samples);
+               processImageProgress (100f * (index + 1) / tilesNumber);
+            }
+         }, new ImageOutputStreamOutput (stream));
+      }
+      catch (IOException e)
+      {
+         if (aborted[0])
+         {
+            processWriteAborted ();
+            return;
+         }
+         throw e;
+      }
+      if (!success)
+      {
+         throw new IIOException ("Cannot encode the image.");
+      }
+      processImageComplete ();
+   }
+
+   /**
+    * Sets the coding parameters of the encoder from the write parameters:
+    * codec format, tiles, number of resolutions and compression.
+    */
+   private void setCodingParameters (ImageWriteParam param,
+         RenderedImage source, int width, int height)
+   {
+      int resolutionsNumber = 6;
+      int codecFormat = OpenJpegEncoder.FORMAT_JP2;
+      float[] compressionRatios = new float[0];
+      if (param instanceof OpenJpegImageWriteParam)
+      {
+         OpenJpegImageWriteParam openJpegParam = (OpenJpegImageWriteParam) param;
+         resolutionsNumber = openJpegParam.getResolutionsNumber ();
+         codecFormat = openJpegParam.getCodecFormat ();
+         compressionRatios = openJpegParam.getCompressionRatios ();
+      }
+
+      int tileWidth;
+      int tileHeight;
+      switch (param.getTilingMode ())
+      {
+         case ImageWriteParam.MODE_EXPLICIT:
+            tileWidth = param.getTileWidth ();
+            tileHeight = param.getTileHeight ();
+            break;
+         case ImageWriteParam.MODE_DISABLED:
+            tileWidth = width;
+            tileHeight = height;
+            break;
+         default:
+            boolean tiled = source.getNumXTiles () > 1 ||
+                  source.getNumYTiles () > 1;
+            tileWidth = tiled ? source.getTileWidth () :
+                  OpenJpegImageWriteParam.DEFAULT_TILE_SIZE;
+            tileHeight = tiled ? source.getTileHeight () :
+                  OpenJpegImageWriteParam.DEFAULT_TILE_SIZE;
+      }
+      if (param.getTilingMode () != ImageWriteParam.MODE_EXPLICIT)
+      {
+         // edge tiles too thin for the resolutions are avoided
+         int minSize = 1 << (resolutionsNumber - 1);
+         tileWidth = fitTileSize (width, tileWidth, minSize);
+         tileHeight = fitTileSize (height, tileHeight, minSize);
+      }
+      encoder.setTileSize (tileWidth, tileHeight);
+
+      // the smallest tiles bound the number of resolutions
+      int maxResolutionsNumber = encoder.getMaxResolutionsNumber ();
+      if (resolutionsNumber > maxResolutionsNumber)
+      {
+         LOGGER.warn ("Writing " + maxResolutionsNumber + " resolutions " +
+               "instead of " + resolutionsNumber + ": the image or its " +
+               "edge tiles are too small.");
+         resolutionsNumber = maxResolutionsNumber;
+      }
+      encoder.setResolutionsNumber (resolutionsNumber);
+      encoder.setCodecFormat (codecFormat);
+
+      boolean lossy = param.canWriteCompressed () &&
+            param.getCompressionMode () == ImageWriteParam.MODE_EXPLICIT &&
+            OpenJpegImageWriteParam.LOSSY.equals (param.getCompressionType ());
+      encoder.setIrreversible (lossy);
+      if (!lossy)
+      {
+         encoder.setCompressionRatios ();
+      }
+      else if (compressionRatios.length > 0)
+      {
+         encoder.setCompressionRatios (compressionRatios);
+      }
+      else
+      {
+         encoder.setCompressionRatios (
+               1 / Math.max (param.getCompressionQuality (), 0.01f));
+      }
+   }
+
+   /**
+    * Returns a tile size along an axis of the image whose edge tile is at
+    * least minSize pixels: the requested size, or the size splitting the
+    * image evenly in as many tiles, or the image size for a single tile.
+    */
+   private static int fitTileSize (int size, int tileSize, int minSize)
+   {
+      if (tileSize >= size || size % tileSize == 0 ||
+            size % tileSize >= minSize)
+      {
+         return tileSize;
+      }
+      int tiles = (size + tileSize - 1) / tileSize;
+      int fitted = (size + tiles - 1) / tiles;
+      if (size - (tiles - 1) * fitted >= minSize)
+      {
+         return fitted;
+      }
+      return size;
+   }
+
+   /**
+    * Copies the samples of the source bands, subsampled, into the planar
+    * tile buffer of the encoder.
+    *
+    * @param raster source pixels covering the area.
+    * @param area source area of the tile.
+    */
+   private static void copySamples (Raster raster, Rectangle area, int[] bands,
+         int periodX, int periodY, int width, int height, Object samples)
+   {
+      int[] row = new int[area.width];
+      for (int c = 0; c < bands.length; c++)
+      {
+         for (int y = 0; y < height; y++)
+         {
+            raster.getSamples (area.x, area.y + y * periodY, area.width, 1,
+                  bands[c], row);
+            int offset = (c * height + y) * width;
+            if (samples instanceof byte[])
+            {
+               byte[] data = (byte[]) samples;
+               for (int x = 0; x < width; x++)
+               {
+                  data[offset + x] = (byte) row[x * periodX];
+               }
+            }
+            else if (samples instanceof short[])
+            {
+               short[] data = (short[]) samples;
+               for (int x = 0; x < width; x++)
+               {
+                  data[offset + x] = (short) row[x * periodX];
+               }
+            }
+            else
+            {
+               int[] data = (int[]) samples;
+               for (int x = 0; x < width; x++)
+               {
+                  data[offset + x] = row[x * periodX];
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * @return the indices of the written bands of the source.
+    * @throws IllegalArgumentException if a source band does not exist.
+    */
+   private static int[] getSourceBands (ImageWriteParam param, int numBands)
+   {
+      int[] bands = param.getSourceBands ();
+      if (bands == null)
+      {
+         bands = new int[numBands];
+         for (int i = 0; i < numBands; i++)
+         {
+            bands[i] = i;
+         }
+         return bands;
+      }
+      for (int band : bands)
+      {
+         if (band < 0 || band >= numBands)
+         {
+            throw new IllegalArgumentException ("Invalid source band: " + band);
+         }
+      }
+      return bands;
+   }
+
+   /**
+    * Returns the precision of the widest written band of the source.
+    *
+    * @throws IIOException if the samples are not integers.
+    */
+   private static int getPrecision (RenderedImage source, int[] bands)
+         throws IIOException
+   {
+      if (!canEncode (source.getColorModel (), source.getSampleModel ()))
+      {
+         throw new IIOException ("Unsupported image type.");
+      }
+      int precision = 0;
+      for (int band : bands)
+      {
+         precision = Math.max (precision,
+               source.getSampleModel ().getSampleSize (band));
+      }
+      return precision;
+   }
+
+   private static boolean isSigned (SampleModel sampleModel)
+   {
+      int dataType = sampleModel.getDataType ();
+      return dataType == DataBuffer.TYPE_SHORT ||
+            (dataType == DataBuffer.TYPE_INT && sampleModel.getSampleSize (0) == 32);
+   }
+
+   /**
+    * @return true if the samples are integers, not palette indices.
+    */
+   static boolean canEncode (ColorModel colorModel, SampleModel sampleModel)
+   {
+      if (colorModel instanceof IndexColorModel)
+      {
+         return false;
+      }
+      switch (sampleModel.getDataType ())
+      {
+         case DataBuffer.TYPE_BYTE:
+         case DataBuffer.TYPE_USHORT:
+         case DataBuffer.TYPE_SHORT:
+         case DataBuffer.TYPE_INT:
+            return true;
+         default:
+            return false;
+      }
+   }
+}
@@ -0,0 +1,112 @@
+package fr.gael.openjpeg.imageio;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.spi.ServiceRegistry;
+import javax.imageio.stream.ImageOutputStream;
+
+public class OpenJpegImageWriterSpi extends ImageWriterSpi
+{
+   private static final String VENDOR = "GAEL Systems";
+   private static final String VERSION = "0.0.1";
+   private static final String[] NAMES =
+         {"jpeg2000", "jpeg 2000", "JPEG 2000", "JPEG2000"};
+   private static final String[] SUFFIXES = {"jp2", "jp2k", "j2k", "j2c"};
+   private static final String[] MIME_TYPES =
+         {"image/jp2", "image/jp2k", "image/j2k", "image/j2c"};
+   private static final Class[] OUTPUT_TYPES = {ImageOutputStream.class};
+   private static final String[] READER_SPI_NAMES =
+         {OpenJpegImageReaderSpi.class.getName ()};
+   private static final boolean SUPPORTS_STREAM_METADATA = false;
+   private static final String NAT_STREAM_METADATA_NAME = null;
+   private static final String NAT_STREAM_METADATA_CLASS_NAME = null;
+   private static final String[] EXT_STREAM_METADATA_FORMAT_NAMES = null;
+   private static final String[] EXT_STREAM_METADATA_FORMAT_CLASS_NAMES = null;
+   private static final boolean SUPPORTS_IMAGE_METADATA = false;
+   private static final String NAT_IMAGE_METADATA_NAME = null;
+   private static final String NAT_IMAGE_METADATA_CLASS_NAME = null;
+   private static final String[] EXT_IMAGE_METADATA_NAMES = null;
+   private static final String[] EXT_IMAGE_METADATA_CLASS_NAMES = null;
+
+   private boolean isResgistered = false;
+
+   public OpenJpegImageWriterSpi ()
+   {
+      super (VENDOR,
+            VERSION,
+            NAMES,
+            SUFFIXES,
+            MIME_TYPES,
+            OpenJpegImageWriter.class.getName (),
+            OUTPUT_TYPES,
+            READER_SPI_NAMES,
+            SUPPORTS_STREAM_METADATA,
+            NAT_STREAM_METADATA_NAME,
+            NAT_STREAM_METADATA_CLASS_NAME,
+            EXT_STREAM_METADATA_FORMAT_NAMES,
+            EXT_STREAM_METADATA_FORMAT_CLASS_NAMES,
+            SUPPORTS_IMAGE_METADATA,
+            NAT_IMAGE_METADATA_NAME,
+            NAT_IMAGE_METADATA_CLASS_NAME,
+            EXT_IMAGE_METADATA_NAMES,
+            EXT_IMAGE_METADATA_CLASS_NAMES);
+   }
+
+   /**
+    * Integer samples can be encoded, not palette indices nor floating point
+    * samples.
+    */
+   @Override
+   public boolean canEncodeImage (ImageTypeSpecifier type)
+   {
+      return OpenJpegImageWriter.canEncode (type.getColorModel (),
+            type.getSampleModel ());
+   }
+
+   @Override
+   public ImageWriter createWriterInstance (Object extension)
+         throws IOException
+   {
+      return new OpenJpegImageWriter (this);
+   }
+
+   @Override
+   public String getDescription (Locale locale)
+   {
+      return new StringBuilder ("ImageIO OpenJpeg Image Writer version ")
+            .append (VERSION).append (" by ").append (VENDOR).toString ();
+   }
+
+   @Override
+   public synchronized void onRegistration (ServiceRegistry registry,
+         Class category)
+   {
+      super.onRegistration (registry, category);
+
+      if (isResgistered)
+      {
+         return;
+      }
+      isResgistered = true;
+
+      IIORegistry iioRegistry = (IIORegistry) registry;
+      Class<ImageWriterSpi> spiClass = ImageWriterSpi.class;
+      Iterator<ImageWriterSpi> it =
+            iioRegistry.getServiceProviders (spiClass, true);
+
+      while (it.hasNext ())
+      {
+         ImageWriterSpi provider = it.next ();
+         if (provider instanceof OpenJpegImageWriterSpi && provider != this)
+         {
+            registry.deregisterServiceProvider (provider);
+         }
+      }
+   }
+}
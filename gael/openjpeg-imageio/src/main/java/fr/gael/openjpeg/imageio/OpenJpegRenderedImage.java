@@ -0,0 +1,286 @@
+package fr.gael.openjpeg.imageio;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.gael.openjpeg.OpenJpegHeader;
+
+/**
+ * Image whose tiles are the codestream tiles, decoded on first access and
+ * kept in a {@link OpenJpegTileCache}. The pixels are never decoded as a
+ * whole, unless the whole image is requested through {@link #getData()}.
+ * <p>
+ * The tiles are decoded one at a time by a reader of its own, on the input
+ * of the reader which created the image. The sample and color models are
+ * those of the first tile, decoded when they are first requested.
+ */
+class OpenJpegRenderedImage implements RenderedImage
+{
+   private static final AtomicLong IDS = new AtomicLong ();
+
+   private final long id = IDS.incrementAndGet ();
+   private final OpenJpegImageReader reader;
+   private final int imageIndex;
+   private final OpenJpegTileCache cache;
+
+   private final int width;
+   private final int height;
+   private final int tileWidth;
+   private final int tileHeight;
+   private final int tileGridXOffset;
+   private final int tileGridYOffset;
+   private final int numXTiles;
+   private final int numYTiles;
+
+   // set by the first tile decoding, sample model last
+   private volatile ColorModel colorModel = null;
+   private volatile SampleModel sampleModel = null;
+
+   OpenJpegRenderedImage (OpenJpegImageReader reader, int imageIndex,
+         OpenJpegHeader header, OpenJpegTileCache cache)
+   {
+      this.reader = reader;
+      this.imageIndex = imageIndex;
+      this.cache = cache;
+      this.width = header.getWidth ();
+      this.height = header.getHeight ();
+      this.tileWidth = header.getTileWidth ();
+      this.tileHeight = header.getTileHeight ();
+      this.tileGridXOffset = header.getTileOffsetX () - header.getImageX0 ();
+      this.tileGridYOffset = header.getTileOffsetY () - header.getImageY0 ();
+      this.numXTiles = header.getTileColumns ();
+      this.numYTiles = header.getTileRows ();
+   }
+
+   @Override
+   public Raster getTile (int tileX, int tileY)
+   {
+      Raster tile = cache.get (id, tileX, tileY);
+      if (tile == null)
+      {
+         tile = decodeTile (tileX, tileY);
+         cache.put (id, tileX, tileY, tile);
+      }
+      return tile;
+   }
+
+   /**
+    * Decodes a tile, padded to the tile size at the image edges.
+    */
+   private Raster decodeTile (int tileX, int tileY)
+   {
+      BufferedImage image;
+      synchronized (reader)
+      {
+         try
+         {
+            image = reader.readTile (imageIndex, tileX, tileY);
+         }
+         catch (IOException e)
+         {
+            throw new RuntimeException ("Unable to decode the tile (" +
+                  tileX + ", " + tileY + ")", e);
+         }
+         if (sampleModel == null)
+         {
+            colorModel = image.getColorModel ();
+            sampleModel = image.getSampleModel ().createCompatibleSampleModel (
+                  tileWidth, tileHeight);
+         }
+      }
+
+      Point origin = new Point (tileXToX (tileX), tileYToY (tileY));
+      WritableRaster raster = image.getRaster ();
+      if (raster.getWidth () == tileWidth && raster.getHeight () == tileHeight)
+      {
+         return raster.createTranslatedChild (origin.x, origin.y);
+      }
+      Rectangle bounds = new Rectangle (origin.x, origin.y, tileWidth,
+            tileHeight).intersection (getBounds ());
+      WritableRaster tile = Raster.createWritableRaster (sampleModel, origin);
+      tile.setRect (raster.createTranslatedChild (bounds.x, bounds.y));
+      return tile;
+   }
+
+   private int tileXToX (int tileX)
+   {
+      return tileGridXOffset + tileX * tileWidth;
+   }
+
+   private int tileYToY (int tileY)
+   {
+      return tileGridYOffset + tileY * tileHeight;
+   }
+
+   private Rectangle getBounds ()
+   {
+      return new Rectangle (width, height);
+   }
+
+   private void initModels ()
+   {
+      if (sampleModel == null)
+      {
+         getTile (0, 0);
+      }
+   }
+
+   @Override
+   public SampleModel getSampleModel ()
+   {
+      initModels ();
+      return sampleModel;
+   }
+
+   @Override
+   public ColorModel getColorModel ()
+   {
+      initModels ();
+      return colorModel;
+   }
+
+   @Override
+   public Raster getData ()
+   {
+      return getData (getBounds ());
+   }
+
+   @Override
+   public Raster getData (Rectangle rect)
+   {
+      WritableRaster raster = Raster.createWritableRaster (
+            getSampleModel ().createCompatibleSampleModel (
+                  rect.width, rect.height), rect.getLocation ());
+      return copyData (raster);
+   }
+
+   @Override
+   public WritableRaster copyData (WritableRaster raster)
+   {
+      if (raster == null)
+      {
+         raster = Raster.createWritableRaster (getSampleModel ()
+               .createCompatibleSampleModel (width, height), new Point ());
+      }
+      Rectangle bounds = raster.getBounds ().intersection (getBounds ());
+      if (bounds.isEmpty ())
+      {
+         return raster;
+      }
+      int minTileX = (bounds.x - tileGridXOffset) / tileWidth;
+      int maxTileX = (bounds.x + bounds.width - 1 - tileGridXOffset) / tileWidth;
+      int minTileY = (bounds.y - tileGridYOffset) / tileHeight;
+      int maxTileY = (bounds.y + bounds.height - 1 - tileGridYOffset) / tileHeight;
+      for (int tileY = minTileY; tileY <= maxTileY; tileY++)
+      {
+         for (int tileX = minTileX; tileX <= maxTileX; tileX++)
+         {
+            Raster tile = getTile (tileX, tileY);
+            Rectangle area = tile.getBounds ().intersection (bounds);
+            raster.setRect (tile.createChild (area.x, area.y, area.width,
+                  area.height, area.x, area.y, null));
+         }
+      }
+      return raster;
+   }
+
+   @Override
+   public Vector<RenderedImage> getSources ()
+   {
+      return null;
+   }
+
+   @Override
+   public Object getProperty (String name)
+   {
+      return Image.UndefinedProperty;
+   }
+
+   @Override
+   public String[] getPropertyNames ()
+   {
+      return null;
+   }
+
+   @Override
+   public int getWidth ()
+   {
+      return width;
+   }
+
+   @Override
+   public int getHeight ()
+   {
+      return height;
+   }
+
+   @Override
+   public int getMinX ()
+   {
+      return 0;
+   }
+
+   @Override
+   public int getMinY ()
+   {
+      return 0;
+   }
+
+   @Override
+   public int getNumXTiles ()
+   {
+      return numXTiles;
+   }
+
+   @Override
+   public int getNumYTiles ()
+   {
+      return numYTiles;
+   }
+
+   @Override
+   public int getMinTileX ()
+   {
+      return 0;
+   }
+
+   @Override
+   public int getMinTileY ()
+   {
+      return 0;
+   }
+
+   @Override
+   public int getTileWidth ()
+   {
+      return tileWidth;
+   }
+
+   @Override
+   public int getTileHeight ()
+   {
+      return tileHeight;
+   }
+
+   @Override
+   public int getTileGridXOffset ()
+   {
+      return tileGridXOffset;
+   }
+
+   @Override
+   public int getTileGridYOffset ()
+   {
+      return tileGridYOffset;
+   }
+}
@@ -0,0 +1,146 @@
+package fr.gael.openjpeg.imageio;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of the decoded tiles of the images returned by
+ * {@link OpenJpegImageReader#readAsRenderedImage(int,
+ * javax.imageio.ImageReadParam)}, shared by all these images and bounded
+ * by the size of the tiles it holds. The least recently used tiles are
+ * evicted first, and decoded again when accessed.
+ * <p>
+ * The default cache holds 256 MiB of tiles, or the number of bytes given
+ * by the {@value #MAX_BYTES_PROPERTY} system property.
+ */
+public class OpenJpegTileCache
+{
+   public static final String MAX_BYTES_PROPERTY =
+         "fr.gael.openjpeg.imageio.tileCacheBytes";
+
+   private static final OpenJpegTileCache DEFAULT = new OpenJpegTileCache (
+         Long.getLong (MAX_BYTES_PROPERTY, 256L * 1024 * 1024));
+
+   private final LinkedHashMap<Key, Raster> tiles =
+         new LinkedHashMap<> (16, 0.75f, true);
+   private long maxBytes;
+   private long size = 0;
+
+   /**
+    * @param maxBytes maximum size of the cached tiles, in bytes.
+    */
+   public OpenJpegTileCache (long maxBytes)
+   {
+      setMaxBytes (maxBytes);
+   }
+
+   /**
+    * @return the cache shared by the rendered images of the readers.
+    */
+   public static OpenJpegTileCache getDefault ()
+   {
+      return DEFAULT;
+   }
+
+   public synchronized long getMaxBytes ()
+   {
+      return maxBytes;
+   }
+
+   /**
+    * Sets the maximum size of the cached tiles, evicting tiles if needed.
+    *
+    * @param maxBytes maximum size in bytes, 0 to disable the cache.
+    * @throws IllegalArgumentException if the size is negative.
+    */
+   public synchronized void setMaxBytes (long maxBytes)
+   {
+      if (maxBytes < 0)
+      {
+         throw new IllegalArgumentException ("Invalid cache size.");
+      }
+      this.maxBytes = maxBytes;
+      evict ();
+   }
+
+   /**
+    * @return the size of the cached tiles, in bytes.
+    */
+   public synchronized long getSize ()
+   {
+      return size;
+   }
+
+   public synchronized void clear ()
+   {
+      tiles.clear ();
+      size = 0;
+   }
+
+   synchronized Raster get (long owner, int tileX, int tileY)
+   {
+      return tiles.get (new Key (owner, tileX, tileY));
+   }
+
+   synchronized void put (long owner, int tileX, int tileY, Raster tile)
+   {
+      Raster previous = tiles.put (new Key (owner, tileX, tileY), tile);
+      if (previous != null)
+      {
+         size -= sizeOf (previous);
+      }
+      size += sizeOf (tile);
+      evict ();
+   }
+
+   private void evict ()
+   {
+      Iterator<Raster> iterator = tiles.values ().iterator ();
+      while (size > maxBytes && iterator.hasNext ())
+      {
+         size -= sizeOf (iterator.next ());
+         iterator.remove ();
+      }
+   }
+
+   private static long sizeOf (Raster tile)
+   {
+      DataBuffer buffer = tile.getDataBuffer ();
+      return (long) buffer.getSize () * buffer.getNumBanks () *
+            DataBuffer.getDataTypeSize (buffer.getDataType ()) / 8;
+   }
+
+   private static final class Key
+   {
+      private final long owner;
+      private final int tileX;
+      private final int tileY;
+
+      Key (long owner, int tileX, int tileY)
+      {
+         this.owner = owner;
+         this.tileX = tileX;
+         this.tileY = tileY;
+      }
+
+      @Override
+      public boolean equals (Object obj)
+      {
+         if (!(obj instanceof Key))
+         {
+            return false;
+         }
+         Key key = (Key) obj;
+         return owner == key.owner && tileX == key.tileX &&
+               tileY == key.tileY;
+      }
+
+      @Override
+      public int hashCode ()
+      {
+         return (int) (owner ^ (owner >>> 32)) * 961 + tileX * 31 + tileY;
+      }
+   }
+}
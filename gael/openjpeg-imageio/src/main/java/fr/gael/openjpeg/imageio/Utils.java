@@ -17,7 +17,10 @@ public class Utils
     *
     * @return a byte array containing the content of the stream.
     * @throws IOException if a error occurred during reading of stream.
+    * @deprecated the reader pulls the stream on demand instead, see
+    *    {@link fr.gael.openjpeg.OpenJpegSeekableInput}.
     */
+   @Deprecated
    public static byte[] imageInputStreamToByteArray (ImageInputStream iis)
          throws IOException
    {
@@ -0,0 +1,439 @@
+package fr.gael.openjpeg.imageio;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileCacheImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class TestOpenJpegImageIO
+{
+   private static final String FORMAT_NAME = "jpeg2000";
+   private static final int TILE_SIZE = 128;
+   private static final int RESOLUTIONS_NUMBER = 3;
+
+   private BufferedImage source;
+   private File sourceFile;
+   private BufferedImage smallSource;
+   private File smallSourceFile;
+
+   @BeforeClass
+   public void init () throws
+         IOException, ReflectiveOperationException, URISyntaxException
+   {
+      addTestDirectoryToLibraryPath ();
+      source = createImage (300, 200);
+      sourceFile = writeImage (source);
+      smallSource = createImage (64, 48);
+      smallSourceFile = writeImage (smallSource);
+   }
+
+   private void addTestDirectoryToLibraryPath ()
+         throws URISyntaxException, ReflectiveOperationException
+   {
+      // retrieve test path location
+      URL url = ClassLoader.getSystemResource (
+            "libopenjp2." + getSystemLibExtension ());
+      String testPath = Paths.get (url.toURI ()).getParent ().toString ();
+      // add to ClassLoader
+      Field usrPathField = ClassLoader.class.getDeclaredField ("usr_paths");
+      usrPathField.setAccessible (true);
+
+      String[] currentUsrPath = (String[]) usrPathField.get (null);
+      String[] myUsrPath =
+            Arrays.copyOf (currentUsrPath, (currentUsrPath.length + 1));
+      myUsrPath[(myUsrPath.length - 1)] = testPath;
+      usrPathField.set (null, myUsrPath);
+
+      usrPathField.setAccessible (false);
+   }
+
+   private String getSystemLibExtension ()
+   {
+      String osName = System.getProperty ("os.name");
+
+      if (osName.contains ("Linux"))
+      {
+         return "so";
+      }
+      if (osName.contains ("Windows"))
+      {
+         return "dll";
+      }
+      if (osName.contains ("Mac"))
+      {
+         return "dylib";
+      }
+
+      throw new UnsupportedOperationException (
+            "Incompatible system: " + osName);
+   }
+
+   /**
+    * Creates an RGB image whose samples depend on their position and band.
+    */
+   private BufferedImage createImage (int width, int height)
+   {
+      BufferedImage image =
+            new BufferedImage (width, height, BufferedImage.TYPE_INT_RGB);
+      for (int y = 0; y < height; y++)
+      {
+         for (int x = 0; x < width; x++)
+         {
+            image.getRaster ().setSample (x, y, 0, (x * 3 + y) & 0xFF);
+            image.getRaster ().setSample (x, y, 1, (x + y * 5) & 0xFF);
+            image.getRaster ().setSample (x, y, 2, (x * y) & 0xFF);
+         }
+      }
+      return image;
+   }
+
+   /**
+    * Writes an image losslessly in a temporary JP2 file, with explicit
+    * tiles.
+    */
+   private File writeImage (BufferedImage image) throws IOException
+   {
+      File file = File.createTempFile ("jp2k", ".jp2");
+      file.deleteOnExit ();
+
+      ImageWriter writer = ImageIO.getImageWritersByFormatName (
+            FORMAT_NAME).next ();
+      OpenJpegImageWriteParam param =
+            (OpenJpegImageWriteParam) writer.getDefaultWriteParam ();
+      param.setTilingMode (ImageWriteParam.MODE_EXPLICIT);
+      param.setTiling (TILE_SIZE, TILE_SIZE, 0, 0);
+      param.setResolutionsNumber (RESOLUTIONS_NUMBER);
+
+      ImageOutputStream output = ImageIO.createImageOutputStream (file);
+      try
+      {
+         writer.setOutput (output);
+         writer.write (null, new IIOImage (image, null, null), param);
+      }
+      finally
+      {
+         output.close ();
+         writer.dispose ();
+      }
+      return file;
+   }
+
+   private OpenJpegImageReader createReader ()
+   {
+      Iterator<ImageReader> readers =
+            ImageIO.getImageReadersByFormatName (FORMAT_NAME);
+      Assert.assertTrue (readers.hasNext (), "No JPEG 2000 reader registered");
+      ImageReader reader = readers.next ();
+      Assert.assertTrue (reader instanceof OpenJpegImageReader);
+      return (OpenJpegImageReader) reader;
+   }
+
+   /**
+    * Checks the samples of a raster against the source image, read from
+    * (x0, y0) with the given subsampling and bands.
+    */
+   private void assertSamples (Raster actual, BufferedImage expected,
+         int x0, int y0, int periodX, int periodY, int[] bands)
+   {
+      Raster raster = expected.getRaster ();
+      for (int y = 0; y < actual.getHeight (); y++)
+      {
+         for (int x = 0; x < actual.getWidth (); x++)
+         {
+            for (int b = 0; b < bands.length; b++)
+            {
+               int expectedSample = raster.getSample (x0 + x * periodX,
+                     y0 + y * periodY, bands[b]);
+               int actualSample = actual.getSample (actual.getMinX () + x,
+                     actual.getMinY () + y, b);
+               if (actualSample != expectedSample)
+               {
+                  Assert.fail ("Sample (" + x + ", " + y + ", " + b +
+                        ") is " + actualSample + " instead of " +
+                        expectedSample);
+               }
+            }
+         }
+      }
+   }
+
+   private void assertSameImage (RenderedImage actual, BufferedImage expected)
+   {
+      Assert.assertEquals (actual.getWidth (), expected.getWidth ());
+      Assert.assertEquals (actual.getHeight (), expected.getHeight ());
+      assertSamples (actual.getData (), expected, 0, 0, 1, 1,
+            new int[] { 0, 1, 2 });
+   }
+
+   @Test
+   public void testLosslessRoundTrip () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      try
+      {
+         reader.setInput (sourceFile);
+         Assert.assertEquals (reader.getNumImages (true), 1);
+         Assert.assertEquals (reader.getWidth (0), 300);
+         Assert.assertEquals (reader.getHeight (0), 200);
+         Assert.assertTrue (reader.isImageTiled (0));
+         Assert.assertEquals (reader.getTileWidth (0), TILE_SIZE);
+         Assert.assertEquals (reader.getTileHeight (0), TILE_SIZE);
+         assertSameImage (reader.read (0), source);
+      }
+      finally
+      {
+         reader.dispose ();
+      }
+   }
+
+   @Test
+   public void testReadSourceRegionBandsAndSubsampling () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      try
+      {
+         reader.setInput (sourceFile);
+         ImageReadParam param = reader.getDefaultReadParam ();
+         param.setSourceRegion (new Rectangle (10, 20, 150, 101));
+         // the samples are picked at full resolution along y
+         param.setSourceSubsampling (3, 1, 0, 0);
+         int[] bands = { 2, 0 };
+         param.setSourceBands (bands);
+
+         BufferedImage image = reader.read (0, param);
+         Assert.assertEquals (image.getWidth (), 50);
+         Assert.assertEquals (image.getHeight (), 101);
+         Assert.assertEquals (image.getRaster ().getNumBands (), 2);
+         assertSamples (image.getRaster (), source, 10, 20, 3, 1, bands);
+
+         // decoded at a lower resolution level, the samples are filtered
+         param.setSourceSubsampling (2, 2, 0, 0);
+         image = reader.read (0, param);
+         Assert.assertEquals (image.getWidth (), 75);
+         Assert.assertEquals (image.getHeight (), 51);
+         Assert.assertEquals (image.getRaster ().getNumBands (), 2);
+      }
+      finally
+      {
+         reader.dispose ();
+      }
+   }
+
+   @Test
+   public void testReadTileRaster () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      try
+      {
+         reader.setInput (sourceFile);
+         // edge tile, clipped to the image bounds
+         Raster tile = reader.readTileRaster (0, 2, 1);
+         Assert.assertEquals (tile.getMinX (), 2 * TILE_SIZE);
+         Assert.assertEquals (tile.getMinY (), TILE_SIZE);
+         Assert.assertEquals (tile.getWidth (), 300 - 2 * TILE_SIZE);
+         Assert.assertEquals (tile.getHeight (), 200 - TILE_SIZE);
+         assertSamples (tile, source, 2 * TILE_SIZE, TILE_SIZE, 1, 1,
+               new int[] { 0, 1, 2 });
+      }
+      finally
+      {
+         reader.dispose ();
+      }
+   }
+
+   @Test
+   public void testReadAsRenderedImage () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      try
+      {
+         reader.setInput (sourceFile);
+         RenderedImage image = reader.readAsRenderedImage (0, null);
+         Assert.assertEquals (image.getTileWidth (), TILE_SIZE);
+         Assert.assertEquals (image.getTileHeight (), TILE_SIZE);
+         Assert.assertEquals (image.getNumXTiles (), 3);
+         Assert.assertEquals (image.getNumYTiles (), 2);
+         assertSamples (image.getTile (1, 0), source, TILE_SIZE, 0, 1, 1,
+               new int[] { 0, 1, 2 });
+         assertSameImage (image, source);
+      }
+      finally
+      {
+         reader.dispose ();
+      }
+   }
+
+   @Test
+   public void testThumbnailsAndOverviews () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      try
+      {
+         reader.setInput (sourceFile);
+         Assert.assertTrue (reader.readerSupportsThumbnails ());
+         Assert.assertEquals (reader.getNumOverviews (0),
+               RESOLUTIONS_NUMBER - 1);
+         Assert.assertEquals (reader.getOverviewWidth (0, 0), 150);
+         Assert.assertEquals (reader.getOverviewHeight (0, 0), 100);
+         Assert.assertEquals (reader.getOverviewWidth (0, 1), 75);
+         Assert.assertEquals (reader.getOverviewHeight (0, 1), 50);
+
+         BufferedImage overview = reader.readOverview (0, 0, null);
+         Assert.assertEquals (overview.getWidth (), 150);
+         Assert.assertEquals (overview.getHeight (), 100);
+
+         // thumbnails are the overviews, smallest first
+         Assert.assertEquals (reader.getNumThumbnails (0),
+               RESOLUTIONS_NUMBER - 1);
+         Assert.assertEquals (reader.getThumbnailWidth (0, 0), 75);
+         Assert.assertEquals (reader.getThumbnailHeight (0, 0), 50);
+         BufferedImage thumbnail = reader.readThumbnail (0, 0);
+         Assert.assertEquals (thumbnail.getWidth (), 75);
+         Assert.assertEquals (thumbnail.getHeight (), 50);
+
+         thumbnail = reader.readThumbnail (0, 100, 60);
+         Assert.assertEquals (thumbnail.getWidth (), 150);
+         Assert.assertEquals (thumbnail.getHeight (), 100);
+      }
+      finally
+      {
+         reader.dispose ();
+      }
+   }
+
+   @Test
+   public void testImageMetadata () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      try
+      {
+         reader.setInput (sourceFile);
+         Node root = reader.getImageMetadata (0).getAsTree (
+               OpenJpegImageMetadataFormat.NAME);
+         Assert.assertEquals (root.getNodeName (), OpenJpegImageMetadata.ROOT);
+
+         Element image = getChild (root, "Image");
+         Assert.assertEquals (image.getAttribute ("width"), "300");
+         Assert.assertEquals (image.getAttribute ("height"), "200");
+         Assert.assertEquals (image.getAttribute ("numComponents"), "3");
+
+         Element tiling = getChild (root, "Tiling");
+         Assert.assertEquals (tiling.getAttribute ("tileWidth"),
+               Integer.toString (TILE_SIZE));
+         Assert.assertEquals (tiling.getAttribute ("tileColumns"), "3");
+         Assert.assertEquals (tiling.getAttribute ("tileRows"), "2");
+
+         Element coding = getChild (root, "Coding");
+         Assert.assertEquals (coding.getAttribute ("resolutionLevels"),
+               Integer.toString (RESOLUTIONS_NUMBER));
+         Assert.assertEquals (coding.getAttribute ("reversible"), "true");
+
+         Assert.assertNotNull (getChild (root, "JP2"));
+      }
+      finally
+      {
+         reader.dispose ();
+      }
+   }
+
+   private Element getChild (Node node, String name)
+   {
+      for (Node child = node.getFirstChild (); child != null;
+            child = child.getNextSibling ())
+      {
+         if (name.equals (child.getNodeName ()))
+         {
+            return (Element) child;
+         }
+      }
+      Assert.fail ("Missing metadata node: " + name);
+      return null;
+   }
+
+   @Test
+   public void testReadImageInputStream () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      ImageInputStream stream = ImageIO.createImageInputStream (sourceFile);
+      try
+      {
+         reader.setInput (stream);
+         assertSameImage (reader.read (0), source);
+      }
+      finally
+      {
+         reader.dispose ();
+         stream.close ();
+      }
+   }
+
+   @Test
+   public void testReadImageInputStreamOfUnknownLength () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      InputStream input = new FileInputStream (sourceFile);
+      ImageInputStream stream = new FileCacheImageInputStream (input, null);
+      try
+      {
+         Assert.assertEquals (stream.length (), -1L);
+         reader.setInput (stream);
+         Assert.assertEquals (reader.getWidth (0), 300);
+         assertSameImage (reader.read (0), source);
+      }
+      finally
+      {
+         reader.dispose ();
+         stream.close ();
+         input.close ();
+      }
+   }
+
+   @Test
+   public void testReadStreamAfterFile () throws IOException
+   {
+      OpenJpegImageReader reader = createReader ();
+      ImageInputStream stream =
+            ImageIO.createImageInputStream (smallSourceFile);
+      try
+      {
+         reader.setInput (sourceFile);
+         assertSameImage (reader.read (0), source);
+
+         // the new input is decoded, not the previous file
+         reader.setInput (stream);
+         Assert.assertEquals (reader.getWidth (0), 64);
+         assertSameImage (reader.read (0), smallSource);
+      }
+      finally
+      {
+         reader.dispose ();
+         stream.close ();
+      }
+   }
+}
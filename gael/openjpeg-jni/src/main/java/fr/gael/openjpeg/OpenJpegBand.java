@@ -0,0 +1,98 @@
+package fr.gael.openjpeg;
+
+/**
+ * A component of an image decoded with the planar output of
+ * {@link OpenJpegDecoder}, see {@link OpenJpegDecoder#setPlanarOutput(boolean)}.
+ * Samples are stored row by row, with a stride equal to the band width, in
+ * bytes up to 8 bits, shorts up to 16 bits and ints above: only one of the
+ * buffers is set. Samples are not color converted, and signed samples keep
+ * their sign.
+ */
+public class OpenJpegBand
+{
+   private final int dx;
+   private final int dy;
+   private final int width;
+   private final int height;
+   private final int precision;
+   private final boolean signed;
+
+   private final byte[] data8;
+   private final short[] data16;
+   private final int[] data32;
+
+   OpenJpegBand(int dx, int dy, int width, int height, int precision,
+         boolean signed)
+   {
+      this.dx = dx;
+      this.dy = dy;
+      this.width = width;
+      this.height = height;
+      this.precision = precision;
+      this.signed = signed;
+
+      int length = width * height;
+      this.data8 = precision <= 8 ? new byte[length] : null;
+      this.data16 = precision > 8 && precision <= 16 ? new short[length] : null;
+      this.data32 = precision > 16 ? new int[length] : null;
+   }
+
+   /**
+    * @return horizontal subsampling of the band on the reference grid.
+    */
+   public int getDx()
+   {
+      return dx;
+   }
+
+   /**
+    * @return vertical subsampling of the band on the reference grid.
+    */
+   public int getDy()
+   {
+      return dy;
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public int getHeight()
+   {
+      return height;
+   }
+
+   public int getPrecision()
+   {
+      return precision;
+   }
+
+   public boolean isSigned()
+   {
+      return signed;
+   }
+
+   public byte[] getData8()
+   {
+      return data8;
+   }
+
+   public short[] getData16()
+   {
+      return data16;
+   }
+
+   public int[] getData32()
+   {
+      return data32;
+   }
+
+   /**
+    * @return the buffer holding the samples.
+    */
+   Object getData()
+   {
+      return data8 != null ? data8 : (data16 != null ? data16 : data32);
+   }
+}
@@ -0,0 +1,99 @@
+package fr.gael.openjpeg;
+
+import java.io.Closeable;
+
+/**
+ * Result of a decoding run by {@link OpenJpegDecoderPool}. The image
+ * properties are fixed at decoding time; the pixel buffers belong to the
+ * decoder that produced them, which stays borrowed until the result is
+ * closed. Closing the result gives the decoder back to the pool, after
+ * which the pixel buffers must no longer be used.
+ */
+public final class OpenJpegDecodeResult implements Closeable
+{
+   private final OpenJpegDecoderPool pool;
+   private OpenJpegDecoder decoder;
+
+   private final boolean decoded;
+   private final int width;
+   private final int height;
+   private final int precision;
+   private final int componentsNumber;
+
+   OpenJpegDecodeResult(OpenJpegDecoderPool pool, OpenJpegDecoder decoder,
+         boolean decoded)
+   {
+      this.pool = pool;
+      this.decoder = decoder;
+      this.decoded = decoded;
+      this.width = decoder.getWidth();
+      this.height = decoder.getHeight();
+      this.precision = decoder.getPrecision();
+      this.componentsNumber = decoder.getComponentsNumber();
+   }
+
+   /**
+    * @return true if the image is decoded properly, otherwise false.
+    */
+   public boolean isDecoded()
+   {
+      return decoded;
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public int getHeight()
+   {
+      return height;
+   }
+
+   public int getPrecision()
+   {
+      return precision;
+   }
+
+   public int getComponentsNumber()
+   {
+      return componentsNumber;
+   }
+
+   public byte[] getImage8()
+   {
+      return getDecoder().getImage8();
+   }
+
+   public short[] getImage16()
+   {
+      return getDecoder().getImage16();
+   }
+
+   public int[] getImage24()
+   {
+      return getDecoder().getImage24();
+   }
+
+   /**
+    * Gives the decoder back to the pool. Does nothing if already closed.
+    */
+   @Override
+   public synchronized void close()
+   {
+      if (decoder != null)
+      {
+         pool.release(decoder);
+         decoder = null;
+      }
+   }
+
+   private synchronized OpenJpegDecoder getDecoder()
+   {
+      if (decoder == null)
+      {
+         throw new IllegalStateException("Decoding result already closed.");
+      }
+      return decoder;
+   }
+}
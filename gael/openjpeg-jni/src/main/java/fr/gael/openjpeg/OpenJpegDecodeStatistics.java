@@ -0,0 +1,149 @@
+package fr.gael.openjpeg;
+
+/**
+ * Times and sizes measured by the native decoder during one decoding, see
+ * {@link OpenJpegDecoder#getLastStatistics()}. Wall times include the time
+ * spent waiting for the input; CPU times are those of the decoding thread.
+ * The read time overlaps the header and tier-2 times, which pull the input.
+ */
+public final class OpenJpegDecodeStatistics
+{
+   /**
+    * Phases of a decoding, with a wall and a CPU time.
+    */
+   public enum Phase
+   {
+      /** Main header and JP2 boxes parsing. */
+      HEADER(2),
+      /** Tier-2: packet parsing. */
+      T2(4),
+      /** Tier-1: code-block decoding. */
+      T1(6),
+      /** Inverse discrete wavelet transform. */
+      DWT(8),
+      /** Inverse multiple component transform. */
+      MCT(10),
+      /** DC level shift. */
+      DC_SHIFT(12),
+      /** Color conversion and copy to the Java output. */
+      COPY(15);
+
+      private final int index;
+
+      private Phase(int index)
+      {
+         this.index = index;
+      }
+   }
+
+   // Layout of the values, as defined by the native code
+   private static final int READ_WALL = 0;
+   private static final int BYTES_IN = 1;
+   private static final int CODESTREAM_BYTES = 14;
+   private static final int BYTES_OUT = 17;
+   private static final int TOTAL_WALL = 18;
+   private static final int TOTAL_CPU = 19;
+   private static final int NATIVE_MEMORY = 20;
+   static final int COUNT = 21;
+
+   private final long[] values;
+
+   OpenJpegDecodeStatistics(long[] values)
+   {
+      if (values.length != COUNT)
+      {
+         throw new IllegalArgumentException("Invalid statistics.");
+      }
+      this.values = values.clone();
+   }
+
+   /**
+    * @return the wall time of the phase, in nanoseconds.
+    */
+   public long getWallNanos(Phase phase)
+   {
+      return values[phase.index];
+   }
+
+   /**
+    * @return the CPU time of the phase, in nanoseconds.
+    */
+   public long getCpuNanos(Phase phase)
+   {
+      return values[phase.index + 1];
+   }
+
+   /**
+    * @return the wall time spent reading the input, in nanoseconds.
+    */
+   public long getReadNanos()
+   {
+      return values[READ_WALL];
+   }
+
+   /**
+    * @return the number of bytes read from the input.
+    */
+   public long getBytesIn()
+   {
+      return values[BYTES_IN];
+   }
+
+   /**
+    * @return the number of codestream bytes parsed by tier-2.
+    */
+   public long getCodestreamBytes()
+   {
+      return values[CODESTREAM_BYTES];
+   }
+
+   /**
+    * @return the number of bytes written to the Java output.
+    */
+   public long getBytesOut()
+   {
+      return values[BYTES_OUT];
+   }
+
+   /**
+    * @return the wall time of the whole decoding, in nanoseconds.
+    */
+   public long getTotalWallNanos()
+   {
+      return values[TOTAL_WALL];
+   }
+
+   /**
+    * @return the CPU time of the whole decoding, in nanoseconds.
+    */
+   public long getTotalCpuNanos()
+   {
+      return values[TOTAL_CPU];
+   }
+
+   /**
+    * @return an estimate of the peak native memory of the decoding, in
+    *    bytes: decoded image and tile buffers.
+    */
+   public long getNativeMemory()
+   {
+      return values[NATIVE_MEMORY];
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder builder = new StringBuilder("OpenJpegDecodeStatistics[");
+      builder.append("total=").append(getTotalWallNanos() / 1000).append("us");
+      builder.append(", read=").append(getReadNanos() / 1000).append("us");
+      for (Phase phase : Phase.values())
+      {
+         builder.append(", ").append(phase.name().toLowerCase()).append('=')
+               .append(getWallNanos(phase) / 1000).append("us");
+      }
+      builder.append(", in=").append(getBytesIn()).append('B');
+      builder.append(", out=").append(getBytesOut()).append('B');
+      builder.append(", native=").append(getNativeMemory()).append('B');
+      return builder.append(']').toString();
+   }
+}
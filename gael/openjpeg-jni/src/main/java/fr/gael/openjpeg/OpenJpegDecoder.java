@@ -1,8 +1,22 @@
 package fr.gael.openjpeg;
 
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
@@ -11,8 +25,15 @@ public class OpenJpegDecoder
 {
 
    private static final AtomicBoolean IS_INIT = new AtomicBoolean(false);
+   private static final int MAPPED_CHUNK_SIZE = 1 << 30;
+   private static final int STREAM_CHUNK_SIZE = 64 * 1024;
 
-   private static synchronized void loadLibraries()
+   // Layouts of the caller owned outputs, as defined by the native code
+   private static final int OUTPUT_TYPED = 0;
+   private static final int OUTPUT_BIG_ENDIAN = 1;
+   private static final int OUTPUT_LITTLE_ENDIAN = 2;
+
+   static synchronized void loadLibraries()
    {
       if (IS_INIT.getAndSet(true))
       {
@@ -29,30 +50,37 @@ public class OpenJpegDecoder
       }
    }
 
-   private static byte[] getBytesFromFile(File file) throws IOException
+   /**
+    * Maps the given file in memory, in chunks of {@link #MAPPED_CHUNK_SIZE}
+    * bytes, so that files larger than 2 GB can be decoded and only the
+    * pages actually read by the codec are loaded.
+    */
+   static ByteBuffer[] mapFile(File file) throws IOException
    {
-      if (file == null || !file.exists() || !file.isFile())
-      {
-         throw new IllegalArgumentException("Invalid file.");
-      }
-
-      if (file.length() > Integer.MAX_VALUE)
+      if (file == null || !file.isFile())
       {
-         throw new IllegalArgumentException("file too long : " + file);
+         throw new FileNotFoundException("Invalid file: " + file);
       }
 
-      byte[] buffer = new byte[(int) file.length()];
-      FileInputStream fis = new FileInputStream(file);
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
       try
       {
-         fis.read(buffer, 0, buffer.length);
+         FileChannel channel = raf.getChannel();
+         long length = channel.size();
+         int count = (int) ((length + MAPPED_CHUNK_SIZE - 1) / MAPPED_CHUNK_SIZE);
+         ByteBuffer[] chunks = new ByteBuffer[count];
+         for (int i = 0; i < count; i++)
+         {
+            long position = (long) i * MAPPED_CHUNK_SIZE;
+            long size = Math.min(MAPPED_CHUNK_SIZE, length - position);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+         }
+         return chunks;
       }
       finally
       {
-         fis.close();
+         raf.close();
       }
-
-      return buffer;
    }
 
    // Logger
@@ -60,17 +88,77 @@ public class OpenJpegDecoder
 
    // Encoded image
    private byte[] byteInputStream = null;
+   private ByteBuffer[] byteBufferInputStream = null;
+   private OpenJpegSeekableInput seekableInput = null;
+   // reused from a read of the native stream to the next one
+   private byte[] streamChunk = null;
 
    // Decoded image
    private byte[] image8 = null;
    private short[] image16 = null;
    private int[] image24 = null;
 
+   // Buffers of the previous decoding, reused by the next one of same size
+   private boolean reuseImageBuffers = false;
+   private byte[] spareImage8 = null;
+   private short[] spareImage16 = null;
+   private int[] spareImage24 = null;
+
+   // Planar output, one buffer per component
+   private boolean planarOutput = false;
+   private OpenJpegBand[] bands = null;
+
+   // Tile by tile decoding, buffers are reused from a tile to the next one
+   private byte[] tileImage8 = null;
+   private short[] tileImage16 = null;
+   private int[] tileImage24 = null;
+   private final OpenJpegTile tile = new OpenJpegTile();
+   private TileConsumer tileConsumer = null;
+
+   // Decoding area, the whole image when width or height is not positive
+   private int decodeAreaX = 0;
+   private int decodeAreaY = 0;
+   private int decodeAreaWidth = -1;
+   private int decodeAreaHeight = -1;
+
+   // Number of highest resolution levels to skip
+   private int reduceFactor = 0;
+
+   // Maximum number of quality layers to decode, all when not positive
+   private int maxQualityLayers = 0;
+
    // Decoded image properties
    private int width = -1;
    private int height = -1;
    private int precision = -1;
    private int componentsNumber = -1;
+   private int resolutionsNumber = -1;
+   private int qualityLayersNumber = -1;
+
+   // Codestream layout, at full resolution on the reference grid
+   private int imageX0 = 0;
+   private int imageY0 = 0;
+   private int tileOffsetX = 0;
+   private int tileOffsetY = 0;
+   private int tileWidth = -1;
+   private int tileHeight = -1;
+   private int tileColumns = -1;
+   private int tileRows = -1;
+
+   // Coding style and components of the codestream
+   private int progressionOrder = -1;
+   private int codeBlockWidth = -1;
+   private int codeBlockHeight = -1;
+   private boolean reversible = false;
+   private boolean multipleComponentTransform = false;
+   private int[] componentPrecisions = null;
+   private boolean[] componentSigned = null;
+   private int[] componentDx = null;
+   private int[] componentDy = null;
+   private OpenJpegJp2Boxes jp2Boxes = null;
+
+   // Measures of the last decoding
+   private OpenJpegDecodeStatistics lastStatistics = null;
 
    public OpenJpegDecoder()
    {
@@ -107,6 +195,33 @@ public class OpenJpegDecoder
       this.image24 = image24;
    }
 
+   public boolean isPlanarOutput()
+   {
+      return planarOutput;
+   }
+
+   /**
+    * Selects the planar output of the next decodings: each component is
+    * decoded into its own buffer, with its own precision, sign and
+    * subsampling, see {@link #getBands()}, and the image buffers are not
+    * filled. Unlike the image buffers, bands support any number of
+    * components and precisions up to 32 bits, but are not color converted.
+    *
+    * @param planarOutput true for the planar output.
+    */
+   public void setPlanarOutput(boolean planarOutput)
+   {
+      this.planarOutput = planarOutput;
+   }
+
+   /**
+    * @return the components decoded with the planar output, otherwise null.
+    */
+   public OpenJpegBand[] getBands()
+   {
+      return bands;
+   }
+
    public byte[] getByteInputStream()
    {
       return byteInputStream;
@@ -115,12 +230,91 @@ public class OpenJpegDecoder
    public void setByteInputStream(byte[] compressedStream)
    {
       this.byteInputStream = compressedStream;
+      if (compressedStream != null)
+      {
+         this.byteBufferInputStream = null;
+         this.seekableInput = null;
+      }
+   }
+
+   public ByteBuffer[] getByteBufferInputStream()
+   {
+      return byteBufferInputStream;
+   }
+
+   /**
+    * Sets the encoded image as direct buffers. The bytes between the
+    * position and the limit of each buffer are read in place by the native
+    * decoder, without any copy to the Java heap. Several buffers are read
+    * as one contiguous stream: all of them but the last one must hold the
+    * same number of bytes.
+    *
+    * @param compressedStream direct buffers, or null to clear them.
+    * @throws IllegalArgumentException if a buffer is not direct or if the
+    *    buffers do not share the same length.
+    */
+   public void setByteBufferInputStream(ByteBuffer... compressedStream)
+   {
+      if (compressedStream == null)
+      {
+         this.byteBufferInputStream = null;
+         return;
+      }
+      ByteBuffer[] chunks = new ByteBuffer[compressedStream.length];
+      for (int i = 0; i < chunks.length; i++)
+      {
+         if (!compressedStream[i].isDirect())
+         {
+            throw new IllegalArgumentException("Input buffer must be direct.");
+         }
+         chunks[i] = compressedStream[i].slice();
+         if (i > 0 && chunks[i - 1].capacity() != chunks[0].capacity())
+         {
+            throw new IllegalArgumentException(
+                  "Input buffers must have the same length.");
+         }
+      }
+      this.byteBufferInputStream = chunks;
+      this.byteInputStream = null;
+      this.seekableInput = null;
+   }
+
+   public OpenJpegSeekableInput getSeekableInput()
+   {
+      return seekableInput;
+   }
+
+   /**
+    * Sets the encoded image as a stream pulled on demand by the native
+    * decoder, through a reused chunk of the Java heap: the image is never
+    * fully buffered, unless its length is unknown, in which case the first
+    * decoding reads it whole in memory. Each decoding starts by seeking the
+    * input to its position 0.
+    *
+    * @param input the encoded image, or null to clear it.
+    */
+   public void setSeekableInput(OpenJpegSeekableInput input)
+   {
+      this.seekableInput = input;
+      if (input != null)
+      {
+         this.byteInputStream = null;
+         this.byteBufferInputStream = null;
+      }
    }
 
    public long getByteInputStreamLength()
    {
       long length;
-      if (byteInputStream == null)
+      if (byteBufferInputStream != null)
+      {
+         length = 0;
+         for (ByteBuffer chunk : byteBufferInputStream)
+         {
+            length += chunk.capacity();
+         }
+      }
+      else if (byteInputStream == null)
       {
          length = -1;
       }
@@ -171,17 +365,375 @@ public class OpenJpegDecoder
       this.componentsNumber = componentsNumber;
    }
 
+   public int getResolutionsNumber()
+   {
+      return resolutionsNumber;
+   }
+
+   public void setResolutionsNumber(int resolutionsNumber)
+   {
+      this.resolutionsNumber = resolutionsNumber;
+   }
+
+   public int getQualityLayersNumber()
+   {
+      return qualityLayersNumber;
+   }
+
+   public void setQualityLayersNumber(int qualityLayersNumber)
+   {
+      this.qualityLayersNumber = qualityLayersNumber;
+   }
+
+   public int getImageX0()
+   {
+      return imageX0;
+   }
+
+   public int getImageY0()
+   {
+      return imageY0;
+   }
+
+   /**
+    * Sets the origin of the image on the reference grid. Called by the
+    * native code.
+    */
+   public void setImageOrigin(int x0, int y0)
+   {
+      this.imageX0 = x0;
+      this.imageY0 = y0;
+   }
+
+   public int getTileOffsetX()
+   {
+      return tileOffsetX;
+   }
+
+   public int getTileOffsetY()
+   {
+      return tileOffsetY;
+   }
+
+   public int getTileWidth()
+   {
+      return tileWidth;
+   }
+
+   public int getTileHeight()
+   {
+      return tileHeight;
+   }
+
+   public int getTileColumns()
+   {
+      return tileColumns;
+   }
+
+   public int getTileRows()
+   {
+      return tileRows;
+   }
+
+   public int getTilesNumber()
+   {
+      return tileColumns * tileRows;
+   }
+
+   /**
+    * Sets the tile grid of the codestream, on the reference grid at full
+    * resolution. Called by the native code.
+    */
+   public void setTileGrid(int tileOffsetX, int tileOffsetY, int tileWidth,
+         int tileHeight, int tileColumns, int tileRows)
+   {
+      this.tileOffsetX = tileOffsetX;
+      this.tileOffsetY = tileOffsetY;
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+      this.tileColumns = tileColumns;
+      this.tileRows = tileRows;
+   }
+
+   /**
+    * @return the default progression order of the codestream, one of the
+    *    PROGRESSION_* constants of {@link OpenJpegHeader}, -1 if unknown.
+    */
+   public int getProgressionOrder()
+   {
+      return progressionOrder;
+   }
+
+   public int getCodeBlockWidth()
+   {
+      return codeBlockWidth;
+   }
+
+   public int getCodeBlockHeight()
+   {
+      return codeBlockHeight;
+   }
+
+   /**
+    * @return true if the codestream uses the reversible 5-3 wavelet
+    *    transform, false for the irreversible 9-7 one.
+    */
+   public boolean isReversible()
+   {
+      return reversible;
+   }
+
+   public boolean isMultipleComponentTransform()
+   {
+      return multipleComponentTransform;
+   }
+
+   /**
+    * Sets the default coding style of the codestream, as read from its
+    * main header for the first component. Called by the native code.
+    */
+   protected void setCodingStyle(int progressionOrder, int codeBlockWidth,
+         int codeBlockHeight, boolean reversible,
+         boolean multipleComponentTransform)
+   {
+      this.progressionOrder = progressionOrder;
+      this.codeBlockWidth = codeBlockWidth;
+      this.codeBlockHeight = codeBlockHeight;
+      this.reversible = reversible;
+      this.multipleComponentTransform = multipleComponentTransform;
+   }
+
+   /**
+    * @return the precision of each component, or null if no header is
+    *    decoded.
+    */
+   public int[] getComponentPrecisions()
+   {
+      return componentPrecisions == null ? null : componentPrecisions.clone();
+   }
+
+   public boolean[] getComponentSigned()
+   {
+      return componentSigned == null ? null : componentSigned.clone();
+   }
+
+   /**
+    * @return the horizontal subsampling of each component.
+    */
+   public int[] getComponentDx()
+   {
+      return componentDx == null ? null : componentDx.clone();
+   }
+
+   /**
+    * @return the vertical subsampling of each component.
+    */
+   public int[] getComponentDy()
+   {
+      return componentDy == null ? null : componentDy.clone();
+   }
+
+   /**
+    * Sets the properties of a component of the codestream. Called by the
+    * native code, for each component in turn.
+    */
+   protected void setComponent(int index, int count, int precision,
+         boolean signed, int dx, int dy)
+   {
+      if (index == 0)
+      {
+         componentPrecisions = new int[count];
+         componentSigned = new boolean[count];
+         componentDx = new int[count];
+         componentDy = new int[count];
+      }
+      componentPrecisions[index] = precision;
+      componentSigned[index] = signed;
+      componentDx[index] = dx;
+      componentDy[index] = dy;
+   }
+
+   /**
+    * @return the JP2 boxes, or null for a raw codestream.
+    */
+   public OpenJpegJp2Boxes getJp2Boxes()
+   {
+      return jp2Boxes;
+   }
+
+   /**
+    * Sets the properties of the JP2 boxes. Called by the native code.
+    */
+   protected void setJp2Boxes(int brand, int minorVersion, int[] compatibility,
+         int colourMethod, int enumeratedColourSpace, int iccProfileLength,
+         boolean palette, boolean channelDefinition)
+   {
+      this.jp2Boxes = new OpenJpegJp2Boxes(brand, minorVersion, compatibility,
+            colourMethod, enumeratedColourSpace, iccProfileLength, palette,
+            channelDefinition);
+   }
+
+   public int getMaxQualityLayers()
+   {
+      return maxQualityLayers;
+   }
+
+   /**
+    * Caps the number of quality layers decoded by the next decodings. The
+    * packets of the remaining layers are skipped, which gives a coarser
+    * image much faster.
+    *
+    * @param maxQualityLayers maximum number of layers to decode, 0 to decode
+    *    all the layers of the image.
+    * @throws IllegalArgumentException if the number is negative.
+    */
+   public void setMaxQualityLayers(int maxQualityLayers)
+   {
+      if (maxQualityLayers < 0)
+      {
+         throw new IllegalArgumentException("Invalid number of quality layers.");
+      }
+      this.maxQualityLayers = maxQualityLayers;
+   }
+
+   public int getReduceFactor()
+   {
+      return reduceFactor;
+   }
+
+   /**
+    * Sets the number of highest resolution levels skipped by the next
+    * decodings: the decoded image is 2^reduceFactor times smaller in each
+    * dimension. The factor must be lower than the number of resolutions of
+    * the image, see {@link #getResolutionsNumber()}.
+    *
+    * @param reduceFactor number of resolution levels to skip, 0 to decode
+    *    the full resolution.
+    * @throws IllegalArgumentException if the factor is negative.
+    */
+   public void setReduceFactor(int reduceFactor)
+   {
+      if (reduceFactor < 0)
+      {
+         throw new IllegalArgumentException("Invalid reduce factor.");
+      }
+      this.reduceFactor = reduceFactor;
+   }
+
+   /**
+    * Restricts the next decodings to the given window of the image. Only the
+    * tiles intersecting the window are decoded and the decoded image is
+    * sized to the window (clipped to the image bounds). The window is
+    * expressed in full resolution coordinates, whatever the reduce factor.
+    *
+    * @param x left of the window, relative to the image origin.
+    * @param y top of the window, relative to the image origin.
+    * @param width width of the window.
+    * @param height height of the window.
+    * @throws IllegalArgumentException if the window is empty or negative.
+    */
+   public void setDecodeArea(int x, int y, int width, int height)
+   {
+      if (x < 0 || y < 0 || width <= 0 || height <= 0)
+      {
+         throw new IllegalArgumentException("Invalid decode area.");
+      }
+      this.decodeAreaX = x;
+      this.decodeAreaY = y;
+      this.decodeAreaWidth = width;
+      this.decodeAreaHeight = height;
+   }
+
+   /**
+    * Restores the decoding of the whole image.
+    */
+   public void clearDecodeArea()
+   {
+      this.decodeAreaX = 0;
+      this.decodeAreaY = 0;
+      this.decodeAreaWidth = -1;
+      this.decodeAreaHeight = -1;
+   }
+
+   public boolean isReuseImageBuffers()
+   {
+      return reuseImageBuffers;
+   }
+
+   /**
+    * Lets the next decodings overwrite the image buffer of the previous one
+    * when they have the same size, instead of allocating a new buffer.
+    * The buffers returned by {@link #getImage8()}, {@link #getImage16()} and
+    * {@link #getImage24()} are then only valid until the next decoding.
+    *
+    * @param reuseImageBuffers true to reuse the image buffers.
+    */
+   public void setReuseImageBuffers(boolean reuseImageBuffers)
+   {
+      this.reuseImageBuffers = reuseImageBuffers;
+      if (!reuseImageBuffers)
+      {
+         spareImage8 = null;
+         spareImage16 = null;
+         spareImage24 = null;
+      }
+   }
+
+   /**
+    * Clears the input and restores the default decoding options: whole
+    * image, full resolution, all quality layers and packed output. The image
+    * buffers are kept for reuse.
+    */
+   public void resetDecodingOptions()
+   {
+      byteInputStream = null;
+      byteBufferInputStream = null;
+      seekableInput = null;
+      reduceFactor = 0;
+      maxQualityLayers = 0;
+      planarOutput = false;
+      clearDecodeArea();
+   }
+
    /**
     * Reset decoder
     */
    public void reset()
    {
+      if (reuseImageBuffers)
+      {
+         spareImage8 = image8 != null ? image8 : spareImage8;
+         spareImage16 = image16 != null ? image16 : spareImage16;
+         spareImage24 = image24 != null ? image24 : spareImage24;
+      }
       image8 = null;
       image16 = null;
       image24 = null;
+      bands = null;
       width = -1;
       height = -1;
       precision = -1;
+      resolutionsNumber = -1;
+      qualityLayersNumber = -1;
+      imageX0 = 0;
+      imageY0 = 0;
+      tileOffsetX = 0;
+      tileOffsetY = 0;
+      tileWidth = -1;
+      tileHeight = -1;
+      tileColumns = -1;
+      tileRows = -1;
+      progressionOrder = -1;
+      codeBlockWidth = -1;
+      codeBlockHeight = -1;
+      reversible = false;
+      multipleComponentTransform = false;
+      componentPrecisions = null;
+      componentSigned = null;
+      componentDx = null;
+      componentDy = null;
+      jp2Boxes = null;
+      lastStatistics = null;
    }
 
    public int getDepth()
@@ -189,6 +741,37 @@ public class OpenJpegDecoder
       return ((precision + 7) / 8) * componentsNumber;
    }
 
+   /**
+    * Returns the properties read by the last header decoding, see
+    * {@link #decodeHeader(String)}. After an image decoding, the dimensions
+    * are those of the decoded image rather than of the full resolution.
+    *
+    * @return the header properties, or null if no header is decoded.
+    */
+   public OpenJpegHeader getHeader()
+   {
+      return width < 0 ? null : new OpenJpegHeader(this);
+   }
+
+   /**
+    * @return the times and sizes measured during the last successful
+    *    decoding, or null.
+    */
+   public OpenJpegDecodeStatistics getLastStatistics()
+   {
+      return lastStatistics;
+   }
+
+   /**
+    * Stores the measures of a successful decoding and adds them to the
+    * {@link OpenJpegDecoderMetrics}. Called by the native code.
+    */
+   protected void decodeStatistics(long[] values)
+   {
+      lastStatistics = new OpenJpegDecodeStatistics(values);
+      OpenJpegDecoderMetrics.getInstance().record(lastStatistics);
+   }
+
    /**
     * Represents result of decoded image. Called by the native code.
     */
@@ -198,7 +781,8 @@ public class OpenJpegDecoder
 
       if ((image8 == null || image8.length != length) && getDepth() == 1)
       {
-         image8 = new byte[length];
+         image8 = (spareImage8 != null && spareImage8.length == length) ?
+               spareImage8 : new byte[length];
       }
    }
 
@@ -211,7 +795,8 @@ public class OpenJpegDecoder
 
       if ((image16 == null || image16.length != length) && getDepth() == 2)
       {
-         image16 = new short[length];
+         image16 = (spareImage16 != null && spareImage16.length == length) ?
+               spareImage16 : new short[length];
       }
    }
 
@@ -224,29 +809,497 @@ public class OpenJpegDecoder
 
       if ((image24 == null || image24.length != length) && getDepth() == 3)
       {
-         image24 = new int[length];
+         image24 = (spareImage24 != null && spareImage24.length == length) ?
+               spareImage24 : new int[length];
       }
    }
 
-   public boolean decode(String filename)
+   /**
+    * Allocates the buffer of a component for the planar output. Called by
+    * the native code.
+    *
+    * @return the buffer of the band.
+    */
+   protected Object allocBand(int index, int count, int dx, int dy, int width,
+         int height, int precision, boolean signed)
    {
-      reset();
-
-      if (filename != null)
+      if (index == 0)
       {
-         try
-         {
-            setByteInputStream(getBytesFromFile(new File(filename)));
-         }
-         catch (IOException e)
-         {
-            logger.error("Cannot convert to byte array the file: " + filename, e);
+         bands = new OpenJpegBand[count];
+      }
+      bands[index] = new OpenJpegBand(dx, dy, width, height, precision, signed);
+      return bands[index].getData();
+   }
+
+   /**
+    * Reads the seekable input into the stream chunk. Called by the native
+    * code, which copies the chunk into the codec buffer.
+    *
+    * @return the number of bytes read, or -1 at the end of the input or on
+    *    failure.
+    */
+   protected int readInput(int length)
+   {
+      if (streamChunk == null)
+      {
+         streamChunk = new byte[STREAM_CHUNK_SIZE];
+      }
+      try
+      {
+         return seekableInput.read(streamChunk, 0,
+               Math.min(length, streamChunk.length));
+      }
+      catch (IOException e)
+      {
+         logger.error("Cannot read the input stream.", e);
+         return -1;
+      }
+   }
+
+   /**
+    * Skips bytes of the seekable input. Called by the native code.
+    *
+    * @return the number of bytes skipped, or -1 on failure.
+    */
+   protected long skipInput(long count)
+   {
+      try
+      {
+         return seekableInput.skip(count);
+      }
+      catch (IOException e)
+      {
+         logger.error("Cannot skip the input stream.", e);
+         return -1;
+      }
+   }
+
+   /**
+    * Moves the seekable input. Called by the native code.
+    */
+   protected boolean seekInput(long position)
+   {
+      try
+      {
+         return seekableInput.seek(position);
+      }
+      catch (IOException e)
+      {
+         logger.error("Cannot seek the input stream.", e);
+         return false;
+      }
+   }
+
+   /**
+    * Returns the length of the seekable input. Called by the native code.
+    *
+    * @return the length in bytes, or -1 if unknown.
+    */
+   protected long inputLength()
+   {
+      try
+      {
+         return seekableInput.length();
+      }
+      catch (IOException e)
+      {
+         logger.error("Cannot get the length of the input stream.", e);
+         return -1;
+      }
+   }
+
+   /**
+    * Allocates the tile buffer. Called by the native code.
+    */
+   protected void allocTile8(int length)
+   {
+      if (tileImage8 == null || tileImage8.length < length)
+      {
+         tileImage8 = new byte[length];
+      }
+   }
+
+   /**
+    *
+    */
+   protected void allocTile16(int length)
+   {
+      if (tileImage16 == null || tileImage16.length < length)
+      {
+         tileImage16 = new short[length];
+      }
+   }
+
+   /**
+    *
+    */
+   protected void allocTile24(int length)
+   {
+      if (tileImage24 == null || tileImage24.length < length)
+      {
+         tileImage24 = new int[length];
+      }
+   }
+
+   /**
+    * Hands a decoded tile to the current consumer. Called by the native code.
+    */
+   protected void tileDecoded(int index, int x, int y, int width, int height)
+   {
+      int depth = getDepth();
+      tile.set(index, x, y, width, height,
+            depth == 1 ? tileImage8 : null,
+            depth == 2 ? tileImage16 : null,
+            depth == 3 ? tileImage24 : null);
+      tileConsumer.tileDecoded(tile);
+   }
+
+   public boolean decode(String filename)
+   {
+      reset();
+
+      if (filename != null)
+      {
+         try
+         {
+            setByteBufferInputStream(mapFile(new File(filename)));
+         }
+         catch (IOException e)
+         {
+            logger.error("Cannot map in memory the file: " + filename, e);
+            // never decode the previous input instead
+            return false;
          }
       }
 
-      return internalOpenJpegDecode();
+      return decodeImage();
+   }
+
+   /**
+    * Decodes the Jpeg2000 image held by direct buffers.
+    *
+    * @param compressedStream direct buffers containing the encoded image.
+    * @see #setByteBufferInputStream(ByteBuffer...)
+    * @return true if the image is decoded properly, otherwise false.
+    */
+   public boolean decode(ByteBuffer... compressedStream)
+   {
+      reset();
+      setByteBufferInputStream(compressedStream);
+      return decodeImage();
+   }
+
+   /**
+    * Decodes the Jpeg2000 image pulled from a stream.
+    *
+    * @param input the encoded image.
+    * @see #setSeekableInput(OpenJpegSeekableInput)
+    * @return true if the image is decoded properly, otherwise false.
+    */
+   public boolean decode(OpenJpegSeekableInput input)
+   {
+      reset();
+      setSeekableInput(input);
+      return decodeImage();
    }
 
+   /**
+    * Decodes the Jpeg2000 image previously set as input at a lower
+    * resolution, see {@link #setReduceFactor(int)}.
+    *
+    * @return true if the image is decoded properly, otherwise false.
+    */
+   public boolean decode(int reduceFactor)
+   {
+      int previousFactor = this.reduceFactor;
+
+      setReduceFactor(reduceFactor);
+      try
+      {
+         return decode((String) null);
+      }
+      finally
+      {
+         this.reduceFactor = previousFactor;
+      }
+   }
+
+   /**
+    * Decodes the first quality layers of the Jpeg2000 image previously set
+    * as input, see {@link #setMaxQualityLayers(int)}.
+    *
+    * @return true if the image is decoded properly, otherwise false.
+    */
+   public boolean decodeQualityLayers(int maxQualityLayers)
+   {
+      int previousLayers = this.maxQualityLayers;
+
+      setMaxQualityLayers(maxQualityLayers);
+      try
+      {
+         return decode((String) null);
+      }
+      finally
+      {
+         this.maxQualityLayers = previousLayers;
+      }
+   }
+
+   /**
+    * Decodes a window of the Jpeg2000 image previously set as input. The
+    * decoded image is sized to the window, see
+    * {@link #setDecodeArea(int, int, int, int)}.
+    *
+    * @return true if the window is decoded properly, otherwise false.
+    */
+   public boolean decodeRegion(int x, int y, int width, int height)
+   {
+      int previousX = decodeAreaX;
+      int previousY = decodeAreaY;
+      int previousWidth = decodeAreaWidth;
+      int previousHeight = decodeAreaHeight;
+
+      setDecodeArea(x, y, width, height);
+      try
+      {
+         return decode((String) null);
+      }
+      finally
+      {
+         decodeAreaX = previousX;
+         decodeAreaY = previousY;
+         decodeAreaWidth = previousWidth;
+         decodeAreaHeight = previousHeight;
+      }
+   }
+
+   /**
+    * Decodes the Jpeg2000 image previously set as input tile by tile: each
+    * tile is handed to the consumer as soon as it is decoded, and the whole
+    * image buffer is never allocated. The decoding options (reduce factor,
+    * quality layers) apply, and only the tiles intersecting the decode area
+    * are decoded, in full. Unlike {@link #decode(String)}, no color space
+    * conversion is applied to the tiles.
+    *
+    * @param consumer receives the decoded tiles.
+    * @return true if all the tiles are decoded properly, otherwise false.
+    */
+   public boolean decodeTiles(TileConsumer consumer)
+   {
+      if (consumer == null)
+      {
+         throw new NullPointerException("The tile consumer is null");
+      }
+      reset();
+      tileConsumer = consumer;
+      try
+      {
+         return decodeImageTiles();
+      }
+      finally
+      {
+         tileConsumer = null;
+      }
+   }
+
+   /**
+    * Decodes the Jpeg2000 image previously set as input straight into a
+    * caller owned array, without allocating the image buffers: the same
+    * arrays can be reused from a decoding to the next one. The decoding
+    * options apply and the image properties are updated, but
+    * {@link #getImage8()} stays null.
+    *
+    * @param output receives the 8 bits grey pixels.
+    * @param offset index in the array of the first pixel of the image.
+    * @param stride number of pixels between two rows in the array.
+    * @return true if the image is decoded properly, otherwise false.
+    * @throws IllegalArgumentException if the image is not 8 bits grey or if
+    *    the array is too small. The check happens once the image is
+    *    decoded, before any pixel is written.
+    */
+   public boolean decodeInto(byte[] output, int offset, int stride)
+   {
+      return decodeInto(output, offset, stride, OUTPUT_TYPED, -1, -1);
+   }
+
+   /**
+    * Decodes the image into a caller owned array of 9 to 16 bits grey
+    * pixels, see {@link #decodeInto(byte[], int, int)}.
+    */
+   public boolean decodeInto(short[] output, int offset, int stride)
+   {
+      return decodeInto(output, offset, stride, OUTPUT_TYPED, -1, -1);
+   }
+
+   /**
+    * Decodes the image into a caller owned array of ARGB pixels, see
+    * {@link #decodeInto(byte[], int, int)}.
+    */
+   public boolean decodeInto(int[] output, int offset, int stride)
+   {
+      return decodeInto(output, offset, stride, OUTPUT_TYPED, -1, -1);
+   }
+
+   /**
+    * Decodes the image into a caller owned byte buffer. Each pixel is stored
+    * on 1, 2 or 4 bytes, as in {@link #getImage8()}, {@link #getImage16()}
+    * or {@link #getImage24()}, in the byte order of the buffer. The position
+    * and the limit of the buffer are left unchanged.
+    * <p>
+    * The pixels are written straight into the native memory of a direct
+    * buffer, which keeps large rasters out of the Java heap. On Java 21 and
+    * later, a MemorySegment is filled through its asByteBuffer() view.
+    *
+    * @param output buffer receiving the pixels.
+    * @param offset index, in bytes from the buffer position, of the first
+    *    pixel of the image.
+    * @param stride number of bytes between two rows.
+    * @return true if the image is decoded properly, otherwise false.
+    * @throws IllegalArgumentException if the buffer is too small or read
+    *    only.
+    */
+   public boolean decodeInto(ByteBuffer output, int offset, int stride)
+   {
+      if (output == null)
+      {
+         throw new NullPointerException("The output buffer is null");
+      }
+      if (output.isReadOnly())
+      {
+         throw new IllegalArgumentException("The output buffer is read only.");
+      }
+      if (offset < 0 || stride < 0)
+      {
+         throw new IllegalArgumentException("Invalid offset or stride.");
+      }
+      int layout = output.order() == ByteOrder.BIG_ENDIAN ?
+            OUTPUT_BIG_ENDIAN : OUTPUT_LITTLE_ENDIAN;
+      if (output.isDirect())
+      {
+         return decodeInto(output, output.position() + offset, stride, layout,
+               -1, output.limit());
+      }
+      int start = output.arrayOffset() + output.position();
+      return decodeInto(output.array(), start + offset, stride, layout, -1,
+            start + output.remaining());
+   }
+
+   /**
+    * Decodes the image into a caller owned raster, from its top left corner.
+    * The raster must have a single band of bytes or shorts for grey images,
+    * or pack ARGB pixels in ints for color images, like the rasters of
+    * BufferedImage.TYPE_BYTE_GRAY, TYPE_USHORT_GRAY and TYPE_INT_ARGB.
+    *
+    * @param raster raster receiving the pixels.
+    * @return true if the image is decoded properly, otherwise false.
+    * @throws IllegalArgumentException if the raster does not match the
+    *    image or is too small.
+    */
+   public boolean decodeInto(WritableRaster raster)
+   {
+      SampleModel model = raster.getSampleModel();
+      DataBuffer buffer = raster.getDataBuffer();
+      int x = raster.getMinX() - raster.getSampleModelTranslateX();
+      int y = raster.getMinY() - raster.getSampleModelTranslateY();
+      int offset;
+      int stride;
+      Object data;
+
+      if (buffer.getNumBanks() != 1)
+      {
+         throw new IllegalArgumentException("Unsupported raster data buffer.");
+      }
+      if (model instanceof ComponentSampleModel && model.getNumBands() == 1 &&
+            ((ComponentSampleModel) model).getPixelStride() == 1)
+      {
+         ComponentSampleModel component = (ComponentSampleModel) model;
+         offset = component.getOffset(x, y);
+         stride = component.getScanlineStride();
+      }
+      else if (model instanceof SinglePixelPackedSampleModel &&
+            buffer instanceof DataBufferInt)
+      {
+         SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) model;
+         int[] masks = packed.getBitMasks();
+         if (masks.length < 3 || masks[0] != 0xff0000 || masks[1] != 0xff00 ||
+               masks[2] != 0xff)
+         {
+            throw new IllegalArgumentException("Raster pixels are not packed as ARGB.");
+         }
+         offset = packed.getOffset(x, y);
+         stride = packed.getScanlineStride();
+      }
+      else
+      {
+         throw new IllegalArgumentException("Unsupported raster sample model.");
+      }
+
+      if (buffer instanceof DataBufferByte)
+      {
+         data = ((DataBufferByte) buffer).getData();
+      }
+      else if (buffer instanceof DataBufferUShort)
+      {
+         data = ((DataBufferUShort) buffer).getData();
+      }
+      else if (buffer instanceof DataBufferShort)
+      {
+         data = ((DataBufferShort) buffer).getData();
+      }
+      else if (buffer instanceof DataBufferInt)
+      {
+         data = ((DataBufferInt) buffer).getData();
+      }
+      else
+      {
+         throw new IllegalArgumentException("Unsupported raster data buffer.");
+      }
+
+      offset += buffer.getOffset();
+      return decodeInto(data, offset, stride, OUTPUT_TYPED, raster.getWidth(),
+            offset + (raster.getHeight() - 1) * stride + raster.getWidth());
+   }
+
+   private boolean decodeInto(Object output, int offset, int stride, int layout,
+         int maxWidth, int limit)
+   {
+      if (output == null)
+      {
+         throw new NullPointerException("The output buffer is null");
+      }
+      reset();
+      return decodeImageInto(-1, output, offset, stride, layout,
+            maxWidth, limit);
+   }
+
+   /**
+    * Decodes one tile of the Jpeg2000 image previously set as input into a
+    * caller owned array, at its position in the decoded image, so that
+    * concurrent decoders can fill disjoint tiles of the same array. See
+    * {@link #decodeInto(byte[], int, int)}.
+    *
+    * @param tileIndex index of the tile to decode.
+    * @return true if the tile is decoded properly, otherwise false.
+    */
+   boolean decodeTileInto(int tileIndex, Object output, int offset, int stride)
+   {
+      if (output == null)
+      {
+         throw new NullPointerException("The output buffer is null");
+      }
+      return decodeImageInto(tileIndex, output, offset, stride,
+            OUTPUT_TYPED, -1, -1);
+   }
+
+   /**
+    * Decodes only the header of the given Jpeg2000 file. The file is mapped
+    * in memory and the codec reads it in 64 KB chunks up to the end of the
+    * main header, so only the first pages are read from the disk. See
+    * {@link OpenJpegHeaderCache} to avoid probing the same file twice.
+    *
+    * @param filename file to probe, or null for the current input.
+    * @return true if the header is decoded properly, otherwise false.
+    */
    public boolean decodeHeader(String filename)
    {
       reset();
@@ -254,14 +1307,131 @@ public class OpenJpegDecoder
       {
          try
          {
-            setByteInputStream(getBytesFromFile(new File(filename)));
+            setByteBufferInputStream(mapFile(new File(filename)));
          }
          catch (IOException e)
          {
-            logger.error("Cannot convert to byte array the file: " + filename, e);
+            logger.error("Cannot map in memory the file: " + filename, e);
+            // never decode the previous input instead
+            return false;
+         }
+      }
+      return bufferUnknownLengthInput() && internalOpenJpegDecodeHeader();
+   }
+
+   /**
+    * Decodes only the header of the Jpeg2000 image held by direct buffers.
+    *
+    * @param compressedStream direct buffers containing the encoded image.
+    * @return true if the header is decoded properly, otherwise false.
+    */
+   public boolean decodeHeader(ByteBuffer... compressedStream)
+   {
+      reset();
+      setByteBufferInputStream(compressedStream);
+      return bufferUnknownLengthInput() && internalOpenJpegDecodeHeader();
+   }
+
+   /**
+    * Decodes only the header of the Jpeg2000 image pulled from a stream.
+    *
+    * @param input the encoded image.
+    * @return true if the header is decoded properly, otherwise false.
+    */
+   public boolean decodeHeader(OpenJpegSeekableInput input)
+   {
+      reset();
+      setSeekableInput(input);
+      return bufferUnknownLengthInput() && internalOpenJpegDecodeHeader();
+   }
+
+   /**
+    * Replaces a seekable input of unknown length by its bytes, read up to
+    * its end: the codec needs the length of its input. The input is then
+    * decoded from memory, as many times as needed.
+    *
+    * @return false if the input cannot be read.
+    */
+   private boolean bufferUnknownLengthInput()
+   {
+      if (seekableInput == null || inputLength() >= 0)
+      {
+         return true;
+      }
+      try
+      {
+         if (!seekableInput.seek(0))
+         {
+            logger.error("Cannot rewind the input stream.");
+            return false;
+         }
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+         int read;
+         while ((read = seekableInput.read(chunk, 0, chunk.length)) >= 0)
+         {
+            bytes.write(chunk, 0, read);
          }
+         setByteInputStream(bytes.toByteArray());
+         return true;
+      }
+      catch (IOException e)
+      {
+         logger.error("Cannot read the input stream.", e);
+         return false;
+      }
+   }
+
+   private boolean decodeImage()
+   {
+      OpenJpegDecoderMetrics metrics = OpenJpegDecoderMetrics.getInstance();
+      boolean success = false;
+      metrics.decodeStarted();
+      try
+      {
+         success = bufferUnknownLengthInput() && internalOpenJpegDecode();
+         return success;
+      }
+      finally
+      {
+         metrics.decodeFinished(success);
+      }
+   }
+
+   private boolean decodeImageTiles()
+   {
+      OpenJpegDecoderMetrics metrics = OpenJpegDecoderMetrics.getInstance();
+      boolean success = false;
+      metrics.decodeStarted();
+      try
+      {
+         success = bufferUnknownLengthInput() &&
+               internalOpenJpegDecodeTiles();
+         return success;
+      }
+      finally
+      {
+         metrics.decodeFinished(success);
+      }
+   }
+
+   private boolean decodeImageInto(int tileIndex, Object output, int offset,
+         int stride, int layout, int maxWidth, int limit)
+   {
+      OpenJpegDecoderMetrics metrics = OpenJpegDecoderMetrics.getInstance();
+      boolean success = false;
+      metrics.decodeStarted();
+      try
+      {
+         success = bufferUnknownLengthInput() &&
+               internalOpenJpegDecodeInto(tileIndex, output, offset,
+                     stride, layout, maxWidth, limit);
+         return success;
+      }
+      finally
+      {
+         metrics.decodeFinished(success);
       }
-      return internalOpenJpegDecodeHeader();
    }
 
    /**
@@ -278,4 +1448,27 @@ public class OpenJpegDecoder
     */
    private native boolean internalOpenJpegDecode();
 
-}
\ No newline at end of file
+   /**
+    * Decodes the Jpeg2000 image tile by tile, see
+    * {@link #decodeTiles(TileConsumer)}.
+    *
+    * @return true if all the tiles are decoded properly, otherwise false.
+    */
+   private native boolean internalOpenJpegDecodeTiles();
+
+   /**
+    * Decodes the Jpeg2000 image, or one of its tiles, into the given array
+    * or direct byte buffer, see {@link #decodeInto(byte[], int, int)}.
+    *
+    * @param tileIndex index of the tile to decode, -1 for the whole image.
+    * @param layout one of the OUTPUT_* layouts.
+    * @param maxWidth width in pixels of the output, not checked if negative.
+    * @param limit index of the array element past the output, the array
+    *    length if negative.
+    * @return true if the image is decoded properly, otherwise false.
+    */
+   private native boolean internalOpenJpegDecodeInto(int tileIndex,
+         Object output, int offset, int stride, int layout, int maxWidth,
+         int limit);
+
+}
@@ -0,0 +1,297 @@
+package fr.gael.openjpeg;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import fr.gael.openjpeg.OpenJpegDecodeStatistics.Phase;
+
+/**
+ * Decoding metrics aggregated over all the decoders of the JVM, published
+ * through JMX on first use. Each decoding records its
+ * {@link OpenJpegDecodeStatistics}.
+ */
+public final class OpenJpegDecoderMetrics implements OpenJpegDecoderMetricsMBean
+{
+   public static final String NAME = "fr.gael.openjpeg:type=OpenJpegDecoderMetrics";
+
+   private static final Logger LOGGER = Logger.getLogger(OpenJpegDecoderMetrics.class);
+   private static final OpenJpegDecoderMetrics INSTANCE = new OpenJpegDecoderMetrics();
+
+   // buckets of powers of two microseconds, from 1 us to about 17 minutes
+   private static final int BUCKETS = 31;
+
+   static
+   {
+      try
+      {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(NAME);
+         if (!server.isRegistered(name))
+         {
+            server.registerMBean(INSTANCE, name);
+         }
+      }
+      catch (JMException e)
+      {
+         LOGGER.warn("Cannot register the decoder metrics MBean.", e);
+      }
+   }
+
+   private final AtomicInteger decodesInFlight = new AtomicInteger();
+   private final AtomicLong decodeCount = new AtomicLong();
+   private final AtomicLong failedDecodeCount = new AtomicLong();
+   private final AtomicLong bytesIn = new AtomicLong();
+   private final AtomicLong codestreamBytes = new AtomicLong();
+   private final AtomicLong bytesOut = new AtomicLong();
+   private final AtomicLong peakNativeMemory = new AtomicLong();
+   private final AtomicLong totalWallNanos = new AtomicLong();
+   private final AtomicLong totalCpuNanos = new AtomicLong();
+   private final AtomicLong readNanos = new AtomicLong();
+   private final AtomicLongArray phaseWallNanos = new AtomicLongArray(Phase.values().length);
+   private final AtomicLongArray phaseCpuNanos = new AtomicLongArray(Phase.values().length);
+   private final AtomicLongArray decodeTimeHistogram = new AtomicLongArray(BUCKETS);
+   private final AtomicLongArray[] phaseTimeHistograms = new AtomicLongArray[Phase.values().length];
+
+   private OpenJpegDecoderMetrics()
+   {
+      for (int i = 0; i < phaseTimeHistograms.length; i++)
+      {
+         phaseTimeHistograms[i] = new AtomicLongArray(BUCKETS);
+      }
+   }
+
+   /**
+    * @return the metrics of the JVM, registered in the platform MBean
+    *    server.
+    */
+   public static OpenJpegDecoderMetrics getInstance()
+   {
+      return INSTANCE;
+   }
+
+   void decodeStarted()
+   {
+      decodesInFlight.incrementAndGet();
+   }
+
+   void decodeFinished(boolean success)
+   {
+      decodesInFlight.decrementAndGet();
+      if (!success)
+      {
+         failedDecodeCount.incrementAndGet();
+      }
+   }
+
+   void record(OpenJpegDecodeStatistics statistics)
+   {
+      decodeCount.incrementAndGet();
+      bytesIn.addAndGet(statistics.getBytesIn());
+      codestreamBytes.addAndGet(statistics.getCodestreamBytes());
+      bytesOut.addAndGet(statistics.getBytesOut());
+      totalWallNanos.addAndGet(statistics.getTotalWallNanos());
+      totalCpuNanos.addAndGet(statistics.getTotalCpuNanos());
+      readNanos.addAndGet(statistics.getReadNanos());
+      for (Phase phase : Phase.values())
+      {
+         long wall = statistics.getWallNanos(phase);
+         phaseWallNanos.addAndGet(phase.ordinal(), wall);
+         phaseCpuNanos.addAndGet(phase.ordinal(), statistics.getCpuNanos(phase));
+         phaseTimeHistograms[phase.ordinal()].incrementAndGet(bucket(wall));
+      }
+      decodeTimeHistogram.incrementAndGet(bucket(statistics.getTotalWallNanos()));
+
+      long memory = statistics.getNativeMemory();
+      long peak = peakNativeMemory.get();
+      while (memory > peak && !peakNativeMemory.compareAndSet(peak, memory))
+      {
+         peak = peakNativeMemory.get();
+      }
+   }
+
+   private static int bucket(long nanos)
+   {
+      long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      return Math.min(bucket, BUCKETS - 1);
+   }
+
+   private static long[] toArray(AtomicLongArray array)
+   {
+      long[] values = new long[array.length()];
+      for (int i = 0; i < values.length; i++)
+      {
+         values[i] = array.get(i);
+      }
+      return values;
+   }
+
+   @Override
+   public int getDecodesInFlight()
+   {
+      return decodesInFlight.get();
+   }
+
+   @Override
+   public long getDecodeCount()
+   {
+      return decodeCount.get();
+   }
+
+   @Override
+   public long getFailedDecodeCount()
+   {
+      return failedDecodeCount.get();
+   }
+
+   @Override
+   public long getBytesIn()
+   {
+      return bytesIn.get();
+   }
+
+   @Override
+   public long getCodestreamBytes()
+   {
+      return codestreamBytes.get();
+   }
+
+   @Override
+   public long getBytesOut()
+   {
+      return bytesOut.get();
+   }
+
+   @Override
+   public long getPeakNativeMemory()
+   {
+      return peakNativeMemory.get();
+   }
+
+   @Override
+   public long getTotalWallNanos()
+   {
+      return totalWallNanos.get();
+   }
+
+   @Override
+   public long getTotalCpuNanos()
+   {
+      return totalCpuNanos.get();
+   }
+
+   @Override
+   public long getReadNanos()
+   {
+      return readNanos.get();
+   }
+
+   @Override
+   public String[] getPhaseNames()
+   {
+      Phase[] phases = Phase.values();
+      String[] names = new String[phases.length];
+      for (int i = 0; i < phases.length; i++)
+      {
+         names[i] = phases[i].name();
+      }
+      return names;
+   }
+
+   @Override
+   public long[] getPhaseWallNanos()
+   {
+      return toArray(phaseWallNanos);
+   }
+
+   @Override
+   public long[] getPhaseCpuNanos()
+   {
+      return toArray(phaseCpuNanos);
+   }
+
+   @Override
+   public long[] getHistogramBoundsMicros()
+   {
+      long[] bounds = new long[BUCKETS - 1];
+      for (int i = 0; i < bounds.length; i++)
+      {
+         bounds[i] = 1L << i;
+      }
+      return bounds;
+   }
+
+   @Override
+   public long[] getDecodeTimeHistogram()
+   {
+      return toArray(decodeTimeHistogram);
+   }
+
+   @Override
+   public long[] getPhaseTimeHistogram(String phase)
+   {
+      return toArray(phaseTimeHistograms[Phase.valueOf(phase).ordinal()]);
+   }
+
+   @Override
+   public long getDecodeTimePercentileMicros(double percentile)
+   {
+      long[] histogram = getDecodeTimeHistogram();
+      long count = 0;
+      for (long value : histogram)
+      {
+         count += value;
+      }
+      if (count == 0)
+      {
+         return -1;
+      }
+      long rank = (long) Math.ceil(count * Math.max(0, Math.min(100, percentile)) / 100);
+      long cumulated = 0;
+      for (int i = 0; i < histogram.length - 1; i++)
+      {
+         cumulated += histogram[i];
+         if (cumulated >= Math.max(rank, 1))
+         {
+            return 1L << i;
+         }
+      }
+      return -1;
+   }
+
+   @Override
+   public void reset()
+   {
+      decodeCount.set(0);
+      failedDecodeCount.set(0);
+      bytesIn.set(0);
+      codestreamBytes.set(0);
+      bytesOut.set(0);
+      peakNativeMemory.set(0);
+      totalWallNanos.set(0);
+      totalCpuNanos.set(0);
+      readNanos.set(0);
+      for (int i = 0; i < phaseWallNanos.length(); i++)
+      {
+         phaseWallNanos.set(i, 0);
+         phaseCpuNanos.set(i, 0);
+      }
+      for (int i = 0; i < BUCKETS; i++)
+      {
+         decodeTimeHistogram.set(i, 0);
+         for (AtomicLongArray histogram : phaseTimeHistograms)
+         {
+            histogram.set(i, 0);
+         }
+      }
+   }
+}
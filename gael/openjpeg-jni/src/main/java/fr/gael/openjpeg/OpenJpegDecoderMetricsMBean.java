@@ -0,0 +1,81 @@
+package fr.gael.openjpeg;
+
+/**
+ * Management interface of the decoding metrics aggregated over all the
+ * decoders of the JVM, registered as {@value OpenJpegDecoderMetrics#NAME}.
+ * Times are in nanoseconds unless stated otherwise, sizes in bytes.
+ */
+public interface OpenJpegDecoderMetricsMBean
+{
+   /**
+    * @return the number of decodings in progress.
+    */
+   int getDecodesInFlight();
+
+   /**
+    * @return the number of successful decodings.
+    */
+   long getDecodeCount();
+
+   /**
+    * @return the number of failed decodings.
+    */
+   long getFailedDecodeCount();
+
+   long getBytesIn();
+
+   long getCodestreamBytes();
+
+   long getBytesOut();
+
+   /**
+    * @return the largest native memory estimate of a decoding.
+    */
+   long getPeakNativeMemory();
+
+   long getTotalWallNanos();
+
+   long getTotalCpuNanos();
+
+   long getReadNanos();
+
+   /**
+    * @return the names of the phases, in the order of the phase times.
+    */
+   String[] getPhaseNames();
+
+   long[] getPhaseWallNanos();
+
+   long[] getPhaseCpuNanos();
+
+   /**
+    * @return the upper bounds of the histogram buckets, in microseconds:
+    *    bucket i counts the times below bound i and not below bound i - 1,
+    *    the last bucket counts the longer times.
+    */
+   long[] getHistogramBoundsMicros();
+
+   /**
+    * @return the histogram of the decoding wall times.
+    */
+   long[] getDecodeTimeHistogram();
+
+   /**
+    * @param phase name of a phase, see {@link #getPhaseNames()}.
+    * @return the histogram of the wall times of the phase.
+    */
+   long[] getPhaseTimeHistogram(String phase);
+
+   /**
+    * @param percentile between 0 and 100.
+    * @return the upper bound, in microseconds, of the histogram bucket
+    *    holding the percentile of the decoding wall times, or -1 if no
+    *    decoding is recorded or if it is in the last bucket.
+    */
+   long getDecodeTimePercentileMicros(double percentile);
+
+   /**
+    * Clears the metrics, except the decodings in flight.
+    */
+   void reset();
+}
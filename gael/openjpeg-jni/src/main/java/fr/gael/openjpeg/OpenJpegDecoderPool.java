@@ -0,0 +1,164 @@
+package fr.gael.openjpeg;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of {@link OpenJpegDecoder}, to run concurrent decodings in
+ * one JVM. A decoder is used by one thread at a time: it is borrowed from
+ * the pool, used, then released to the pool with its buffers, which are
+ * reused by the next decodings of the same size.
+ * <p>
+ * At most maxConcurrency decoders are borrowed at the same time, further
+ * borrowers wait for a decoder to be released. Pooled decoders reuse their
+ * image buffers, see {@link OpenJpegDecoder#setReuseImageBuffers(boolean)}.
+ */
+public class OpenJpegDecoderPool
+{
+   private final int maxConcurrency;
+   private final Semaphore permits;
+   private final ConcurrentLinkedQueue<OpenJpegDecoder> idleDecoders;
+   private final Set<OpenJpegDecoder> borrowedDecoders;
+
+   public OpenJpegDecoderPool(int maxConcurrency)
+   {
+      if (maxConcurrency <= 0)
+      {
+         throw new IllegalArgumentException("Invalid maximum concurrency.");
+      }
+      this.maxConcurrency = maxConcurrency;
+      this.permits = new Semaphore(maxConcurrency, true);
+      this.idleDecoders = new ConcurrentLinkedQueue<>();
+      this.borrowedDecoders = Collections.newSetFromMap(
+            new ConcurrentHashMap<OpenJpegDecoder, Boolean>());
+   }
+
+   public int getMaxConcurrency()
+   {
+      return maxConcurrency;
+   }
+
+   /**
+    * @return number of decoders currently borrowed.
+    */
+   public int getBorrowedCount()
+   {
+      return borrowedDecoders.size();
+   }
+
+   /**
+    * Borrows a decoder, waiting for one to be released if maxConcurrency
+    * decoders are already borrowed.
+    *
+    * @return a decoder, to release with {@link #release(OpenJpegDecoder)}.
+    * @throws InterruptedException if interrupted while waiting.
+    */
+   public OpenJpegDecoder borrow() throws InterruptedException
+   {
+      permits.acquire();
+      return take();
+   }
+
+   /**
+    * Borrows a decoder, waiting at most the given time for one to be
+    * released if maxConcurrency decoders are already borrowed.
+    *
+    * @return a decoder, or null if none was released in time.
+    * @throws InterruptedException if interrupted while waiting.
+    */
+   public OpenJpegDecoder borrow(long timeout, TimeUnit unit)
+         throws InterruptedException
+   {
+      if (!permits.tryAcquire(timeout, unit))
+      {
+         return null;
+      }
+      return take();
+   }
+
+   /**
+    * Gives back a borrowed decoder to the pool. Its input and decoding
+    * options are cleared, its image buffers are kept for reuse.
+    *
+    * @param decoder a decoder borrowed from this pool.
+    * @throws IllegalArgumentException if the decoder is not borrowed from
+    *    this pool.
+    */
+   public void release(OpenJpegDecoder decoder)
+   {
+      if (decoder == null || !borrowedDecoders.remove(decoder))
+      {
+         throw new IllegalArgumentException(
+               "Decoder not borrowed from this pool.");
+      }
+      decoder.resetDecodingOptions();
+      idleDecoders.offer(decoder);
+      permits.release();
+   }
+
+   /**
+    * Decodes a file with a borrowed decoder.
+    *
+    * @param filename path of the Jpeg2000 file.
+    * @return the decoding result, to close once its pixels are consumed.
+    * @throws InterruptedException if interrupted while waiting for a
+    *    decoder.
+    */
+   public OpenJpegDecodeResult decode(String filename)
+         throws InterruptedException
+   {
+      OpenJpegDecoder decoder = borrow();
+      try
+      {
+         return new OpenJpegDecodeResult(this, decoder,
+               decoder.decode(filename));
+      }
+      catch (RuntimeException | Error e)
+      {
+         release(decoder);
+         throw e;
+      }
+   }
+
+   /**
+    * Decodes direct buffers with a borrowed decoder.
+    *
+    * @param compressedStream direct buffers containing the encoded image.
+    * @return the decoding result, to close once its pixels are consumed.
+    * @throws InterruptedException if interrupted while waiting for a
+    *    decoder.
+    * @see OpenJpegDecoder#setByteBufferInputStream(ByteBuffer...)
+    */
+   public OpenJpegDecodeResult decode(ByteBuffer... compressedStream)
+         throws InterruptedException
+   {
+      OpenJpegDecoder decoder = borrow();
+      try
+      {
+         return new OpenJpegDecodeResult(this, decoder,
+               decoder.decode(compressedStream));
+      }
+      catch (RuntimeException | Error e)
+      {
+         release(decoder);
+         throw e;
+      }
+   }
+
+   private OpenJpegDecoder take()
+   {
+      OpenJpegDecoder decoder = idleDecoders.poll();
+      if (decoder == null)
+      {
+         decoder = new OpenJpegDecoder();
+         decoder.setReuseImageBuffers(true);
+      }
+      borrowedDecoders.add(decoder);
+      return decoder;
+   }
+}
@@ -0,0 +1,609 @@
+package fr.gael.openjpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Jpeg2000 encoder writing the image tile by tile: the samples of each tile
+ * are pulled from a {@link TileSource} when the codec needs them, or read
+ * natively from a direct buffer holding the whole image, encoded, and the
+ * encoded bytes are pushed to the output before the next tile is encoded.
+ * Besides the samples of a direct buffer, only one tile of samples is held
+ * in memory, in Java and in the native codec, whatever the size of the
+ * image; the encoded bytes are never gathered in memory.
+ * <p>
+ * The output is either an {@link OpenJpegSeekableOutput} or a channel: the
+ * bytes are handed to the channel from a direct buffer, without copy to the
+ * Java heap. JP2 files need a {@link SeekableByteChannel}, the codec going
+ * back to write the length of the codestream box, whereas raw codestreams
+ * are written sequentially to any channel.
+ */
+public class OpenJpegEncoder
+{
+   // Codec formats, as defined by openjp2 OPJ_CODEC_FORMAT
+   public static final int FORMAT_J2K = 0;
+   public static final int FORMAT_JP2 = 2;
+
+   private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+   // Logger
+   private final Logger logger = Logger.getLogger(OpenJpegEncoder.class);
+
+   // Coding parameters
+   private int codecFormat = FORMAT_JP2;
+   private int resolutionsNumber = 6;
+   private int progressionOrder = OpenJpegHeader.PROGRESSION_LRCP;
+   private float[] compressionRatios = new float[0];
+   private boolean irreversible = false;
+
+   // Encoded image properties
+   private int width = -1;
+   private int height = -1;
+   private int componentsNumber = -1;
+   private int precision = -1;
+   private boolean signed = false;
+   private boolean alpha = false;
+
+   // Tile size, a single tile when width or height is not positive
+   private int tileWidth = -1;
+   private int tileHeight = -1;
+
+   // Current encoding, buffers are reused from an encoding to the next one
+   private TileSource tileSource = null;
+   private ByteBuffer imageSamples = null;
+   private OpenJpegSeekableOutput seekableOutput = null;
+   private WritableByteChannel outputChannel = null;
+   private long outputOrigin = 0;
+   private ByteBuffer streamChunk = null;
+   private byte[] outputBytes = null;
+   private byte[] tileSamples8 = null;
+   private short[] tileSamples16 = null;
+   private int[] tileSamples32 = null;
+   private IOException failure = null;
+
+   public OpenJpegEncoder()
+   {
+      OpenJpegDecoder.loadLibraries();
+   }
+
+   public int getCodecFormat()
+   {
+      return codecFormat;
+   }
+
+   /**
+    * @param codecFormat {@link #FORMAT_JP2} (default) for a JP2 file, or
+    *    {@link #FORMAT_J2K} for a raw codestream.
+    */
+   public void setCodecFormat(int codecFormat)
+   {
+      if (codecFormat != FORMAT_JP2 && codecFormat != FORMAT_J2K)
+      {
+         throw new IllegalArgumentException("Invalid codec format.");
+      }
+      this.codecFormat = codecFormat;
+   }
+
+   public int getResolutionsNumber()
+   {
+      return resolutionsNumber;
+   }
+
+   /**
+    * Sets the number of resolution levels, 6 by default, at most
+    * {@link #getMaxResolutionsNumber()} when encoding.
+    */
+   public void setResolutionsNumber(int resolutionsNumber)
+   {
+      if (resolutionsNumber <= 0 || resolutionsNumber > 32)
+      {
+         throw new IllegalArgumentException("Invalid number of resolutions.");
+      }
+      this.resolutionsNumber = resolutionsNumber;
+   }
+
+   public int getProgressionOrder()
+   {
+      return progressionOrder;
+   }
+
+   /**
+    * @param progressionOrder one of the OpenJpegHeader.PROGRESSION_* orders,
+    *    LRCP by default.
+    */
+   public void setProgressionOrder(int progressionOrder)
+   {
+      if (progressionOrder < OpenJpegHeader.PROGRESSION_LRCP ||
+            progressionOrder > OpenJpegHeader.PROGRESSION_CPRL)
+      {
+         throw new IllegalArgumentException("Invalid progression order.");
+      }
+      this.progressionOrder = progressionOrder;
+   }
+
+   public float[] getCompressionRatios()
+   {
+      return compressionRatios.clone();
+   }
+
+   /**
+    * Sets the compression ratio of each quality layer, decreasing. No ratio
+    * gives a single layer holding all the coded data, lossless when the
+    * transform is reversible.
+    */
+   public void setCompressionRatios(float... compressionRatios)
+   {
+      if (compressionRatios.length > 100)
+      {
+         throw new IllegalArgumentException("Too many quality layers.");
+      }
+      this.compressionRatios = compressionRatios.clone();
+   }
+
+   public boolean isIrreversible()
+   {
+      return irreversible;
+   }
+
+   /**
+    * Selects the irreversible 9-7 wavelet instead of the reversible 5-3.
+    */
+   public void setIrreversible(boolean irreversible)
+   {
+      this.irreversible = irreversible;
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public int getHeight()
+   {
+      return height;
+   }
+
+   public int getComponentsNumber()
+   {
+      return componentsNumber;
+   }
+
+   public int getPrecision()
+   {
+      return precision;
+   }
+
+   public boolean isSigned()
+   {
+      return signed;
+   }
+
+   /**
+    * Describes the image to encode. Grey images have 1 component, RGB
+    * images 3, optionally followed by an alpha component.
+    *
+    * @param precision number of bits of every sample, from 1 to 32.
+    * @param signed true if the samples are signed.
+    */
+   public void setImage(int width, int height, int componentsNumber,
+         int precision, boolean signed)
+   {
+      if (width <= 0 || height <= 0)
+      {
+         throw new IllegalArgumentException("Invalid image size.");
+      }
+      if (componentsNumber <= 0)
+      {
+         throw new IllegalArgumentException("Invalid number of components.");
+      }
+      if (precision <= 0 || precision > 32)
+      {
+         throw new IllegalArgumentException("Invalid precision.");
+      }
+      this.width = width;
+      this.height = height;
+      this.componentsNumber = componentsNumber;
+      this.precision = precision;
+      this.signed = signed;
+   }
+
+   public boolean isAlpha()
+   {
+      return alpha;
+   }
+
+   /**
+    * Declares the last component as the opacity of the image, in the JP2
+    * channel definition box.
+    */
+   public void setAlpha(boolean alpha)
+   {
+      this.alpha = alpha;
+   }
+
+   public int getTileWidth()
+   {
+      return tileWidth;
+   }
+
+   public int getTileHeight()
+   {
+      return tileHeight;
+   }
+
+   /**
+    * Splits the image in tiles of the given size, from the top left corner
+    * of the image, or in a single tile if width or height is not positive.
+    */
+   public void setTileSize(int tileWidth, int tileHeight)
+   {
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+   }
+
+   /**
+    * Returns the highest number of resolutions the tiles of the image can
+    * be encoded with: every tile, the edge ones included, must be at least
+    * 2^(resolutionsNumber - 1) pixels wide and high. The codec only checks
+    * the nominal tile size, and writes corrupted edge tiles when they are
+    * smaller.
+    *
+    * @throws IllegalStateException if the image is not described.
+    */
+   public int getMaxResolutionsNumber()
+   {
+      if (width <= 0)
+      {
+         throw new IllegalStateException("The image to encode is not set.");
+      }
+      boolean tiled = tileWidth > 0 && tileHeight > 0;
+      int minSize = Math.min(getMinTileSize(width, tiled ? tileWidth : width),
+            getMinTileSize(height, tiled ? tileHeight : height));
+      int max = 1;
+      while (max < 32 && (1L << max) <= minSize)
+      {
+         max++;
+      }
+      return max;
+   }
+
+   /**
+    * @return the size of the smallest tile along an axis of the image.
+    */
+   private static int getMinTileSize(int size, int tileSize)
+   {
+      if (tileSize >= size)
+      {
+         return size;
+      }
+      return size % tileSize == 0 ? tileSize : size % tileSize;
+   }
+
+   /**
+    * Encodes the image described by {@link #setImage(int, int, int, int,
+    * boolean)}, tile by tile: the samples of each tile are requested from
+    * the source in turn, and encoded to the output before the next one is
+    * requested.
+    *
+    * @param source provides the samples of the tiles.
+    * @param output receives the encoded image.
+    * @return true if the image is encoded properly, otherwise false.
+    * @throws IOException if the source or the output fails.
+    * @throws IllegalStateException if the image is not described.
+    * @throws IllegalArgumentException if the number of resolutions is
+    *    higher than {@link #getMaxResolutionsNumber()}.
+    */
+   public boolean encodeTiles(TileSource source, OpenJpegSeekableOutput output)
+         throws IOException
+   {
+      if (source == null)
+      {
+         throw new NullPointerException("The tile source is null");
+      }
+      if (output == null)
+      {
+         throw new NullPointerException("The output is null");
+      }
+      return encode(source, null, output, null);
+   }
+
+   /**
+    * Encodes the image tile by tile to a channel, see
+    * {@link #encodeTiles(TileSource, OpenJpegSeekableOutput)}. The image is
+    * written from the current position of the channel.
+    *
+    * @throws IllegalArgumentException if the image is a JP2 file and the
+    *    channel is not seekable.
+    */
+   public boolean encodeTiles(TileSource source, WritableByteChannel output)
+         throws IOException
+   {
+      if (source == null)
+      {
+         throw new NullPointerException("The tile source is null");
+      }
+      checkChannel(output);
+      return encode(source, null, null, output);
+   }
+
+   /**
+    * Encodes the image described by {@link #setImage(int, int, int, int,
+    * boolean)} from the samples of a direct buffer, read by the native code
+    * without copy to the Java heap. The samples are planar, from the
+    * position of the buffer: the samples of each component are stored row
+    * by row, from sample {@code component * width * height}. Each sample
+    * takes 1 byte for precisions up to 8 bits, 2 bytes up to 16 bits and 4
+    * bytes above, in the native byte order.
+    *
+    * @param samples direct buffer holding the samples of the image.
+    * @param output receives the encoded image, from its current position.
+    * @return true if the image is encoded properly, otherwise false.
+    * @throws IOException if the output fails.
+    * @throws IllegalStateException if the image is not described.
+    * @throws IllegalArgumentException if the buffer is not direct or too
+    *    small, if the image is a JP2 file and the channel is not seekable,
+    *    or if the number of resolutions is higher than
+    *    {@link #getMaxResolutionsNumber()}.
+    */
+   public boolean encode(ByteBuffer samples, WritableByteChannel output)
+         throws IOException
+   {
+      if (samples == null)
+      {
+         throw new NullPointerException("The samples are null");
+      }
+      if (!samples.isDirect())
+      {
+         throw new IllegalArgumentException("The samples buffer is not direct.");
+      }
+      if (width <= 0)
+      {
+         throw new IllegalStateException("The image to encode is not set.");
+      }
+      long length = (long) width * height * componentsNumber *
+            (precision <= 8 ? 1 : (precision <= 16 ? 2 : 4));
+      if (samples.remaining() < length)
+      {
+         throw new IllegalArgumentException("The samples buffer holds " +
+               samples.remaining() + " bytes, " + length + " expected.");
+      }
+      checkChannel(output);
+      // the native code reads from the start of the slice
+      return encode(null, samples.slice(), null, output);
+   }
+
+   /**
+    * @throws IllegalArgumentException if the codec needs to seek the
+    *    channel and cannot.
+    */
+   private void checkChannel(WritableByteChannel output)
+   {
+      if (output == null)
+      {
+         throw new NullPointerException("The output is null");
+      }
+      if (codecFormat == FORMAT_JP2 && !(output instanceof SeekableByteChannel))
+      {
+         throw new IllegalArgumentException(
+               "JP2 files can only be written to seekable channels.");
+      }
+   }
+
+   /**
+    * Encodes the samples of the source or of the buffer to the output or
+    * to the channel.
+    */
+   private boolean encode(TileSource source, ByteBuffer samples,
+         OpenJpegSeekableOutput output, WritableByteChannel channel)
+         throws IOException
+   {
+      if (width <= 0)
+      {
+         throw new IllegalStateException("The image to encode is not set.");
+      }
+      if (resolutionsNumber > getMaxResolutionsNumber())
+      {
+         throw new IllegalArgumentException(
+               "Too many resolutions for the size of the tiles.");
+      }
+
+      if (streamChunk == null)
+      {
+         streamChunk = ByteBuffer.allocateDirect(STREAM_CHUNK_SIZE);
+      }
+      tileSource = source;
+      imageSamples = samples;
+      seekableOutput = output;
+      outputChannel = channel;
+      outputOrigin = channel instanceof SeekableByteChannel ?
+            ((SeekableByteChannel) channel).position() : 0;
+      failure = null;
+      try
+      {
+         boolean success = internalOpenJpegEncodeTiles();
+         if (failure != null)
+         {
+            throw failure;
+         }
+         return success;
+      }
+      finally
+      {
+         tileSource = null;
+         imageSamples = null;
+         seekableOutput = null;
+         outputChannel = null;
+         failure = null;
+      }
+   }
+
+   /**
+    * Requests the samples of a tile from the current source. Called by the
+    * native code, which copies them into the codec.
+    *
+    * @return the filled buffer, or null on failure.
+    */
+   protected Object fillTile(int index, int x, int y, int width, int height)
+   {
+      int length = componentsNumber * width * height;
+      Object samples;
+      if (precision <= 8)
+      {
+         if (tileSamples8 == null || tileSamples8.length < length)
+         {
+            tileSamples8 = new byte[length];
+         }
+         samples = tileSamples8;
+      }
+      else if (precision <= 16)
+      {
+         if (tileSamples16 == null || tileSamples16.length < length)
+         {
+            tileSamples16 = new short[length];
+         }
+         samples = tileSamples16;
+      }
+      else
+      {
+         if (tileSamples32 == null || tileSamples32.length < length)
+         {
+            tileSamples32 = new int[length];
+         }
+         samples = tileSamples32;
+      }
+
+      try
+      {
+         tileSource.fillTile(index, x, y, width, height, samples);
+         return samples;
+      }
+      catch (IOException e)
+      {
+         fail("Cannot get the samples of tile " + index + ".", e);
+         return null;
+      }
+   }
+
+   /**
+    * Writes the first bytes of the stream chunk to the output. Called by the
+    * native code, which copied the encoded bytes into the chunk.
+    */
+   protected boolean writeOutput(int length)
+   {
+      try
+      {
+         writeChunk(length);
+         return true;
+      }
+      catch (IOException e)
+      {
+         fail("Cannot write the output stream.", e);
+         return false;
+      }
+   }
+
+   /**
+    * Skips bytes of the output, filling them with zeros: the codec skips
+    * the headers it writes at the end. Called by the native code, once the
+    * stream chunk is written.
+    *
+    * @return the number of bytes skipped, or -1 on failure.
+    */
+   protected long skipOutput(long count)
+   {
+      streamChunk.clear();
+      for (int i = (int) Math.min(count, streamChunk.capacity()); i > 0; i--)
+      {
+         streamChunk.put((byte) 0);
+      }
+      try
+      {
+         for (long skipped = 0; skipped < count; )
+         {
+            int length = (int) Math.min(count - skipped, streamChunk.capacity());
+            writeChunk(length);
+            skipped += length;
+         }
+         return count;
+      }
+      catch (IOException e)
+      {
+         fail("Cannot skip the output stream.", e);
+         return -1;
+      }
+   }
+
+   /**
+    * Moves the output. Called by the native code.
+    */
+   protected boolean seekOutput(long position)
+   {
+      try
+      {
+         if (outputChannel == null)
+         {
+            return seekableOutput.seek(position);
+         }
+         if (!(outputChannel instanceof SeekableByteChannel))
+         {
+            logger.error("Cannot seek a sequential channel.");
+            return false;
+         }
+         ((SeekableByteChannel) outputChannel).position(outputOrigin + position);
+         return true;
+      }
+      catch (IOException e)
+      {
+         fail("Cannot seek the output stream.", e);
+         return false;
+      }
+   }
+
+   /**
+    * Writes the first bytes of the stream chunk to the channel, or through
+    * a heap copy to the seekable output.
+    */
+   private void writeChunk(int length) throws IOException
+   {
+      streamChunk.clear().limit(length);
+      if (outputChannel != null)
+      {
+         while (streamChunk.hasRemaining())
+         {
+            outputChannel.write(streamChunk);
+         }
+         return;
+      }
+      if (outputBytes == null)
+      {
+         outputBytes = new byte[STREAM_CHUNK_SIZE];
+      }
+      streamChunk.get(outputBytes, 0, length);
+      seekableOutput.write(outputBytes, 0, length);
+   }
+
+   /**
+    * Logs a failure of the source or the output, the first one is thrown
+    * once the native encoding is over.
+    */
+   private void fail(String message, IOException e)
+   {
+      logger.error(message, e);
+      if (failure == null)
+      {
+         failure = e;
+      }
+   }
+
+   /**
+    * Encodes the image tile by tile, from the current source or samples
+    * to the current output or channel.
+    *
+    * @return true if the image is encoded properly, otherwise false.
+    */
+   private native boolean internalOpenJpegEncodeTiles();
+}
@@ -0,0 +1,213 @@
+package fr.gael.openjpeg;
+
+/**
+ * Properties of a Jpeg2000 image read from its main header, see
+ * {@link OpenJpegHeaderCache}. Dimensions are given at full resolution.
+ */
+public final class OpenJpegHeader
+{
+   /** Progression orders of the codestream. */
+   public static final int PROGRESSION_LRCP = 0;
+   public static final int PROGRESSION_RLCP = 1;
+   public static final int PROGRESSION_RPCL = 2;
+   public static final int PROGRESSION_PCRL = 3;
+   public static final int PROGRESSION_CPRL = 4;
+
+   private final int width;
+   private final int height;
+   private final int precision;
+   private final int componentsNumber;
+   private final int resolutionsNumber;
+   private final int qualityLayersNumber;
+   private final int imageX0;
+   private final int imageY0;
+   private final int tileOffsetX;
+   private final int tileOffsetY;
+   private final int tileWidth;
+   private final int tileHeight;
+   private final int tileColumns;
+   private final int tileRows;
+   private final int progressionOrder;
+   private final int codeBlockWidth;
+   private final int codeBlockHeight;
+   private final boolean reversible;
+   private final boolean multipleComponentTransform;
+   private final int[] componentPrecisions;
+   private final boolean[] componentSigned;
+   private final int[] componentDx;
+   private final int[] componentDy;
+   private final OpenJpegJp2Boxes jp2Boxes;
+
+   /**
+    * Copies the header properties of a decoder which has just decoded a
+    * header.
+    */
+   OpenJpegHeader(OpenJpegDecoder decoder)
+   {
+      this.width = decoder.getWidth();
+      this.height = decoder.getHeight();
+      this.precision = decoder.getPrecision();
+      this.componentsNumber = decoder.getComponentsNumber();
+      this.resolutionsNumber = decoder.getResolutionsNumber();
+      this.qualityLayersNumber = decoder.getQualityLayersNumber();
+      this.imageX0 = decoder.getImageX0();
+      this.imageY0 = decoder.getImageY0();
+      this.tileOffsetX = decoder.getTileOffsetX();
+      this.tileOffsetY = decoder.getTileOffsetY();
+      this.tileWidth = decoder.getTileWidth();
+      this.tileHeight = decoder.getTileHeight();
+      this.tileColumns = decoder.getTileColumns();
+      this.tileRows = decoder.getTileRows();
+      this.progressionOrder = decoder.getProgressionOrder();
+      this.codeBlockWidth = decoder.getCodeBlockWidth();
+      this.codeBlockHeight = decoder.getCodeBlockHeight();
+      this.reversible = decoder.isReversible();
+      this.multipleComponentTransform = decoder.isMultipleComponentTransform();
+      this.componentPrecisions = decoder.getComponentPrecisions();
+      this.componentSigned = decoder.getComponentSigned();
+      this.componentDx = decoder.getComponentDx();
+      this.componentDy = decoder.getComponentDy();
+      this.jp2Boxes = decoder.getJp2Boxes();
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public int getHeight()
+   {
+      return height;
+   }
+
+   public int getPrecision()
+   {
+      return precision;
+   }
+
+   public int getComponentsNumber()
+   {
+      return componentsNumber;
+   }
+
+   public int getResolutionsNumber()
+   {
+      return resolutionsNumber;
+   }
+
+   public int getQualityLayersNumber()
+   {
+      return qualityLayersNumber;
+   }
+
+   public int getImageX0()
+   {
+      return imageX0;
+   }
+
+   public int getImageY0()
+   {
+      return imageY0;
+   }
+
+   public int getTileOffsetX()
+   {
+      return tileOffsetX;
+   }
+
+   public int getTileOffsetY()
+   {
+      return tileOffsetY;
+   }
+
+   public int getTileWidth()
+   {
+      return tileWidth;
+   }
+
+   public int getTileHeight()
+   {
+      return tileHeight;
+   }
+
+   public int getTileColumns()
+   {
+      return tileColumns;
+   }
+
+   public int getTileRows()
+   {
+      return tileRows;
+   }
+
+   public int getTilesNumber()
+   {
+      return tileColumns * tileRows;
+   }
+
+   /**
+    * @return one of the PROGRESSION_* orders, -1 if unknown.
+    */
+   public int getProgressionOrder()
+   {
+      return progressionOrder;
+   }
+
+   /**
+    * @return the name of the progression order, such as "LRCP".
+    */
+   public String getProgressionOrderName()
+   {
+      String[] names = {"LRCP", "RLCP", "RPCL", "PCRL", "CPRL"};
+      return progressionOrder >= 0 && progressionOrder < names.length ?
+            names[progressionOrder] : "UNKNOWN";
+   }
+
+   public int getCodeBlockWidth()
+   {
+      return codeBlockWidth;
+   }
+
+   public int getCodeBlockHeight()
+   {
+      return codeBlockHeight;
+   }
+
+   public boolean isReversible()
+   {
+      return reversible;
+   }
+
+   public boolean isMultipleComponentTransform()
+   {
+      return multipleComponentTransform;
+   }
+
+   public int[] getComponentPrecisions()
+   {
+      return componentPrecisions == null ? null : componentPrecisions.clone();
+   }
+
+   public boolean[] getComponentSigned()
+   {
+      return componentSigned == null ? null : componentSigned.clone();
+   }
+
+   public int[] getComponentDx()
+   {
+      return componentDx == null ? null : componentDx.clone();
+   }
+
+   public int[] getComponentDy()
+   {
+      return componentDy == null ? null : componentDy.clone();
+   }
+
+   /**
+    * @return the JP2 boxes, or null for a raw codestream.
+    */
+   public OpenJpegJp2Boxes getJp2Boxes()
+   {
+      return jp2Boxes;
+   }
+}
@@ -0,0 +1,128 @@
+package fr.gael.openjpeg;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU cache of Jpeg2000 headers, keyed by file path, last
+ * modification time and size: a file rewritten in place is probed again.
+ * <p>
+ * Probing a file maps it in memory and lets the codec read up to the end of
+ * the main header, in 64 KB chunks, so only the first pages of the file are
+ * loaded, whatever its size. The cache is thread safe; concurrent misses on the
+ * same file may probe it more than once.
+ */
+public class OpenJpegHeaderCache
+{
+   private final int maxEntries;
+   private final Map<Key, OpenJpegHeader> headers;
+
+   public OpenJpegHeaderCache(int maxEntries)
+   {
+      if (maxEntries <= 0)
+      {
+         throw new IllegalArgumentException("Invalid maximum number of entries.");
+      }
+      this.maxEntries = maxEntries;
+      this.headers = new LinkedHashMap<Key, OpenJpegHeader>(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Key, OpenJpegHeader> eldest)
+         {
+            return size() > OpenJpegHeaderCache.this.maxEntries;
+         }
+      };
+   }
+
+   public int getMaxEntries()
+   {
+      return maxEntries;
+   }
+
+   public synchronized int size()
+   {
+      return headers.size();
+   }
+
+   public synchronized void clear()
+   {
+      headers.clear();
+   }
+
+   /**
+    * Returns the header of the given file, read from the cache or probed.
+    *
+    * @param filename path of the Jpeg2000 file.
+    * @return the header, or null if the file does not exist or its header
+    *    cannot be decoded.
+    */
+   public OpenJpegHeader getHeader(String filename)
+   {
+      File file = new File(filename);
+      if (!file.isFile())
+      {
+         return null;
+      }
+      Key key = new Key(file.getAbsolutePath(), file.lastModified(), file.length());
+
+      synchronized (this)
+      {
+         OpenJpegHeader header = headers.get(key);
+         if (header != null)
+         {
+            return header;
+         }
+      }
+
+      OpenJpegDecoder decoder = new OpenJpegDecoder();
+      if (!decoder.decodeHeader(filename))
+      {
+         return null;
+      }
+      OpenJpegHeader header = new OpenJpegHeader(decoder);
+      decoder.resetDecodingOptions();
+
+      synchronized (this)
+      {
+         headers.put(key, header);
+      }
+      return header;
+   }
+
+   private static final class Key
+   {
+      private final String path;
+      private final long lastModified;
+      private final long length;
+
+      Key(String path, long lastModified, long length)
+      {
+         this.path = path;
+         this.lastModified = lastModified;
+         this.length = length;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (!(obj instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key) obj;
+         return path.equals(other.path) && lastModified == other.lastModified &&
+               length == other.length;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int hash = path.hashCode();
+         hash = 31 * hash + (int) (lastModified ^ (lastModified >>> 32));
+         return 31 * hash + (int) (length ^ (length >>> 32));
+      }
+   }
+}
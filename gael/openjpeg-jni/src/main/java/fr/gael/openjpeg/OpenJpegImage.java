@@ -0,0 +1,66 @@
+package fr.gael.openjpeg;
+
+/**
+ * Decoded Jpeg2000 image, as produced by {@link OpenJpegParallelDecoder}.
+ * Only one of the pixel buffers is set, with the layout of
+ * {@link OpenJpegDecoder#getImage8()}, {@link OpenJpegDecoder#getImage16()}
+ * or {@link OpenJpegDecoder#getImage24()}.
+ */
+public final class OpenJpegImage
+{
+   private final int width;
+   private final int height;
+   private final int precision;
+   private final int componentsNumber;
+
+   private final byte[] image8;
+   private final short[] image16;
+   private final int[] image24;
+
+   OpenJpegImage(int width, int height, int precision, int componentsNumber,
+         byte[] image8, short[] image16, int[] image24)
+   {
+      this.width = width;
+      this.height = height;
+      this.precision = precision;
+      this.componentsNumber = componentsNumber;
+      this.image8 = image8;
+      this.image16 = image16;
+      this.image24 = image24;
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public int getHeight()
+   {
+      return height;
+   }
+
+   public int getPrecision()
+   {
+      return precision;
+   }
+
+   public int getComponentsNumber()
+   {
+      return componentsNumber;
+   }
+
+   public byte[] getImage8()
+   {
+      return image8;
+   }
+
+   public short[] getImage16()
+   {
+      return image16;
+   }
+
+   public int[] getImage24()
+   {
+      return image24;
+   }
+}
@@ -0,0 +1,111 @@
+package fr.gael.openjpeg;
+
+/**
+ * Properties of the boxes of a JP2 file read before its codestream, see
+ * {@link OpenJpegHeader#getJp2Boxes()}.
+ */
+public final class OpenJpegJp2Boxes
+{
+   /** Colour specification methods of the colr box. */
+   public static final int METHOD_ENUMERATED = 1;
+   public static final int METHOD_RESTRICTED_ICC = 2;
+
+   private final int brand;
+   private final int minorVersion;
+   private final int[] compatibility;
+   private final int colourMethod;
+   private final int enumeratedColourSpace;
+   private final int iccProfileLength;
+   private final boolean palette;
+   private final boolean channelDefinition;
+
+   OpenJpegJp2Boxes(int brand, int minorVersion, int[] compatibility,
+         int colourMethod, int enumeratedColourSpace, int iccProfileLength,
+         boolean palette, boolean channelDefinition)
+   {
+      this.brand = brand;
+      this.minorVersion = minorVersion;
+      this.compatibility = compatibility.clone();
+      this.colourMethod = colourMethod;
+      this.enumeratedColourSpace = enumeratedColourSpace;
+      this.iccProfileLength = iccProfileLength;
+      this.palette = palette;
+      this.channelDefinition = channelDefinition;
+   }
+
+   /**
+    * @return the four characters of a box type or brand, such as "jp2 ".
+    */
+   public static String toFourCC(int type)
+   {
+      char[] chars = new char[4];
+      for (int i = 0; i < 4; i++)
+      {
+         chars[i] = (char) ((type >>> (24 - 8 * i)) & 0xFF);
+      }
+      return new String(chars);
+   }
+
+   /**
+    * @return the brand of the ftyp box.
+    */
+   public int getBrand()
+   {
+      return brand;
+   }
+
+   public int getMinorVersion()
+   {
+      return minorVersion;
+   }
+
+   /**
+    * @return the compatibility list of the ftyp box.
+    */
+   public int[] getCompatibility()
+   {
+      return compatibility.clone();
+   }
+
+   /**
+    * @return the method of the colr box, {@link #METHOD_ENUMERATED} or
+    *    {@link #METHOD_RESTRICTED_ICC}, 0 without colr box.
+    */
+   public int getColourMethod()
+   {
+      return colourMethod;
+   }
+
+   /**
+    * @return the enumerated colour space of the colr box, such as 16 for
+    *    sRGB, 17 for greyscale or 18 for sYCC.
+    */
+   public int getEnumeratedColourSpace()
+   {
+      return enumeratedColourSpace;
+   }
+
+   /**
+    * @return the size of the ICC profile of the colr box, 0 if none.
+    */
+   public int getIccProfileLength()
+   {
+      return iccProfileLength;
+   }
+
+   /**
+    * @return true if the file has a palette (pclr) box.
+    */
+   public boolean hasPalette()
+   {
+      return palette;
+   }
+
+   /**
+    * @return true if the file has a channel definition (cdef) box.
+    */
+   public boolean hasChannelDefinition()
+   {
+      return channelDefinition;
+   }
+}
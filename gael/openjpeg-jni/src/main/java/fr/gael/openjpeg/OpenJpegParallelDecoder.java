@@ -0,0 +1,280 @@
+package fr.gael.openjpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decodes the tiles of a Jpeg2000 image in parallel. The OpenJpeg codec
+ * decodes the tiles of one codestream sequentially, so each tile is decoded
+ * by its own {@link OpenJpegDecoder}, borrowed from a
+ * {@link OpenJpegDecoderPool}, over the same read only input buffers. The
+ * tiles are written straight at their position in a single image buffer.
+ * <p>
+ * An image made of a single tile is decoded by one thread: the speed up
+ * grows with the number of tiles, up to the pool concurrency.
+ */
+public class OpenJpegParallelDecoder
+{
+   private static final Logger LOGGER =
+         Logger.getLogger(OpenJpegParallelDecoder.class);
+
+   private final OpenJpegDecoderPool decoderPool;
+   private final ForkJoinPool forkJoinPool;
+
+   private volatile int reduceFactor = 0;
+   private volatile int maxQualityLayers = 0;
+
+   /**
+    * Creates a parallel decoder running at most parallelism tile decodings
+    * at the same time.
+    */
+   public OpenJpegParallelDecoder(int parallelism)
+   {
+      this(new OpenJpegDecoderPool(parallelism), new ForkJoinPool(parallelism));
+   }
+
+   /**
+    * Creates a parallel decoder sharing the given pools.
+    */
+   public OpenJpegParallelDecoder(OpenJpegDecoderPool decoderPool,
+         ForkJoinPool forkJoinPool)
+   {
+      if (decoderPool == null || forkJoinPool == null)
+      {
+         throw new NullPointerException("The pools are null");
+      }
+      this.decoderPool = decoderPool;
+      this.forkJoinPool = forkJoinPool;
+   }
+
+   public int getReduceFactor()
+   {
+      return reduceFactor;
+   }
+
+   /**
+    * @see OpenJpegDecoder#setReduceFactor(int)
+    */
+   public void setReduceFactor(int reduceFactor)
+   {
+      if (reduceFactor < 0)
+      {
+         throw new IllegalArgumentException("Invalid reduce factor.");
+      }
+      this.reduceFactor = reduceFactor;
+   }
+
+   public int getMaxQualityLayers()
+   {
+      return maxQualityLayers;
+   }
+
+   /**
+    * @see OpenJpegDecoder#setMaxQualityLayers(int)
+    */
+   public void setMaxQualityLayers(int maxQualityLayers)
+   {
+      if (maxQualityLayers < 0)
+      {
+         throw new IllegalArgumentException("Invalid number of quality layers.");
+      }
+      this.maxQualityLayers = maxQualityLayers;
+   }
+
+   /**
+    * Decodes the given Jpeg2000 file, mapped in memory.
+    *
+    * @return the decoded image, or null if the decoding failed.
+    */
+   public OpenJpegImage decode(String filename) throws InterruptedException
+   {
+      ByteBuffer[] input;
+      try
+      {
+         input = OpenJpegDecoder.mapFile(new File(filename));
+      }
+      catch (IOException e)
+      {
+         LOGGER.error("Cannot map in memory the file: " + filename, e);
+         return null;
+      }
+      return decode(input);
+   }
+
+   /**
+    * Decodes the Jpeg2000 image held by direct buffers. The buffers are
+    * only read, by all the tile decoders at the same time.
+    *
+    * @return the decoded image, or null if the decoding failed.
+    * @see OpenJpegDecoder#setByteBufferInputStream(ByteBuffer...)
+    */
+   public OpenJpegImage decode(ByteBuffer... compressedStream)
+         throws InterruptedException
+   {
+      final int factor = reduceFactor;
+      final int layers = maxQualityLayers;
+      int x0, y0, width, height, precision, components, tiles;
+
+      OpenJpegDecoder decoder = decoderPool.borrow();
+      try
+      {
+         if (!decoder.decodeHeader(compressedStream))
+         {
+            return null;
+         }
+         if (factor >= decoder.getResolutionsNumber())
+         {
+            LOGGER.error("Reduce factor " + factor + " too high, the image has " +
+                  decoder.getResolutionsNumber() + " resolutions.");
+            return null;
+         }
+         x0 = decoder.getImageX0();
+         y0 = decoder.getImageY0();
+         width = ceilDivPow2(x0 + decoder.getWidth(), factor) - ceilDivPow2(x0, factor);
+         height = ceilDivPow2(y0 + decoder.getHeight(), factor) - ceilDivPow2(y0, factor);
+         precision = decoder.getPrecision();
+         components = decoder.getComponentsNumber();
+         tiles = decoder.getTilesNumber();
+      }
+      finally
+      {
+         decoderPool.release(decoder);
+      }
+
+      // Same pixel layout as the native decoder
+      byte[] image8 = null;
+      short[] image16 = null;
+      int[] image24 = null;
+      Object output;
+      if (components >= 3)
+      {
+         output = image24 = new int[width * height];
+      }
+      else if (precision > 8)
+      {
+         output = image16 = new short[width * height];
+      }
+      else
+      {
+         output = image8 = new byte[width * height];
+      }
+
+      TileDecodeTask task = new TileDecodeTask(compressedStream, factor,
+            layers, output, width, 0, tiles);
+      forkJoinPool.invoke(task);
+      if (task.failed.get())
+      {
+         return null;
+      }
+      return new OpenJpegImage(width, height, precision, components,
+            image8, image16, image24);
+   }
+
+   /**
+    * Shuts down the fork join pool used by this decoder.
+    */
+   public void shutdown()
+   {
+      forkJoinPool.shutdown();
+   }
+
+   private static int ceilDivPow2(int value, int power)
+   {
+      return (int) ((value + (1L << power) - 1) >> power);
+   }
+
+   /**
+    * Decodes the tiles of a range of indexes, splitting the range until a
+    * single tile is left.
+    */
+   private final class TileDecodeTask extends RecursiveAction
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final ByteBuffer[] input;
+      private final int factor;
+      private final int layers;
+      private final Object output;
+      private final int stride;
+      private final int from;
+      private final int to;
+      private final AtomicBoolean failed;
+
+      TileDecodeTask(ByteBuffer[] input, int factor, int layers, Object output,
+            int stride, int from, int to)
+      {
+         this(input, factor, layers, output, stride, from, to,
+               new AtomicBoolean(false));
+      }
+
+      private TileDecodeTask(ByteBuffer[] input, int factor, int layers,
+            Object output, int stride, int from, int to, AtomicBoolean failed)
+      {
+         this.input = input;
+         this.factor = factor;
+         this.layers = layers;
+         this.output = output;
+         this.stride = stride;
+         this.from = from;
+         this.to = to;
+         this.failed = failed;
+      }
+
+      @Override
+      protected void compute()
+      {
+         if (failed.get())
+         {
+            return;
+         }
+         if (to - from <= 1)
+         {
+            if (from < to)
+            {
+               decodeTile(from);
+            }
+            return;
+         }
+         int middle = (from + to) >>> 1;
+         invokeAll(
+               new TileDecodeTask(input, factor, layers, output, stride, from, middle, failed),
+               new TileDecodeTask(input, factor, layers, output, stride, middle, to, failed));
+      }
+
+      private void decodeTile(int index)
+      {
+         OpenJpegDecoder decoder;
+         try
+         {
+            decoder = decoderPool.borrow();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            failed.set(true);
+            return;
+         }
+         try
+         {
+            decoder.setByteBufferInputStream(input);
+            decoder.setReduceFactor(factor);
+            decoder.setMaxQualityLayers(layers);
+            if (!decoder.decodeTileInto(index, output, 0, stride))
+            {
+               LOGGER.error("Cannot decode tile " + index);
+               failed.set(true);
+            }
+         }
+         finally
+         {
+            decoderPool.release(decoder);
+         }
+      }
+   }
+}
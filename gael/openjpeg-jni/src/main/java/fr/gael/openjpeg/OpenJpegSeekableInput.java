@@ -0,0 +1,41 @@
+package fr.gael.openjpeg;
+
+import java.io.IOException;
+
+/**
+ * Encoded image pulled on demand by the native decoder, see
+ * {@link OpenJpegDecoder#setSeekableInput(OpenJpegSeekableInput)}. Positions
+ * are relative to the first byte of the encoded image.
+ */
+public interface OpenJpegSeekableInput
+{
+   /**
+    * Reads up to length bytes.
+    *
+    * @return the number of bytes read, or -1 at the end of the input.
+    * @throws IOException if the input cannot be read.
+    */
+   int read(byte[] buffer, int offset, int length) throws IOException;
+
+   /**
+    * Skips up to count bytes.
+    *
+    * @return the number of bytes actually skipped.
+    * @throws IOException if the input cannot be read.
+    */
+   long skip(long count) throws IOException;
+
+   /**
+    * Moves to the given position.
+    *
+    * @return false if the input cannot reach this position.
+    * @throws IOException if the input cannot be read.
+    */
+   boolean seek(long position) throws IOException;
+
+   /**
+    * @return the length of the encoded image in bytes, or -1 if unknown.
+    * @throws IOException if the input cannot be read.
+    */
+   long length() throws IOException;
+}
@@ -0,0 +1,28 @@
+package fr.gael.openjpeg;
+
+import java.io.IOException;
+
+/**
+ * Encoded image pushed by the native encoder as it goes, see
+ * {@link OpenJpegEncoder#encodeTiles(TileSource, OpenJpegSeekableOutput)}.
+ * Positions are relative to the first byte of the encoded image. The
+ * encoder writes forward, and only seeks backward to complete the headers
+ * it reserved, such as the length of the JP2 codestream box.
+ */
+public interface OpenJpegSeekableOutput
+{
+   /**
+    * Writes length bytes.
+    *
+    * @throws IOException if the output cannot be written.
+    */
+   void write(byte[] buffer, int offset, int length) throws IOException;
+
+   /**
+    * Moves to the given position, at most the number of bytes written.
+    *
+    * @return false if the output cannot reach this position.
+    * @throws IOException if the output cannot be written.
+    */
+   boolean seek(long position) throws IOException;
+}
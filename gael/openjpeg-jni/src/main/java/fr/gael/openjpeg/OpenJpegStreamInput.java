@@ -0,0 +1,145 @@
+package fr.gael.openjpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link OpenJpegSeekableInput} over an InputStream. The last bytes read are
+ * kept to serve the short backward seeks of the codec (such as the end of
+ * codestream marker check); seeking further backward fails, so the stream
+ * can be decoded once, header and image in the same decoding. The stream is
+ * never closed by the decoder.
+ */
+public class OpenJpegStreamInput implements OpenJpegSeekableInput
+{
+   private static final int HISTORY_SIZE = 64 * 1024;
+
+   private final InputStream stream;
+   private final long length;
+
+   // position of the input, behind the stream one when replaying history
+   private long position = 0;
+   private long streamPosition = 0;
+
+   // last bytes read from the stream, ring indexed by stream position
+   private final byte[] history = new byte[HISTORY_SIZE];
+   private int historyLength = 0;
+
+   /**
+    * @param stream stream positioned on the first byte of the encoded image.
+    */
+   public OpenJpegStreamInput(InputStream stream)
+   {
+      this(stream, -1);
+   }
+
+   /**
+    * @param stream stream positioned on the first byte of the encoded image.
+    * @param length length of the encoded image, or -1 if unknown.
+    */
+   public OpenJpegStreamInput(InputStream stream, long length)
+   {
+      if (stream == null)
+      {
+         throw new NullPointerException("The provided stream is null");
+      }
+      this.stream = stream;
+      this.length = length;
+   }
+
+   @Override
+   public int read(byte[] buffer, int offset, int length) throws IOException
+   {
+      if (position < streamPosition)
+      {
+         int count = (int) Math.min(length, streamPosition - position);
+         copyHistory(buffer, offset, count);
+         position += count;
+         return count;
+      }
+
+      int read = stream.read(buffer, offset, length);
+      if (read > 0)
+      {
+         record(buffer, offset, read, streamPosition);
+         streamPosition += read;
+         position = streamPosition;
+      }
+      return read;
+   }
+
+   @Override
+   public long skip(long count) throws IOException
+   {
+      long skipped = Math.min(count, streamPosition - position);
+      position += skipped;
+      while (skipped < count)
+      {
+         long n = stream.skip(count - skipped);
+         if (n <= 0)
+         {
+            // skip may stop early, check for the end of stream
+            if (stream.read() < 0)
+            {
+               break;
+            }
+            n = 1;
+         }
+         skipped += n;
+         streamPosition += n;
+         position = streamPosition;
+         // skipped bytes are not kept
+         historyLength = 0;
+      }
+      return skipped;
+   }
+
+   @Override
+   public boolean seek(long position) throws IOException
+   {
+      if (position >= streamPosition)
+      {
+         this.position = streamPosition;
+         long count = position - streamPosition;
+         return skip(count) == count;
+      }
+      if (position < streamPosition - historyLength)
+      {
+         return false;
+      }
+      this.position = position;
+      return true;
+   }
+
+   @Override
+   public long length()
+   {
+      return length;
+   }
+
+   /**
+    * Keeps the bytes read from the given stream position.
+    */
+   private void record(byte[] buffer, int offset, int count, long start)
+   {
+      if (count > HISTORY_SIZE)
+      {
+         offset += count - HISTORY_SIZE;
+         start += count - HISTORY_SIZE;
+         count = HISTORY_SIZE;
+      }
+      int index = (int) (start % HISTORY_SIZE);
+      int first = Math.min(count, HISTORY_SIZE - index);
+      System.arraycopy(buffer, offset, history, index, first);
+      System.arraycopy(buffer, offset + first, history, 0, count - first);
+      historyLength = Math.min(HISTORY_SIZE, historyLength + count);
+   }
+
+   private void copyHistory(byte[] buffer, int offset, int count)
+   {
+      int index = (int) (position % HISTORY_SIZE);
+      int first = Math.min(count, HISTORY_SIZE - index);
+      System.arraycopy(history, index, buffer, offset, first);
+      System.arraycopy(history, 0, buffer, offset + first, count - first);
+   }
+}
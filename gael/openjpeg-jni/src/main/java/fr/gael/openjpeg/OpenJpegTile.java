@@ -0,0 +1,97 @@
+package fr.gael.openjpeg;
+
+/**
+ * A tile decoded by {@link OpenJpegDecoder#decodeTiles(TileConsumer)}.
+ * Pixels are stored row by row from index 0, with a stride equal to the tile
+ * width, in the same format as the whole image buffers of
+ * {@link OpenJpegDecoder}: only one of the buffers is set.
+ */
+public class OpenJpegTile
+{
+   private int index;
+   private int x;
+   private int y;
+   private int width;
+   private int height;
+
+   private byte[] image8;
+   private short[] image16;
+   private int[] image24;
+
+   OpenJpegTile()
+   {
+   }
+
+   void set(int index, int x, int y, int width, int height,
+         byte[] image8, short[] image16, int[] image24)
+   {
+      this.index = index;
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      this.image8 = image8;
+      this.image16 = image16;
+      this.image24 = image24;
+   }
+
+   /**
+    * @return index of the tile in the codestream.
+    */
+   public int getIndex()
+   {
+      return index;
+   }
+
+   /**
+    * @return left of the tile in the decoded image.
+    */
+   public int getX()
+   {
+      return x;
+   }
+
+   /**
+    * @return top of the tile in the decoded image.
+    */
+   public int getY()
+   {
+      return y;
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public int getHeight()
+   {
+      return height;
+   }
+
+   /**
+    * @return 8 bits grey pixels, or null. The buffer may be longer than the
+    *    tile.
+    */
+   public byte[] getImage8()
+   {
+      return image8;
+   }
+
+   /**
+    * @return 16 bits grey pixels, or null. The buffer may be longer than the
+    *    tile.
+    */
+   public short[] getImage16()
+   {
+      return image16;
+   }
+
+   /**
+    * @return ARGB pixels, or null. The buffer may be longer than the tile.
+    */
+   public int[] getImage24()
+   {
+      return image24;
+   }
+}
@@ -0,0 +1,17 @@
+package fr.gael.openjpeg;
+
+/**
+ * Receives the tiles of an image decoded by
+ * {@link OpenJpegDecoder#decodeTiles(TileConsumer)}, as soon as each of them
+ * is decoded.
+ */
+public interface TileConsumer
+{
+   /**
+    * Called once per decoded tile. The tile and its pixel buffer are reused
+    * for the next tile: they are only valid during this call.
+    *
+    * @param tile the decoded tile.
+    */
+   void tileDecoded(OpenJpegTile tile);
+}
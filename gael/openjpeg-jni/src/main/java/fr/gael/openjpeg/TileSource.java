@@ -0,0 +1,30 @@
+package fr.gael.openjpeg;
+
+import java.io.IOException;
+
+/**
+ * Provides the samples of an image encoded by
+ * {@link OpenJpegEncoder#encodeTiles(TileSource, OpenJpegSeekableOutput)},
+ * one tile at a time, when the encoder needs them.
+ */
+public interface TileSource
+{
+   /**
+    * Called once per tile, in the order of the tile indices. The samples are
+    * planar: the samples of each component are stored row by row with a
+    * stride equal to the tile width, from index
+    * {@code component * width * height}. The buffer is a byte[] for
+    * precisions up to 8 bits, a short[] up to 16 bits and an int[] above;
+    * it is reused for the next tile and may be longer than the tile.
+    *
+    * @param index index of the tile in the codestream.
+    * @param x left of the tile in the image.
+    * @param y top of the tile in the image.
+    * @param width width of the tile, smaller at the right of the image.
+    * @param height height of the tile, smaller at the bottom of the image.
+    * @param samples buffer to fill with the samples of the tile.
+    * @throws IOException if the samples cannot be provided.
+    */
+   void fillTile(int index, int x, int y, int width, int height,
+         Object samples) throws IOException;
+}
@@ -1,14 +1,30 @@
 package fr.gael.openjpeg;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
@@ -117,4 +133,628 @@ public class TestOpenJpegDecoder
       OpenJpegDecoder decoder = new OpenJpegDecoder ();
       decoder.decode (workingFile);
    }
-}
\ No newline at end of file
+
+   @Test
+   public void testDecodeDirectBuffer () throws IOException
+   {
+      byte[] content = Files.readAllBytes (Paths.get (workingFile));
+      ByteBuffer buffer = ByteBuffer.allocateDirect (content.length);
+      buffer.put (content).flip ();
+
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] expected = decoder.getImage16 ().clone ();
+
+      Assert.assertTrue (decoder.decodeHeader (buffer));
+      Assert.assertEquals (decoder.getWidth (), 1830);
+      Assert.assertEquals (decoder.getHeight (), 1830);
+
+      Assert.assertTrue (decoder.decode (buffer));
+      Assert.assertNotNull (decoder.getImage16 ());
+      Assert.assertEquals (decoder.getImage16 (), expected);
+      Assert.assertNull (decoder.getByteInputStream ());
+   }
+
+   @Test (expectedExceptions = IllegalArgumentException.class)
+   public void testDecodeHeapBuffer ()
+   {
+      new OpenJpegDecoder ().decode (ByteBuffer.allocate (16));
+   }
+
+   @Test
+   public void testDecodeChunkedBuffers () throws IOException
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] expected = decoder.getImage16 ().clone ();
+
+      byte[] content = Files.readAllBytes (Paths.get (workingFile));
+      int chunkSize = 64 * 1024 + 7;
+      int count = (content.length + chunkSize - 1) / chunkSize;
+      ByteBuffer[] chunks = new ByteBuffer[count];
+      for (int i = 0; i < count; i++)
+      {
+         int length = Math.min (chunkSize, content.length - i * chunkSize);
+         chunks[i] = ByteBuffer.allocateDirect (length);
+         chunks[i].put (content, i * chunkSize, length).flip ();
+      }
+
+      Assert.assertTrue (decoder.decode (chunks));
+      Assert.assertEquals (decoder.getByteInputStreamLength (), content.length);
+      Assert.assertEquals (decoder.getImage16 (), expected);
+   }
+
+   @Test
+   public void testDecodeRegion ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] full = decoder.getImage16 ().clone ();
+      int fullWidth = decoder.getWidth ();
+
+      int x = 100, y = 200, size = 256;
+      Assert.assertTrue (decoder.decodeRegion (x, y, size, size));
+      Assert.assertEquals (decoder.getWidth (), size);
+      Assert.assertEquals (decoder.getHeight (), size);
+      short[] region = decoder.getImage16 ();
+      Assert.assertEquals (region.length, size * size);
+      for (int j = 0; j < size; j++)
+      {
+         for (int i = 0; i < size; i++)
+         {
+            Assert.assertEquals (region[j * size + i],
+                  full[(y + j) * fullWidth + x + i]);
+         }
+      }
+
+      // window clipped to the image bounds
+      Assert.assertTrue (decoder.decodeRegion (1800, 1800, 100, 100));
+      Assert.assertEquals (decoder.getWidth (), 30);
+      Assert.assertEquals (decoder.getHeight (), 30);
+
+      // decode area is not kept after the region decode
+      Assert.assertTrue (decoder.decode ((String) null));
+      Assert.assertEquals (decoder.getWidth (), fullWidth);
+   }
+
+   @Test
+   public void testDecodeReduced ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decodeHeader (workingFile));
+      Assert.assertEquals (decoder.getResolutionsNumber (), 6);
+
+      Assert.assertTrue (decoder.decode (2));
+      Assert.assertEquals (decoder.getWidth (), 458);
+      Assert.assertEquals (decoder.getHeight (), 458);
+      Assert.assertEquals (decoder.getImage16 ().length, 458 * 458);
+      Assert.assertEquals (decoder.getReduceFactor (), 0);
+
+      decoder.setReduceFactor (1);
+      Assert.assertTrue (decoder.decodeRegion (0, 0, 512, 256));
+      Assert.assertEquals (decoder.getWidth (), 256);
+      Assert.assertEquals (decoder.getHeight (), 128);
+
+      // more resolution levels than available
+      Assert.assertFalse (decoder.decode (6));
+   }
+
+   @Test
+   public void testDecodeQualityLayers ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      Assert.assertEquals (decoder.getQualityLayersNumber (), 1);
+      short[] expected = decoder.getImage16 ().clone ();
+
+      Assert.assertTrue (decoder.decodeQualityLayers (1));
+      Assert.assertEquals (decoder.getImage16 (), expected);
+      Assert.assertEquals (decoder.getMaxQualityLayers (), 0);
+   }
+
+   @Test
+   public void testDecodeTiles ()
+   {
+      final OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      final short[] expected = decoder.getImage16 ().clone ();
+      final int fullWidth = decoder.getWidth ();
+      final int[] tiles = {0};
+
+      Assert.assertTrue (decoder.decodeTiles (new TileConsumer ()
+      {
+         @Override
+         public void tileDecoded (OpenJpegTile tile)
+         {
+            tiles[0]++;
+            Assert.assertEquals (tile.getWidth (), 1830);
+            Assert.assertEquals (tile.getHeight (), 1830);
+            Assert.assertNull (tile.getImage8 ());
+            short[] pixels = tile.getImage16 ();
+            for (int j = 0; j < tile.getHeight (); j++)
+            {
+               for (int i = 0; i < tile.getWidth (); i++)
+               {
+                  Assert.assertEquals (pixels[j * tile.getWidth () + i],
+                        expected[(tile.getY () + j) * fullWidth + tile.getX () + i]);
+               }
+            }
+         }
+      }));
+      Assert.assertEquals (tiles[0], 1);
+      Assert.assertNull (decoder.getImage16 ());
+
+      decoder.setReduceFactor (1);
+      Assert.assertTrue (decoder.decodeTiles (new TileConsumer ()
+      {
+         @Override
+         public void tileDecoded (OpenJpegTile tile)
+         {
+            Assert.assertEquals (tile.getWidth (), 915);
+            Assert.assertEquals (decoder.getWidth (), 915);
+         }
+      }));
+   }
+
+   @Test
+   public void testDecoderPool () throws Exception
+   {
+      final OpenJpegDecoderPool pool = new OpenJpegDecoderPool (2);
+      final short[] expected;
+      short[] buffer;
+      try (OpenJpegDecodeResult result = pool.decode (workingFile))
+      {
+         Assert.assertTrue (result.isDecoded ());
+         Assert.assertEquals (result.getWidth (), 1830);
+         expected = result.getImage16 ().clone ();
+         buffer = result.getImage16 ();
+         Assert.assertEquals (pool.getBorrowedCount (), 1);
+      }
+      Assert.assertEquals (pool.getBorrowedCount (), 0);
+
+      // warmed-up decoder reuses its buffer
+      try (OpenJpegDecodeResult result = pool.decode (workingFile))
+      {
+         Assert.assertSame (result.getImage16 (), buffer);
+      }
+
+      ExecutorService executor = Executors.newFixedThreadPool (4);
+      try
+      {
+         List<Future<Boolean>> futures = new ArrayList<> ();
+         for (int i = 0; i < 4; i++)
+         {
+            futures.add (executor.submit (new Callable<Boolean> ()
+            {
+               @Override
+               public Boolean call () throws Exception
+               {
+                  try (OpenJpegDecodeResult result = pool.decode (workingFile))
+                  {
+                     Assert.assertTrue (pool.getBorrowedCount () <= 2);
+                     return Arrays.equals (result.getImage16 (), expected);
+                  }
+               }
+            }));
+         }
+         for (Future<Boolean> future : futures)
+         {
+            Assert.assertTrue (future.get ());
+         }
+      }
+      finally
+      {
+         executor.shutdown ();
+      }
+
+      OpenJpegDecoder first = pool.borrow ();
+      OpenJpegDecoder second = pool.borrow ();
+      Assert.assertNull (pool.borrow (10, TimeUnit.MILLISECONDS));
+      pool.release (first);
+      pool.release (second);
+      try
+      {
+         pool.release (first);
+         Assert.fail ("Decoder released twice");
+      }
+      catch (IllegalArgumentException e)
+      {
+         // expected
+      }
+   }
+
+   @Test
+   public void testParallelDecode () throws Exception
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] expected = decoder.getImage16 ();
+      Assert.assertEquals (decoder.getTilesNumber (), 1);
+
+      OpenJpegParallelDecoder parallel = new OpenJpegParallelDecoder (2);
+      try
+      {
+         OpenJpegImage image = parallel.decode (workingFile);
+         Assert.assertNotNull (image);
+         Assert.assertEquals (image.getWidth (), 1830);
+         Assert.assertEquals (image.getHeight (), 1830);
+         Assert.assertNull (image.getImage8 ());
+         Assert.assertTrue (Arrays.equals (image.getImage16 (), expected));
+
+         parallel.setReduceFactor (1);
+         Assert.assertTrue (decoder.decode (1));
+         image = parallel.decode (workingFile);
+         Assert.assertNotNull (image);
+         Assert.assertEquals (image.getWidth (), 915);
+         Assert.assertTrue (Arrays.equals (image.getImage16 (),
+               decoder.getImage16 ()));
+      }
+      finally
+      {
+         parallel.shutdown ();
+      }
+   }
+
+   @Test (expectedExceptions = IllegalArgumentException.class)
+   public void testDecodeIntoWrongType ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decodeHeader (workingFile));
+      decoder.decodeTileInto (0, new byte[1830 * 1830], 0, 1830);
+   }
+
+   @Test
+   public void testHeaderCache ()
+   {
+      OpenJpegHeaderCache cache = new OpenJpegHeaderCache (1);
+      OpenJpegHeader header = cache.getHeader (workingFile);
+      Assert.assertNotNull (header);
+      Assert.assertEquals (header.getWidth (), 1830);
+      Assert.assertEquals (header.getHeight (), 1830);
+      Assert.assertEquals (header.getPrecision (), 12);
+      Assert.assertEquals (header.getResolutionsNumber (), 6);
+      Assert.assertEquals (header.getTilesNumber (), 1);
+      Assert.assertSame (cache.getHeader (workingFile), header);
+
+      // a rewritten file is probed again
+      File file = new File (workingFile);
+      Assert.assertTrue (file.setLastModified (file.lastModified () - 2000));
+      Assert.assertNotSame (cache.getHeader (workingFile), header);
+      Assert.assertEquals (cache.size (), 1);
+
+      Assert.assertNull (cache.getHeader (workingFile + ".missing"));
+   }
+
+   @Test
+   public void testDecodeMissingFile ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+
+      // the previous input is not decoded again
+      Assert.assertFalse (decoder.decode (workingFile + ".missing"));
+      Assert.assertNull (decoder.getImage16 ());
+      Assert.assertFalse (decoder.decodeHeader (workingFile + ".missing"));
+      Assert.assertNull (decoder.getHeader ());
+   }
+
+   @Test
+   public void testHeaderCodingStyle ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decodeHeader (workingFile));
+      OpenJpegHeader header = decoder.getHeader ();
+      Assert.assertNotNull (header);
+      Assert.assertTrue (header.getProgressionOrder () >=
+            OpenJpegHeader.PROGRESSION_LRCP);
+      Assert.assertTrue (header.getCodeBlockWidth () >= 4);
+      Assert.assertEquals (header.getComponentPrecisions (), new int[] {12});
+      Assert.assertEquals (header.getComponentDx (), new int[] {1});
+
+      OpenJpegJp2Boxes boxes = header.getJp2Boxes ();
+      Assert.assertNotNull (boxes);
+      Assert.assertEquals (OpenJpegJp2Boxes.toFourCC (boxes.getBrand ()), "jp2 ");
+      Assert.assertTrue (boxes.getCompatibility ().length > 0);
+   }
+
+   @Test
+   public void testDecodeInto ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] expected = decoder.getImage16 ().clone ();
+
+      // padded rows in a caller owned array
+      int stride = 1840;
+      short[] output = new short[10 + stride * 1830];
+      Assert.assertTrue (decoder.decodeInto (output, 10, stride));
+      Assert.assertNull (decoder.getImage16 ());
+      Assert.assertEquals (decoder.getWidth (), 1830);
+      for (int j = 0; j < 1830; j += 61)
+      {
+         for (int i = 0; i < 1830; i++)
+         {
+            Assert.assertEquals (output[10 + j * stride + i], expected[j * 1830 + i]);
+         }
+      }
+
+      // little endian heap buffer
+      ByteBuffer buffer = ByteBuffer.allocate (1830 * 1830 * 2)
+            .order (ByteOrder.LITTLE_ENDIAN);
+      Assert.assertTrue (decoder.decodeInto (buffer, 0, 1830 * 2));
+      Assert.assertEquals (buffer.position (), 0);
+      Assert.assertEquals (buffer.getShort (2 * 1234567), expected[1234567]);
+
+      // raster of a grey image
+      BufferedImage image = new BufferedImage (1830, 1830,
+            BufferedImage.TYPE_USHORT_GRAY);
+      Assert.assertTrue (decoder.decodeInto (image.getRaster ()));
+      Assert.assertEquals (image.getRaster ().getSample (100, 200, 0),
+            expected[200 * 1830 + 100] & 0xFFFF);
+   }
+
+   @Test (expectedExceptions = IllegalArgumentException.class)
+   public void testDecodeIntoTooSmall ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decodeHeader (workingFile));
+      decoder.decodeInto (new short[1830 * 1829], 0, 1830);
+   }
+
+   @Test (expectedExceptions = IllegalArgumentException.class)
+   public void testDecodeIntoSmallRaster ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decodeHeader (workingFile));
+      BufferedImage image = new BufferedImage (2000, 2000,
+            BufferedImage.TYPE_USHORT_GRAY);
+      decoder.decodeInto (image.getRaster ().createWritableChild (0, 0, 1000,
+            2000, 0, 0, null));
+   }
+
+   @Test
+   public void testDecodeIntoDirectBuffer ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] expected = decoder.getImage16 ().clone ();
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect (8 + 1830 * 1830 * 2);
+      buffer.position (8);
+      Assert.assertTrue (decoder.decodeInto (buffer, 0, 1830 * 2));
+      Assert.assertEquals (buffer.position (), 8);
+      Assert.assertNull (decoder.getImage16 ());
+      for (int i = 0; i < expected.length; i += 997)
+      {
+         Assert.assertEquals (buffer.getShort (8 + 2 * i), expected[i]);
+      }
+
+      buffer.limit (buffer.capacity () - 1);
+      try
+      {
+         decoder.decodeInto (buffer, 0, 1830 * 2);
+         Assert.fail ("Buffer limit not checked");
+      }
+      catch (IllegalArgumentException e)
+      {
+         // expected
+      }
+   }
+
+   @Test
+   public void testDecodePlanar ()
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] expected = decoder.getImage16 ().clone ();
+
+      decoder.setPlanarOutput (true);
+      Assert.assertTrue (decoder.decode (workingFile));
+      Assert.assertNull (decoder.getImage16 ());
+      OpenJpegBand[] bands = decoder.getBands ();
+      Assert.assertNotNull (bands);
+      Assert.assertEquals (bands.length, 1);
+      Assert.assertEquals (bands[0].getPrecision (), 12);
+      Assert.assertEquals (bands[0].getDx (), 1);
+      Assert.assertEquals (bands[0].getWidth (), 1830);
+      Assert.assertEquals (bands[0].getData16 (), expected);
+   }
+
+   @Test
+   public void testDecodeStream () throws IOException
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] expected = decoder.getImage16 ().clone ();
+
+      InputStream stream = new FileInputStream (workingFile);
+      try
+      {
+         OpenJpegStreamInput input = new OpenJpegStreamInput (stream,
+               new File (workingFile).length ());
+         Assert.assertTrue (decoder.decode (input));
+         Assert.assertEquals (decoder.getImage16 (), expected);
+
+         // forward only: the stream cannot be rewound for another decoding
+         Assert.assertFalse (decoder.decode (input));
+      }
+      finally
+      {
+         stream.close ();
+      }
+   }
+
+   @Test
+   public void testDecodeStreamOfUnknownLength () throws IOException
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] expected = decoder.getImage16 ().clone ();
+
+      InputStream stream = new FileInputStream (workingFile);
+      try
+      {
+         OpenJpegStreamInput input = new OpenJpegStreamInput (stream);
+         Assert.assertTrue (decoder.decodeHeader (input));
+         Assert.assertEquals (decoder.getWidth (), 1830);
+
+         // buffered by the first decoding: decoded again from memory
+         Assert.assertTrue (decoder.decode ((String) null));
+         Assert.assertEquals (decoder.getImage16 (), expected);
+      }
+      finally
+      {
+         stream.close ();
+      }
+   }
+
+   @Test
+   public void testDecodeStatistics ()
+   {
+      OpenJpegDecoderMetrics metrics = OpenJpegDecoderMetrics.getInstance ();
+      long decodes = metrics.getDecodeCount ();
+
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      Assert.assertTrue (decoder.decodeHeader (workingFile));
+      Assert.assertNull (decoder.getLastStatistics ());
+
+      Assert.assertTrue (decoder.decode (workingFile));
+      OpenJpegDecodeStatistics statistics = decoder.getLastStatistics ();
+      Assert.assertNotNull (statistics);
+      Assert.assertTrue (statistics.getBytesIn () > 0);
+      Assert.assertTrue (statistics.getCodestreamBytes () > 0);
+      Assert.assertEquals (statistics.getBytesOut (), 1830L * 1830 * 2);
+      Assert.assertTrue (statistics.getWallNanos (
+            OpenJpegDecodeStatistics.Phase.T1) > 0);
+      Assert.assertTrue (statistics.getTotalWallNanos () >=
+            statistics.getWallNanos (OpenJpegDecodeStatistics.Phase.T1));
+      Assert.assertTrue (statistics.getNativeMemory () > 0);
+
+      Assert.assertTrue (metrics.getDecodeCount () > decodes);
+      Assert.assertEquals (metrics.getDecodesInFlight (), 0);
+      Assert.assertTrue (metrics.getDecodeTimePercentileMicros (50) > 0);
+   }
+
+   @Test
+   public void testEncodeTiles () throws IOException
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      decoder.setPlanarOutput (true);
+      Assert.assertTrue (decoder.decode (workingFile));
+      final short[] samples = decoder.getBands ()[0].getData16 ();
+      final int width = decoder.getWidth ();
+
+      OpenJpegEncoder encoder = new OpenJpegEncoder ();
+      encoder.setImage (width, decoder.getHeight (), 1, 12, false);
+      encoder.setTileSize (512, 512);
+      final List<Integer> tiles = new ArrayList<> ();
+      MemoryOutput output = new MemoryOutput ();
+      Assert.assertTrue (encoder.encodeTiles (new TileSource ()
+      {
+         @Override
+         public void fillTile (int index, int x, int y, int w, int h,
+               Object buffer)
+         {
+            tiles.add (index);
+            for (int row = 0; row < h; row++)
+            {
+               System.arraycopy (samples, (y + row) * width + x,
+                     (short[]) buffer, row * w, w);
+            }
+         }
+      }, output));
+      Assert.assertEquals (tiles.size (), 16);
+      Assert.assertEquals ((int) tiles.get (15), 15);
+
+      // lossless by default
+      ByteBuffer buffer = ByteBuffer.allocateDirect (output.length);
+      buffer.put (output.content, 0, output.length).flip ();
+      Assert.assertTrue (decoder.decode (buffer));
+      Assert.assertEquals (decoder.getTileWidth (), 512);
+      Assert.assertEquals (decoder.getTilesNumber (), 16);
+      Assert.assertEquals (decoder.getBands ()[0].getData16 (), samples);
+   }
+
+   @Test
+   public void testEncodeDirectBuffer () throws IOException
+   {
+      OpenJpegDecoder decoder = new OpenJpegDecoder ();
+      decoder.setPlanarOutput (true);
+      Assert.assertTrue (decoder.decode (workingFile));
+      short[] samples = decoder.getBands ()[0].getData16 ();
+      ByteBuffer image = ByteBuffer.allocateDirect (samples.length * 2)
+            .order (ByteOrder.nativeOrder ());
+      image.asShortBuffer ().put (samples);
+
+      OpenJpegEncoder encoder = new OpenJpegEncoder ();
+      encoder.setImage (decoder.getWidth (), decoder.getHeight (), 1, 12, false);
+      encoder.setTileSize (512, 512);
+
+      // raw codestreams are written sequentially
+      encoder.setCodecFormat (OpenJpegEncoder.FORMAT_J2K);
+      ByteArrayOutputStream codestream = new ByteArrayOutputStream ();
+      Assert.assertTrue (encoder.encode (image, Channels.newChannel (codestream)));
+      byte[] j2k = codestream.toByteArray ();
+      Assert.assertEquals (j2k[1], (byte) 0x4F);
+      Assert.assertEquals (j2k[j2k.length - 1], (byte) 0xD9);
+
+      // JP2 files need to go back to the codestream box
+      encoder.setCodecFormat (OpenJpegEncoder.FORMAT_JP2);
+      try
+      {
+         encoder.encode (image, Channels.newChannel (codestream));
+         Assert.fail ("JP2 file written to a sequential channel.");
+      }
+      catch (IllegalArgumentException e)
+      {
+         // expected
+      }
+      File file = File.createTempFile ("encoded", ".jp2");
+      file.deleteOnExit ();
+      try (FileChannel channel = FileChannel.open (file.toPath (),
+            StandardOpenOption.WRITE))
+      {
+         Assert.assertTrue (encoder.encode (image, channel));
+      }
+      byte[] jp2 = Files.readAllBytes (file.toPath ());
+      Assert.assertEquals (Arrays.copyOfRange (jp2, jp2.length - j2k.length,
+            jp2.length), j2k);
+
+      Assert.assertTrue (decoder.decode (file.getPath ()));
+      Assert.assertEquals (decoder.getBands ()[0].getData16 (), samples);
+   }
+
+   /**
+    * Seekable output growing in memory.
+    */
+   private static class MemoryOutput implements OpenJpegSeekableOutput
+   {
+      private byte[] content = new byte[1024];
+      private int length = 0;
+      private int position = 0;
+
+      @Override
+      public void write (byte[] buffer, int offset, int count)
+      {
+         if (position + count > content.length)
+         {
+            content = Arrays.copyOf (content,
+                  Math.max (content.length * 2, position + count));
+         }
+         System.arraycopy (buffer, offset, content, position, count);
+         position += count;
+         length = Math.max (length, position);
+      }
+
+      @Override
+      public boolean seek (long position)
+      {
+         if (position > length)
+         {
+            return false;
+         }
+         this.position = (int) position;
+         return true;
+      }
+   }
+}
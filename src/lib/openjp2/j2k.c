@@ -10102,6 +10102,34 @@ OPJ_BOOL opj_j2k_set_decoded_resolution_factor(opj_j2k_t *p_j2k,
         return OPJ_FALSE;
 }
 
+OPJ_BOOL opj_j2k_get_tile_phase_times(opj_j2k_t *p_j2k,
+                                      opj_tile_phase_times_t *p_times)
+{
+        opj_tcd_t *l_tcd = p_j2k->m_tcd;
+        opj_tcd_tile_t *l_tile;
+        OPJ_UINT32 i;
+
+        memset(p_times, 0, sizeof(opj_tile_phase_times_t));
+        if (! l_tcd) {
+                return OPJ_FALSE;
+        }
+
+        for (i = 0; i < OPJ_TCD_NB_PHASES; ++i) {
+                p_times->wall[i] = l_tcd->phase_times.wall[i];
+                p_times->cpu[i] = l_tcd->phase_times.cpu[i];
+        }
+        p_times->t2_bytes = l_tcd->phase_times.t2_bytes;
+
+        l_tile = l_tcd->tcd_image ? l_tcd->tcd_image->tiles : 00;
+        if (l_tile && l_tile->comps) {
+                for (i = 0; i < l_tile->numcomps; ++i) {
+                        p_times->tile_data_size += l_tile->comps[i].data_size;
+                }
+        }
+
+        return OPJ_TRUE;
+}
+
 OPJ_BOOL opj_j2k_encode(opj_j2k_t * p_j2k,
                         opj_stream_private_t *p_stream,
                         opj_event_mgr_t * p_manager )
@@ -810,6 +810,17 @@ OPJ_BOOL opj_j2k_set_decoded_resolution_factor(opj_j2k_t *p_j2k,
                                                OPJ_UINT32 res_factor,
                                                opj_event_mgr_t * p_manager);
 
+/**
+ * Gets the times spent in the decoding phases of the tiles.
+ *
+ * @param	p_j2k		the jpeg2000 codec.
+ * @param	p_times		times of the phases, filled by the codec.
+ *
+ * @return	false if no tile decoder was created.
+ */
+OPJ_BOOL opj_j2k_get_tile_phase_times(opj_j2k_t *p_j2k,
+                                      opj_tile_phase_times_t *p_times);
+
 
 /**
  * Writes a tile.
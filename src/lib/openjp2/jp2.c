@@ -2986,6 +2986,26 @@ OPJ_BOOL opj_jp2_set_decoded_resolution_factor(opj_jp2_t *p_jp2,
 	return opj_j2k_set_decoded_resolution_factor(p_jp2->j2k, res_factor, p_manager);
 }
 
+OPJ_BOOL opj_jp2_get_tile_phase_times(opj_jp2_t *p_jp2,
+                                      opj_tile_phase_times_t *p_times)
+{
+	return opj_j2k_get_tile_phase_times(p_jp2->j2k, p_times);
+}
+
+OPJ_BOOL opj_jp2_get_boxes(opj_jp2_t *p_jp2, opj_jp2_boxes_t *p_boxes)
+{
+	p_boxes->brand = p_jp2->brand;
+	p_boxes->minversion = p_jp2->minversion;
+	p_boxes->numcl = p_jp2->numcl;
+	p_boxes->cl = p_jp2->cl;
+	p_boxes->meth = p_jp2->meth;
+	p_boxes->enumcs = p_jp2->enumcs;
+	p_boxes->icc_profile_len = p_jp2->color.icc_profile_len;
+	p_boxes->has_pclr = p_jp2->color.jp2_pclr != 00;
+	p_boxes->has_cdef = p_jp2->color.jp2_cdef != 00;
+	return OPJ_TRUE;
+}
+
 /* JPIP specific */
 
 #ifdef USE_JPIP
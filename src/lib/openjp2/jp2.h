@@ -444,6 +444,17 @@ OPJ_BOOL opj_jp2_set_decoded_resolution_factor(opj_jp2_t *p_jp2,
                                                OPJ_UINT32 res_factor, 
                                                opj_event_mgr_t * p_manager);
 
+/**
+ * Gets the times spent in the decoding phases of the tiles.
+ */
+OPJ_BOOL opj_jp2_get_tile_phase_times(opj_jp2_t *p_jp2,
+                                      opj_tile_phase_times_t *p_times);
+
+/**
+ * Gets the boxes read with the header of the JP2 file.
+ */
+OPJ_BOOL opj_jp2_get_boxes(opj_jp2_t *p_jp2, opj_jp2_boxes_t *p_boxes);
+
 
 /* TODO MSD: clean these 3 functions */
 /**
@@ -239,6 +239,10 @@ opj_codec_t* OPJ_CALLCONV opj_create_decompress(OPJ_CODEC_FORMAT p_format)
 									OPJ_UINT32 res_factor,
 									struct opj_event_mgr * p_manager)) opj_j2k_set_decoded_resolution_factor;
 
+			l_codec->m_codec_data.m_decompression.opj_get_tile_phase_times =
+                    (OPJ_BOOL (*) ( void * p_codec,
+                                    opj_tile_phase_times_t * p_times)) opj_j2k_get_tile_phase_times;
+
 			l_codec->m_codec = opj_j2k_create_decompress();
 
 			if (! l_codec->m_codec) {
@@ -256,6 +260,8 @@ opj_codec_t* OPJ_CALLCONV opj_create_decompress(OPJ_CODEC_FORMAT p_format)
 
 			l_codec->opj_get_codec_index = (opj_codestream_index_t* (*) (void*) ) jp2_get_cstr_index;
 
+			l_codec->opj_get_jp2_boxes = (OPJ_BOOL (*) (void*, opj_jp2_boxes_t*) ) opj_jp2_get_boxes;
+
 			l_codec->m_codec_data.m_decompression.opj_decode =
 					(OPJ_BOOL (*) (	void *,
 									struct opj_stream_private *,
@@ -315,6 +321,10 @@ opj_codec_t* OPJ_CALLCONV opj_create_decompress(OPJ_CODEC_FORMAT p_format)
 						    		OPJ_UINT32 res_factor,
 							    	opj_event_mgr_t * p_manager)) opj_jp2_set_decoded_resolution_factor;
 
+			l_codec->m_codec_data.m_decompression.opj_get_tile_phase_times =
+                    (OPJ_BOOL (*) ( void * p_codec,
+                                    opj_tile_phase_times_t * p_times)) opj_jp2_get_tile_phase_times;
+
 			l_codec->m_codec = opj_jp2_create(OPJ_TRUE);
 
 			if (! l_codec->m_codec) {
@@ -532,6 +542,17 @@ OPJ_BOOL OPJ_CALLCONV opj_set_decoded_resolution_factor(opj_codec_t *p_codec,
 																			&(l_codec->m_event_mgr) );
 }
 
+OPJ_BOOL OPJ_CALLCONV opj_get_tile_phase_times(opj_codec_t *p_codec, opj_tile_phase_times_t *p_times)
+{
+	opj_codec_private_t * l_codec = (opj_codec_private_t *) p_codec;
+
+	if ( !l_codec || !l_codec->is_decompressor || !p_times ){
+		return OPJ_FALSE;
+	}
+
+	return l_codec->m_codec_data.m_decompression.opj_get_tile_phase_times(l_codec->m_codec, p_times);
+}
+
 /* ---------------------------------------------------------------------- */
 /* COMPRESSION FUNCTIONS*/
 
@@ -909,6 +930,17 @@ opj_codestream_index_t * OPJ_CALLCONV opj_get_cstr_index(opj_codec_t *p_codec)
 	return NULL;
 }
 
+OPJ_BOOL OPJ_CALLCONV opj_get_jp2_boxes(opj_codec_t *p_codec, opj_jp2_boxes_t *p_boxes)
+{
+	opj_codec_private_t* l_codec = (opj_codec_private_t*) p_codec;
+
+	if (! l_codec || ! l_codec->opj_get_jp2_boxes || ! p_boxes) {
+		return OPJ_FALSE;
+	}
+
+	return l_codec->opj_get_jp2_boxes(l_codec->m_codec, p_boxes);
+}
+
 void OPJ_CALLCONV opj_destroy_cstr_index(opj_codestream_index_t **p_cstr_index)
 {
 	if (*p_cstr_index){
@@ -1013,6 +1013,25 @@ typedef struct opj_codestream_index {
 }opj_codestream_index_t;
 /* -----------------------------------------------------------> */
 
+/** Number of timed decoding phases of the tiles */
+#define OPJ_NB_TILE_PHASES 5
+
+/**
+ * Times spent by a decompressor in the decoding phases of the tiles, in
+ * the order tier-2, tier-1, inverse DWT, inverse MCT and DC level shift,
+ * cumulated over the decoded tiles
+ */
+typedef struct opj_tile_phase_times {
+	/** wall times, in seconds */
+	OPJ_FLOAT64 wall[OPJ_NB_TILE_PHASES];
+	/** CPU times of the decoding thread, in seconds */
+	OPJ_FLOAT64 cpu[OPJ_NB_TILE_PHASES];
+	/** bytes of codestream read by tier-2 */
+	OPJ_UINT64 t2_bytes;
+	/** size in bytes of the sample buffers of the current tile */
+	OPJ_SIZE_T tile_data_size;
+} opj_tile_phase_times_t;
+
 /*
 ==========================================================
    Metadata from the JP2file
@@ -1029,6 +1048,30 @@ typedef struct opj_jp2_metadata {
 
 } opj_jp2_metadata_t;
 
+/**
+ * Boxes of a JP2 file read with its header, before the codestream
+ */
+typedef struct opj_jp2_boxes {
+	/** brand of the file type box */
+	OPJ_UINT32 brand;
+	/** minor version of the file type box */
+	OPJ_UINT32 minversion;
+	/** number of compatible brands */
+	OPJ_UINT32 numcl;
+	/** compatible brands, owned by the codec */
+	const OPJ_UINT32 *cl;
+	/** method of the colour specification box */
+	OPJ_UINT32 meth;
+	/** enumerated colour space of the colour specification box */
+	OPJ_UINT32 enumcs;
+	/** length of the ICC profile, 0 if none */
+	OPJ_UINT32 icc_profile_len;
+	/** whether a palette box is present */
+	OPJ_BOOL has_pclr;
+	/** whether a channel definition box is present */
+	OPJ_BOOL has_cdef;
+} opj_jp2_boxes_t;
+
 /**
  * Index structure of the JP2 file
  * EXPERIMENTAL FOR THE MOMENT
@@ -1328,6 +1371,15 @@ OPJ_API OPJ_BOOL OPJ_CALLCONV opj_get_decoded_tile(	opj_codec_t *p_codec,
  */
 OPJ_API OPJ_BOOL OPJ_CALLCONV opj_set_decoded_resolution_factor(opj_codec_t *p_codec, OPJ_UINT32 res_factor);
 
+/**
+ * Get the times spent by the decompressor in the decoding phases of the tiles
+ * @param	p_codec			the jpeg2000 codec.
+ * @param	p_times			times of the phases, filled by the codec
+ *
+ * @return					true if success, false if no tile decoder was created
+ */
+OPJ_API OPJ_BOOL OPJ_CALLCONV opj_get_tile_phase_times(opj_codec_t *p_codec, opj_tile_phase_times_t *p_times);
+
 /**
  * Writes a tile with the given data.
  *
@@ -1532,6 +1584,17 @@ OPJ_API opj_jp2_metadata_t* OPJ_CALLCONV opj_get_jp2_metadata(opj_codec_t *p_cod
  */
 OPJ_API opj_jp2_index_t* OPJ_CALLCONV opj_get_jp2_index(opj_codec_t *p_codec);
 
+/**
+ * Get the boxes of the JP2 file read by the header of a JP2 decompressor
+ *
+ * @param	p_codec			the jpeg2000 codec.
+ * @param	p_boxes			boxes of the file, filled by the codec.
+ *
+ * @return					true if success, false if the codec does not decode JP2 files.
+ *
+ */
+OPJ_API OPJ_BOOL OPJ_CALLCONV opj_get_jp2_boxes(opj_codec_t *p_codec, opj_jp2_boxes_t *p_boxes);
+
 
 /*
 ==========================================================
@@ -37,6 +37,7 @@
 #include <sys/time.h>
 #include <sys/resource.h>
 #include <sys/times.h>
+#include <time.h>
 #endif /* _WIN32 */
 
 OPJ_FLOAT64 opj_clock(void) {
@@ -63,3 +64,42 @@ OPJ_FLOAT64 opj_clock(void) {
 #endif
 }
 
+OPJ_FLOAT64 opj_wall_clock(void) {
+#ifdef _WIN32
+    LARGE_INTEGER freq , t ;
+    QueryPerformanceFrequency(&freq) ;
+    QueryPerformanceCounter ( & t ) ;
+    return ( t.QuadPart /(OPJ_FLOAT64) freq.QuadPart ) ;
+#elif defined(CLOCK_MONOTONIC)
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return (OPJ_FLOAT64)t.tv_sec + (OPJ_FLOAT64)t.tv_nsec * 1e-9 ;
+#else
+    struct timeval t;
+    gettimeofday(&t, NULL);
+    return (OPJ_FLOAT64)t.tv_sec + (OPJ_FLOAT64)t.tv_usec * 1e-6 ;
+#endif
+}
+
+OPJ_FLOAT64 opj_thread_clock(void) {
+#ifdef _WIN32
+    /* kernel and user times, in 100 ns units */
+    FILETIME creation, exit, kernel, user;
+    ULARGE_INTEGER k, u;
+    if (!GetThreadTimes(GetCurrentThread(), &creation, &exit, &kernel, &user)) {
+        return 0;
+    }
+    k.LowPart = kernel.dwLowDateTime;
+    k.HighPart = kernel.dwHighDateTime;
+    u.LowPart = user.dwLowDateTime;
+    u.HighPart = user.dwHighDateTime;
+    return (OPJ_FLOAT64)(k.QuadPart + u.QuadPart) * 1e-7 ;
+#elif defined(CLOCK_THREAD_CPUTIME_ID)
+    struct timespec t;
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &t);
+    return (OPJ_FLOAT64)t.tv_sec + (OPJ_FLOAT64)t.tv_nsec * 1e-9 ;
+#else
+    /* process CPU time as a fallback */
+    return opj_clock();
+#endif
+}
@@ -50,6 +50,18 @@ Difference in successive opj_clock() calls tells you the elapsed time
 */
 OPJ_FLOAT64 opj_clock(void);
 
+/**
+Difference in successive opj_wall_clock() calls tells you the elapsed wall time
+@return Returns time in seconds
+*/
+OPJ_FLOAT64 opj_wall_clock(void);
+
+/**
+Difference in successive opj_thread_clock() calls tells you the CPU time used by the calling thread
+@return Returns time in seconds
+*/
+OPJ_FLOAT64 opj_thread_clock(void);
+
 /* ----------------------------------------------------------------------- */
 /*@}*/
 
@@ -113,6 +113,10 @@ typedef struct opj_codec_private
             OPJ_BOOL (*opj_set_decoded_resolution_factor) ( void * p_codec,
                                                             OPJ_UINT32 res_factor,
                                                             opj_event_mgr_t * p_manager);
+
+            /** Get the times of the tile decoding phases */
+            OPJ_BOOL (*opj_get_tile_phase_times) ( void * p_codec,
+                                                   opj_tile_phase_times_t * p_times);
         } m_decompression;
 
         /**
@@ -157,6 +161,8 @@ typedef struct opj_codec_private
     void (*opj_dump_codec) (void * p_codec, OPJ_INT32 info_flag, FILE* output_stream);
     opj_codestream_info_v2_t* (*opj_get_codec_info)(void* p_codec);
     opj_codestream_index_t* (*opj_get_codec_index)(void* p_codec);
+    /** Get the boxes of a JP2 file, NULL for raw codestreams */
+    OPJ_BOOL (*opj_get_jp2_boxes)(void* p_codec, opj_jp2_boxes_t* p_boxes);
 }
 opj_codec_private_t;
 
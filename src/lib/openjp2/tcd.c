@@ -157,6 +157,13 @@ static OPJ_BOOL opj_tcd_mct_decode (opj_tcd_t *p_tcd, opj_event_mgr_t *p_manager
 
 static OPJ_BOOL opj_tcd_dc_level_shift_decode (opj_tcd_t *p_tcd);
 
+/**
+ * Adds the time elapsed since the given clocks to a decoding phase, then
+ * restarts the clocks for the next phase.
+*/
+static void opj_tcd_phase_end (opj_tcd_t *p_tcd, OPJ_TCD_PHASE p_phase,
+                               OPJ_FLOAT64 *p_wall, OPJ_FLOAT64 *p_cpu);
+
 
 static OPJ_BOOL opj_tcd_dc_level_shift_encode ( opj_tcd_t *p_tcd );
 
@@ -1254,6 +1261,7 @@ OPJ_BOOL opj_tcd_decode_tile(   opj_tcd_t *p_tcd,
                                 )
 {
         OPJ_UINT32 l_data_read;
+        OPJ_FLOAT64 l_wall, l_cpu;
         p_tcd->tcd_tileno = p_tile_no;
         p_tcd->tcp = &(p_tcd->cp->tcps[p_tile_no]);
 
@@ -1280,51 +1288,50 @@ OPJ_BOOL opj_tcd_decode_tile(   opj_tcd_t *p_tcd,
         /* << INDEX */
 #endif
 
+        l_wall = opj_wall_clock();
+        l_cpu = opj_thread_clock();
+
         /*--------------TIER2------------------*/
-        /* FIXME _ProfStart(PGROUP_T2); */
         l_data_read = 0;
         if (! opj_tcd_t2_decode(p_tcd, p_src, &l_data_read, p_max_length, p_cstr_index, p_manager))
         {
                 return OPJ_FALSE;
         }
-        /* FIXME _ProfStop(PGROUP_T2); */
+        p_tcd->phase_times.t2_bytes += l_data_read;
+        opj_tcd_phase_end(p_tcd, OPJ_TCD_PHASE_T2, &l_wall, &l_cpu);
 
         /*------------------TIER1-----------------*/
 
-        /* FIXME _ProfStart(PGROUP_T1); */
         if
                 (! opj_tcd_t1_decode(p_tcd))
         {
                 return OPJ_FALSE;
         }
-        /* FIXME _ProfStop(PGROUP_T1); */
+        opj_tcd_phase_end(p_tcd, OPJ_TCD_PHASE_T1, &l_wall, &l_cpu);
 
         /*----------------DWT---------------------*/
 
-        /* FIXME _ProfStart(PGROUP_DWT); */
         if
                 (! opj_tcd_dwt_decode(p_tcd))
         {
                 return OPJ_FALSE;
         }
-        /* FIXME _ProfStop(PGROUP_DWT); */
+        opj_tcd_phase_end(p_tcd, OPJ_TCD_PHASE_DWT, &l_wall, &l_cpu);
 
         /*----------------MCT-------------------*/
-        /* FIXME _ProfStart(PGROUP_MCT); */
         if
                 (! opj_tcd_mct_decode(p_tcd, p_manager))
         {
                 return OPJ_FALSE;
         }
-        /* FIXME _ProfStop(PGROUP_MCT); */
+        opj_tcd_phase_end(p_tcd, OPJ_TCD_PHASE_MCT, &l_wall, &l_cpu);
 
-        /* FIXME _ProfStart(PGROUP_DC_SHIFT); */
         if
                 (! opj_tcd_dc_level_shift_decode(p_tcd))
         {
                 return OPJ_FALSE;
         }
-        /* FIXME _ProfStop(PGROUP_DC_SHIFT); */
+        opj_tcd_phase_end(p_tcd, OPJ_TCD_PHASE_DC_SHIFT, &l_wall, &l_cpu);
 
 
         /*---------------TILE-------------------*/
@@ -1529,6 +1536,18 @@ static void opj_tcd_free_tile(opj_tcd_t *p_tcd)
 }
 
 
+static void opj_tcd_phase_end (opj_tcd_t *p_tcd, OPJ_TCD_PHASE p_phase,
+                               OPJ_FLOAT64 *p_wall, OPJ_FLOAT64 *p_cpu)
+{
+        OPJ_FLOAT64 l_wall = opj_wall_clock();
+        OPJ_FLOAT64 l_cpu = opj_thread_clock();
+
+        p_tcd->phase_times.wall[p_phase] += l_wall - *p_wall;
+        p_tcd->phase_times.cpu[p_phase] += l_cpu - *p_cpu;
+        *p_wall = l_wall;
+        *p_cpu = l_cpu;
+}
+
 static OPJ_BOOL opj_tcd_t2_decode (opj_tcd_t *p_tcd,
                             OPJ_BYTE * p_src_data,
                             OPJ_UINT32 * p_data_read,
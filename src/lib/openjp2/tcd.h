@@ -193,6 +193,33 @@ typedef struct opj_tcd_image
 opj_tcd_image_t;
 
 
+/**
+Decoding phases of a tile, timed by opj_tcd_decode_tile, in the order of
+the phases of opj_tile_phase_times_t
+*/
+typedef enum OPJ_TCD_PHASE
+{
+	OPJ_TCD_PHASE_T2 = 0,
+	OPJ_TCD_PHASE_T1,
+	OPJ_TCD_PHASE_DWT,
+	OPJ_TCD_PHASE_MCT,
+	OPJ_TCD_PHASE_DC_SHIFT,
+	OPJ_TCD_NB_PHASES
+} OPJ_TCD_PHASE;
+
+/**
+Times spent in each decoding phase, cumulated over the decoded tiles
+*/
+typedef struct opj_tcd_phase_times
+{
+	/** wall times, in seconds */
+	OPJ_FLOAT64 wall[OPJ_TCD_NB_PHASES];
+	/** CPU times of the decoding thread, in seconds */
+	OPJ_FLOAT64 cpu[OPJ_TCD_NB_PHASES];
+	/** bytes of codestream read by tier-2 */
+	OPJ_UINT64 t2_bytes;
+} opj_tcd_phase_times_t;
+
 /**
 Tile coder/decoder
 */
@@ -220,6 +247,8 @@ typedef struct opj_tcd
 	OPJ_UINT32 tcd_tileno;
 	/** tell if the tcd is a decoder. */
 	OPJ_UINT32 m_is_decoder : 1;
+	/** times of the decoding phases */
+	opj_tcd_phase_times_t phase_times;
 } opj_tcd_t;
 
 /** @name Exported functions */
@@ -70,16 +70,79 @@ typedef struct opj_decompress_params
    int split_pnm;
 }opj_decompress_parameters;
 
+// buffer of the native streams probing a header: the codec reads the
+// stream in chunks of this size, so a small chunk only loads the pages
+// holding the main header of a mapped file
+#define HEADER_STREAM_CHUNK_SIZE (64 * 1024)
+
+// indices of the decoding statistics handed to Java, see
+// OpenJpegDecodeStatistics: times in nanoseconds, sizes in bytes
+#define STAT_READ_WALL       0
+#define STAT_BYTES_IN        1
+#define STAT_HEADER_WALL     2
+#define STAT_HEADER_CPU      3
+#define STAT_T2_WALL         4
+#define STAT_T2_CPU          5
+#define STAT_T1_WALL         6
+#define STAT_T1_CPU          7
+#define STAT_DWT_WALL        8
+#define STAT_DWT_CPU         9
+#define STAT_MCT_WALL        10
+#define STAT_MCT_CPU         11
+#define STAT_DC_SHIFT_WALL   12
+#define STAT_DC_SHIFT_CPU    13
+#define STAT_CODESTREAM_BYTES 14
+#define STAT_COPY_WALL       15
+#define STAT_COPY_CPU        16
+#define STAT_BYTES_OUT       17
+#define STAT_TOTAL_WALL      18
+#define STAT_TOTAL_CPU       19
+#define STAT_NATIVE_MEMORY   20
+#define STAT_COUNT           21
+
+typedef struct decode_stats
+{
+   jlong values[STAT_COUNT];
+   // clocks at the start of the decoding, in seconds
+   OPJ_FLOAT64 start_wall;
+   OPJ_FLOAT64 start_cpu;
+}decode_stats_t;
+
 typedef struct input_stream
 {
-   // stream content
-   const unsigned char* stream;
+   // stream content, split in chunks of chunk_length bytes (the last chunk
+   // may be shorter)
+   const unsigned char** chunks;
+   // length of every chunk but the last one
+   size_t chunk_length;
    // stream length
    size_t length;
    // current index of stream
    size_t index;
+   // read time and bytes, may be NULL
+   decode_stats_t* stats;
 }input_stream_t;
 
+typedef struct java_input
+{
+   // heap source array, pinned while decoding
+   jbyteArray array;
+   jbyte* elements;
+}java_input_t;
+
+typedef struct java_stream
+{
+   // decoder pulling its seekable input, valid during the native call only
+   JNIEnv* env;
+   jobject obj;
+   jmethodID read_mid;
+   jmethodID skip_mid;
+   jmethodID seek_mid;
+   jfieldID chunk_fid;
+   // read time and bytes, may be NULL
+   decode_stats_t* stats;
+}java_stream_t;
+
 /******************************************************************************/
 /*** FUNCTIONS ****************************************************************/
 static jclass get_object_class (JNIEnv* env, jobject obj)
@@ -87,7 +150,25 @@ static jclass get_object_class (JNIEnv* env, jobject obj)
    return (*env)->GetObjectClass(env, obj);
 }
 
-input_stream_t* create_input_stream(const unsigned char* stream, size_t length)
+/**
+ * Adds the time elapsed since the given clocks to a statistic, and to the
+ * next one for the CPU time when cpu is not NULL.
+ */
+static void add_stat_time(decode_stats_t* stats, int index, OPJ_FLOAT64 wall, const OPJ_FLOAT64* cpu)
+{
+   if (stats == NULL)
+   {
+      return;
+   }
+   stats->values[index] += (jlong) ((opj_wall_clock() - wall) * 1e9);
+   if (cpu != NULL)
+   {
+      stats->values[index + 1] += (jlong) ((opj_thread_clock() - *cpu) * 1e9);
+   }
+}
+
+input_stream_t* create_input_stream(const unsigned char** chunks, size_t nb_chunks,
+      size_t chunk_length, size_t length, decode_stats_t* stats)
 {
    input_stream_t* is = NULL;
 
@@ -96,23 +177,64 @@ input_stream_t* create_input_stream(const unsigned char* stream, size_t length)
    {
       return 00;
    }
-   is->stream = stream;
+   is->chunks = (const unsigned char**) opj_calloc(nb_chunks + 1, sizeof(unsigned char*));
+   if (!is->chunks)
+   {
+      opj_free(is);
+      return 00;
+   }
+   memcpy(is->chunks, chunks, nb_chunks * sizeof(unsigned char*));
+   is->chunk_length = chunk_length;
    is->length = length;
    is->index = 0;
+   is->stats = stats;
 
    return is;
 }
 
 void free_input_stream(input_stream_t* i_stream)
 {
+   opj_free(i_stream->chunks);
    opj_free(i_stream);
 }
 
+/**
+ * Copies p_nb_bytes between p_buffer and the stream content at the current
+ * index, crossing chunk boundaries as needed.
+ */
+static void copy_input_stream(input_stream_t* is, void* p_buffer, OPJ_SIZE_T p_nb_bytes,
+      OPJ_BOOL to_buffer)
+{
+   unsigned char* buffer = (unsigned char*) p_buffer;
+   unsigned char* chunk_cursor;
+   size_t chunk_offset;
+   size_t nb_bytes;
+
+   while (p_nb_bytes > 0)
+   {
+      chunk_offset = is->index % is->chunk_length;
+      chunk_cursor = (unsigned char*) is->chunks[is->index / is->chunk_length] + chunk_offset;
+      nb_bytes = is->chunk_length - chunk_offset;
+      if (nb_bytes > p_nb_bytes)
+         nb_bytes = p_nb_bytes;
+
+      if (to_buffer)
+         memcpy(buffer, chunk_cursor, nb_bytes);
+      else
+         memcpy(chunk_cursor, buffer, nb_bytes);
+
+      buffer += nb_bytes;
+      is->index += nb_bytes;
+      p_nb_bytes -= nb_bytes;
+   }
+}
+
 OPJ_SIZE_T read_input_stream(void * p_buffer, OPJ_SIZE_T p_nb_bytes, void * p_user_data)
 {
    input_stream_t* is = (input_stream_t*) p_user_data;
    OPJ_SIZE_T max_bytes_read;
    OPJ_SIZE_T new_index;
+   OPJ_FLOAT64 wall;
    
    if (is->index >= is->length)
       return ((OPJ_SIZE_T) -1);
@@ -123,12 +245,14 @@ OPJ_SIZE_T read_input_stream(void * p_buffer, OPJ_SIZE_T p_nb_bytes, void * p_us
    else
       max_bytes_read = p_nb_bytes;
    
-   
-   void* stream_start = (void*)is->stream;
-   void* stream_cursor = (void*)(stream_start + is->index);
-   
-   memcpy(p_buffer, stream_cursor, max_bytes_read);
-   is->index = is->index + max_bytes_read;
+   // mapped files are actually read here, by page faults
+   wall = opj_wall_clock();
+   copy_input_stream(is, p_buffer, max_bytes_read, OPJ_TRUE);
+   if (is->stats != NULL)
+   {
+      add_stat_time(is->stats, STAT_READ_WALL, wall, NULL);
+      is->stats->values[STAT_BYTES_IN] += (jlong) max_bytes_read;
+   }
    return max_bytes_read;
 }
 
@@ -147,8 +271,7 @@ OPJ_SIZE_T write_input_stream(void * p_buffer, OPJ_SIZE_T p_nb_bytes, void * p_u
    else
       max_bytes_write = p_nb_bytes;
    
-   memcpy((((void*)is->stream)+is->index), p_buffer, max_bytes_write);
-   is->index = is->index + max_bytes_write;
+   copy_input_stream(is, p_buffer, max_bytes_write, OPJ_FALSE);
    return max_bytes_write;
 }
 
@@ -180,18 +303,19 @@ OPJ_BOOL seek_input_stream(OPJ_OFF_T p_nb_bytes, void * p_user_data)
    return OPJ_TRUE;
 }
 
-static opj_stream_t* create_opj_input_stream(const unsigned char* content, size_t length)
+static opj_stream_t* create_opj_input_stream(const unsigned char** chunks, size_t nb_chunks,
+      size_t chunk_length, size_t length, OPJ_SIZE_T buffer_size, decode_stats_t* stats)
 {
    opj_stream_t* l_stream = 00;
    input_stream_t* i_stream = 00;
    
-   i_stream = create_input_stream(content, length);
+   i_stream = create_input_stream(chunks, nb_chunks, chunk_length, length, stats);
    if (!i_stream)
    {
       return NULL;
    }
    
-   l_stream = opj_stream_create(OPJ_J2K_STREAM_CHUNK_SIZE, OPJ_TRUE);
+   l_stream = opj_stream_create(buffer_size, OPJ_TRUE);
    if (!l_stream)
    {
       free_input_stream(i_stream);
@@ -222,6 +346,272 @@ void stream_destroy(opj_stream_t* p_stream)
    }
 }
 
+/**
+ * Returns OPJ_TRUE, after clearing it, if a Java callback of the stream
+ * threw an exception: the codec sees it as a failure of the stream.
+ */
+static OPJ_BOOL clear_java_stream_exception(JNIEnv* env)
+{
+   if ((*env)->ExceptionCheck(env))
+   {
+      (*env)->ExceptionDescribe(env);
+      (*env)->ExceptionClear(env);
+      return OPJ_TRUE;
+   }
+   return OPJ_FALSE;
+}
+
+OPJ_SIZE_T read_java_stream(void * p_buffer, OPJ_SIZE_T p_nb_bytes, void * p_user_data)
+{
+   java_stream_t* js = (java_stream_t*) p_user_data;
+   JNIEnv* env = js->env;
+   jbyteArray chunk;
+   OPJ_SIZE_T total = 0;
+   OPJ_FLOAT64 wall = opj_wall_clock();
+   jint length;
+   jint read;
+
+   while (total < p_nb_bytes)
+   {
+      length = (p_nb_bytes - total > 0x7FFFFFFF) ? 0x7FFFFFFF : (jint) (p_nb_bytes - total);
+      read = (*env)->CallIntMethod(env, js->obj, js->read_mid, length);
+      if (clear_java_stream_exception(env) || read <= 0)
+      {
+         break;
+      }
+      chunk = (jbyteArray) (*env)->GetObjectField(env, js->obj, js->chunk_fid);
+      (*env)->GetByteArrayRegion(env, chunk, 0, read, (jbyte*) p_buffer + total);
+      (*env)->DeleteLocalRef(env, chunk);
+      if (clear_java_stream_exception(env))
+      {
+         break;
+      }
+      total += (OPJ_SIZE_T) read;
+   }
+   if (js->stats != NULL)
+   {
+      add_stat_time(js->stats, STAT_READ_WALL, wall, NULL);
+      js->stats->values[STAT_BYTES_IN] += (jlong) total;
+   }
+   return total > 0 ? total : ((OPJ_SIZE_T) -1);
+}
+
+OPJ_OFF_T skip_java_stream(OPJ_OFF_T p_nb_bytes, void * p_user_data)
+{
+   java_stream_t* js = (java_stream_t*) p_user_data;
+   OPJ_FLOAT64 wall = opj_wall_clock();
+   jlong skipped;
+
+   // a forward only stream reads what it skips
+   skipped = (*js->env)->CallLongMethod(js->env, js->obj, js->skip_mid, (jlong) p_nb_bytes);
+   add_stat_time(js->stats, STAT_READ_WALL, wall, NULL);
+   if (clear_java_stream_exception(js->env) || skipped != p_nb_bytes)
+   {
+      return ((OPJ_OFF_T) -1);
+   }
+   return p_nb_bytes;
+}
+
+OPJ_BOOL seek_java_stream(OPJ_OFF_T p_nb_bytes, void * p_user_data)
+{
+   java_stream_t* js = (java_stream_t*) p_user_data;
+   OPJ_FLOAT64 wall = opj_wall_clock();
+   jboolean done;
+
+   done = (*js->env)->CallBooleanMethod(js->env, js->obj, js->seek_mid, (jlong) p_nb_bytes);
+   add_stat_time(js->stats, STAT_READ_WALL, wall, NULL);
+   if (clear_java_stream_exception(js->env) || !done)
+   {
+      return OPJ_FALSE;
+   }
+   return OPJ_TRUE;
+}
+
+/**
+ * Opens a native stream pulling the "seekableInput" of the Java decoder
+ * through its readInput, skipInput and seekInput methods. The input is
+ * rewound first so that the header and the image may be read in turn. Its
+ * length must be known.
+ */
+static opj_stream_t* open_java_seekable_stream(JNIEnv* env, jobject obj, OPJ_SIZE_T buffer_size,
+      decode_stats_t* stats)
+{
+   jclass class = get_object_class(env, obj);
+   jfieldID fid = NULL;
+   jobject input;
+   jmethodID length_mid;
+   jlong length;
+   java_stream_t* js = NULL;
+   opj_stream_t* stream = NULL;
+
+   fid = (*env)->GetFieldID(env, class, "seekableInput", "Lfr/gael/openjpeg/OpenJpegSeekableInput;");
+   if((*env)->ExceptionOccurred(env) || fid == NULL)
+   {
+      return NULL;
+   }
+   input = (*env)->GetObjectField(env, obj, fid);
+   if (input == NULL)
+   {
+      return NULL;
+   }
+   (*env)->DeleteLocalRef(env, input);
+
+   js = (java_stream_t*) opj_calloc(1, sizeof(java_stream_t));
+   if (js == NULL)
+   {
+      return NULL;
+   }
+   js->env = env;
+   js->obj = obj;
+   js->stats = stats;
+   js->read_mid = (*env)->GetMethodID(env, class, "readInput", "(I)I");
+   js->skip_mid = (*env)->GetMethodID(env, class, "skipInput", "(J)J");
+   js->seek_mid = (*env)->GetMethodID(env, class, "seekInput", "(J)Z");
+   js->chunk_fid = (*env)->GetFieldID(env, class, "streamChunk", "[B");
+   length_mid = (*env)->GetMethodID(env, class, "inputLength", "()J");
+   if ((*env)->ExceptionCheck(env) || js->read_mid == NULL || js->skip_mid == NULL ||
+         js->seek_mid == NULL || js->chunk_fid == NULL || length_mid == NULL)
+   {
+      opj_free(js);
+      return NULL;
+   }
+
+   if (seek_java_stream(0, js) == OPJ_FALSE)
+   {
+      opj_free(js);
+      return NULL;
+   }
+   length = (*env)->CallLongMethod(env, obj, length_mid);
+   if (clear_java_stream_exception(env) || length <= 0)
+   {
+      // the codec asserts on the bytes left: the Java decoder buffers the
+      // inputs of unknown length
+      opj_free(js);
+      return NULL;
+   }
+
+   stream = opj_stream_create(buffer_size, OPJ_TRUE);
+   if (stream == NULL)
+   {
+      opj_free(js);
+      return NULL;
+   }
+   opj_stream_set_user_data(stream, js, (opj_stream_free_user_data_fn) opj_free);
+   opj_stream_set_user_data_length(stream, (OPJ_UINT64) length);
+   opj_stream_set_read_function(stream, (opj_stream_read_fn) read_java_stream);
+   opj_stream_set_skip_function(stream, (opj_stream_skip_fn) skip_java_stream);
+   opj_stream_set_seek_function(stream, (opj_stream_seek_fn) seek_java_stream);
+   return stream;
+}
+
+/**
+ * Opens a native stream over the input of the Java decoder: the direct
+ * buffers "byteBufferInputStream" are read in place when set, otherwise the
+ * heap array "byteInputStream" is pinned for the duration of the decoding,
+ * otherwise the "seekableInput" is pulled on demand. The codec reads the
+ * input in chunks of buffer_size bytes.
+ */
+static opj_stream_t* open_java_input_stream(JNIEnv* env, jobject obj, java_input_t* input,
+      OPJ_SIZE_T buffer_size, decode_stats_t* stats)
+{
+   jclass class = get_object_class(env, obj);
+   jfieldID fid = NULL;
+   jobjectArray buffers;
+   jobject buffer;
+   jsize nb_buffers;
+   jsize i;
+   jsize array_size;
+   jboolean is_copy = JNI_FALSE;
+   const unsigned char** chunks = NULL;
+   const unsigned char* address = NULL;
+   jlong capacity;
+   size_t chunk_length = 0;
+   size_t length = 0;
+   opj_stream_t* stream = NULL;
+
+   memset(input, 0, sizeof(java_input_t));
+
+   // direct buffers input
+   fid = (*env)->GetFieldID(env, class, "byteBufferInputStream", "[Ljava/nio/ByteBuffer;");
+   if((*env)->ExceptionOccurred(env) || fid == NULL)
+   {
+      return NULL;
+   }
+   buffers = (*env)->GetObjectField(env, obj, fid);
+   if (buffers != NULL)
+   {
+      nb_buffers = (*env)->GetArrayLength(env, buffers);
+      chunks = (const unsigned char**) opj_calloc(nb_buffers + 1, sizeof(unsigned char*));
+      if (chunks == NULL)
+      {
+         return NULL;
+      }
+      for (i = 0; i < nb_buffers; i++)
+      {
+         buffer = (*env)->GetObjectArrayElement(env, buffers, i);
+         address = (const unsigned char*) (*env)->GetDirectBufferAddress(env, buffer);
+         capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+         (*env)->DeleteLocalRef(env, buffer);
+         if (address == NULL || capacity < 0)
+         {
+            opj_free(chunks);
+            return NULL;
+         }
+         if (i == 0)
+         {
+            chunk_length = (size_t) capacity;
+         }
+         chunks[i] = address;
+         length += (size_t) capacity;
+      }
+      stream = create_opj_input_stream(chunks, (size_t) nb_buffers, chunk_length, length,
+            buffer_size, stats);
+      opj_free(chunks);
+      return stream;
+   }
+
+   // heap array input
+   fid = (*env)->GetFieldID(env, class, "byteInputStream", "[B");
+   if((*env)->ExceptionOccurred(env) || fid == NULL)
+   {
+      return NULL;
+   }
+   input->array = (*env)->GetObjectField(env, obj, fid);
+   if (input->array == NULL)
+   {
+      return open_java_seekable_stream(env, obj, buffer_size, stats);
+   }
+   array_size = (*env)->GetArrayLength(env, input->array);
+   input->elements = (*env)->GetByteArrayElements(env, input->array, &is_copy);
+   if (input->elements == NULL)
+   {
+      return NULL;
+   }
+   address = (const unsigned char*) input->elements;
+   stream = create_opj_input_stream(&address, 1, (size_t) array_size, (size_t) array_size,
+         buffer_size, stats);
+   if (stream == NULL)
+   {
+      (*env)->ReleaseByteArrayElements(env, input->array, input->elements, JNI_ABORT);
+      input->elements = NULL;
+   }
+   return stream;
+}
+
+/**
+ * Destroys a stream opened by open_java_input_stream and unpins its source.
+ * The source is only read, so pinned elements are never copied back.
+ */
+static void close_java_input_stream(JNIEnv* env, opj_stream_t* stream, java_input_t* input)
+{
+   stream_destroy(stream);
+   if (input->elements != NULL)
+   {
+      (*env)->ReleaseByteArrayElements(env, input->array, input->elements, JNI_ABORT);
+      input->elements = NULL;
+   }
+}
+
 static void set_default_parameters(opj_decompress_parameters* parameters)
 {
    if (parameters)
@@ -273,126 +663,413 @@ static void set_image_properties(JNIEnv* env, jclass class, jobject obj, opj_ima
    
 }
 
-static void fill_image_24_java_buffer(JNIEnv* env, jobject obj, opj_image_t* image)
+static jboolean get_boolean_field(JNIEnv* env, jobject obj, const char* name)
 {
-   size_t length;
-   int i;
-   int *alpha = NULL, *red = NULL, *green = NULL, *blue = NULL;
-   unsigned char rc, gc, bc, ac = 255; // ac:0 FULLY_TRANSPARENT / ac:255 FULLY_OPAQUE
-   jboolean has_alpha = (image->numcomps == 4) ? JNI_TRUE : JNI_FALSE;
-   jboolean is_copy = JNI_FALSE;
-   jintArray image_obj;
-   jint* buffer;
-   jint* array_elem;
    jclass class = get_object_class(env, obj);
-   jfieldID fid;
-   jmethodID method_id;
+   jfieldID fid = (*env)->GetFieldID(env, class, name, "Z");
 
-   red = image->comps[0].data;
-   green = image->comps[1].data;
-   blue = image->comps[2].data;
-   if (has_alpha == JNI_TRUE)
-      alpha = image->comps[3].data;
+   if ((*env)->ExceptionOccurred(env) || fid == NULL)
+      return JNI_FALSE;
+   return (*env)->GetBooleanField(env, obj, fid);
+}
 
-   // allocate java memory
-   method_id = (*env)->GetMethodID(env, class, "alloc24", "()V");
-   (*env)->CallVoidMethod(env, obj, method_id);
+static jint get_int_field(JNIEnv* env, jobject obj, const char* name)
+{
+   jclass class = get_object_class(env, obj);
+   jfieldID fid = (*env)->GetFieldID(env, class, name, "I");
 
-   // get Java image buffer
-   fid = (*env)->GetFieldID(env, class, "image24", "[I");
-   image_obj = (*env)->GetObjectField(env, obj, fid);
-   length = (*env)->GetArrayLength(env, image_obj);
-   array_elem = (*env)->GetIntArrayElements(env, image_obj, &is_copy);
+   if ((*env)->ExceptionOccurred(env) || fid == NULL)
+      return -1;
+   return (*env)->GetIntField(env, obj, fid);
+}
 
-   // fill Java image buffer
-   buffer = array_elem;
-   for(i = 0; i < length; i++)
-   {
-      rc = (unsigned char) *red++;
-      gc = (unsigned char) *green++;
-      bc = (unsigned char) *blue++;
-      if (has_alpha == JNI_TRUE)
-         ac = (unsigned char) *alpha++;
+/**
+ * Restricts the decoding to the area requested by the Java decoder, if any.
+ * The area is relative to the image origin, only the tiles intersecting it
+ * are decoded.
+ */
+static OPJ_BOOL set_java_decode_area(JNIEnv* env, jobject obj, opj_codec_t* codec, opj_image_t* image)
+{
+   jint x = get_int_field(env, obj, "decodeAreaX");
+   jint y = get_int_field(env, obj, "decodeAreaY");
+   jint width = get_int_field(env, obj, "decodeAreaWidth");
+   jint height = get_int_field(env, obj, "decodeAreaHeight");
+   OPJ_INT64 x0, y0, x1, y1;
+
+   if (width <= 0 || height <= 0)
+      return OPJ_TRUE;
+
+   x0 = (OPJ_INT64) image->x0 + x;
+   y0 = (OPJ_INT64) image->y0 + y;
+   x1 = x0 + width;
+   y1 = y0 + height;
+   if (x1 > image->x1)
+      x1 = image->x1;
+   if (y1 > image->y1)
+      y1 = image->y1;
+   if (x0 >= x1 || y0 >= y1)
+      return OPJ_FALSE;
 
-      *buffer++ = (jint) ((ac << 24) | (rc << 16) | (gc << 8) | bc);
-   }
+   return opj_set_decode_area(codec, image, (OPJ_INT32) x0, (OPJ_INT32) y0,
+         (OPJ_INT32) x1, (OPJ_INT32) y1);
+}
 
-   // release Java image buffer
-   (*env)->ReleaseIntArrayElements(env, image_obj, array_elem, 0);
+/**
+ * Hands the boxes read by the JP2 codec before the codestream to the Java
+ * decoder.
+ */
+static void set_jp2_boxes(JNIEnv* env, jclass class, jobject obj, opj_codec_t* codec)
+{
+   opj_jp2_boxes_t boxes;
+   jmethodID method_id;
+   jintArray compatibility;
+
+   if (opj_get_jp2_boxes(codec, &boxes) == OPJ_FALSE)
+      return;
+
+   compatibility = (*env)->NewIntArray(env, (jsize) boxes.numcl);
+   if (compatibility == NULL)
+      return;
+   if (boxes.numcl > 0)
+      (*env)->SetIntArrayRegion(env, compatibility, 0, (jsize) boxes.numcl, (const jint*) boxes.cl);
+
+   method_id = (*env)->GetMethodID(env, class, "setJp2Boxes", "(II[IIIIZZ)V");
+   (*env)->CallVoidMethod(env, obj, method_id, (jint) boxes.brand, (jint) boxes.minversion,
+         compatibility, (jint) boxes.meth, (jint) boxes.enumcs,
+         (jint) boxes.icc_profile_len,
+         boxes.has_pclr ? JNI_TRUE : JNI_FALSE,
+         boxes.has_cdef ? JNI_TRUE : JNI_FALSE);
+   (*env)->DeleteLocalRef(env, compatibility);
 }
 
-static void fill_image_16_java_buffer(JNIEnv* env, jobject obj, opj_image_t* image)
+/**
+ * Hands the properties of the main header to the Java decoder: resolutions,
+ * layers, tile grid, coding style and components, and the JP2 boxes.
+ */
+static void set_codestream_properties(JNIEnv* env, jclass class, jobject obj, opj_codec_t* codec,
+      OPJ_CODEC_FORMAT format, opj_image_t* image)
 {
-   int length;
-   int i;
-   int* grey_color;
-   jboolean is_copy = JNI_FALSE;
-   jshortArray image_obj;
-   jshort* buffer;
-   jshort* array_elem;
-   jclass class = get_object_class(env, obj);
-   jfieldID fid;
    jmethodID method_id;
+   opj_codestream_info_v2_t* info = opj_get_cstr_info(codec);
+   opj_tccp_info_t* tccp;
+   OPJ_UINT32 i;
+
+   if (info == NULL)
+      return;
+   tccp = info->m_default_tile_info.tccp_info;
+
+   // set number of resolutions
+   method_id = (*env)->GetMethodID(env, class, "setResolutionsNumber", "(I)V");
+   (*env)->CallVoidMethod(env, obj, method_id,
+         info->m_default_tile_info.tccp_info[0].numresolutions);
+
+   // set number of quality layers
+   method_id = (*env)->GetMethodID(env, class, "setQualityLayersNumber", "(I)V");
+   (*env)->CallVoidMethod(env, obj, method_id, info->m_default_tile_info.numlayers);
+
+   // set image origin on the reference grid
+   method_id = (*env)->GetMethodID(env, class, "setImageOrigin", "(II)V");
+   (*env)->CallVoidMethod(env, obj, method_id, image->x0, image->y0);
+
+   // set tile grid
+   method_id = (*env)->GetMethodID(env, class, "setTileGrid", "(IIIIII)V");
+   (*env)->CallVoidMethod(env, obj, method_id, info->tx0, info->ty0, info->tdx, info->tdy,
+         info->tw, info->th);
+
+   // set coding style of the first component, code-block sizes are log2
+   method_id = (*env)->GetMethodID(env, class, "setCodingStyle", "(IIIZZ)V");
+   (*env)->CallVoidMethod(env, obj, method_id, (jint) info->m_default_tile_info.prg,
+         (jint) (1 << tccp[0].cblkw), (jint) (1 << tccp[0].cblkh),
+         tccp[0].qmfbid == 1 ? JNI_TRUE : JNI_FALSE,
+         info->m_default_tile_info.mct != 0 ? JNI_TRUE : JNI_FALSE);
+
+   // set components
+   method_id = (*env)->GetMethodID(env, class, "setComponent", "(IIIZII)V");
+   for (i = 0; i < image->numcomps; i++)
+   {
+      opj_image_comp_t* comp = &(image->comps[i]);
+      (*env)->CallVoidMethod(env, obj, method_id, (jint) i, (jint) image->numcomps,
+            (jint) comp->prec, comp->sgnd ? JNI_TRUE : JNI_FALSE, (jint) comp->dx,
+            (jint) comp->dy);
+   }
 
-   // safe pointer copy
-   grey_color = image->comps[0].data;
+   opj_destroy_cstr_info(&info);
 
-   // allocate java memory
-   method_id = (*env)->GetMethodID(env, class, "alloc16", "()V");
-   (*env)->CallVoidMethod(env, obj, method_id);
+   if (format == OPJ_CODEC_JP2)
+      set_jp2_boxes(env, class, obj, codec);
+}
+
+/**
+ * Applies the decoding options of the Java decoder: the number of highest
+ * resolution levels to skip and the maximum number of quality layers to
+ * decode, packets of the remaining layers are skipped.
+ * The resolution factor goes through the decoder parameters rather than
+ * through opj_set_decoded_resolution_factor, which does not resize the image
+ * header already returned by opj_read_header.
+ */
+static void set_java_decoder_parameters(JNIEnv* env, jobject obj, opj_dparameters_t* parameters)
+{
+   jint reduce = get_int_field(env, obj, "reduceFactor");
+   jint layers = get_int_field(env, obj, "maxQualityLayers");
 
-   // get Java image buffer
-   fid = (*env)->GetFieldID(env, class, "image16", "[S");
-   image_obj = (*env)->GetObjectField(env, obj, fid);
-   length = (*env)->GetArrayLength(env, image_obj);
-   array_elem = (*env)->GetShortArrayElements(env, image_obj, &is_copy);
+   if (reduce > 0)
+      parameters->cp_reduce = (OPJ_UINT32) reduce;
+   if (layers > 0)
+      parameters->cp_layer = (OPJ_UINT32) layers;
+}
 
-   // fill Java image buffer
-   buffer = array_elem;
-   for(i = 0; i < length; i++)
+/**
+ * Converts the decoded image to RGB or grey scale, applying its ICC profile
+ * if any.
+ */
+static void convert_image_color(opj_image_t* image)
+{
+   // check YUV color space format
+   if (image->color_space != OPJ_CLRSPC_SYCC && image->numcomps == 3 &&
+         image->comps[0].dx == image->comps[0].dy && image->comps[1].dx != 1)
+   {
+      image->color_space = OPJ_CLRSPC_SYCC;
+   }
+   else if (image->color_space <= 2) // check GRAY scale color space
+   {
+      image->color_space = OPJ_CLRSPC_GRAY;
+   }
+   
+   // convert YUV color space to RGB color space
+   if (image->color_space == OPJ_CLRSPC_SYCC)
+   {
+      color_sycc_to_rgb(image);
+   }
+   
+   // active icc profile
+   if (image->icc_profile_buf)
    {
-      *buffer++ = (short) grey_color[i];
+#if defined(HAVE_LIBLCMS1) || defined(HAVE_LIBLCMS2)
+      color_apply_icc_profile(image);
+#endif
+      opj_free(image->icc_profile_buf);
+      image->icc_profile_buf = NULL;
+      image->icc_profile_len = 0;
    }
+}
+
+static void throw_java_exception(JNIEnv* env, const char* class_name, const char* message)
+{
+   jclass exception_class = (*env)->FindClass(env, class_name);
 
-   // release Java image buffer
-   (*env)->ReleaseShortArrayElements(env, image_obj, array_elem, 0);
+   if (exception_class != NULL)
+      (*env)->ThrowNew(env, exception_class, message);
 }
 
-static void fill_image_8_java_buffer(JNIEnv* env, jobject obj, opj_image_t* image)
+/**
+ * Returns the number of bytes of a pixel in the Java buffers for the decoded
+ * image: 4 for ARGB int pixels (3 components or more), 2 for short grey
+ * pixels (9 to 16 bits) and 1 for byte grey pixels (8 bits).
+ */
+static int get_java_pixel_size(opj_image_t* image)
 {
-   size_t length;
-   int i;
-   int* grey_color;
-   jboolean is_copy = JNI_FALSE;
-   jbyteArray image_obj;
-   jbyte* buffer;
-   jbyte* array_elem;
-   jclass class = get_object_class(env, obj);
-   jfieldID fid;
-   jmethodID method_id;
+   if (image->numcomps >= 3)
+      return 4;
+   if (image->comps[0].prec > 8)
+      return 2;
+   return 1;
+}
 
-   // safe pointer copy
-   grey_color = image->comps[0].data;
+/**
+ * Converts a row of the decoded image into Java pixels: ARGB ints for color
+ * images, shorts or bytes for grey images.
+ */
+static void convert_image_row(opj_image_t* image, OPJ_UINT32 row, void* pixels)
+{
+   OPJ_UINT32 width = image->comps[0].w;
+   size_t start = (size_t) row * width;
+   OPJ_UINT32 i;
 
-   // allocate java memory
-   method_id = (*env)->GetMethodID(env, class, "alloc8", "()V");
-   (*env)->CallVoidMethod(env, obj, method_id);
+   switch (get_java_pixel_size(image))
+   {
+      case 4:
+      {
+         jint* buffer = (jint*) pixels;
+         unsigned char rc, gc, bc, ac = 255;
+
+         for (i = 0; i < width; i++)
+         {
+            rc = (unsigned char) image->comps[0].data[start + i];
+            gc = (unsigned char) image->comps[1].data[start + i];
+            bc = (unsigned char) image->comps[2].data[start + i];
+            if (image->numcomps == 4)
+               ac = (unsigned char) image->comps[3].data[start + i];
+            buffer[i] = (jint) ((ac << 24) | (rc << 16) | (gc << 8) | bc);
+         }
+         break;
+      }
+      case 2:
+      {
+         jshort* buffer = (jshort*) pixels;
+
+         for (i = 0; i < width; i++)
+            buffer[i] = (jshort) image->comps[0].data[start + i];
+         break;
+      }
+      default:
+      {
+         jbyte* buffer = (jbyte*) pixels;
+
+         for (i = 0; i < width; i++)
+            buffer[i] = (jbyte) (unsigned char) image->comps[0].data[start + i];
+         break;
+      }
+   }
+}
+
+/* Layout of the pixels in the output array: typed pixels (byte[] for 8 bits
+ * grey, short[] for 16 bits grey, int[] for ARGB), or pixels encoded on 1, 2
+ * or 4 bytes of a byte[] in big or little endian order. */
+#define JAVA_OUTPUT_TYPED 0
+#define JAVA_OUTPUT_BIG_ENDIAN 1
+#define JAVA_OUTPUT_LITTLE_ENDIAN 2
+
+/* Caller owned output of the decoder: a Java array, or the memory of a
+ * direct buffer when address is not NULL */
+typedef struct java_output
+{
+   jarray array;
+   jbyte* address;
+   jlong capacity;   /* size in bytes of the direct buffer */
+   jint offset;      /* index of the first element of the output */
+   jint stride;      /* number of elements between two rows */
+   jint layout;      /* one of JAVA_OUTPUT_* */
+   jint max_width;   /* width in pixels of the output, none if negative */
+   jint limit;       /* index of the element past the output, the array
+                        length if negative */
+} java_output_t;
+
+/**
+ * Encodes the pixels of a row converted by convert_image_row on pixel_size
+ * bytes each, in the given byte order.
+ */
+static void encode_image_row(const void* pixels, int pixel_size, OPJ_UINT32 width,
+      jint layout, jbyte* bytes)
+{
+   OPJ_UINT32 i;
+   int b;
+
+   for (i = 0; i < width; i++)
+   {
+      OPJ_UINT32 value;
+
+      if (pixel_size == 4)
+         value = (OPJ_UINT32) ((const jint*) pixels)[i];
+      else if (pixel_size == 2)
+         value = (OPJ_UINT32) (unsigned short) ((const jshort*) pixels)[i];
+      else
+         value = (OPJ_UINT32) (unsigned char) ((const jbyte*) pixels)[i];
+
+      for (b = 0; b < pixel_size; b++)
+      {
+         int shift = (layout == JAVA_OUTPUT_BIG_ENDIAN) ? (pixel_size - 1 - b) * 8 : b * 8;
+         bytes[i * pixel_size + b] = (jbyte) ((value >> shift) & 0xff);
+      }
+   }
+}
+
+/**
+ * Writes the decoded image into a caller owned output at (x, y) pixels, see
+ * java_output_t. Rows are copied one by one with Set<Type>ArrayRegion, or
+ * encoded in place into the memory of a direct buffer: the Java arrays are
+ * never pinned nor copied back, and concurrent writes into disjoint areas of
+ * the same output are safe.
+ * Throws IllegalArgumentException if the array type does not match the
+ * image or if the output is too small.
+ */
+static OPJ_BOOL write_image_java_output(JNIEnv* env, opj_image_t* image,
+      java_output_t* output, jint x, jint y)
+{
+   int pixel_size = get_java_pixel_size(image);
+   int element_size = (output->layout == JAVA_OUTPUT_TYPED) ? pixel_size : 1;
+   const char* array_class = (element_size == 4) ? "[I" : ((element_size == 2) ? "[S" : "[B");
+   OPJ_UINT32 width = image->comps[0].w;
+   OPJ_UINT32 height = image->comps[0].h;
+   jlong row_elements = (jlong) width * (pixel_size / element_size);
+   jlong x_elements = (jlong) x * (pixel_size / element_size);
+   OPJ_UINT32 row;
+   jclass class;
+   jlong end, limit;
+   void* pixels;
+   jbyte* bytes = NULL;
+
+   if (output->address != NULL)
+   {
+      if (output->layout == JAVA_OUTPUT_TYPED)
+      {
+         throw_java_exception(env, "java/lang/IllegalArgumentException",
+               "Direct buffer output requires a byte order.");
+         return OPJ_FALSE;
+      }
+      limit = output->capacity;
+   }
+   else
+   {
+      class = (*env)->FindClass(env, array_class);
+      if (class == NULL)
+         return OPJ_FALSE;
+      if (!(*env)->IsInstanceOf(env, output->array, class))
+      {
+         throw_java_exception(env, "java/lang/IllegalArgumentException",
+               "Output buffer type does not match the decoded image.");
+         return OPJ_FALSE;
+      }
+      limit = (*env)->GetArrayLength(env, output->array);
+   }
+   if (output->limit >= 0 && output->limit < limit)
+      limit = output->limit;
+   end = (jlong) output->offset + ((jlong) y + height - 1) * output->stride + x_elements + row_elements;
+   if (output->offset < 0 || x < 0 || y < 0 || x_elements + row_elements > output->stride ||
+         (output->max_width >= 0 && (jlong) x + width > output->max_width) ||
+         (height > 0 && end > limit))
+   {
+      throw_java_exception(env, "java/lang/IllegalArgumentException",
+            "Output buffer too small for the decoded image.");
+      return OPJ_FALSE;
+   }
 
-   // get Java image buffer
-   fid = (*env)->GetFieldID(env, class, "image8", "[B");
-   image_obj = (*env)->GetObjectField(env, obj, fid);
-   length = (*env)->GetArrayLength(env, image_obj);
-   array_elem = (*env)->GetByteArrayElements(env, image_obj, &is_copy);
+   pixels = opj_malloc((size_t) width * pixel_size + 1);
+   if (output->layout != JAVA_OUTPUT_TYPED && output->address == NULL)
+      bytes = (jbyte*) opj_malloc((size_t) width * pixel_size + 1);
+   if (pixels == NULL || (output->layout != JAVA_OUTPUT_TYPED && output->address == NULL && bytes == NULL))
+   {
+      opj_free(pixels);
+      opj_free(bytes);
+      throw_java_exception(env, "java/lang/OutOfMemoryError", "Cannot allocate row buffer.");
+      return OPJ_FALSE;
+   }
 
-   // fill Java image buffer
-   buffer = array_elem;
-   for(i = 0; i < length; i++)
+   for (row = 0; row < height; row++)
    {
-      *buffer++ = (unsigned char) grey_color[i];
+      jlong start = output->offset + (jlong) (y + row) * output->stride + x_elements;
+
+      convert_image_row(image, row, pixels);
+      if (output->address != NULL)
+      {
+         // encoded straight into the native memory of the buffer
+         encode_image_row(pixels, pixel_size, width, output->layout, output->address + start);
+      }
+      else if (bytes != NULL)
+      {
+         encode_image_row(pixels, pixel_size, width, output->layout, bytes);
+         (*env)->SetByteArrayRegion(env, (jbyteArray) output->array, (jsize) start, (jsize) row_elements, bytes);
+      }
+      else if (pixel_size == 4)
+         (*env)->SetIntArrayRegion(env, (jintArray) output->array, (jsize) start, (jsize) width, (jint*) pixels);
+      else if (pixel_size == 2)
+         (*env)->SetShortArrayRegion(env, (jshortArray) output->array, (jsize) start, (jsize) width, (jshort*) pixels);
+      else
+         (*env)->SetByteArrayRegion(env, (jbyteArray) output->array, (jsize) start, (jsize) width, (jbyte*) pixels);
    }
 
-   // release Java image buffer
-   (*env)->ReleaseByteArrayElements(env, image_obj, array_elem, 0);
+   opj_free(pixels);
+   opj_free(bytes);
+   return (*env)->ExceptionCheck(env) ? OPJ_FALSE : OPJ_TRUE;
 }
 
 /******************************************************************************/
@@ -451,217 +1128,795 @@ static void java_log_error (JNIEnv* env, jobject obj, char* message)
    (*env)->DeleteLocalRef(env, string);
 }
 
-/******************************************************************************/
-/***JNI CALL ******************************************************************/
-JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecodeHeader
-  (JNIEnv* env, jobject obj)
+/**
+ * Allocates the Java image buffer of the decoder (image8, image16 or image24)
+ * and writes the decoded image into it.
+ */
+static void fill_image_java_buffer(JNIEnv* env, jobject obj, opj_image_t* image)
 {
+   int pixel_size = get_java_pixel_size(image);
    jclass class = get_object_class(env, obj);
-   jfieldID fid = NULL;
-   jbyteArray array_source;
-   jsize array_size;
-   jbyte* source = NULL;
-   jboolean is_copy = JNI_FALSE;
-
-   opj_codec_t* codec = NULL;
-   opj_stream_t* stream_source = NULL;
-   opj_decompress_parameters params;
-   opj_image_t* image = NULL;
+   java_output_t output;
+   jmethodID method_id;
+   jfieldID fid;
 
-   // init decoder parameters
-   set_default_parameters (&params);
-   opj_reset_options_reading();
-   params.decod_format = OPJ_CODEC_JP2; // TODO generic for all OPJ_CODEC_FORMAT
-   codec = opj_create_decompress(OPJ_CODEC_JP2);
-   if (opj_setup_decoder(codec, &(params.core)) == OPJ_FALSE)
-   {
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
-      java_log_error(env, obj, "Decoder setup faild !");
-      return JNI_FALSE;
+   // allocate java memory
+   if (pixel_size == 4)
+   {
+      method_id = (*env)->GetMethodID(env, class, "alloc24", "()V");
+      fid = (*env)->GetFieldID(env, class, "image24", "[I");
    }
-   
-   // comment it to disable verbose mode
- //  opj_set_info_handler(codec, my_error_callback, NULL);
- //  opj_set_warning_handler(codec, my_error_callback, NULL);
- //  opj_set_error_handler(codec, my_error_callback, NULL);
+   else if (pixel_size == 2)
+   {
+      method_id = (*env)->GetMethodID(env, class, "alloc16", "()V");
+      fid = (*env)->GetFieldID(env, class, "image16", "[S");
+   }
+   else
+   {
+      method_id = (*env)->GetMethodID(env, class, "alloc8", "()V");
+      fid = (*env)->GetFieldID(env, class, "image8", "[B");
+   }
+   (*env)->CallVoidMethod(env, obj, method_id);
 
-   // create stream
-   fid = (*env)->GetFieldID(env, class, "byteInputStream", "[B");
-   if((*env)->ExceptionOccurred(env) || fid == NULL)
+   // get Java image buffer, not allocated for unsupported depths
+   output.array = (jarray) (*env)->GetObjectField(env, obj, fid);
+   if (output.array == NULL)
    {
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
-      return JNI_FALSE;
+      java_log_error(env, obj, "No image buffer for this image depth !");
+      return;
    }
-   array_source = (*env)->GetObjectField(env, obj, fid);
-   array_size = (*env)->GetArrayLength(env, array_source);
-   source = (*env)->GetByteArrayElements(env, array_source, &is_copy);
-   stream_source = create_opj_input_stream((unsigned char*)source, (size_t) array_size);
-   if (stream_source == NULL)
+   output.address = NULL;
+   output.capacity = 0;
+   output.offset = 0;
+   output.stride = (jint) image->comps[0].w;
+   output.layout = JAVA_OUTPUT_TYPED;
+   output.max_width = -1;
+   output.limit = -1;
+
+   write_image_java_output(env, image, &output, 0, 0);
+}
+
+/**
+ * Allocates one Java array per component of the decoded image (planar
+ * output) and copies the samples into it, without color conversion: bytes
+ * up to 8 bits, shorts up to 16 bits, ints above.
+ */
+static OPJ_BOOL fill_bands_java_buffer(JNIEnv* env, jobject obj, opj_image_t* image)
+{
+   jclass class = get_object_class(env, obj);
+   jmethodID method_id;
+   OPJ_UINT32 compno, row, i;
+   void* scratch = NULL;
+   size_t scratch_size = 0;
+
+   method_id = (*env)->GetMethodID(env, class, "allocBand", "(IIIIIIIZ)Ljava/lang/Object;");
+   if (method_id == NULL)
+      return OPJ_FALSE;
+
+   for (compno = 0; compno < image->numcomps; compno++)
    {
-      (*env)->ReleaseByteArrayElements(env, array_source, source, JNI_ABORT);
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
-      java_log_error(env, obj, "Native stream generation faild !");
-      return JNI_FALSE;
+      opj_image_comp_t* comp = &(image->comps[compno]);
+      int sample_size = (comp->prec <= 8) ? 1 : ((comp->prec <= 16) ? 2 : 4);
+      jarray band;
+
+      band = (jarray) (*env)->CallObjectMethod(env, obj, method_id, (jint) compno,
+            (jint) image->numcomps, (jint) comp->dx, (jint) comp->dy, (jint) comp->w,
+            (jint) comp->h, (jint) comp->prec, comp->sgnd ? JNI_TRUE : JNI_FALSE);
+      if ((*env)->ExceptionCheck(env) || band == NULL)
+      {
+         opj_free(scratch);
+         return OPJ_FALSE;
+      }
+
+      if (sample_size == 4)
+      {
+         // OPJ_INT32 samples are copied as is
+         (*env)->SetIntArrayRegion(env, (jintArray) band, 0,
+               (jsize) ((size_t) comp->w * comp->h), (jint*) comp->data);
+      }
+      else
+      {
+         if (scratch_size < (size_t) comp->w * sample_size)
+         {
+            opj_free(scratch);
+            scratch_size = (size_t) comp->w * sample_size;
+            scratch = opj_malloc(scratch_size);
+            if (scratch == NULL)
+            {
+               throw_java_exception(env, "java/lang/OutOfMemoryError", "Cannot allocate row buffer.");
+               return OPJ_FALSE;
+            }
+         }
+         for (row = 0; row < comp->h; row++)
+         {
+            OPJ_INT32* samples = comp->data + (size_t) row * comp->w;
+            jsize start = (jsize) ((size_t) row * comp->w);
+
+            if (sample_size == 2)
+            {
+               for (i = 0; i < comp->w; i++)
+                  ((jshort*) scratch)[i] = (jshort) samples[i];
+               (*env)->SetShortArrayRegion(env, (jshortArray) band, start, (jsize) comp->w, (jshort*) scratch);
+            }
+            else
+            {
+               for (i = 0; i < comp->w; i++)
+                  ((jbyte*) scratch)[i] = (jbyte) samples[i];
+               (*env)->SetByteArrayRegion(env, (jbyteArray) band, start, (jsize) comp->w, (jbyte*) scratch);
+            }
+         }
+      }
+      (*env)->DeleteLocalRef(env, band);
    }
-   
-   // Read the main header of the codestream and if necessary the JP2 boxes
-   if (opj_read_header(stream_source, codec, &image) == OPJ_FALSE)
+
+   opj_free(scratch);
+   return (*env)->ExceptionCheck(env) ? OPJ_FALSE : OPJ_TRUE;
+}
+
+/******************************************************************************/
+/*** DECODER FUNCTIONS ********************************************************/
+typedef struct java_decoder
+{
+   opj_decompress_parameters params;
+   opj_codec_t* codec;
+   opj_stream_t* stream;
+   java_input_t input;
+   opj_image_t* image;
+   decode_stats_t stats;
+}java_decoder_t;
+
+/**
+ * Adds the times of the decoding phases of the codec to the statistics of
+ * the decoder, with the size of the tile buffers as native memory.
+ */
+static void collect_codec_stats(java_decoder_t* decoder)
+{
+   opj_tile_phase_times_t times;
+   int i;
+
+   if (decoder->codec == NULL || opj_get_tile_phase_times(decoder->codec, &times) == OPJ_FALSE)
    {
-      opj_image_destroy(image);
-      stream_destroy(stream_source);
-      (*env)->ReleaseByteArrayElements(env, array_source, source, JNI_ABORT);
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
-      java_log_error(env, obj, "Can not read JP2 header !");
-      return JNI_FALSE;
+      return;
    }
-   
-   // free decode resources
-   stream_destroy(stream_source);
-   (*env)->ReleaseByteArrayElements(env, array_source, source, 0);
-   opj_destroy_codec(codec);
-   destroy_parameters(&params);
 
-   set_image_properties(env, class, obj, image);
+   for (i = 0; i < OPJ_NB_TILE_PHASES; i++)
+   {
+      decoder->stats.values[STAT_T2_WALL + 2 * i] += (jlong) (times.wall[i] * 1e9);
+      decoder->stats.values[STAT_T2_CPU + 2 * i] += (jlong) (times.cpu[i] * 1e9);
+   }
+   decoder->stats.values[STAT_CODESTREAM_BYTES] += (jlong) times.t2_bytes;
+   decoder->stats.values[STAT_NATIVE_MEMORY] += (jlong) times.tile_data_size;
+}
 
-   // free image resource
-   opj_image_destroy(image);   
-   
-   return JNI_TRUE;
+/**
+ * Returns the size in bytes of the decoded image, in the native image and
+ * in the Java output.
+ */
+static void get_image_sizes(opj_image_t* image, OPJ_BOOL planar, jlong* native_size,
+      jlong* java_size)
+{
+   OPJ_UINT32 i;
+   jlong size;
+   int sample_size;
+
+   *native_size = 0;
+   *java_size = 0;
+   for (i = 0; i < image->numcomps; i++)
+   {
+      size = (jlong) image->comps[i].w * (jlong) image->comps[i].h;
+      *native_size += size * (jlong) sizeof(OPJ_INT32);
+      if (planar)
+      {
+         sample_size = image->comps[i].prec > 16 ? 4 : (image->comps[i].prec > 8 ? 2 : 1);
+         *java_size += size * sample_size;
+      }
+   }
+   if (!planar && image->numcomps > 0)
+   {
+      *java_size = (jlong) image->comps[0].w * (jlong) image->comps[0].h *
+            get_java_pixel_size(image);
+   }
 }
 
-JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecode
-  (JNIEnv* env, jobject obj)
+/**
+ * Completes the statistics of a decoding and hands them to the Java
+ * decoder, through its decodeStatistics method.
+ */
+static void report_decode_stats(JNIEnv* env, jobject obj, decode_stats_t* stats,
+      opj_image_t* image, OPJ_BOOL planar)
 {
    jclass class = get_object_class(env, obj);
-   jfieldID fid = NULL;
-   jbyteArray array_source;
-   jsize array_size;
-   jbyte* source = NULL;
-   jboolean is_copy = JNI_FALSE;
+   jmethodID method_id;
+   jlongArray values;
+   jlong native_size;
+   jlong java_size;
 
-   opj_codec_t* codec = NULL;
-   opj_stream_t* stream_source = NULL;
-   opj_decompress_parameters params;
-   opj_image_t* image = NULL;
+   if (image != NULL)
+   {
+      get_image_sizes(image, planar, &native_size, &java_size);
+      stats->values[STAT_NATIVE_MEMORY] += native_size;
+      if (stats->values[STAT_BYTES_OUT] == 0)
+      {
+         stats->values[STAT_BYTES_OUT] = java_size;
+      }
+   }
+   add_stat_time(stats, STAT_TOTAL_WALL, stats->start_wall, &(stats->start_cpu));
+
+   method_id = (*env)->GetMethodID(env, class, "decodeStatistics", "([J)V");
+   values = (*env)->NewLongArray(env, STAT_COUNT);
+   if (method_id == NULL || values == NULL)
+   {
+      return;
+   }
+   (*env)->SetLongArrayRegion(env, values, 0, STAT_COUNT, stats->values);
+   (*env)->CallVoidMethod(env, obj, method_id, values);
+   (*env)->DeleteLocalRef(env, values);
+}
+
+/**
+ * Releases the codec, the stream and the parameters of a decoder opened by
+ * open_java_decoder. The decoded image is kept, it is up to the caller to
+ * destroy it.
+ */
+static void close_java_decoder(JNIEnv* env, java_decoder_t* decoder)
+{
+   collect_codec_stats(decoder);
+   if (decoder->stream != NULL)
+   {
+      close_java_input_stream(env, decoder->stream, &(decoder->input));
+      decoder->stream = NULL;
+   }
+   if (decoder->codec != NULL)
+   {
+      opj_destroy_codec(decoder->codec);
+      decoder->codec = NULL;
+   }
+   destroy_parameters(&(decoder->params));
+}
+
+/**
+ * Detects the codec of the input from its first bytes, a JP2 file or a raw
+ * codestream, then rewinds the stream.
+ *
+ * @return the codec format, or OPJ_CODEC_UNKNOWN.
+ */
+static OPJ_CODEC_FORMAT detect_codec_format(opj_stream_t* stream)
+{
+   static const OPJ_BYTE jp2_magic[12] =
+         {0x00, 0x00, 0x00, 0x0C, 0x6A, 0x50, 0x20, 0x20, 0x0D, 0x0A, 0x87, 0x0A};
+   static const OPJ_BYTE j2k_magic[4] = {0xFF, 0x4F, 0xFF, 0x51};
+   opj_event_mgr_t event_mgr;
+   OPJ_BYTE magic[12];
+   OPJ_SIZE_T read;
+   OPJ_CODEC_FORMAT format = OPJ_CODEC_UNKNOWN;
+   opj_stream_private_t* private_stream = (opj_stream_private_t*) stream;
+
+   opj_set_default_event_handler(&event_mgr);
+   read = opj_stream_read_data(private_stream, magic, sizeof(magic), &event_mgr);
+   if (read == sizeof(magic) && memcmp(magic, jp2_magic, sizeof(jp2_magic)) == 0)
+   {
+      format = OPJ_CODEC_JP2;
+   }
+   else if (read != (OPJ_SIZE_T) -1 && read >= sizeof(j2k_magic) &&
+         memcmp(magic, j2k_magic, sizeof(j2k_magic)) == 0)
+   {
+      format = OPJ_CODEC_J2K;
+   }
+   if (read != (OPJ_SIZE_T) -1 &&
+         (OPJ_SIZE_T) (private_stream->m_current_data - private_stream->m_stored_data) >= read)
+   {
+      // the magic bytes are still buffered: forward only streams are not sought back
+      private_stream->m_current_data -= read;
+      private_stream->m_bytes_in_buffer += read;
+      private_stream->m_byte_offset -= (OPJ_OFF_T) read;
+   }
+   else if (opj_stream_seek(private_stream, 0, &event_mgr) == OPJ_FALSE)
+   {
+      return OPJ_CODEC_UNKNOWN;
+   }
+   return format;
+}
+
+/**
+ * Creates a codec over the input of the Java decoder, a JP2 file or a raw
+ * codestream, and reads the main header of the codestream. When apply_options is set, the decoding options
+ * of the Java decoder (reduce factor, quality layers and decode area) are
+ * applied to the codec; otherwise only the header is probed, and the input
+ * is read in chunks of HEADER_STREAM_CHUNK_SIZE bytes.
+ */
+static OPJ_BOOL open_java_decoder(JNIEnv* env, jobject obj, java_decoder_t* decoder,
+      OPJ_BOOL apply_options)
+{
+   OPJ_FLOAT64 wall, cpu;
+   OPJ_BOOL header_read;
+
+   memset(decoder, 0, sizeof(java_decoder_t));
+   decoder->stats.start_wall = opj_wall_clock();
+   decoder->stats.start_cpu = opj_thread_clock();
 
    // init decoder parameters
-   set_default_parameters (&params);
-   opj_reset_options_reading();
-   params.decod_format = OPJ_CODEC_JP2; // TODO generic for all OPJ_CODEC_FORMAT
-   codec = opj_create_decompress(OPJ_CODEC_JP2);
-   if (opj_setup_decoder(codec, &(params.core)) == OPJ_FALSE)
-   {
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
+   set_default_parameters (&(decoder->params));
+   if (apply_options)
+   {
+      set_java_decoder_parameters(env, obj, &(decoder->params.core));
+   }
+
+   // create stream
+   // without options the header is only probed: read it in small chunks
+   decoder->stream = open_java_input_stream(env, obj, &(decoder->input),
+         apply_options ? OPJ_J2K_STREAM_CHUNK_SIZE : HEADER_STREAM_CHUNK_SIZE, &(decoder->stats));
+   if (decoder->stream == NULL)
+   {
+      close_java_decoder(env, decoder);
+      java_log_error(env, obj, "Native stream generation faild !");
+      return OPJ_FALSE;
+   }
+
+   // the codec depends on the input: JP2 file or raw codestream
+   decoder->params.decod_format = detect_codec_format(decoder->stream);
+   if (decoder->params.decod_format == OPJ_CODEC_UNKNOWN)
+   {
+      close_java_decoder(env, decoder);
+      java_log_error(env, obj, "Unknown JPEG 2000 format !");
+      return OPJ_FALSE;
+   }
+   decoder->codec = opj_create_decompress((OPJ_CODEC_FORMAT) decoder->params.decod_format);
+   if (opj_setup_decoder(decoder->codec, &(decoder->params.core)) == OPJ_FALSE)
+   {
+      close_java_decoder(env, decoder);
       java_log_error(env, obj, "Decoder setup faild !");
-      return JNI_FALSE;
+      return OPJ_FALSE;
    }
    
    // comment it to disable verbose mode
- //  opj_set_info_handler(codec, my_error_callback, NULL);
- //  opj_set_warning_handler(codec, my_error_callback, NULL);
- //  opj_set_error_handler(codec, my_error_callback, NULL);
+ //  opj_set_info_handler(decoder->codec, my_error_callback, NULL);
+ //  opj_set_warning_handler(decoder->codec, my_error_callback, NULL);
+ //  opj_set_error_handler(decoder->codec, my_error_callback, NULL);
+   
+   // Read the main header of the codestream and if necessary the JP2 boxes
+   wall = opj_wall_clock();
+   cpu = opj_thread_clock();
+   header_read = opj_read_header(decoder->stream, decoder->codec, &(decoder->image));
+   add_stat_time(&(decoder->stats), STAT_HEADER_WALL, wall, &cpu);
+   if (header_read == OPJ_FALSE)
+   {
+      opj_image_destroy(decoder->image);
+      decoder->image = NULL;
+      close_java_decoder(env, decoder);
+      java_log_error(env, obj, "Can not read JPEG 2000 header !");
+      return OPJ_FALSE;
+   }
 
-   // create stream
-   fid = (*env)->GetFieldID(env, class, "byteInputStream", "[B");
-   if((*env)->ExceptionOccurred(env) || fid == NULL)
+   set_codestream_properties(env, get_object_class(env, obj), obj, decoder->codec,
+         decoder->params.decod_format, decoder->image);
+
+   // restrict decoding to the requested area
+   if (apply_options && set_java_decode_area(env, obj, decoder->codec, decoder->image) == OPJ_FALSE)
    {
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
-      return JNI_FALSE;
+      opj_image_destroy(decoder->image);
+      decoder->image = NULL;
+      close_java_decoder(env, decoder);
+      java_log_error(env, obj, "Can not set decode area !");
+      return OPJ_FALSE;
    }
-   array_source = (*env)->GetObjectField(env, obj, fid);
-   array_size = (*env)->GetArrayLength(env, array_source);
-   source = (*env)->GetByteArrayElements(env, array_source, &is_copy);
-   stream_source = create_opj_input_stream((unsigned char*)source, (size_t) array_size);
-   if (stream_source == NULL)
+
+   return OPJ_TRUE;
+}
+
+/******************************************************************************/
+/*** TILE FUNCTIONS ***********************************************************/
+/**
+ * Returns the number of bytes used by a sample of the component in the
+ * buffers filled by opj_decode_tile_data.
+ */
+static OPJ_UINT32 get_tile_sample_size(const opj_image_comp_t* comp)
+{
+   OPJ_UINT32 size = (comp->prec + 7) >> 3;
+   return (size == 3) ? 4 : size;
+}
+
+static OPJ_INT32 get_tile_sample(const OPJ_BYTE* plane, const opj_image_comp_t* comp, size_t i)
+{
+   switch (get_tile_sample_size(comp))
+   {
+      case 1:
+         return comp->sgnd ? ((const signed char*) plane)[i] : plane[i];
+      case 2:
+         return comp->sgnd ? ((const OPJ_INT16*) plane)[i] : ((const OPJ_UINT16*) plane)[i];
+      default:
+         return ((const OPJ_INT32*) plane)[i];
+   }
+}
+
+/**
+ * Computes the size of the decoded component of the tile [x0,x1[x[y0,y1[,
+ * given on the reference grid.
+ */
+static void get_tile_comp_size(const opj_image_comp_t* comp, OPJ_INT32 x0, OPJ_INT32 y0,
+      OPJ_INT32 x1, OPJ_INT32 y1, OPJ_UINT32* width, OPJ_UINT32* height)
+{
+   OPJ_INT32 factor = (OPJ_INT32) comp->factor;
+
+   *width = (OPJ_UINT32) (opj_int_ceildivpow2(opj_int_ceildiv(x1, (OPJ_INT32) comp->dx), factor) -
+         opj_int_ceildivpow2(opj_int_ceildiv(x0, (OPJ_INT32) comp->dx), factor));
+   *height = (OPJ_UINT32) (opj_int_ceildivpow2(opj_int_ceildiv(y1, (OPJ_INT32) comp->dy), factor) -
+         opj_int_ceildivpow2(opj_int_ceildiv(y0, (OPJ_INT32) comp->dy), factor));
+}
+
+/**
+ * Converts a tile decoded by opj_decode_tile_data into the reusable Java tile
+ * buffer, with the same pixel layout as the whole image buffers: packed ARGB
+ * int for 3 or more components, short for 9 to 16 bits grey and byte for 8
+ * bits grey. The scratch buffer is grown as needed and must be freed by the
+ * caller.
+ */
+static OPJ_BOOL fill_tile_java_buffer(JNIEnv* env, jobject obj, opj_image_t* image,
+      const OPJ_BYTE* data, OPJ_UINT32 width, OPJ_UINT32 height,
+      OPJ_INT32 x0, OPJ_INT32 y0, OPJ_INT32 x1, OPJ_INT32 y1,
+      OPJ_BYTE** scratch, size_t* scratch_size)
+{
+   jclass class = get_object_class(env, obj);
+   const OPJ_BYTE* planes[4] = { NULL, NULL, NULL, NULL };
+   const OPJ_BYTE* plane = data;
+   OPJ_UINT32 comp_width, comp_height;
+   OPJ_UINT32 compno;
+   OPJ_UINT32 nb_planes = (image->numcomps >= 3) ? 3 : 1;
+   size_t length = (size_t) width * height;
+   size_t i;
+   unsigned char ac = 255;
+   jmethodID method_id;
+   jfieldID fid;
+   jarray tile_obj;
+
+   if (image->numcomps >= 4)
+      nb_planes = 4;
+
+   // locate the component planes
+   for (compno = 0; compno < image->numcomps; compno++)
+   {
+      if (compno < nb_planes)
+         planes[compno] = plane;
+      get_tile_comp_size(&(image->comps[compno]), x0, y0, x1, y1, &comp_width, &comp_height);
+      plane += (size_t) comp_width * comp_height * get_tile_sample_size(&(image->comps[compno]));
+   }
+
+   if (*scratch_size < length * sizeof(jint))
+   {
+      opj_free(*scratch);
+      *scratch_size = length * sizeof(jint);
+      *scratch = (OPJ_BYTE*) opj_malloc(*scratch_size);
+      if (*scratch == NULL)
+      {
+         *scratch_size = 0;
+         return OPJ_FALSE;
+      }
+   }
+
+   if (image->numcomps >= 3)
+   {
+      jint* buffer = (jint*) *scratch;
+      unsigned char rc, gc, bc;
+
+      for (i = 0; i < length; i++)
+      {
+         rc = (unsigned char) get_tile_sample(planes[0], &(image->comps[0]), i);
+         gc = (unsigned char) get_tile_sample(planes[1], &(image->comps[1]), i);
+         bc = (unsigned char) get_tile_sample(planes[2], &(image->comps[2]), i);
+         if (nb_planes == 4)
+            ac = (unsigned char) get_tile_sample(planes[3], &(image->comps[3]), i);
+         buffer[i] = (jint) ((ac << 24) | (rc << 16) | (gc << 8) | bc);
+      }
+
+      method_id = (*env)->GetMethodID(env, class, "allocTile24", "(I)V");
+      (*env)->CallVoidMethod(env, obj, method_id, (jint) length);
+      fid = (*env)->GetFieldID(env, class, "tileImage24", "[I");
+      tile_obj = (*env)->GetObjectField(env, obj, fid);
+      (*env)->SetIntArrayRegion(env, (jintArray) tile_obj, 0, (jsize) length, buffer);
+   }
+   else if (image->comps[0].prec > 8)
+   {
+      jshort* buffer = (jshort*) *scratch;
+
+      for (i = 0; i < length; i++)
+      {
+         buffer[i] = (jshort) get_tile_sample(planes[0], &(image->comps[0]), i);
+      }
+
+      method_id = (*env)->GetMethodID(env, class, "allocTile16", "(I)V");
+      (*env)->CallVoidMethod(env, obj, method_id, (jint) length);
+      fid = (*env)->GetFieldID(env, class, "tileImage16", "[S");
+      tile_obj = (*env)->GetObjectField(env, obj, fid);
+      (*env)->SetShortArrayRegion(env, (jshortArray) tile_obj, 0, (jsize) length, buffer);
+   }
+   else
+   {
+      jbyte* buffer = (jbyte*) *scratch;
+
+      for (i = 0; i < length; i++)
+      {
+         buffer[i] = (jbyte) get_tile_sample(planes[0], &(image->comps[0]), i);
+      }
+
+      method_id = (*env)->GetMethodID(env, class, "allocTile8", "(I)V");
+      (*env)->CallVoidMethod(env, obj, method_id, (jint) length);
+      fid = (*env)->GetFieldID(env, class, "tileImage8", "[B");
+      tile_obj = (*env)->GetObjectField(env, obj, fid);
+      (*env)->SetByteArrayRegion(env, (jbyteArray) tile_obj, 0, (jsize) length, buffer);
+   }
+
+   (*env)->DeleteLocalRef(env, tile_obj);
+   return (*env)->ExceptionCheck(env) ? OPJ_FALSE : OPJ_TRUE;
+}
+
+/******************************************************************************/
+/***JNI CALL ******************************************************************/
+JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecodeHeader
+  (JNIEnv* env, jobject obj)
+{
+   jclass class = get_object_class(env, obj);
+   java_decoder_t decoder;
+
+   if (open_java_decoder(env, obj, &decoder, OPJ_FALSE) == OPJ_FALSE)
    {
-      (*env)->ReleaseByteArrayElements(env, array_source, source, JNI_ABORT);
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
-      java_log_error(env, obj, "Native stream generation faild !");
       return JNI_FALSE;
    }
+
+   // free decode resources
+   close_java_decoder(env, &decoder);
+
+   set_image_properties(env, class, obj, decoder.image);
+
+   // free image resource
+   opj_image_destroy(decoder.image);
    
-   // Read the main header of the codestream and if necessary the JP2 boxes
-   if (opj_read_header(stream_source, codec, &image) == OPJ_FALSE)
+   return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecode
+  (JNIEnv* env, jobject obj)
+{
+   jclass class = get_object_class(env, obj);
+   java_decoder_t decoder;
+   opj_image_t* image = NULL;
+   OPJ_BOOL success = OPJ_TRUE;
+   OPJ_BOOL planar;
+   OPJ_FLOAT64 wall, cpu;
+
+   if (open_java_decoder(env, obj, &decoder, OPJ_TRUE) == OPJ_FALSE)
    {
-      opj_image_destroy(image);
-      stream_destroy(stream_source);
-      (*env)->ReleaseByteArrayElements(env, array_source, source, JNI_ABORT);
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
-      java_log_error(env, obj, "Can not read JP2 header !");
       return JNI_FALSE;
    }
+   image = decoder.image;
    
    // decode image
-   if (!opj_decode(codec, stream_source, image) && opj_end_decompress(codec, stream_source))
+   if (!opj_decode(decoder.codec, decoder.stream, image) && opj_end_decompress(decoder.codec, decoder.stream))
    {
       opj_image_destroy(image);
-      stream_destroy(stream_source);
-      (*env)->ReleaseByteArrayElements(env, array_source, source, JNI_ABORT);
-      opj_destroy_codec(codec);
-      destroy_parameters(&params);
+      close_java_decoder(env, &decoder);
       java_log_error(env, obj, "Can not decode JP2 !");
       return JNI_FALSE;
    }
    
    // free decode resources
-   stream_destroy(stream_source);
-   (*env)->ReleaseByteArrayElements(env, array_source, source, 0);
-   opj_destroy_codec(codec);
-   destroy_parameters(&params);
+   close_java_decoder(env, &decoder);
 
    set_image_properties(env, class, obj, image);
-   
-   // check YUV color space format
-   if (image->color_space != OPJ_CLRSPC_SYCC && image->numcomps == 3 &&
-         image->comps[0].dx == image->comps[0].dy && image->comps[1].dx != 1)
+
+   wall = opj_wall_clock();
+   cpu = opj_thread_clock();
+   planar = get_boolean_field(env, obj, "planarOutput") ? OPJ_TRUE : OPJ_FALSE;
+   if (planar)
    {
-      image->color_space = OPJ_CLRSPC_SYCC;
+      success = fill_bands_java_buffer(env, obj, image);
    }
-   else if (image->color_space <= 2) // check GRAY scale color space
+   else
    {
-      image->color_space = OPJ_CLRSPC_GRAY;
+      convert_image_color(image);
+      fill_image_java_buffer(env, obj, image);
    }
-   
-   // convert YUV color space to RGB color space
-   if (image->color_space == OPJ_CLRSPC_SYCC)
+   add_stat_time(&(decoder.stats), STAT_COPY_WALL, wall, &cpu);
+   if (success)
    {
-      color_sycc_to_rgb(image);
+      report_decode_stats(env, obj, &(decoder.stats), image, planar);
    }
+
+   // free image resource
+   opj_image_destroy(image);
    
-   // active icc profile
-   if (image->icc_profile_buf)
+   return success ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecodeTiles
+  (JNIEnv* env, jobject obj)
+{
+   jclass class = get_object_class(env, obj);
+   jmethodID method_id;
+   java_decoder_t decoder;
+   opj_image_t* image = NULL;
+   opj_image_comp_t* comp = NULL;
+   OPJ_BYTE* data = NULL;
+   OPJ_UINT32 data_capacity = 0;
+   OPJ_BYTE* scratch = NULL;
+   size_t scratch_size = 0;
+   OPJ_UINT32 tile_index, data_size, nb_comps;
+   OPJ_UINT32 width, height;
+   OPJ_INT32 x0, y0, x1, y1;
+   OPJ_INT32 tile_x, tile_y;
+   OPJ_BOOL go_on = OPJ_TRUE;
+   jboolean success = JNI_TRUE;
+   OPJ_FLOAT64 wall, cpu;
+
+   if (open_java_decoder(env, obj, &decoder, OPJ_TRUE) == OPJ_FALSE)
    {
-#if defined(HAVE_LIBLCMS1) || defined(HAVE_LIBLCMS2)
-      color_apply_icc_profile(image);
-#endif
-      opj_free(image->icc_profile_buf);
-      image->icc_profile_buf = NULL;
-      image->icc_profile_len = 0;
+      return JNI_FALSE;
    }
-   
-   if (image->numcomps >= 3)
+   image = decoder.image;
+   comp = &(image->comps[0]);
+   set_image_properties(env, class, obj, image);
+
+   method_id = (*env)->GetMethodID(env, class, "tileDecoded", "(IIIII)V");
+   while (go_on && success)
    {
-      fill_image_24_java_buffer(env, obj, image);
+      if (opj_read_tile_header(decoder.codec, decoder.stream, &tile_index, &data_size,
+            &x0, &y0, &x1, &y1, &nb_comps, &go_on) == OPJ_FALSE)
+      {
+         java_log_error(env, obj, "Can not read tile header !");
+         success = JNI_FALSE;
+         break;
+      }
+      if (!go_on)
+      {
+         break;
+      }
+
+      // reuse the tile data buffer, grown for the largest tile
+      if (data_size > data_capacity)
+      {
+         opj_free(data);
+         data = (OPJ_BYTE*) opj_malloc(data_size);
+         data_capacity = (data == NULL) ? 0 : data_size;
+      }
+      if (data == NULL ||
+            opj_decode_tile_data(decoder.codec, tile_index, data, data_size, decoder.stream) == OPJ_FALSE)
+      {
+         java_log_error(env, obj, "Can not decode tile !");
+         success = JNI_FALSE;
+         break;
+      }
+
+      // hand the tile to Java, positioned in the decoded image
+      get_tile_comp_size(comp, x0, y0, x1, y1, &width, &height);
+      tile_x = opj_int_ceildivpow2(opj_int_ceildiv(x0, (OPJ_INT32) comp->dx), (OPJ_INT32) comp->factor) -
+            opj_int_ceildivpow2(opj_int_ceildiv((OPJ_INT32) image->x0, (OPJ_INT32) comp->dx), (OPJ_INT32) comp->factor);
+      tile_y = opj_int_ceildivpow2(opj_int_ceildiv(y0, (OPJ_INT32) comp->dy), (OPJ_INT32) comp->factor) -
+            opj_int_ceildivpow2(opj_int_ceildiv((OPJ_INT32) image->y0, (OPJ_INT32) comp->dy), (OPJ_INT32) comp->factor);
+      wall = opj_wall_clock();
+      cpu = opj_thread_clock();
+      if (fill_tile_java_buffer(env, obj, image, data, width, height, x0, y0, x1, y1,
+            &scratch, &scratch_size) == OPJ_FALSE)
+      {
+         success = JNI_FALSE;
+         break;
+      }
+      add_stat_time(&(decoder.stats), STAT_COPY_WALL, wall, &cpu);
+      decoder.stats.values[STAT_BYTES_OUT] += (jlong) width * (jlong) height *
+            get_java_pixel_size(image);
+      (*env)->CallVoidMethod(env, obj, method_id, (jint) tile_index, (jint) tile_x, (jint) tile_y,
+            (jint) width, (jint) height);
+      if ((*env)->ExceptionCheck(env))
+      {
+         success = JNI_FALSE;
+      }
    }
-   else if (image->comps[0].prec > 8)
+
+   if (success)
+   {
+      opj_end_decompress(decoder.codec, decoder.stream);
+   }
+
+   // free decode resources
+   opj_free(scratch);
+   opj_free(data);
+   close_java_decoder(env, &decoder);
+   if (success)
    {
-      fill_image_16_java_buffer (env, obj, image);
+      // tiles are not kept in the image
+      decoder.stats.values[STAT_NATIVE_MEMORY] += data_capacity;
+      report_decode_stats(env, obj, &(decoder.stats), NULL, OPJ_FALSE);
+   }
+   opj_image_destroy(image);
+
+   return success;
+}
+
+JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecodeInto
+  (JNIEnv* env, jobject obj, jint tile_index, jobject array, jint offset, jint stride,
+   jint layout, jint max_width, jint limit)
+{
+   java_output_t output;
+   jclass buffer_class;
+   jclass class = get_object_class(env, obj);
+   java_decoder_t decoder;
+   opj_image_t* image = NULL;
+   opj_image_comp_t* comp = NULL;
+   OPJ_UINT32 origin_x0, origin_y0;
+   jint x = 0, y = 0;
+   OPJ_BOOL success;
+   OPJ_FLOAT64 wall, cpu;
+
+   if (open_java_decoder(env, obj, &decoder, OPJ_TRUE) == OPJ_FALSE)
+   {
+      return JNI_FALSE;
+   }
+   image = decoder.image;
+   origin_x0 = image->x0;
+   origin_y0 = image->y0;
+
+   // decode the whole image, or only one tile
+   if (tile_index < 0)
+   {
+      success = opj_decode(decoder.codec, decoder.stream, image) &&
+            opj_end_decompress(decoder.codec, decoder.stream);
    }
    else
    {
-      fill_image_8_java_buffer (env, obj, image);
+      success = opj_get_decoded_tile(decoder.codec, decoder.stream, image, (OPJ_UINT32) tile_index);
+   }
+   close_java_decoder(env, &decoder);
+   if (!success)
+   {
+      opj_image_destroy(image);
+      java_log_error(env, obj, "Can not decode JP2 !");
+      return JNI_FALSE;
+   }
+
+   if (tile_index < 0)
+   {
+      set_image_properties(env, class, obj, image);
+   }
+   else
+   {
+      // position of the tile in the decoded image
+      comp = &(image->comps[0]);
+      x = opj_int_ceildivpow2((OPJ_INT32) comp->x0, (OPJ_INT32) comp->factor) -
+            opj_int_ceildivpow2(opj_int_ceildiv((OPJ_INT32) origin_x0, (OPJ_INT32) comp->dx), (OPJ_INT32) comp->factor);
+      y = opj_int_ceildivpow2((OPJ_INT32) comp->y0, (OPJ_INT32) comp->factor) -
+            opj_int_ceildivpow2(opj_int_ceildiv((OPJ_INT32) origin_y0, (OPJ_INT32) comp->dy), (OPJ_INT32) comp->factor);
+   }
+
+   wall = opj_wall_clock();
+   cpu = opj_thread_clock();
+   convert_image_color(image);
+   output.array = (jarray) array;
+   output.address = NULL;
+   output.capacity = 0;
+   buffer_class = (*env)->FindClass(env, "java/nio/ByteBuffer");
+   if (buffer_class != NULL && (*env)->IsInstanceOf(env, array, buffer_class))
+   {
+      output.address = (jbyte*) (*env)->GetDirectBufferAddress(env, array);
+      output.capacity = (*env)->GetDirectBufferCapacity(env, array);
+      if (output.address == NULL)
+      {
+         opj_image_destroy(image);
+         throw_java_exception(env, "java/lang/IllegalArgumentException",
+               "The output buffer is not direct.");
+         return JNI_FALSE;
+      }
+   }
+   output.offset = offset;
+   output.stride = stride;
+   output.layout = layout;
+   output.max_width = max_width;
+   output.limit = limit;
+   success = write_image_java_output(env, image, &output, x, y);
+   add_stat_time(&(decoder.stats), STAT_COPY_WALL, wall, &cpu);
+   if (success)
+   {
+      report_decode_stats(env, obj, &(decoder.stats), image, OPJ_FALSE);
    }
 
    // free image resource
    opj_image_destroy(image);
-   
-   return JNI_TRUE;
+
+   return success ? JNI_TRUE : JNI_FALSE;
 }
@@ -0,0 +1,541 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <jni.h>
+#include <jni_md.h>
+
+#include "openjpeg.h"
+#include "opj_includes.h"
+#include "fr_gael_openjpeg_OpenJpegEncoder.h"
+
+/******************************************************************************/
+/*** STRUCTURES ***************************************************************/
+typedef struct java_output
+{
+   // encoder pushing its seekable output, valid during the native call only
+   JNIEnv* env;
+   jobject obj;
+   jmethodID write_mid;
+   jmethodID skip_mid;
+   jmethodID seek_mid;
+   // direct buffer of the Java encoder the bytes are copied into before each write
+   OPJ_BYTE* chunk;
+   jint chunk_length;
+}java_output_t;
+
+/******************************************************************************/
+/*** FUNCTIONS ****************************************************************/
+static jclass get_object_class (JNIEnv* env, jobject obj)
+{
+   return (*env)->GetObjectClass(env, obj);
+}
+
+static jboolean get_boolean_field(JNIEnv* env, jobject obj, const char* name)
+{
+   jclass class = get_object_class(env, obj);
+   jfieldID fid = (*env)->GetFieldID(env, class, name, "Z");
+
+   if ((*env)->ExceptionOccurred(env) || fid == NULL)
+      return JNI_FALSE;
+   return (*env)->GetBooleanField(env, obj, fid);
+}
+
+static jint get_int_field(JNIEnv* env, jobject obj, const char* name)
+{
+   jclass class = get_object_class(env, obj);
+   jfieldID fid = (*env)->GetFieldID(env, class, name, "I");
+
+   if ((*env)->ExceptionOccurred(env) || fid == NULL)
+      return -1;
+   return (*env)->GetIntField(env, obj, fid);
+}
+
+static void java_log_error (JNIEnv* env, jobject obj, char* message)
+{
+   jclass class;
+   jfieldID fid;
+   jobject logger_obj;
+   jmethodID method_id;
+   jstring string;
+
+   // nothing can be logged while a Java exception is pending
+   if ((*env)->ExceptionCheck(env)) return;
+
+   class = get_object_class(env, obj);
+   fid = (*env)->GetFieldID(env, class, "logger", "Lorg/apache/log4j/Logger;");
+   if ((*env)->ExceptionOccurred(env) || fid == NULL) return;
+   logger_obj = (*env)->GetObjectField(env, obj, fid);
+   if (logger_obj == NULL) return;
+
+   method_id = (*env)->GetMethodID(env, get_object_class(env, logger_obj), "error",
+         "(Ljava/lang/Object;)V");
+   if ((*env)->ExceptionOccurred(env) || method_id == NULL) return;
+
+   string = (*env)->NewStringUTF(env, message);
+   (*env)->CallVoidMethod(env, logger_obj, method_id, string);
+   (*env)->DeleteLocalRef(env, string);
+}
+
+/**
+ * Returns the number of bytes of a sample in the buffers given to
+ * opj_write_tile, which matches the Java tile buffer type.
+ */
+static OPJ_UINT32 get_sample_size(OPJ_UINT32 prec)
+{
+   return (prec <= 8) ? 1 : ((prec <= 16) ? 2 : 4);
+}
+
+/**
+ * The stream callbacks below fail at once when a Java callback threw: no
+ * other Java method may be called until the exception reaches Java.
+ */
+static OPJ_SIZE_T write_java_output(void * p_buffer, OPJ_SIZE_T p_nb_bytes, void * p_user_data)
+{
+   java_output_t* jo = (java_output_t*) p_user_data;
+   JNIEnv* env = jo->env;
+   OPJ_SIZE_T total = 0;
+   jint length;
+
+   while (total < p_nb_bytes)
+   {
+      length = (p_nb_bytes - total > (OPJ_SIZE_T) jo->chunk_length) ?
+            jo->chunk_length : (jint) (p_nb_bytes - total);
+      if ((*env)->ExceptionCheck(env))
+      {
+         return ((OPJ_SIZE_T) -1);
+      }
+      memcpy(jo->chunk, (OPJ_BYTE*) p_buffer + total, (size_t) length);
+      if (!(*env)->CallBooleanMethod(env, jo->obj, jo->write_mid, length) ||
+            (*env)->ExceptionCheck(env))
+      {
+         return ((OPJ_SIZE_T) -1);
+      }
+      total += (OPJ_SIZE_T) length;
+   }
+   return total;
+}
+
+static OPJ_OFF_T skip_java_output(OPJ_OFF_T p_nb_bytes, void * p_user_data)
+{
+   java_output_t* jo = (java_output_t*) p_user_data;
+   jlong skipped;
+
+   if ((*jo->env)->ExceptionCheck(jo->env))
+   {
+      return ((OPJ_OFF_T) -1);
+   }
+   skipped = (*jo->env)->CallLongMethod(jo->env, jo->obj, jo->skip_mid, (jlong) p_nb_bytes);
+   if ((*jo->env)->ExceptionCheck(jo->env) || skipped != p_nb_bytes)
+   {
+      return ((OPJ_OFF_T) -1);
+   }
+   return p_nb_bytes;
+}
+
+static OPJ_BOOL seek_java_output(OPJ_OFF_T p_nb_bytes, void * p_user_data)
+{
+   java_output_t* jo = (java_output_t*) p_user_data;
+   jboolean done;
+
+   if ((*jo->env)->ExceptionCheck(jo->env))
+   {
+      return OPJ_FALSE;
+   }
+   done = (*jo->env)->CallBooleanMethod(jo->env, jo->obj, jo->seek_mid, (jlong) p_nb_bytes);
+   if ((*jo->env)->ExceptionCheck(jo->env) || !done)
+   {
+      return OPJ_FALSE;
+   }
+   return OPJ_TRUE;
+}
+
+/**
+ * Opens a native stream pushing the encoded bytes to the output of the Java
+ * encoder through its writeOutput, skipOutput and seekOutput methods, by
+ * chunks of its direct "streamChunk" buffer.
+ */
+static opj_stream_t* open_java_output_stream(JNIEnv* env, jobject obj)
+{
+   jclass class = get_object_class(env, obj);
+   jfieldID fid;
+   jobject chunk;
+   java_output_t* jo = NULL;
+   opj_stream_t* stream = NULL;
+
+   jo = (java_output_t*) opj_calloc(1, sizeof(java_output_t));
+   if (jo == NULL)
+   {
+      return NULL;
+   }
+   jo->env = env;
+   jo->obj = obj;
+   jo->write_mid = (*env)->GetMethodID(env, class, "writeOutput", "(I)Z");
+   jo->skip_mid = (*env)->GetMethodID(env, class, "skipOutput", "(J)J");
+   jo->seek_mid = (*env)->GetMethodID(env, class, "seekOutput", "(J)Z");
+   fid = (*env)->GetFieldID(env, class, "streamChunk", "Ljava/nio/ByteBuffer;");
+   if ((*env)->ExceptionCheck(env) || jo->write_mid == NULL || jo->skip_mid == NULL ||
+         jo->seek_mid == NULL || fid == NULL)
+   {
+      opj_free(jo);
+      return NULL;
+   }
+   chunk = (*env)->GetObjectField(env, obj, fid);
+   if (chunk != NULL)
+   {
+      jo->chunk = (OPJ_BYTE*) (*env)->GetDirectBufferAddress(env, chunk);
+      jo->chunk_length = (jint) (*env)->GetDirectBufferCapacity(env, chunk);
+      (*env)->DeleteLocalRef(env, chunk);
+   }
+   if (jo->chunk == NULL || jo->chunk_length <= 0)
+   {
+      opj_free(jo);
+      return NULL;
+   }
+
+   stream = opj_stream_create(OPJ_J2K_STREAM_CHUNK_SIZE, OPJ_FALSE);
+   if (stream == NULL)
+   {
+      opj_free(jo);
+      return NULL;
+   }
+   opj_stream_set_user_data(stream, jo, (opj_stream_free_user_data_fn) opj_free);
+   opj_stream_set_write_function(stream, (opj_stream_write_fn) write_java_output);
+   opj_stream_set_skip_function(stream, (opj_stream_skip_fn) skip_java_output);
+   opj_stream_set_seek_function(stream, (opj_stream_seek_fn) seek_java_output);
+   return stream;
+}
+
+/**
+ * Creates the image described by the Java encoder, without sample buffers:
+ * the samples are handed to the codec tile by tile.
+ */
+static opj_image_t* create_java_image(JNIEnv* env, jobject obj)
+{
+   OPJ_UINT32 width = (OPJ_UINT32) get_int_field(env, obj, "width");
+   OPJ_UINT32 height = (OPJ_UINT32) get_int_field(env, obj, "height");
+   OPJ_UINT32 nb_comps = (OPJ_UINT32) get_int_field(env, obj, "componentsNumber");
+   OPJ_UINT32 prec = (OPJ_UINT32) get_int_field(env, obj, "precision");
+   OPJ_UINT32 sgnd = get_boolean_field(env, obj, "signed") ? 1 : 0;
+   opj_image_cmptparm_t* cmptparms;
+   OPJ_COLOR_SPACE color_space;
+   opj_image_t* image;
+   OPJ_UINT32 i;
+
+   cmptparms = (opj_image_cmptparm_t*) opj_calloc(nb_comps, sizeof(opj_image_cmptparm_t));
+   if (cmptparms == NULL)
+   {
+      return NULL;
+   }
+   for (i = 0; i < nb_comps; i++)
+   {
+      cmptparms[i].dx = 1;
+      cmptparms[i].dy = 1;
+      cmptparms[i].w = width;
+      cmptparms[i].h = height;
+      cmptparms[i].prec = prec;
+      cmptparms[i].bpp = prec;
+      cmptparms[i].sgnd = sgnd;
+   }
+
+   // grey or RGB, followed by an optional alpha
+   if (nb_comps <= 2)
+   {
+      color_space = OPJ_CLRSPC_GRAY;
+   }
+   else if (nb_comps <= 4)
+   {
+      color_space = OPJ_CLRSPC_SRGB;
+   }
+   else
+   {
+      color_space = OPJ_CLRSPC_UNSPECIFIED;
+   }
+   image = opj_image_tile_create(nb_comps, cmptparms, color_space);
+   opj_free(cmptparms);
+   if (image == NULL)
+   {
+      return NULL;
+   }
+   image->x0 = 0;
+   image->y0 = 0;
+   image->x1 = width;
+   image->y1 = height;
+   if (get_boolean_field(env, obj, "alpha"))
+   {
+      image->comps[nb_comps - 1].alpha = 1;
+   }
+   return image;
+}
+
+/**
+ * Sets the coding parameters of the Java encoder: number of resolutions,
+ * progression order, wavelet, quality layers and tile size.
+ */
+static void set_java_encoder_parameters(JNIEnv* env, jobject obj, opj_cparameters_t* parameters,
+      OPJ_UINT32 nb_comps)
+{
+   jclass class = get_object_class(env, obj);
+   jfieldID fid;
+   jfloatArray ratios = NULL;
+   jsize count = 0;
+   jint tile_width, tile_height;
+
+   opj_set_default_encoder_parameters(parameters);
+   parameters->numresolution = get_int_field(env, obj, "resolutionsNumber");
+   parameters->prog_order = (OPJ_PROG_ORDER) get_int_field(env, obj, "progressionOrder");
+   parameters->irreversible = get_boolean_field(env, obj, "irreversible") ? 1 : 0;
+   parameters->tcp_mct = (char) ((nb_comps >= 3) ? 1 : 0);
+
+   // one layer per compression ratio, a single lossless layer otherwise
+   fid = (*env)->GetFieldID(env, class, "compressionRatios", "[F");
+   if (!(*env)->ExceptionCheck(env) && fid != NULL)
+   {
+      ratios = (jfloatArray) (*env)->GetObjectField(env, obj, fid);
+   }
+   if (ratios != NULL)
+   {
+      count = (*env)->GetArrayLength(env, ratios);
+      if (count > 100)
+      {
+         count = 100;
+      }
+      (*env)->GetFloatArrayRegion(env, ratios, 0, count, parameters->tcp_rates);
+      (*env)->DeleteLocalRef(env, ratios);
+   }
+   parameters->tcp_numlayers = (count > 0) ? count : 1;
+   if (count == 0)
+   {
+      parameters->tcp_rates[0] = 0;
+   }
+   parameters->cp_disto_alloc = 1;
+
+   tile_width = get_int_field(env, obj, "tileWidth");
+   tile_height = get_int_field(env, obj, "tileHeight");
+   if (tile_width > 0 && tile_height > 0)
+   {
+      parameters->tile_size_on = OPJ_TRUE;
+      parameters->cp_tx0 = 0;
+      parameters->cp_ty0 = 0;
+      parameters->cp_tdx = tile_width;
+      parameters->cp_tdy = tile_height;
+   }
+}
+
+/**
+ * Requests the samples of a tile from the Java encoder and copies them
+ * into the codec buffer.
+ */
+static OPJ_BOOL fill_tile_native_buffer(JNIEnv* env, jobject obj, jmethodID method_id,
+      OPJ_UINT32 tile_index, OPJ_UINT32 x, OPJ_UINT32 y, OPJ_UINT32 width, OPJ_UINT32 height,
+      OPJ_UINT32 nb_comps, OPJ_UINT32 sample_size, OPJ_BYTE* data)
+{
+   jobject samples;
+   jsize count = (jsize) (nb_comps * width * height);
+
+   samples = (*env)->CallObjectMethod(env, obj, method_id, (jint) tile_index, (jint) x, (jint) y,
+         (jint) width, (jint) height);
+   if ((*env)->ExceptionCheck(env) || samples == NULL)
+   {
+      return OPJ_FALSE;
+   }
+   if (sample_size == 1)
+   {
+      (*env)->GetByteArrayRegion(env, (jbyteArray) samples, 0, count, (jbyte*) data);
+   }
+   else if (sample_size == 2)
+   {
+      (*env)->GetShortArrayRegion(env, (jshortArray) samples, 0, count, (jshort*) data);
+   }
+   else
+   {
+      (*env)->GetIntArrayRegion(env, (jintArray) samples, 0, count, (jint*) data);
+   }
+   (*env)->DeleteLocalRef(env, samples);
+   return (*env)->ExceptionCheck(env) ? OPJ_FALSE : OPJ_TRUE;
+}
+
+/**
+ * Copies the samples of a tile from the planar samples of the whole image.
+ */
+static void copy_tile_native_buffer(const OPJ_BYTE* samples, OPJ_UINT32 image_width,
+      OPJ_UINT32 image_height, OPJ_UINT32 x, OPJ_UINT32 y, OPJ_UINT32 width, OPJ_UINT32 height,
+      OPJ_UINT32 nb_comps, OPJ_UINT32 sample_size, OPJ_BYTE* data)
+{
+   OPJ_UINT32 c, row;
+   size_t row_size = (size_t) width * sample_size;
+
+   for (c = 0; c < nb_comps; c++)
+   {
+      for (row = 0; row < height; row++)
+      {
+         memcpy(data + ((size_t) c * height + row) * row_size,
+               samples + (((size_t) c * image_height + y + row) * image_width + x) * sample_size,
+               row_size);
+      }
+   }
+}
+
+/**
+ * Returns the address of the "imageSamples" direct buffer of the Java
+ * encoder, or NULL when the tiles are requested from its source.
+ */
+static const OPJ_BYTE* get_java_image_samples(JNIEnv* env, jobject obj)
+{
+   jfieldID fid;
+   jobject samples;
+   const OPJ_BYTE* address;
+
+   fid = (*env)->GetFieldID(env, get_object_class(env, obj), "imageSamples",
+         "Ljava/nio/ByteBuffer;");
+   if ((*env)->ExceptionCheck(env) || fid == NULL)
+      return NULL;
+   samples = (*env)->GetObjectField(env, obj, fid);
+   if (samples == NULL)
+      return NULL;
+   address = (const OPJ_BYTE*) (*env)->GetDirectBufferAddress(env, samples);
+   (*env)->DeleteLocalRef(env, samples);
+   return address;
+}
+
+/**
+ * Writes every tile of the image to a started compression, in the order of
+ * their indices, row by row.
+ */
+static OPJ_BOOL write_java_tiles(JNIEnv* env, jobject obj, opj_codec_t* codec,
+      opj_image_t* image, opj_stream_t* stream, const opj_cparameters_t* parameters)
+{
+   jmethodID method_id = NULL;
+   const OPJ_BYTE* samples;
+   OPJ_BYTE* data = NULL;
+   OPJ_UINT64 data_size;
+   OPJ_UINT32 tile_width, tile_height, tile_columns, tile_rows, tile_index;
+   OPJ_UINT32 x, y, width, height;
+   OPJ_UINT32 nb_comps = image->numcomps;
+   OPJ_UINT32 sample_size = get_sample_size(image->comps[0].prec);
+   OPJ_BOOL success = OPJ_TRUE;
+
+   // the samples of a direct buffer, or those requested tile by tile
+   samples = get_java_image_samples(env, obj);
+   if (samples == NULL)
+   {
+      method_id = (*env)->GetMethodID(env, get_object_class(env, obj), "fillTile",
+            "(IIIII)Ljava/lang/Object;");
+      if ((*env)->ExceptionCheck(env) || method_id == NULL)
+      {
+         return OPJ_FALSE;
+      }
+   }
+
+   tile_width = parameters->tile_size_on ? (OPJ_UINT32) parameters->cp_tdx : image->x1;
+   tile_height = parameters->tile_size_on ? (OPJ_UINT32) parameters->cp_tdy : image->y1;
+   tile_columns = opj_uint_ceildiv(image->x1, tile_width);
+   tile_rows = opj_uint_ceildiv(image->y1, tile_height);
+
+   // one buffer for the samples of the largest tile
+   data_size = (OPJ_UINT64) nb_comps * opj_uint_min(tile_width, image->x1) *
+         opj_uint_min(tile_height, image->y1) * sample_size;
+   if (data_size > 0x7FFFFFFF)
+   {
+      java_log_error(env, obj, "Tiles too large to be encoded !");
+      return OPJ_FALSE;
+   }
+   data = (OPJ_BYTE*) opj_malloc((size_t) data_size);
+   if (data == NULL)
+   {
+      java_log_error(env, obj, "Can not allocate tile buffer !");
+      return OPJ_FALSE;
+   }
+
+   for (tile_index = 0; success && tile_index < tile_columns * tile_rows; tile_index++)
+   {
+      x = (tile_index % tile_columns) * tile_width;
+      y = (tile_index / tile_columns) * tile_height;
+      width = opj_uint_min(tile_width, image->x1 - x);
+      height = opj_uint_min(tile_height, image->y1 - y);
+      if (samples != NULL)
+      {
+         copy_tile_native_buffer(samples, image->x1, image->y1, x, y, width, height,
+               nb_comps, sample_size, data);
+      }
+      else
+      {
+         success = fill_tile_native_buffer(env, obj, method_id, tile_index, x, y, width, height,
+               nb_comps, sample_size, data);
+      }
+      if (success && opj_write_tile(codec, tile_index, data,
+            nb_comps * width * height * sample_size, stream) == OPJ_FALSE)
+      {
+         java_log_error(env, obj, "Can not encode tile !");
+         success = OPJ_FALSE;
+      }
+   }
+
+   opj_free(data);
+   return success;
+}
+
+/******************************************************************************/
+/***JNI CALL ******************************************************************/
+JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegEncoder_internalOpenJpegEncodeTiles
+  (JNIEnv* env, jobject obj)
+{
+   opj_cparameters_t parameters;
+   opj_codec_t* codec = NULL;
+   opj_image_t* image = NULL;
+   opj_stream_t* stream = NULL;
+   jboolean success = JNI_FALSE;
+
+   image = create_java_image(env, obj);
+   if (image == NULL)
+   {
+      java_log_error(env, obj, "Can not create image !");
+      return JNI_FALSE;
+   }
+   set_java_encoder_parameters(env, obj, &parameters, image->numcomps);
+
+   codec = opj_create_compress((OPJ_CODEC_FORMAT) get_int_field(env, obj, "codecFormat"));
+   if (codec == NULL || opj_setup_encoder(codec, &parameters, image) == OPJ_FALSE)
+   {
+      if (codec != NULL)
+      {
+         opj_destroy_codec(codec);
+      }
+      opj_image_destroy(image);
+      java_log_error(env, obj, "Encoder setup faild !");
+      return JNI_FALSE;
+   }
+
+   // create stream
+   stream = open_java_output_stream(env, obj);
+   if (stream == NULL)
+   {
+      opj_destroy_codec(codec);
+      opj_image_destroy(image);
+      java_log_error(env, obj, "Native stream generation faild !");
+      return JNI_FALSE;
+   }
+
+   // encode image, the codestream is written as the tiles are
+   if (opj_start_compress(codec, image, stream) == OPJ_FALSE)
+   {
+      java_log_error(env, obj, "Can not start compression !");
+   }
+   else if (write_java_tiles(env, obj, codec, image, stream, &parameters))
+   {
+      if (opj_end_compress(codec, stream))
+      {
+         success = JNI_TRUE;
+      }
+      else
+      {
+         java_log_error(env, obj, "Can not end compression !");
+      }
+   }
+
+   // free encode resources
+   opj_stream_destroy(stream);
+   opj_destroy_codec(codec);
+   opj_image_destroy(image);
+
+   return success;
+}
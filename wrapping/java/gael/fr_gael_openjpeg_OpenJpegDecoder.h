@@ -24,6 +24,22 @@ JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpe
 JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecode
   (JNIEnv *, jobject);
 
+/*
+ * Class:     fr_gael_openjpeg_OpenJpegDecoder
+ * Method:    internalOpenJpegDecodeTiles
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecodeTiles
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     fr_gael_openjpeg_OpenJpegDecoder
+ * Method:    internalOpenJpegDecodeInto
+ * Signature: (ILjava/lang/Object;IIIII)Z
+ */
+JNIEXPORT jboolean JNICALL Java_fr_gael_openjpeg_OpenJpegDecoder_internalOpenJpegDecodeInto
+  (JNIEnv *, jobject, jint, jobject, jint, jint, jint, jint, jint);
+
 #ifdef __cplusplus
 }
 #endif